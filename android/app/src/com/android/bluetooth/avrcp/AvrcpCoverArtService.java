@@ -30,6 +30,9 @@ import com.android.obex.ServerSession;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The AVRCP Cover Art Service
@@ -43,6 +46,9 @@ public class AvrcpCoverArtService {
 
     private static final int COVER_ART_STORAGE_MAX_ITEMS = 32;
 
+    // The thread encoding cover art ends once idle for this long
+    private static final long COVER_ART_ENCODER_KEEP_ALIVE_SECONDS = 10;
+
     /**
      * Limiting transmit packet size because some carkits are disconnected if
      * AVRCP Cover Art OBEX packet size exceed 1024 bytes.
@@ -70,7 +76,12 @@ public class AvrcpCoverArtService {
         mContext = context;
         mNativeInterface = AvrcpNativeInterface.getInterface();
         mAcceptThread = new SocketAcceptor();
-        mStorage = new AvrcpCoverArtStorage(COVER_ART_STORAGE_MAX_ITEMS);
+        // Encode new images off the threads storing them and serving the clients, one at a time
+        ThreadPoolExecutor encodeExecutor = new ThreadPoolExecutor(1, 1,
+                COVER_ART_ENCODER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        encodeExecutor.allowCoreThreadTimeOut(true);
+        mStorage = new AvrcpCoverArtStorage(COVER_ART_STORAGE_MAX_ITEMS, encodeExecutor);
     }
 
     /**
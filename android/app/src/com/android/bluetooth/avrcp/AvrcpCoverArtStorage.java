@@ -21,9 +21,14 @@ import android.util.Log;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * A class abstracting the storage method of cover art images
+ *
+ * Images are stored once per pixel hash, and keep their encoded variants for as long as they are
+ * stored. If given an executor, the thumbnail of a new image is encoded on it ahead of the
+ * requests of the clients.
  */
 final class AvrcpCoverArtStorage {
     private static final String TAG = "AvrcpCoverArtStorage";
@@ -36,6 +41,35 @@ final class AvrcpCoverArtStorage {
     private final int mMaxImages;
     private final Map<String, String> mImageHandles;
     private final Map<String, CoverArt> mImages;
+    private final Executor mEncodeExecutor;
+
+    private final Object mStatsLock = new Object();
+    private long mStoreRequests = 0;
+    private long mStoreHits = 0;
+    private long mImageRequests = 0;
+    private long mImageRequestHits = 0;
+    private long mEncodes = 0;
+    private long mTotalEncodeTimeMillis = 0;
+    private long mMaxEncodeTimeMillis = 0;
+
+    private final CoverArt.EncodingListener mEncodingListener = new CoverArt.EncodingListener() {
+        @Override
+        public void onImageEncoded(long encodeTimeMillis) {
+            synchronized (mStatsLock) {
+                mEncodes++;
+                mTotalEncodeTimeMillis += encodeTimeMillis;
+                mMaxEncodeTimeMillis = Math.max(mMaxEncodeTimeMillis, encodeTimeMillis);
+            }
+        }
+
+        @Override
+        public void onImageRequested(boolean encoded) {
+            synchronized (mStatsLock) {
+                mImageRequests++;
+                if (encoded) mImageRequestHits++;
+            }
+        }
+    };
 
     /**
      * Make an image storage object with no bounds on the amount of images it can store
@@ -48,10 +82,19 @@ final class AvrcpCoverArtStorage {
      * Make an image storage object with a bound on the amount of images it can store
      */
     AvrcpCoverArtStorage(int maxSize) {
+        this(maxSize, null);
+    }
+
+    /**
+     * Make an image storage object with a bound on the amount of images it can store, encoding
+     * the thumbnails of new images on the given executor
+     */
+    AvrcpCoverArtStorage(int maxSize, Executor encodeExecutor) {
         if (maxSize < 0) {
             throw new IllegalArgumentException("maxSize < 0");
         }
         mMaxImages = maxSize;
+        mEncodeExecutor = encodeExecutor;
 
         mImageHandles = new HashMap<String, String>();
 
@@ -66,7 +109,7 @@ final class AvrcpCoverArtStorage {
      */
     public String storeImage(CoverArt coverArt) {
         debug("storeImage(CoverArt='" + coverArt + "')");
-        if (coverArt == null || coverArt.getImage() == null) {
+        if (coverArt == null || !coverArt.hasImage()) {
             debug("Received a null image");
             return null;
         }
@@ -78,8 +121,15 @@ final class AvrcpCoverArtStorage {
             return null;
         }
 
+        synchronized (mStatsLock) {
+            mStoreRequests++;
+        }
+
         synchronized (mImagesLock) {
             if (mImageHandles.containsKey(hash)) {
+                synchronized (mStatsLock) {
+                    mStoreHits++;
+                }
                 debug("Already have image of hash '" + hash + "'");
                 imageHandle = mImageHandles.get(hash);
                 debug("Sending back existing handle '" + imageHandle + "'");
@@ -95,12 +145,18 @@ final class AvrcpCoverArtStorage {
             if (imageHandle != null) {
                 debug("Image " + coverArt + " stored at handle '" + imageHandle + "'");
                 coverArt.setImageHandle(imageHandle);
+                coverArt.setEncodingListener(mEncodingListener);
                 mImages.put(imageHandle, coverArt);
                 trimToSize();
             } else {
                 error("Failed to store image. Could not get a handle.");
             }
         }
+
+        // Every client requests the thumbnail of a new track, have it ready by then
+        if (imageHandle != null && mEncodeExecutor != null) {
+            mEncodeExecutor.execute(coverArt::encodeThumbnail);
+        }
         return imageHandle;
     }
 
@@ -192,6 +248,19 @@ final class AvrcpCoverArtStorage {
             }
         }
         sb.append("\n\tImage bytes: " + bytes);
+        synchronized (mStatsLock) {
+            sb.append("\n\tStored images: " + mStoreRequests + " requests, " + mStoreHits
+                    + " already stored (" + getPercent(mStoreHits, mStoreRequests) + "%)");
+            sb.append("\n\tEncoded images: " + mImageRequests + " requests, " + mImageRequestHits
+                    + " already encoded (" + getPercent(mImageRequestHits, mImageRequests)
+                    + "%), " + mEncodes + " encodings, average encode time "
+                    + (mEncodes > 0 ? mTotalEncodeTimeMillis / mEncodes : 0) + "ms, max "
+                    + mMaxEncodeTimeMillis + "ms");
+        }
+    }
+
+    private static long getPercent(long count, long total) {
+        return total > 0 ? count * 100 / total : 0;
     }
 
     /**
@@ -17,6 +17,7 @@
 package com.android.bluetooth.avrcp;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.audio_util.Image;
@@ -27,8 +28,10 @@ import com.android.bluetooth.avrcpcontroller.BipImageProperties;
 import com.android.bluetooth.avrcpcontroller.BipPixel;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 
 /**
  * An object to represent a piece of cover artwork/
@@ -36,15 +39,40 @@ import java.security.NoSuchAlgorithmException;
  * This object abstracts away the actual storage method and provides a means for others to
  * understand available formats and get the underlying image in a particular format.
  *
- * All return values are ready to use by a BIP server.
+ * All return values are ready to use by a BIP server. Each encoded variant of the image is only
+ * encoded once, when first requested or pre-encoded with {@link #encodeThumbnail()}.
  */
 public class CoverArt {
     private static final String TAG = "CoverArt";
     private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
     private static final BipPixel PIXEL_THUMBNAIL = BipPixel.createFixed(200, 200);
+    private static final String VARIANT_THUMBNAIL =
+            getVariant(new BipEncoding(BipEncoding.JPEG), PIXEL_THUMBNAIL);
+
+    /**
+     * Notified of the encodings of the image, to report how often requests are served from the
+     * encoded variants.
+     */
+    interface EncodingListener {
+        /**
+         * Called when a variant of the image is encoded, with the time spent encoding it
+         */
+        void onImageEncoded(long encodeTimeMillis);
+
+        /**
+         * Called when an encoded image is requested, with whether it was already encoded
+         */
+        void onImageRequested(boolean encoded);
+    }
 
     private String mImageHandle = null;
     private Bitmap mImage = null;
+    private String mImageHash = null;
+
+    // Encoded images by variant, see getVariant(). Locked while encoding so that concurrent
+    // requests for a variant wait for it instead of encoding it again.
+    private final HashMap<String, byte[]> mEncodedImages = new HashMap<String, byte[]>();
+    private EncodingListener mEncodingListener = null;
 
     /**
      * Create a CoverArt object from an audio_util Image abstraction
@@ -75,38 +103,45 @@ public class CoverArt {
     }
 
     /**
-     * Covert a Bitmap to a byte array with an image format without lossy compression
+     * Set the listener of the encodings of the image
      */
-    private byte[] toByteArray(Bitmap bitmap) {
-        if (bitmap == null) return null;
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(
-                    bitmap.getWidth() * bitmap.getHeight());
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, buffer);
-        return buffer.toByteArray();
+    void setEncodingListener(EncodingListener listener) {
+        synchronized (mEncodedImages) {
+            mEncodingListener = listener;
+        }
+    }
+
+    /**
+     * Determine if this CoverArt holds an image
+     */
+    boolean hasImage() {
+        return mImage != null;
     }
 
     /**
      * Get a hash code of this CoverArt image
+     *
+     * The hash is computed once from the pixels, all images being scaled to the same dimensions.
      */
-    public String getImageHash() {
-        byte[] image = toByteArray(mImage);
-        if (image == null) return null;
-        String hash = null;
+    public synchronized String getImageHash() {
+        if (mImageHash != null) return mImageHash;
+        if (mImage == null) return null;
         try {
-            final byte[] digestBytes;
+            ByteBuffer pixels = ByteBuffer.allocate(mImage.getByteCount());
+            mImage.copyPixelsToBuffer(pixels);
             final MessageDigest digest = MessageDigest.getInstance("MD5");
-            digest.update(/* Bitmap to input stream */ image);
+            digest.update(pixels.array());
             byte[] messageDigest = digest.digest();
 
-            StringBuffer hexString = new StringBuffer();
+            StringBuilder hexString = new StringBuilder();
             for (int i = 0; i < messageDigest.length; i++) {
-                hexString.append(Integer.toHexString(0xFF & messageDigest[i]));
+                hexString.append(String.format("%02x", messageDigest[i]));
             }
-            hash = hexString.toString();
+            mImageHash = hexString.toString();
         } catch (NoSuchAlgorithmException e) {
             Log.e(TAG, "Failed to hash bitmap", e);
         }
-        return hash;
+        return mImageHash;
     }
 
     /**
@@ -115,11 +150,7 @@ public class CoverArt {
     public byte[] getImage() {
         debug("GetImage(native)");
         if (mImage == null) return null;
-        byte[] bytes = null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        bytes = outputStream.toByteArray();
-        return bytes;
+        return getEncodedImage(VARIANT_THUMBNAIL, true);
     }
 
     /**
@@ -133,12 +164,7 @@ public class CoverArt {
             error("Given format isn't available for this image");
             return null;
         }
-
-        byte[] bytes = null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        bytes = outputStream.toByteArray();
-        return bytes;
+        return getEncodedImage(getVariant(descriptor.getEncoding(), descriptor.getPixel()), true);
     }
 
     /**
@@ -163,11 +189,45 @@ public class CoverArt {
     public byte[] getThumbnail() {
         debug("GetImageThumbnail()");
         if (mImage == null) return null;
-        byte[] bytes = null;
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
-        bytes = outputStream.toByteArray();
-        return bytes;
+        return getEncodedImage(VARIANT_THUMBNAIL, true);
+    }
+
+    /**
+     * Encode the thumbnail ahead of the requests for it, as every client requests it
+     */
+    void encodeThumbnail() {
+        if (mImage == null) return;
+        getEncodedImage(VARIANT_THUMBNAIL, false);
+    }
+
+    /**
+     * Get the image encoded as the given variant, encoding it if not done yet
+     */
+    private byte[] getEncodedImage(String variant, boolean requested) {
+        synchronized (mEncodedImages) {
+            byte[] bytes = mEncodedImages.get(variant);
+            if (requested && mEncodingListener != null) {
+                mEncodingListener.onImageRequested(bytes != null);
+            }
+            if (bytes == null) {
+                // Only 200x200 JPEG variants are valid for now, see isDescriptorValid()
+                long start = SystemClock.elapsedRealtime();
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                mImage.compress(Bitmap.CompressFormat.JPEG, 100, outputStream);
+                bytes = outputStream.toByteArray();
+                mEncodedImages.put(variant, bytes);
+                long encodeTimeMillis = SystemClock.elapsedRealtime() - start;
+                debug("Encoded variant " + variant + " in " + encodeTimeMillis + "ms");
+                if (mEncodingListener != null) {
+                    mEncodingListener.onImageEncoded(encodeTimeMillis);
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private static String getVariant(BipEncoding encoding, BipPixel pixel) {
+        return encoding + "/" + pixel;
     }
 
     /**
@@ -199,7 +259,13 @@ public class CoverArt {
      * Get the storage size of this image in bytes
      */
     public int size() {
-        return mImage != null ? mImage.getAllocationByteCount() : 0;
+        int size = mImage != null ? mImage.getAllocationByteCount() : 0;
+        synchronized (mEncodedImages) {
+            for (byte[] bytes : mEncodedImages.values()) {
+                size += bytes.length;
+            }
+        }
+        return size;
     }
 
     @Override
@@ -4047,9 +4047,9 @@ public class AdapterService extends Service {
     }
 
     public byte[] getByteIdentityAddress(BluetoothDevice device) {
-        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
-        if (deviceProp != null && deviceProp.getIdentityAddress() != null) {
-            return Utils.getBytesFromAddress(deviceProp.getIdentityAddress());
+        String identityAddress = mRemoteDevices.getIdentityAddress(device.getAddress());
+        if (identityAddress != null) {
+            return Utils.getBytesFromAddress(identityAddress);
         } else {
             return Utils.getByteAddress(device);
         }
@@ -4064,10 +4064,9 @@ public class AdapterService extends Service {
     }
 
     public String getIdentityAddress(String address) {
-        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address.toUpperCase());
-        DeviceProperties deviceProp = mRemoteDevices.getDeviceProperties(device);
-        if (deviceProp != null && deviceProp.getIdentityAddress() != null) {
-            return deviceProp.getIdentityAddress();
+        String identityAddress = mRemoteDevices.getIdentityAddress(address);
+        if (identityAddress != null) {
+            return identityAddress;
         } else {
             return address;
         }
@@ -5197,6 +5196,8 @@ public class AdapterService extends Service {
         writer.println();
 
         mAdapterStateMachine.dump(fd, writer, args);
+        mRemoteDevices.dump(writer);
+        writer.println();
 
         StringBuilder sb = new StringBuilder();
         for (ProfileService profile : mRegisteredProfiles) {
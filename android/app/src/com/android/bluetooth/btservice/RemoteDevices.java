@@ -39,8 +39,10 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.util.Log;
+import android.util.Pair;
 
 import com.android.bluetooth.BluetoothStatsLog;
 import com.android.bluetooth.R;
@@ -49,12 +51,14 @@ import com.android.bluetooth.bas.BatteryService;
 import com.android.bluetooth.hfp.HeadsetHalConstants;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 
 final class RemoteDevices {
@@ -62,7 +66,16 @@ final class RemoteDevices {
     private static final String TAG = "BluetoothRemoteDevices";
 
     // Maximum number of device properties to remember
-    private static final int MAX_DEVICE_QUEUE_SIZE = 200;
+    @VisibleForTesting
+    static final int MAX_DEVICE_CACHE_SIZE = 200;
+    // Number of device properties kept when the cache is full, so that it is not trimmed again
+    // for every new device during discovery
+    @VisibleForTesting
+    static final int DEVICE_CACHE_TRIM_SIZE = MAX_DEVICE_CACHE_SIZE * 9 / 10;
+    // Device properties not used for this long are forgotten
+    @VisibleForTesting
+    static final long MAX_DEVICE_AGE_MS = 60 * 60 * 1000;
+    private static final long DEVICE_CACHE_AGE_CHECK_INTERVAL_MS = 60 * 1000;
 
     private static BluetoothAdapter sAdapter;
     private static AdapterService sAdapterService;
@@ -72,9 +85,18 @@ final class RemoteDevices {
     private static final int UUID_INTENT_DELAY = 6000;
     private static final int MESSAGE_UUID_INTENT = 1;
 
-    private final HashMap<String, DeviceProperties> mDevices;
-    private final HashMap<String, String> mDualDevicesMap;
-    private Queue<String> mDeviceQueue;
+    // Written under its own lock, read without locking.
+    private final ConcurrentHashMap<String, DeviceProperties> mDevices;
+    private final ConcurrentHashMap<String, String> mDualDevicesMap;
+    // Order of the uses of the device properties, for the least recently used eviction
+    private final AtomicLong mDeviceAccessCounter = new AtomicLong();
+    private long mLastDeviceAgeCheck;
+    private final AtomicLong mDeviceCacheHits = new AtomicLong();
+    private final AtomicLong mDeviceCacheMisses = new AtomicLong();
+    private final AtomicLong mDeviceCacheEvictions = new AtomicLong();
+    // Identity address of the devices seen with another address, RPA or BR/EDR address of a
+    // dual mode device, by that address. Read without locking for every scan result.
+    private final ConcurrentHashMap<String, String> mIdentityAddresses;
 
     /**
      * Bluetooth HFP v1.8 specifies the Battery Charge indicator of AG can take values from
@@ -168,9 +190,9 @@ final class RemoteDevices {
         sAdapter = BluetoothAdapter.getDefaultAdapter();
         sAdapterService = service;
         sSdpTracker = new ArrayList<BluetoothDevice>();
-        mDevices = new HashMap<String, DeviceProperties>();
-        mDualDevicesMap = new HashMap<String, String>();
-        mDeviceQueue = new LinkedList<String>();
+        mDevices = new ConcurrentHashMap<String, DeviceProperties>();
+        mDualDevicesMap = new ConcurrentHashMap<String, String>();
+        mIdentityAddresses = new ConcurrentHashMap<String, String>();
         mHandler = new RemoteDevicesHandler(looper);
     }
 
@@ -210,33 +232,25 @@ final class RemoteDevices {
         }
 
         synchronized (mDevices) {
-            if (mDevices != null) {
-                debugLog("reset(): Broadcasting ACL_DISCONNECTED");
-
-                mDevices.forEach((address, deviceProperties) -> {
-                    BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
+            debugLog("reset(): Broadcasting ACL_DISCONNECTED");
 
-                    debugLog("reset(): address=" + address + ", connected="
-                            + bluetoothDevice.isConnected());
+            mDevices.forEach((address, deviceProperties) -> {
+                BluetoothDevice bluetoothDevice = deviceProperties.getDevice();
 
-                    if (bluetoothDevice.isConnected()) {
-                        Intent intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
-                        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bluetoothDevice);
-                        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
-                                | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
-                        sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_PERM);
-                    }
-                });
-                mDevices.clear();
-            }
-        }
+                debugLog("reset(): address=" + address + ", connected="
+                        + bluetoothDevice.isConnected());
 
-        if (mDualDevicesMap != null) {
+                if (bluetoothDevice.isConnected()) {
+                    Intent intent = new Intent(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+                    intent.putExtra(BluetoothDevice.EXTRA_DEVICE, bluetoothDevice);
+                    intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT
+                            | Intent.FLAG_RECEIVER_INCLUDE_BACKGROUND);
+                    sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_PERM);
+                }
+            });
+            mDevices.clear();
             mDualDevicesMap.clear();
-        }
-
-        if (mDeviceQueue != null) {
-            mDeviceQueue.clear();
+            mIdentityAddresses.clear();
         }
     }
 
@@ -246,25 +260,53 @@ final class RemoteDevices {
     }
 
     DeviceProperties getDeviceProperties(BluetoothDevice device) {
-        synchronized (mDevices) {
-            String address = mDualDevicesMap.get(device.getAddress());
-            // If the device is not in the dual map, use its original address
-            if (address == null || mDevices.get(address) == null) {
-                address = device.getAddress();
-            }
-            return mDevices.get(address);
-        }
+        return getDeviceProperties(device.getAddress());
     }
 
-    BluetoothDevice getDevice(byte[] address) {
-        String addressString = Utils.getAddressStringFromByte(address);
-        String deviceAddress = mDualDevicesMap.get(addressString);
+    private DeviceProperties getDeviceProperties(String address) {
+        DeviceProperties prop = null;
+        String mainAddress = mDualDevicesMap.get(address);
+        if (mainAddress != null) {
+            prop = mDevices.get(mainAddress);
+        }
         // If the device is not in the dual map, use its original address
-        if (deviceAddress == null || mDevices.get(deviceAddress) == null) {
-            deviceAddress = addressString;
+        if (prop == null) {
+            prop = mDevices.get(address);
+        }
+        if (prop != null) {
+            prop.mLastAccess = mDeviceAccessCounter.incrementAndGet();
+            prop.mLastAccessTime = SystemClock.elapsedRealtime();
+            mDeviceCacheHits.incrementAndGet();
+        } else {
+            mDeviceCacheMisses.incrementAndGet();
+        }
+        return prop;
+    }
+
+    /**
+     * Returns the identity address of the device using {@code address}, or null if the device
+     * is not known by another address. Neither locks nor allocates for upper case addresses, as
+     * it is called for every scan result.
+     */
+    String getIdentityAddress(String address) {
+        String identityAddress = mIdentityAddresses.get(address);
+        if (identityAddress == null && hasLowerCase(address)) {
+            identityAddress = mIdentityAddresses.get(address.toUpperCase());
         }
+        return identityAddress;
+    }
 
-        DeviceProperties prop = mDevices.get(deviceAddress);
+    private static boolean hasLowerCase(String address) {
+        for (int i = 0; i < address.length(); i++) {
+            if (Character.isLowerCase(address.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    BluetoothDevice getDevice(byte[] address) {
+        DeviceProperties prop = getDeviceProperties(Utils.getAddressStringFromByte(address));
         if (prop != null) {
             return prop.getDevice();
         }
@@ -277,26 +319,76 @@ final class RemoteDevices {
             DeviceProperties prop = new DeviceProperties();
             prop.mDevice = sAdapter.getRemoteDevice(Utils.getAddressStringFromByte(address));
             prop.mAddress = address;
+            prop.mLastAccess = mDeviceAccessCounter.incrementAndGet();
+            prop.mLastAccessTime = SystemClock.elapsedRealtime();
             String key = Utils.getAddressStringFromByte(address);
             DeviceProperties pv = mDevices.put(key, prop);
 
             if (pv == null) {
-                mDeviceQueue.offer(key);
-                if (mDeviceQueue.size() > MAX_DEVICE_QUEUE_SIZE) {
-                    String deleteKey = mDeviceQueue.poll();
-                    for (BluetoothDevice device : sAdapterService.getBondedDevices()) {
-                        if (device.getAddress().equals(deleteKey)) {
-                            return prop;
-                        }
-                    }
-                    debugLog("Removing device " + deleteKey + " from property map");
-                    mDevices.remove(deleteKey);
-                }
+                trimDevices(prop.mLastAccessTime);
             }
             return prop;
         }
     }
 
+    /**
+     * Forgets the device properties not used for {@link #MAX_DEVICE_AGE_MS}, then the least
+     * recently used ones down to {@link #DEVICE_CACHE_TRIM_SIZE} if the cache is full. Bonded
+     * and connected devices are kept. Must be called with the lock of mDevices held.
+     */
+    private void trimDevices(long now) {
+        boolean full = mDevices.size() > MAX_DEVICE_CACHE_SIZE;
+        if (!full && now - mLastDeviceAgeCheck < DEVICE_CACHE_AGE_CHECK_INTERVAL_MS) {
+            return;
+        }
+        mLastDeviceAgeCheck = now;
+
+        // Order of the last uses, copied as it changes while sorting
+        ArrayList<Pair<Long, String>> candidates = new ArrayList<>();
+        for (Map.Entry<String, DeviceProperties> entry : mDevices.entrySet()) {
+            DeviceProperties prop = entry.getValue();
+            if (now - prop.mLastAccessTime > MAX_DEVICE_AGE_MS) {
+                removeDevice(entry.getKey(), prop);
+            } else if (full) {
+                candidates.add(new Pair<>(prop.mLastAccess, entry.getKey()));
+            }
+        }
+        if (mDevices.size() <= MAX_DEVICE_CACHE_SIZE) {
+            return;
+        }
+
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.first));
+        for (Pair<Long, String> candidate : candidates) {
+            if (mDevices.size() <= DEVICE_CACHE_TRIM_SIZE) {
+                break;
+            }
+            DeviceProperties prop = mDevices.get(candidate.second);
+            if (prop != null) {
+                removeDevice(candidate.second, prop);
+            }
+        }
+    }
+
+    private void removeDevice(String address, DeviceProperties prop) {
+        if (prop.getBondState() != BluetoothDevice.BOND_NONE
+                || sAdapterService.getConnectionState(prop.getDevice())
+                        != BluetoothProfile.STATE_DISCONNECTED) {
+            return;
+        }
+        debugLog("Removing device " + address + " from property map");
+        mDevices.remove(address);
+        mDualDevicesMap.values().remove(address);
+        mIdentityAddresses.remove(address);
+        mDeviceCacheEvictions.incrementAndGet();
+    }
+
+    void dump(PrintWriter writer) {
+        writer.println("RemoteDevices:");
+        writer.println("  Device properties: " + mDevices.size() + "/" + MAX_DEVICE_CACHE_SIZE
+                + ", hits=" + mDeviceCacheHits.get() + ", misses=" + mDeviceCacheMisses.get()
+                + ", evictions=" + mDeviceCacheEvictions.get());
+    }
+
     class DeviceProperties {
         private String mName;
         private byte[] mAddress;
@@ -313,6 +405,9 @@ final class RemoteDevices {
         @VisibleForTesting int mDeviceType;
         @VisibleForTesting ParcelUuid[] mUuids;
         private BluetoothSinkAudioPolicy mAudioPolicy;
+        // Position in the uses of the device properties and time of the last one
+        private volatile long mLastAccess;
+        private volatile long mLastAccessTime;
 
         DeviceProperties() {
             mBondState = BluetoothDevice.BOND_NONE;
@@ -820,6 +915,7 @@ final class RemoteDevices {
         deviceProperties.mDeviceType = BluetoothDevice.DEVICE_TYPE_DUAL;
         deviceProperties.mIdentityAddress = Utils.getAddressStringFromByte(secondaryAddress);
         mDualDevicesMap.put(deviceProperties.getIdentityAddress(), Utils.getAddressStringFromByte(mainAddress));
+        mIdentityAddresses.put(device.getAddress(), deviceProperties.getIdentityAddress());
     }
 
     /**
@@ -841,6 +937,7 @@ final class RemoteDevices {
 
         DeviceProperties deviceProperties = getDeviceProperties(device);
         deviceProperties.mIdentityAddress = Utils.getAddressStringFromByte(secondaryAddress);
+        mIdentityAddresses.put(device.getAddress(), deviceProperties.getIdentityAddress());
     }
 
     void aclStateChangeCallback(int status, byte[] address, int newState,
@@ -48,6 +48,7 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -74,10 +75,22 @@ public class DatabaseManager {
     private static final int METADATA_CHANGED_LOG_MAX_SIZE = 20;
     private final EvictingQueue<String> mMetadataChangedLog;
 
+    // Rows to write by address, a null value deletes the row. Written to the database by a
+    // single MSG_UPDATE_DATABASE sent mWriteDelayMillis after the first change, so that the many
+    // changes of a connection event share a transaction.
+    private final Map<String, Metadata> mPendingWrites = new LinkedHashMap<>();
+    private boolean mFlushScheduled = false;
+    @VisibleForTesting
+    long mWriteDelayMillis = WRITE_DATABASE_DELAY;
+    private long mWriteRequests = 0;
+    private long mRowsWritten = 0;
+    private long mTransactions = 0;
+
     private static final int LOAD_DATABASE_TIMEOUT = 500; // milliseconds
+    private static final int FLUSH_DATABASE_TIMEOUT = 1000; // milliseconds
+    private static final int WRITE_DATABASE_DELAY = 100; // milliseconds
     private static final int MSG_LOAD_DATABASE = 0;
     private static final int MSG_UPDATE_DATABASE = 1;
-    private static final int MSG_DELETE_DATABASE = 2;
     private static final int MSG_CLEAR_DATABASE = 100;
     private static final String LOCAL_STORAGE = "LocalStorage";
 
@@ -141,17 +154,7 @@ public class DatabaseManager {
                     break;
                 }
                 case MSG_UPDATE_DATABASE: {
-                    Metadata data = (Metadata) msg.obj;
-                    synchronized (mDatabase) {
-                        mDatabase.insert(data);
-                    }
-                    break;
-                }
-                case MSG_DELETE_DATABASE: {
-                    String address = (String) msg.obj;
-                    synchronized (mDatabase) {
-                        mDatabase.delete(address);
-                    }
+                    flushDatabase();
                     break;
                 }
                 case MSG_CLEAR_DATABASE: {
@@ -804,6 +807,12 @@ public class DatabaseManager {
         mHandlerThread = new HandlerThread("BluetoothDatabaseManager");
         mHandlerThread.start();
         mHandler = new DatabaseHandler(mHandlerThread.getLooper());
+        synchronized (mPendingWrites) {
+            mFlushScheduled = !mPendingWrites.isEmpty();
+            if (mFlushScheduled) {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_DATABASE));
+            }
+        }
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
@@ -824,6 +833,9 @@ public class DatabaseManager {
      */
     public void factoryReset() {
         Log.w(TAG, "factoryReset");
+        synchronized (mPendingWrites) {
+            mPendingWrites.clear();
+        }
         Message message = mHandler.obtainMessage(MSG_CLEAR_DATABASE);
         mHandler.sendMessage(message);
     }
@@ -835,7 +847,16 @@ public class DatabaseManager {
         removeUnusedMetadata();
         mAdapterService.unregisterReceiver(mReceiver);
         if (mHandlerThread != null) {
-            mHandlerThread.quit();
+            // Write the pending changes now rather than after the delay, then stop
+            mHandler.removeMessages(MSG_UPDATE_DATABASE);
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_DATABASE));
+            mHandlerThread.quitSafely();
+            try {
+                mHandlerThread.join(FLUSH_DATABASE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Log.e(TAG, "cleanup: interrupted while writing the database");
+                Thread.currentThread().interrupt();
+            }
             mHandlerThread = null;
         }
         mMetadataCache.clear();
@@ -1090,9 +1111,7 @@ public class DatabaseManager {
             return;
         }
         Log.d(TAG, "updateDatabase " + data.getAnonymizedAddress());
-        Message message = mHandler.obtainMessage(MSG_UPDATE_DATABASE);
-        message.obj = data;
-        mHandler.sendMessage(message);
+        scheduleWrite(data.getAddress(), data);
     }
 
     @VisibleForTesting
@@ -1103,9 +1122,54 @@ public class DatabaseManager {
             return;
         }
         logMetadataChange(address, "Metadata deleted");
-        Message message = mHandler.obtainMessage(MSG_DELETE_DATABASE);
-        message.obj = data.getAddress();
-        mHandler.sendMessage(message);
+        scheduleWrite(address, null);
+    }
+
+    /**
+     * Queue the write of {@code data}, or the deletion of the row of {@code address} if it is
+     * null. Only the last change of an address is written.
+     */
+    private void scheduleWrite(String address, Metadata data) {
+        synchronized (mPendingWrites) {
+            // Keep the order of the first change of each address
+            mPendingWrites.put(address, data);
+            mWriteRequests++;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_UPDATE_DATABASE),
+                        mWriteDelayMillis);
+            }
+        }
+    }
+
+    /**
+     * Write the pending changes in a single transaction, on the handler thread
+     */
+    private void flushDatabase() {
+        List<String> deletedAddresses = new ArrayList<>();
+        List<Metadata> updatedMetadata = new ArrayList<>();
+        synchronized (mPendingWrites) {
+            mFlushScheduled = false;
+            for (Map.Entry<String, Metadata> entry : mPendingWrites.entrySet()) {
+                if (entry.getValue() == null) {
+                    deletedAddresses.add(entry.getKey());
+                } else {
+                    updatedMetadata.add(entry.getValue());
+                }
+            }
+            mPendingWrites.clear();
+        }
+        if (deletedAddresses.isEmpty() && updatedMetadata.isEmpty()) {
+            return;
+        }
+        synchronized (mDatabase) {
+            mDatabase.update(deletedAddresses,
+                    updatedMetadata.toArray(new Metadata[updatedMetadata.size()]));
+        }
+        synchronized (mPendingWrites) {
+            mRowsWritten += deletedAddresses.size() + updatedMetadata.size();
+            mTransactions++;
+        }
     }
 
     private void logManufacturerInfo(BluetoothDevice device, int key, byte[] bytesValue) {
@@ -1157,6 +1221,12 @@ public class DatabaseManager {
      */
     public void dump(PrintWriter writer) {
         writer.println("\nBluetoothDatabase:");
+        synchronized (mPendingWrites) {
+            writer.println("  Writes: requested=" + mWriteRequests + ", written="
+                    + mRowsWritten + ", saved=" + (mWriteRequests - mRowsWritten
+                            - mPendingWrites.size()) + ", transactions=" + mTransactions
+                    + ", pending=" + mPendingWrites.size());
+        }
         writer.println("  Metadata Changes:");
         for (String log : mMetadataChangedLog) {
             writer.println("    " + log);
@@ -98,6 +98,23 @@ public abstract class MetadataDatabase extends RoomDatabase {
         mMetadataDao().insert(metadata);
     }
 
+    /**
+     * Delete the {@link Metadata} of some addresses and insert others in a single transaction
+     *
+     * @param deletedAddresses the addresses of Metadata to delete
+     * @param metadata the data wish to put into storage
+     */
+    public void update(List<String> deletedAddresses, Metadata... metadata) {
+        runInTransaction(() -> {
+            for (String address : deletedAddresses) {
+                mMetadataDao().delete(address);
+            }
+            if (metadata.length > 0) {
+                mMetadataDao().insert(metadata);
+            }
+        });
+    }
+
     /**
      * Load all data from metadata table as a {@link List} of {@link Metadata}
      *
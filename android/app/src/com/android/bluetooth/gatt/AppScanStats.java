@@ -32,10 +32,12 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * ScanStats class helps keep track of information about scans
@@ -79,7 +81,10 @@ import java.util.Objects;
         public boolean isFilterScan;
         public boolean isCallbackScan;
         public boolean isBatchScan;
-        public int results;
+        // Updated without lock on the result delivery path
+        public final AtomicInteger results = new AtomicInteger();
+        // Results already reported to battery stats and statsd
+        public int reportedResults;
         public int scannerId;
         public int scanMode;
         public int scanCallbackType;
@@ -97,7 +102,6 @@ import java.util.Objects;
             this.isBatchScan = false;
             this.scanMode = scanMode;
             this.scanCallbackType = scanCallbackType;
-            this.results = 0;
             this.scannerId = scannerId;
             this.suspendDuration = 0;
             this.suspendStartTime = 0;
@@ -126,10 +130,11 @@ import java.util.Objects;
     private int mLowLantencyScan = 0;
     private int mAmbientDiscoveryScan = 0;
     private List<LastScan> mLastScans = new ArrayList<LastScan>();
-    private HashMap<Integer, LastScan> mOngoingScans = new HashMap<Integer, LastScan>();
+    // Modified under the object lock, read without lock by addResult
+    private Map<Integer, LastScan> mOngoingScans = new ConcurrentHashMap<Integer, LastScan>();
     public long startTime = 0;
     public long stopTime = 0;
-    public int results = 0;
+    public final AtomicInteger results = new AtomicInteger();
 
     AppScanStats(String name, WorkSource source, ContextMap map, GattService service) {
         appName = name;
@@ -146,21 +151,46 @@ import java.util.Objects;
         mAdapterService = Objects.requireNonNull(AdapterService.getAdapterService());
     }
 
-    synchronized void addResult(int scannerId) {
-        LastScan scan = getScanFromScannerId(scannerId);
+    /**
+     * Counts a result delivered to the given scanner. This is called for every advertisement
+     * delivered so it neither locks nor reports; results are reported to battery stats and
+     * statsd by {@link #reportPendingResults}.
+     */
+    void addResult(int scannerId) {
+        LastScan scan = mOngoingScans.get(scannerId);
         if (scan != null) {
-            scan.results++;
-
-            // Only update battery stats after receiving 100 new results in order
-            // to lower the cost of the binder transaction
-            if (scan.results % 100 == 0) {
-                mBatteryStatsManager.reportBleScanResults(mWorkSource, 100);
-                BluetoothStatsLog.write(BluetoothStatsLog.BLE_SCAN_RESULT_RECEIVED,
-                        mWorkSourceUtil.getUids(), mWorkSourceUtil.getTags(), 100);
-            }
+            scan.results.incrementAndGet();
         }
 
-        results++;
+        results.incrementAndGet();
+    }
+
+    /**
+     * Reports the results received by ongoing scans since the last report, aggregated into a
+     * single battery stats and statsd update.
+     */
+    synchronized void reportPendingResults() {
+        int pendingResults = 0;
+        for (LastScan scan : mOngoingScans.values()) {
+            pendingResults += takePendingResults(scan);
+        }
+        reportResults(pendingResults);
+    }
+
+    private static int takePendingResults(LastScan scan) {
+        int total = scan.results.get();
+        int pendingResults = total - scan.reportedResults;
+        scan.reportedResults = total;
+        return pendingResults;
+    }
+
+    private void reportResults(int count) {
+        if (count <= 0) {
+            return;
+        }
+        mBatteryStatsManager.reportBleScanResults(mWorkSource, count);
+        BluetoothStatsLog.write(BluetoothStatsLog.BLE_SCAN_RESULT_RECEIVED,
+                mWorkSourceUtil.getUids(), mWorkSourceUtil.getTags(), count);
     }
 
     synchronized boolean isScanning() {
@@ -271,7 +301,7 @@ import java.util.Objects;
                         BluetoothMetricsProto.ScanEvent.ScanTechnologyType.SCAN_TECH_TYPE_LE)
                 .setEventTimeMillis(System.currentTimeMillis())
                 .setInitiator(truncateAppName(appName))
-                .setNumberResults(scan.results)
+                .setNumberResults(scan.results.get())
                 .build();
         mGattService.addScanEvent(scanEvent);
 
@@ -299,10 +329,8 @@ import java.util.Objects;
         // Inform battery stats of any results it might be missing on scan stop
         boolean isUnoptimized =
                 !(scan.isFilterScan || scan.isBackgroundScan || scan.isOpportunisticScan);
-        mBatteryStatsManager.reportBleScanResults(mWorkSource, scan.results % 100);
+        reportResults(takePendingResults(scan));
         mBatteryStatsManager.reportBleScanStopped(mWorkSource, isUnoptimized);
-        BluetoothStatsLog.write(BluetoothStatsLog.BLE_SCAN_RESULT_RECEIVED,
-                mWorkSourceUtil.getUids(), mWorkSourceUtil.getTags(), scan.results % 100);
         BluetoothStatsLog.write(BluetoothStatsLog.BLE_SCAN_STATE_CHANGED,
                 mWorkSourceUtil.getUids(), mWorkSourceUtil.getTags(),
                 BluetoothStatsLog.BLE_SCAN_STATE_CHANGED__STATE__OFF,
@@ -538,7 +566,8 @@ import java.util.Objects;
                 + oppScan + " / " + lowPowerScan + " / " + balancedScan + " / " + lowLatencyScan
                 + " / " + ambientDiscoveryScan);
         sb.append("\n  Score                                                       : " + Score);
-        sb.append("\n  Total number of results                                     : " + results);
+        sb.append("\n  Total number of results                                     : "
+                + results.get());
 
         if (!mLastScans.isEmpty()) {
             sb.append("\n  Last " + mLastScans.size()
@@ -561,7 +590,7 @@ import java.util.Objects;
                 if (scan.isFilterScan) {
                     sb.append("Filter ");
                 }
-                sb.append(scan.results + " results");
+                sb.append(scan.results.get() + " results");
                 sb.append(" (" + scan.scannerId + ") ");
                 if (scan.isCallbackScan) {
                     sb.append("CB ");
@@ -609,7 +638,7 @@ import java.util.Objects;
                 if (scan.isSuspended) {
                     sb.append("Suspended ");
                 }
-                sb.append(scan.results + " results");
+                sb.append(scan.results.get() + " results");
                 sb.append(" (" + scan.scannerId + ") ");
                 if (scan.isCallbackScan) {
                     sb.append("CB ");
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes the records of a batch scan report in place.
+ *
+ * The decoder is a cursor over a {@link ByteBuffer} view of the report: {@link #next} moves to
+ * the next record and the accessors read its fields without copying them. Only the combined
+ * advertising and scan response data is copied, by {@link #copyScanRecord}, for records that are
+ * turned into scan results.
+ *
+ * Full record layout: address (6, reversed), address type (1), tx power (1), rssi (1),
+ * timestamp (2), advertising data length (1), advertising data, scan response length (1), scan
+ * response. Truncated record layout: address (6, reversed), address type (1), tx power (1),
+ * rssi (1), timestamp (2).
+ *
+ * @hide
+ */
+/* package */ class BatchScanRecordDecoder {
+    static final int TRUNCATED_RECORD_SIZE = 11;
+
+    private static final int ADDRESS_LENGTH = 6;
+    private static final int RSSI_OFFSET = 8;
+    private static final int TIMESTAMP_OFFSET = 9;
+    private static final int ADV_LENGTH_OFFSET = 11;
+    // Timestamp is in every 50 ms.
+    private static final long TIMESTAMP_UNIT_MILLIS = 50;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final ByteBuffer mBuffer;
+    private final boolean mTruncated;
+    private final int mNumRecords;
+
+    private int mRecordIndex = -1;
+    private int mRecordStart;
+    private int mNextRecordStart;
+    private int mAdvLength;
+    private int mScanResponseLength;
+
+    BatchScanRecordDecoder(byte[] batchRecord, int numRecords, boolean truncated) {
+        mBuffer = ByteBuffer.wrap(batchRecord).order(ByteOrder.LITTLE_ENDIAN);
+        mNumRecords = numRecords;
+        mTruncated = truncated;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false if there are no more complete records in the report
+     */
+    boolean next() {
+        int start = mNextRecordStart;
+        if (mTruncated) {
+            if (mRecordIndex + 1 >= mNumRecords
+                    || start + TRUNCATED_RECORD_SIZE > mBuffer.limit()) {
+                return false;
+            }
+            mAdvLength = 0;
+            mScanResponseLength = 0;
+            mNextRecordStart = start + TRUNCATED_RECORD_SIZE;
+        } else {
+            if (start + ADV_LENGTH_OFFSET + 1 > mBuffer.limit()) {
+                return false;
+            }
+            int advLength = mBuffer.get(start + ADV_LENGTH_OFFSET) & 0xFF;
+            int scanResponseLengthPosition = start + ADV_LENGTH_OFFSET + 1 + advLength;
+            if (scanResponseLengthPosition + 1 > mBuffer.limit()) {
+                return false;
+            }
+            int scanResponseLength = mBuffer.get(scanResponseLengthPosition) & 0xFF;
+            int end = scanResponseLengthPosition + 1 + scanResponseLength;
+            if (end > mBuffer.limit()) {
+                return false;
+            }
+            mAdvLength = advLength;
+            mScanResponseLength = scanResponseLength;
+            mNextRecordStart = end;
+        }
+        mRecordStart = start;
+        mRecordIndex++;
+        return true;
+    }
+
+    /**
+     * Returns the address of the current record, formatted as "XX:XX:XX:XX:XX:XX".
+     */
+    String getAddress() {
+        char[] address = new char[ADDRESS_LENGTH * 3 - 1];
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            // The address is stored in reverse order.
+            int b = mBuffer.get(mRecordStart + ADDRESS_LENGTH - 1 - i) & 0xFF;
+            address[i * 3] = HEX_DIGITS[b >> 4];
+            address[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+            if (i < ADDRESS_LENGTH - 1) {
+                address[i * 3 + 2] = ':';
+            }
+        }
+        return new String(address);
+    }
+
+    int getRssi() {
+        return mBuffer.get(mRecordStart + RSSI_OFFSET);
+    }
+
+    /**
+     * Returns how long ago the current record was received, in nanoseconds.
+     */
+    long getTimestampAgeNanos() {
+        long timestampUnit = mBuffer.getShort(mRecordStart + TIMESTAMP_OFFSET) & 0xFFFF;
+        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * TIMESTAMP_UNIT_MILLIS);
+    }
+
+    /**
+     * Returns the length of the combined advertising and scan response data.
+     */
+    int getScanRecordLength() {
+        return mAdvLength + mScanResponseLength;
+    }
+
+    /**
+     * Copies the advertising data followed by the scan response data of the current record.
+     */
+    byte[] copyScanRecord() {
+        byte[] scanRecord = new byte[getScanRecordLength()];
+        int advStart = mRecordStart + ADV_LENGTH_OFFSET + 1;
+        byte[] array = mBuffer.array();
+        System.arraycopy(array, advStart, scanRecord, 0, mAdvLength);
+        System.arraycopy(array, advStart + mAdvLength + 1, scanRecord, mAdvLength,
+                mScanResponseLength);
+        return scanRecord;
+    }
+}
@@ -43,6 +43,9 @@ import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 
 /**
  * Helper class that keeps track of registered GATT applications.
@@ -191,7 +194,16 @@ public class ContextMap<C, T> {
     /** Our internal application list */
     private final Object mAppsLock = new Object();
     @GuardedBy("mAppsLock")
-    private List<App> mApps = new ArrayList<App>();
+    private List<App> mApps = new CopyOnWriteArrayList<App>();
+
+    /*
+     * Lookup indexes for the GATT callback paths. App ids are assigned after registration, so an
+     * indexed app is validated against the key on read, and a miss falls back to a scan of mApps
+     * that refreshes the index.
+     */
+    private final Map<Integer, App> mAppsById = new ConcurrentHashMap<Integer, App>();
+    private final Map<UUID, App> mAppsByUuid = new ConcurrentHashMap<UUID, App>();
+    private final Map<String, App> mAppsByName = new ConcurrentHashMap<String, App>();
 
     /** Internal map to keep track of logging information by app name */
     private HashMap<Integer, AppScanStats> mAppScanStats = new HashMap<Integer, AppScanStats>();
@@ -208,6 +220,16 @@ public class ContextMap<C, T> {
     /** Internal list of connected devices **/
     private Set<Connection> mConnections = new HashSet<Connection>();
 
+    /**
+     * Immutable indexes of mConnections, replaced on every change so readers don't lock.
+     */
+    private class ConnectionIndex {
+        final Map<Integer, Connection> mByConnId = new HashMap<Integer, Connection>();
+        final Map<Integer, List<Connection>> mByAppId = new HashMap<Integer, List<Connection>>();
+    }
+
+    private volatile ConnectionIndex mConnectionIndex = new ConnectionIndex();
+
     /**
      * Add an entry to the application context list.
      */
@@ -218,7 +240,7 @@ public class ContextMap<C, T> {
             // Assign an app name if one isn't found
             appName = "Unknown App (UID: " + appUid + ")";
         }
-        synchronized (mApps) {
+        synchronized (mAppsLock) {
             AppScanStats appScanStats = mAppScanStats.get(appUid);
             if (appScanStats == null) {
                 appScanStats = new AppScanStats(appName, workSource, this, service);
@@ -259,18 +281,47 @@ public class ContextMap<C, T> {
         }
     }
 
+    @GuardedBy("mAppsLock")
+    private void removeApp(App entry) {
+        mApps.remove(entry);
+        mAppsById.values().removeIf(app -> app == entry);
+        mAppsByUuid.values().removeIf(app -> app == entry);
+        mAppsByName.values().removeIf(app -> app == entry);
+    }
+
+    /**
+     * Returns the app indexed under {@code key} if it still matches, or the first app of mApps
+     * matching {@code matcher}.
+     */
+    private <K> App lookup(Map<K, App> index, K key, Predicate<App> matcher) {
+        App app = index.get(key);
+        if (app != null && matcher.test(app)) {
+            return app;
+        }
+        synchronized (mAppsLock) {
+            for (App entry : mApps) {
+                if (matcher.test(entry)) {
+                    index.put(key, entry);
+                    return entry;
+                }
+            }
+            if (app != null) {
+                index.remove(key, app);
+            }
+        }
+        return null;
+    }
+
     /**
      * Remove the context for a given UUID
      */
     void remove(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
+        synchronized (mAppsLock) {
+            for (App entry : mApps) {
+                if (uuid.equals(entry.uuid)) {
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
-                    i.remove();
+                    removeApp(entry);
                     break;
                 }
             }
@@ -282,15 +333,13 @@ public class ContextMap<C, T> {
      */
     void remove(int id) {
         boolean find = false;
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+        synchronized (mAppsLock) {
+            for (App entry : mApps) {
                 if (entry.id == id) {
                     find = true;
                     entry.unlinkToDeath();
                     entry.appScanStats.isRegistered = false;
-                    i.remove();
+                    removeApp(entry);
                     break;
                 }
             }
@@ -302,16 +351,27 @@ public class ContextMap<C, T> {
 
     List<Integer> getAllAppsIds() {
         List<Integer> appIds = new ArrayList();
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                appIds.add(entry.id);
-            }
+        for (App entry : mApps) {
+            appIds.add(entry.id);
         }
         return appIds;
     }
 
+    @GuardedBy("mConnections")
+    private void updateConnectionIndex() {
+        ConnectionIndex index = new ConnectionIndex();
+        for (Connection connection : mConnections) {
+            index.mByConnId.putIfAbsent(connection.connId, connection);
+            List<Connection> appConnections = index.mByAppId.get(connection.appId);
+            if (appConnections == null) {
+                appConnections = new ArrayList<Connection>();
+                index.mByAppId.put(connection.appId, appConnections);
+            }
+            appConnections.add(connection);
+        }
+        mConnectionIndex = index;
+    }
+
     /**
      * Add a new connection for a given application ID.
      */
@@ -320,6 +380,7 @@ public class ContextMap<C, T> {
             App entry = getById(id);
             if (entry != null) {
                 mConnections.add(new Connection(connId, address, id));
+                updateConnectionIndex();
             }
         }
     }
@@ -329,13 +390,10 @@ public class ContextMap<C, T> {
      */
     void removeConnection(int id, int connId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    i.remove();
-                    break;
-                }
+            Connection connection = mConnectionIndex.mByConnId.get(connId);
+            if (connection != null) {
+                mConnections.remove(connection);
+                updateConnectionIndex();
             }
         }
     }
@@ -345,12 +403,8 @@ public class ContextMap<C, T> {
      */
     void removeConnectionsByAppId(int appId) {
         synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    i.remove();
-                }
+            if (mConnections.removeIf(connection -> connection.appId == appId)) {
+                updateConnectionIndex();
             }
         }
     }
@@ -359,64 +413,42 @@ public class ContextMap<C, T> {
      * Get an application context by ID.
      */
     App getById(int id) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.id == id) {
-                    return entry;
-                }
-            }
+        App app = lookup(mAppsById, id, entry -> entry.id == id);
+        if (app == null) {
+            Log.e(TAG, "Context not found for ID " + id);
         }
-        Log.e(TAG, "Context not found for ID " + id);
-        return null;
+        return app;
     }
 
     /**
      * Get an application context by UUID.
      */
     App getByUuid(UUID uuid) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.uuid.equals(uuid)) {
-                    return entry;
-                }
-            }
+        App app = lookup(mAppsByUuid, uuid, entry -> uuid.equals(entry.uuid));
+        if (app == null) {
+            Log.e(TAG, "Context not found for UUID " + uuid);
         }
-        Log.e(TAG, "Context not found for UUID " + uuid);
-        return null;
+        return app;
     }
 
     /**
      * Get an application context by the calling Apps name.
      */
     App getByName(String name) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.name.equals(name)) {
-                    return entry;
-                }
-            }
+        App app = lookup(mAppsByName, name, entry -> entry.name.equals(name));
+        if (app == null) {
+            Log.e(TAG, "Context not found for name " + name);
         }
-        Log.e(TAG, "Context not found for name " + name);
-        return null;
+        return app;
     }
 
     /**
      * Get an application context by the context info object.
      */
     App getByContextInfo(T contextInfo) {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
-                if (entry.info != null && entry.info.equals(contextInfo)) {
-                    return entry;
-                }
+        for (App entry : mApps) {
+            if (entry.info != null && entry.info.equals(contextInfo)) {
+                return entry;
             }
         }
         Log.e(TAG, "Context not found for info " + contextInfo);
@@ -441,6 +473,19 @@ public class ContextMap<C, T> {
         return mAppScanStats.get(uid);
     }
 
+    /**
+     * Reports the scan results counted by each app since the last report.
+     */
+    void reportPendingScanResults() {
+        List<AppScanStats> appScanStats;
+        synchronized (mAppsLock) {
+            appScanStats = new ArrayList<AppScanStats>(mAppScanStats.values());
+        }
+        for (AppScanStats stats : appScanStats) {
+            stats.reportPendingResults();
+        }
+    }
+
     /**
      * Remove the context for a given application ID.
      */
@@ -575,12 +620,8 @@ public class ContextMap<C, T> {
      */
     Set<String> getConnectedDevices() {
         Set<String> addresses = new HashSet<String>();
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                addresses.add(connection.address);
-            }
+        for (Connection connection : mConnectionIndex.mByConnId.values()) {
+            addresses.add(connection.address);
         }
         return addresses;
     }
@@ -589,19 +630,9 @@ public class ContextMap<C, T> {
      * Get an application context by a connection ID.
      */
     App getByConnId(int connId) {
-        int appId = -1;
-        synchronized (mConnections) {
-            Iterator<Connection> ii = mConnections.iterator();
-            while (ii.hasNext()) {
-                Connection connection = ii.next();
-                if (connection.connId == connId) {
-                    appId = connection.appId;
-                    break;
-                }
-            }
-        }
-        if (appId >= 0) {
-            return getById(appId);
+        Connection connection = mConnectionIndex.mByConnId.get(connId);
+        if (connection != null && connection.appId >= 0) {
+            return getById(connection.appId);
         }
         return null;
     }
@@ -614,13 +645,13 @@ public class ContextMap<C, T> {
         if (entry == null) {
             return null;
         }
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.address.equalsIgnoreCase(address) && connection.appId == id) {
-                    return connection.connId;
-                }
+        List<Connection> appConnections = mConnectionIndex.mByAppId.get(id);
+        if (appConnections == null) {
+            return null;
+        }
+        for (Connection connection : appConnections) {
+            if (connection.address.equalsIgnoreCase(address)) {
+                return connection.connId;
             }
         }
         return null;
@@ -630,50 +661,36 @@ public class ContextMap<C, T> {
      * Returns the device address for a given connection ID.
      */
     String addressByConnId(int connId) {
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.connId == connId) {
-                    return connection.address;
-                }
-            }
-        }
-        return null;
+        Connection connection = mConnectionIndex.mByConnId.get(connId);
+        return connection == null ? null : connection.address;
     }
 
     List<Connection> getConnectionByApp(int appId) {
-        List<Connection> currentConnections = new ArrayList<Connection>();
-        synchronized (mConnections) {
-            Iterator<Connection> i = mConnections.iterator();
-            while (i.hasNext()) {
-                Connection connection = i.next();
-                if (connection.appId == appId) {
-                    currentConnections.add(connection);
-                }
-            }
-        }
-        return currentConnections;
+        List<Connection> appConnections = mConnectionIndex.mByAppId.get(appId);
+        return appConnections == null
+                ? new ArrayList<Connection>() : new ArrayList<Connection>(appConnections);
     }
 
     /**
      * Erases all application context entries.
      */
     void clear() {
-        synchronized (mApps) {
-            Iterator<App> i = mApps.iterator();
-            while (i.hasNext()) {
-                App entry = i.next();
+        synchronized (mAppsLock) {
+            for (App entry : mApps) {
                 entry.unlinkToDeath();
                 if (entry.appScanStats != null) {
                     entry.appScanStats.isRegistered = false;
                 }
-                i.remove();
             }
+            mApps.clear();
+            mAppsById.clear();
+            mAppsByUuid.clear();
+            mAppsByName.clear();
         }
 
         synchronized (mConnections) {
             mConnections.clear();
+            updateConnectionIndex();
         }
 
         synchronized (this) {
@@ -687,8 +704,8 @@ public class ContextMap<C, T> {
      */
     Map<Integer, String> getConnectedMap() {
         Map<Integer, String> connectedmap = new HashMap<Integer, String>();
-        synchronized (mConnections) {
-            for (Connection conn : mConnections) {
+        for (List<Connection> appConnections : mConnectionIndex.mByAppId.values()) {
+            for (Connection conn : appConnections) {
                 connectedmap.put(conn.appId, conn.address);
             }
         }
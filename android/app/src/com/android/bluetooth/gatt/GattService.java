@@ -81,7 +81,6 @@ import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.BluetoothAdapterProxy;
 import com.android.bluetooth.btservice.CompanionManager;
 import com.android.bluetooth.btservice.ProfileService;
-import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.SynchronousResultReceiver;
 
@@ -97,7 +96,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 
@@ -117,9 +115,6 @@ public class GattService extends ProfileService {
     static final int SCAN_FILTER_MODIFIED = 2;
 
     private static final int MAC_ADDRESS_LENGTH = 6;
-    // Batch scan related constants.
-    private static final int TRUNCATED_RESULT_SIZE = 11;
-    private static final int TIME_STAMP_LENGTH = 2;
 
     private enum MatchOrigin {
         PSEUDO_ADDRESS,
@@ -153,8 +148,6 @@ public class GattService extends ProfileService {
     private static final int ADVT_STATE_ONFOUND = 0;
     private static final int ADVT_STATE_ONLOST = 1;
 
-    private static final int ET_LEGACY_MASK = 0x10;
-
     private static final UUID HID_SERVICE_UUID =
             UUID.fromString("00001812-0000-1000-8000-00805F9B34FB");
 
@@ -269,10 +262,11 @@ public class GattService extends ProfileService {
     private final Map<Integer, Set<Integer>> mRestrictedHandles = new HashMap<>();
 
     /**
-     * HashMap used to synchronize writeCharacteristic calls mapping remote device address to
-     * available permit (connectId or -1).
+     * Schedules the writeCharacteristic calls of the clients to each connected remote device.
      */
-    private final HashMap<String, Integer> mPermits = new HashMap<>();
+    @VisibleForTesting
+    final GattWriteScheduler mWriteScheduler =
+            new GattWriteScheduler(this::gattClientWriteCharacteristicNative);
 
     private AdapterService mAdapterService;
     private BluetoothAdapterProxy mBluetoothAdapterProxy;
@@ -1816,8 +1810,14 @@ public class GattService extends ProfileService {
             originalAddress = identityAddress;
         }
 
-
-        byte[] legacyAdvData = Arrays.copyOfRange(advData, 0, 62);
+        // Parse the advertisement at most once per variant and share the results with every
+        // client instead of re-parsing it for each registered scanner.
+        ParsedAdvertisement advertisement = new ParsedAdvertisement(eventType, address,
+                primaryPhy, secondaryPhy, advertisingSid, txPower, rssi, periodicAdvInt, advData,
+                SystemClock.elapsedRealtimeNanos());
+        ScanFilterIndex filterIndex = mScanManager.getFilterIndex();
+        Set<Integer> legacyMatches = null;
+        Set<Integer> extendedMatches = null;
 
         for (ScanClient client : mScanManager.getRegularScanQueue()) {
             ScannerMap.App app = mScannerMap.getById(client.scannerId);
@@ -1828,32 +1828,16 @@ public class GattService extends ProfileService {
                 continue;
             }
 
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-
             ScanSettings settings = client.settings;
-            byte[] scanRecordData;
-            // This is for compability with applications that assume fixed size scan data.
-            if (settings.getLegacy()) {
-                if ((eventType & ET_LEGACY_MASK) == 0) {
-                    // If this is legacy scan, but nonlegacy result - skip.
-                    if (VDBG) {
-                        Log.d(TAG, "Legacy scan, non legacy result; skip.");
-                    }
-                    continue;
-                } else {
-                    // Some apps are used to fixed-size advertise data.
-                    scanRecordData = legacyAdvData;
+            ScanResult result = advertisement.getResult(settings.getLegacy());
+            if (result == null) {
+                // If this is legacy scan, but nonlegacy result - skip.
+                if (VDBG) {
+                    Log.d(TAG, "Legacy scan, non legacy result; skip.");
                 }
-            } else {
-                scanRecordData = advData;
+                continue;
             }
 
-            ScanRecord scanRecord = ScanRecord.parseFromBytes(scanRecordData);
-            ScanResult result =
-                    new ScanResult(device, eventType, primaryPhy, secondaryPhy, advertisingSid,
-                            txPower, rssi, periodicAdvInt, scanRecord,
-                            SystemClock.elapsedRealtimeNanos());
-
             if (client.hasDisavowedLocation) {
                 if (mLocationDenylistPredicate.test(result)) {
                     Log.i(TAG, "Skipping client for location deny list");
@@ -1877,11 +1861,29 @@ public class GattService extends ProfileService {
                     result = sanitized;
                 }
             }
-            MatchResult matchResult = matchesFilters(client, result, originalAddress);
-            if (!hasPermission || !matchResult.getMatches()) {
+            boolean matches;
+            if (result == advertisement.getResult(settings.getLegacy())
+                    && filterIndex.isIndexed(client)) {
+                // Resolve the filters of all indexed clients once per advertisement variant.
+                if (settings.getLegacy()) {
+                    if (legacyMatches == null) {
+                        legacyMatches = filterIndex.getMatchingScanners(result, originalAddress);
+                    }
+                    matches = legacyMatches.contains(client.scannerId);
+                } else {
+                    if (extendedMatches == null) {
+                        extendedMatches =
+                                filterIndex.getMatchingScanners(result, originalAddress);
+                    }
+                    matches = extendedMatches.contains(client.scannerId);
+                }
+            } else {
+                matches = matchesFilters(client, result, originalAddress).getMatches();
+            }
+            if (!hasPermission || !matches) {
                 if (VDBG) {
                     Log.d(TAG, "Skipping client: permission="
-                            + hasPermission + " matches=" + matchResult.getMatches());
+                            + hasPermission + " matches=" + matches);
                 }
                 continue;
             }
@@ -1895,7 +1897,10 @@ public class GattService extends ProfileService {
 
             try {
                 app.appScanStats.addResult(client.scannerId);
-                if (app.callback != null) {
+                if (settings.getResultCoalescingWindowMillis() > 0
+                        && mScanManager.coalesceScanResult(client, result)) {
+                    // Delivered with the other results of the window by onCoalescedScanResults.
+                } else if (app.callback != null) {
                     app.callback.onScanResult(result);
                 } else {
                     // Send the PendingIntent
@@ -1912,6 +1917,32 @@ public class GattService extends ProfileService {
         }
     }
 
+    /**
+     * Delivers the results found by a scanner during its result coalescing window.
+     */
+    void onCoalescedScanResults(int scannerId, ArrayList<ScanResult> results) {
+        ScannerMap.App app = mScannerMap.getById(scannerId);
+        if (app == null) {
+            return;
+        }
+        if (VDBG) {
+            Log.d(TAG, "onCoalescedScanResults() - scannerId=" + scannerId + ", count="
+                    + results.size());
+        }
+        try {
+            if (app.callback != null) {
+                app.callback.onBatchScanResults(results);
+            } else {
+                sendResultsByPendingIntent(app.info, results,
+                        ScanSettings.CALLBACK_TYPE_ALL_MATCHES);
+            }
+        } catch (RemoteException | PendingIntent.CanceledException e) {
+            Log.e(TAG, "Exception: " + e);
+            mScannerMap.remove(scannerId);
+            mScanManager.stopScan(scannerId);
+        }
+    }
+
     private void sendResultByPendingIntent(PendingIntentInfo pii, ScanResult result,
             int callbackType, ScanClient client) {
         ArrayList<ScanResult> results = new ArrayList<>();
@@ -2039,12 +2070,7 @@ public class GattService extends ProfileService {
         if (status == 0) {
             mClientMap.addConnection(clientIf, connId, address);
 
-            // Allow one writeCharacteristic operation at a time for each connected remote device.
-            synchronized (mPermits) {
-                Log.d(TAG, "onConnected() - adding permit for address="
-                    + address);
-                mPermits.putIfAbsent(address, -1);
-            }
+            mWriteScheduler.addDevice(address);
             connectionState = BluetoothProtoEnums.CONNECTION_STATE_CONNECTED;
 
         }
@@ -2068,21 +2094,10 @@ public class GattService extends ProfileService {
         mClientMap.removeConnection(clientIf, connId);
         ClientMap.App app = mClientMap.getById(clientIf);
 
-        // Remove AtomicBoolean representing permit if no other connections rely on this remote device.
-        if (!mClientMap.getConnectedDevices().contains(address)) {
-            synchronized (mPermits) {
-                Log.d(TAG, "onDisconnected() - removing permit for address="
-                    + address);
-                mPermits.remove(address);
-            }
-        } else {
-            synchronized (mPermits) {
-                if (mPermits.get(address) == connId) {
-                    Log.d(TAG, "onDisconnected() - set permit -1 for address=" + address);
-                    mPermits.put(address, -1);
-                }
-            }
-        }
+        // Drop the writes of this connection, and stop scheduling writes to the remote device
+        // if no other connections rely on it.
+        mWriteScheduler.removeConnection(address, connId,
+                !mClientMap.getConnectedDevices().contains(address));
 
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -2384,11 +2399,7 @@ public class GattService extends ProfileService {
     void onWriteCharacteristic(int connId, int status, int handle, byte[] data)
             throws RemoteException {
         String address = mClientMap.addressByConnId(connId);
-        synchronized (mPermits) {
-            Log.d(TAG, "onWriteCharacteristic() - increasing permit for address="
-                    + address);
-            mPermits.put(address, -1);
-        }
+        mWriteScheduler.onWriteCompleted(address, connId, handle);
 
         if (VDBG) {
             Log.d(TAG, "onWriteCharacteristic() - address=" + address + ", status=" + status
@@ -2668,85 +2679,51 @@ public class GattService extends ProfileService {
         }
         Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
         long now = SystemClock.elapsedRealtimeNanos();
-        for (int i = 0; i < numRecords; ++i) {
-            byte[] record =
-                    extractBytes(batchRecord, i * TRUNCATED_RESULT_SIZE, TRUNCATED_RESULT_SIZE);
-            byte[] address = extractBytes(record, 0, 6);
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            int rssi = record[8];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(record, 9, 2));
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(new byte[0]), rssi,
-                    timestampNanos));
+        // Truncated records carry no advertising data, share a single empty scan record.
+        ScanRecord emptyScanRecord = ScanRecord.parseFromBytes(new byte[0]);
+        BatchScanRecordDecoder decoder =
+                new BatchScanRecordDecoder(batchRecord, numRecords, true /* truncated */);
+        while (decoder.next()) {
+            BluetoothDevice device =
+                    BluetoothAdapter.getDefaultAdapter().getRemoteDevice(decoder.getAddress());
+            results.add(new ScanResult(device, emptyScanRecord, decoder.getRssi(),
+                    now - decoder.getTimestampAgeNanos()));
         }
         return results;
     }
 
-    @VisibleForTesting
-    long parseTimestampNanos(byte[] data) {
-        long timestampUnit = NumberUtils.littleEndianByteArrayToInt(data);
-        // Timestamp is in every 50 ms.
-        return TimeUnit.MILLISECONDS.toNanos(timestampUnit * 50);
-    }
-
     private Set<ScanResult> parseFullResults(int numRecords, byte[] batchRecord) {
         if (DBG) {
             Log.d(TAG, "Batch record : " + Arrays.toString(batchRecord));
         }
         Set<ScanResult> results = new HashSet<ScanResult>(numRecords);
-        int position = 0;
         long now = SystemClock.elapsedRealtimeNanos();
-        while (position < batchRecord.length) {
-            byte[] address = extractBytes(batchRecord, position, 6);
-            // TODO: remove temp hack.
-            reverse(address);
-            BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
-            position += 6;
-            // Skip address type.
-            position++;
-            // Skip tx power level.
-            position++;
-            int rssi = batchRecord[position++];
-            long timestampNanos = now - parseTimestampNanos(extractBytes(batchRecord, position, 2));
-            position += 2;
-
-            // Combine advertise packet and scan response packet.
-            int advertisePacketLen = batchRecord[position++];
-            byte[] advertiseBytes = extractBytes(batchRecord, position, advertisePacketLen);
-            position += advertisePacketLen;
-            int scanResponsePacketLen = batchRecord[position++];
-            byte[] scanResponseBytes = extractBytes(batchRecord, position, scanResponsePacketLen);
-            position += scanResponsePacketLen;
-            byte[] scanRecord = new byte[advertisePacketLen + scanResponsePacketLen];
-            System.arraycopy(advertiseBytes, 0, scanRecord, 0, advertisePacketLen);
-            System.arraycopy(scanResponseBytes, 0, scanRecord, advertisePacketLen,
-                    scanResponsePacketLen);
-            if (DBG) {
-                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord));
+        ScanRecord emptyScanRecord = null;
+        // Records are decoded in place, only the combined advertise packet and scan response
+        // packet is copied out of the batch record.
+        BatchScanRecordDecoder decoder =
+                new BatchScanRecordDecoder(batchRecord, numRecords, false /* truncated */);
+        while (decoder.next()) {
+            BluetoothDevice device =
+                    BluetoothAdapter.getDefaultAdapter().getRemoteDevice(decoder.getAddress());
+            ScanRecord scanRecord;
+            if (decoder.getScanRecordLength() == 0) {
+                if (emptyScanRecord == null) {
+                    emptyScanRecord = ScanRecord.parseFromBytes(new byte[0]);
+                }
+                scanRecord = emptyScanRecord;
+            } else {
+                scanRecord = ScanRecord.parseFromBytes(decoder.copyScanRecord());
             }
-            results.add(new ScanResult(device, ScanRecord.parseFromBytes(scanRecord), rssi,
-                    timestampNanos));
+            if (VDBG) {
+                Log.d(TAG, "ScanRecord : " + Arrays.toString(scanRecord.getBytes()));
+            }
+            results.add(new ScanResult(device, scanRecord, decoder.getRssi(),
+                    now - decoder.getTimestampAgeNanos()));
         }
         return results;
     }
 
-    // Reverse byte array.
-    private void reverse(byte[] address) {
-        int len = address.length;
-        for (int i = 0; i < len / 2; ++i) {
-            byte b = address[i];
-            address[i] = address[len - 1 - i];
-            address[len - 1 - i] = b;
-        }
-    }
-
-    // Helper method to extract bytes from byte array.
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
-    }
-
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_SCAN)
     void onBatchScanThresholdCrossed(int clientIf) {
         if (DBG) {
@@ -2865,6 +2842,11 @@ public class GattService extends ProfileService {
             Log.d(TAG, "onClientCongestion() - connId=" + connId + ", congested=" + congested);
         }
 
+        String address = mClientMap.addressByConnId(connId);
+        if (address != null) {
+            mWriteScheduler.setCongested(address, congested);
+        }
+
         ClientMap.App app = mClientMap.getByConnId(connId);
 
         if (app != null) {
@@ -3677,25 +3659,9 @@ public class GattService extends ProfileService {
         }
         permissionCheck(connId, handle);
 
-        Log.d(TAG, "writeCharacteristic() - trying to acquire permit.");
-        // Lock the thread until onCharacteristicWrite callback comes back.
-        synchronized (mPermits) {
-            Integer permit = mPermits.get(address);
-            if (permit == null) {
-                Log.d(TAG, "writeCharacteristic() -  atomicBoolean uninitialized!");
-                return BluetoothStatusCodes.ERROR_DEVICE_NOT_CONNECTED;
-            }
-
-            boolean success = (permit == -1);
-            if (!success) {
-                Log.d(TAG, "writeCharacteristic() - no permit available.");
-                return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
-            }
-            mPermits.put(address, connId);
-        }
-
-        gattClientWriteCharacteristicNative(connId, handle, writeType, authReq, value);
-        return BluetoothStatusCodes.SUCCESS;
+        // Issued once the writes of the other clients to this remote device allow it.
+        return mWriteScheduler.write(clientIf, connId, address, handle, writeType, authReq,
+                value);
     }
 
     @RequiresPermission(android.Manifest.permission.BLUETOOTH_CONNECT)
@@ -4609,10 +4575,9 @@ public class GattService extends ProfileService {
         }
 
         if (status == 0) {
-            List<HandleMap.Entry> entries = mHandleMap.getEntries();
+            List<HandleMap.Entry> entries = mHandleMap.getEntriesByServerIf(serverIf);
             for (HandleMap.Entry entry : entries) {
-                if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf
-                        || !entry.started) {
+                if (entry.type != HandleMap.TYPE_SERVICE || !entry.started) {
                     continue;
                 }
 
@@ -4632,9 +4597,9 @@ public class GattService extends ProfileService {
          * The handles are copied into a new list to avoid race conditions.
          */
         List<Integer> handleList = new ArrayList<Integer>();
-        List<HandleMap.Entry> entries = mHandleMap.getEntries();
+        List<HandleMap.Entry> entries = mHandleMap.getEntriesByServerIf(serverIf);
         for (HandleMap.Entry entry : entries) {
-            if (entry.type != HandleMap.TYPE_SERVICE || entry.serverIf != serverIf) {
+            if (entry.type != HandleMap.TYPE_SERVICE) {
                 continue;
             }
             handleList.add(entry.handle);
@@ -4678,12 +4643,18 @@ public class GattService extends ProfileService {
         sb.append("GATT Scanner Map\n");
         mScannerMap.dump(sb);
 
+        sb.append("GATT Scan Result Coalescing\n");
+        mScanManager.dumpResultCoalescer(sb);
+
         sb.append("GATT Advertiser Map\n");
         mAdvertiserMap.dumpAdvertiser(sb);
 
         sb.append("GATT Client Map\n");
         mClientMap.dump(sb);
 
+        sb.append("GATT Write Scheduler\n");
+        mWriteScheduler.dump(sb);
+
         sb.append("GATT Server Map\n");
         mServerMap.dump(sb);
 
@@ -4691,6 +4662,14 @@ public class GattService extends ProfileService {
         mHandleMap.dump(sb);
     }
 
+    /**
+     * Reports the scan results delivered to scanners since the last report to battery stats
+     * and statsd.
+     */
+    void reportPendingScanResults() {
+        mScannerMap.reportPendingScanResults();
+    }
+
     void addScanEvent(BluetoothMetricsProto.ScanEvent event) {
         synchronized (mScanEvents) {
             if (mScanEvents.size() == NUM_SCAN_EVENTS_KEPT) {
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Schedules the characteristic writes of the GATT clients to each remote device.
+ *
+ * Only one write request is outstanding on a connection at a time, as required by ATT. Writes
+ * that can't be issued yet are queued per client and served round robin, instead of failing
+ * with {@link BluetoothStatusCodes#ERROR_GATT_WRITE_REQUEST_BUSY}. Write commands (without
+ * response) are pipelined up to a number of credits while the link isn't congested.
+ *
+ * @hide
+ */
+/* package */ class GattWriteScheduler {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "WriteScheduler";
+
+    private static final boolean DBG = GattServiceConfig.DBG;
+
+    /** Write commands outstanding on a connection while it isn't congested. */
+    @VisibleForTesting
+    static final int WRITE_COMMAND_CREDITS = 8;
+
+    /** Writes queued for a client on a connection before it's told to retry later. */
+    @VisibleForTesting
+    static final int MAX_QUEUED_WRITES_PER_CLIENT = 16;
+
+    /**
+     * Issues a write to the stack.
+     */
+    interface WriteIssuer {
+        void writeCharacteristic(int connId, int handle, int writeType, int authReq,
+                byte[] value);
+    }
+
+    private static class Write {
+        final int connId;
+        final int handle;
+        final int writeType;
+        final int authReq;
+        final byte[] value;
+        final long queuedTime;
+
+        Write(int connId, int handle, int writeType, int authReq, byte[] value, long queuedTime) {
+            this.connId = connId;
+            this.handle = handle;
+            this.writeType = writeType;
+            this.authReq = authReq;
+            this.value = value;
+            this.queuedTime = queuedTime;
+        }
+
+        boolean isCommand() {
+            return writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+    }
+
+    /** Writes to a remote device, shared by every client connected to it. */
+    private static class Device {
+        // Queued writes per client id, in round robin order.
+        final LinkedHashMap<Integer, ArrayDeque<Write>> mQueues = new LinkedHashMap<>();
+        // Writes issued and not completed yet, in issue order.
+        final ArrayList<Write> mInFlight = new ArrayList<>();
+        int mNumQueued;
+        int mNumRequestsInFlight;
+        boolean mIsCongested;
+    }
+
+    private final WriteIssuer mIssuer;
+    private final HashMap<String, Device> mDevices = new HashMap<>();
+
+    private long mNumWrites;
+    private long mNumIssuedWrites;
+    private long mNumQueuedWrites;
+    private long mNumRejectedWrites;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+    private int mMaxQueueDepth;
+
+    GattWriteScheduler(WriteIssuer issuer) {
+        mIssuer = issuer;
+    }
+
+    /**
+     * Starts scheduling the writes to {@code address}, if not done yet.
+     */
+    synchronized void addDevice(String address) {
+        mDevices.putIfAbsent(address, new Device());
+    }
+
+    /**
+     * Drops the writes of connection {@code connId} to {@code address}, and stops scheduling the
+     * writes to it if {@code lastConnection}.
+     */
+    synchronized void removeConnection(String address, int connId, boolean lastConnection) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            return;
+        }
+        if (lastConnection) {
+            mDevices.remove(address);
+            return;
+        }
+
+        Iterator<ArrayDeque<Write>> queues = device.mQueues.values().iterator();
+        while (queues.hasNext()) {
+            ArrayDeque<Write> queue = queues.next();
+            int size = queue.size();
+            queue.removeIf(write -> write.connId == connId);
+            device.mNumQueued -= size - queue.size();
+            if (queue.isEmpty()) {
+                queues.remove();
+            }
+        }
+        Iterator<Write> inFlight = device.mInFlight.iterator();
+        while (inFlight.hasNext()) {
+            Write write = inFlight.next();
+            if (write.connId == connId) {
+                inFlight.remove();
+                if (!write.isCommand()) {
+                    device.mNumRequestsInFlight--;
+                }
+            }
+        }
+        issueWrites(device);
+    }
+
+    /**
+     * Issues or queues a write of {@code clientIf} on connection {@code connId}.
+     *
+     * @return {@link BluetoothStatusCodes#SUCCESS} if the write was issued or queued
+     */
+    synchronized int write(int clientIf, int connId, String address, int handle, int writeType,
+            int authReq, byte[] value) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            Log.d(TAG, "write() - no connection for address=" + address);
+            return BluetoothStatusCodes.ERROR_DEVICE_NOT_CONNECTED;
+        }
+
+        Write write = new Write(connId, handle, writeType, authReq, value,
+                SystemClock.elapsedRealtime());
+        if (device.mQueues.isEmpty() && canIssue(device, write)) {
+            mNumWrites++;
+            issue(device, write);
+            return BluetoothStatusCodes.SUCCESS;
+        }
+
+        ArrayDeque<Write> queue = device.mQueues.get(clientIf);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            device.mQueues.put(clientIf, queue);
+        } else if (queue.size() >= MAX_QUEUED_WRITES_PER_CLIENT) {
+            Log.d(TAG, "write() - queue full for clientIf=" + clientIf);
+            mNumRejectedWrites++;
+            return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+        }
+        queue.add(write);
+        mNumWrites++;
+        device.mNumQueued++;
+        mNumQueuedWrites++;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, device.mNumQueued);
+        if (DBG) {
+            Log.d(TAG, "write() - queued for clientIf=" + clientIf + ", depth="
+                    + device.mNumQueued);
+        }
+        issueWrites(device);
+        return BluetoothStatusCodes.SUCCESS;
+    }
+
+    /**
+     * Releases the write completed on connection {@code connId} and issues the next ones.
+     */
+    synchronized void onWriteCompleted(String address, int connId, int handle) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            return;
+        }
+        Write completed = null;
+        for (Write write : device.mInFlight) {
+            if (write.connId == connId && write.handle == handle) {
+                completed = write;
+                break;
+            }
+            if (completed == null && write.connId == connId) {
+                completed = write;
+            }
+        }
+        if (completed == null) {
+            return;
+        }
+        device.mInFlight.remove(completed);
+        if (!completed.isCommand()) {
+            device.mNumRequestsInFlight--;
+        }
+        issueWrites(device);
+    }
+
+    /**
+     * Pauses the pipelining of write commands to {@code address} while it's congested.
+     */
+    synchronized void setCongested(String address, boolean congested) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            return;
+        }
+        device.mIsCongested = congested;
+        if (!congested) {
+            issueWrites(device);
+        }
+    }
+
+    /**
+     * Returns the number of writes queued to {@code address}.
+     */
+    synchronized int getQueueDepth(String address) {
+        Device device = mDevices.get(address);
+        return device != null ? device.mNumQueued : 0;
+    }
+
+    private static boolean canIssue(Device device, Write write) {
+        if (!write.isCommand()) {
+            return device.mNumRequestsInFlight == 0;
+        }
+        // Without congestion callback, at least one command is always allowed.
+        int credits = device.mIsCongested ? 1 : WRITE_COMMAND_CREDITS;
+        return device.mInFlight.size() - device.mNumRequestsInFlight < credits;
+    }
+
+    private void issue(Device device, Write write) {
+        device.mInFlight.add(write);
+        if (!write.isCommand()) {
+            device.mNumRequestsInFlight++;
+        }
+        mNumIssuedWrites++;
+        long waitMillis = SystemClock.elapsedRealtime() - write.queuedTime;
+        mTotalWaitMillis += waitMillis;
+        mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+        mIssuer.writeCharacteristic(write.connId, write.handle, write.writeType, write.authReq,
+                write.value);
+    }
+
+    // Issues the queued writes that can be, one client after the other.
+    private void issueWrites(Device device) {
+        boolean issued = true;
+        while (issued) {
+            issued = false;
+            for (Map.Entry<Integer, ArrayDeque<Write>> entry : device.mQueues.entrySet()) {
+                ArrayDeque<Write> queue = entry.getValue();
+                if (!canIssue(device, queue.peek())) {
+                    continue;
+                }
+                issue(device, queue.poll());
+                device.mNumQueued--;
+                // Move the client at the end of the round.
+                device.mQueues.remove(entry.getKey());
+                if (!queue.isEmpty()) {
+                    device.mQueues.put(entry.getKey(), queue);
+                }
+                issued = true;
+                break;
+            }
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Writes: ").append(mNumWrites)
+                .append(", queued: ").append(mNumQueuedWrites)
+                .append(", rejected: ").append(mNumRejectedWrites)
+                .append(", max queue depth: ").append(mMaxQueueDepth)
+                .append(", average wait: ")
+                .append(mNumIssuedWrites > 0 ? mTotalWaitMillis / mNumIssuedWrites : 0).append("ms")
+                .append(", max wait: ").append(mMaxWaitMillis).append("ms\n");
+        for (Map.Entry<String, Device> entry : mDevices.entrySet()) {
+            Device device = entry.getValue();
+            sb.append("  ").append(entry.getKey())
+                    .append(": queue depth: ").append(device.mNumQueued)
+                    .append(", in flight: ").append(device.mInFlight.size())
+                    .append(", congested: ").append(device.mIsCongested).append("\n");
+        }
+    }
+}
@@ -16,7 +16,10 @@
 package com.android.bluetooth.gatt;
 
 import android.util.Log;
+import android.util.SparseArray;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -86,71 +89,108 @@ class HandleMap {
     Map<Integer, Integer> mRequestMap = null;
     int mLastCharacteristic = 0;
 
+    /*
+     * Indexes by attribute handle and by server interface, so lookups on the request path never
+     * scan the whole database. Guarded by the HandleMap lock.
+     */
+    private final SparseArray<Entry> mEntriesByHandle = new SparseArray<Entry>();
+    private final SparseArray<List<Entry>> mEntriesByServerIf = new SparseArray<List<Entry>>();
+
     HandleMap() {
         mEntries = new CopyOnWriteArrayList<Entry>();
         mRequestMap = new ConcurrentHashMap<Integer, Integer>();
     }
 
-    void clear() {
+    synchronized void clear() {
         mEntries.clear();
         mRequestMap.clear();
+        mEntriesByHandle.clear();
+        mEntriesByServerIf.clear();
     }
 
     void addService(int serverIf, int handle, UUID uuid, int serviceType, int instance,
             boolean advertisePreferred) {
-        mEntries.add(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
+        addEntry(new Entry(serverIf, handle, uuid, serviceType, instance, advertisePreferred));
     }
 
     void addCharacteristic(int serverIf, int handle, UUID uuid, int serviceHandle) {
         mLastCharacteristic = handle;
-        mEntries.add(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
+        addEntry(new Entry(serverIf, TYPE_CHARACTERISTIC, handle, uuid, serviceHandle));
     }
 
     void addDescriptor(int serverIf, int handle, UUID uuid, int serviceHandle) {
-        mEntries.add(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
+        addEntry(new Entry(serverIf, TYPE_DESCRIPTOR, handle, uuid, serviceHandle,
                 mLastCharacteristic));
     }
 
-    void setStarted(int serverIf, int handle, boolean started) {
-        for (Entry entry : mEntries) {
-            if (entry.type != TYPE_SERVICE || entry.serverIf != serverIf
-                    || entry.handle != handle) {
-                continue;
-            }
+    private synchronized void addEntry(Entry entry) {
+        mEntries.add(entry);
+        indexEntry(entry);
+    }
 
-            entry.started = started;
-            return;
+    private void indexEntry(Entry entry) {
+        // Keep the first entry added for a handle, as a list scan would find it.
+        if (mEntriesByHandle.indexOfKey(entry.handle) < 0) {
+            mEntriesByHandle.put(entry.handle, entry);
         }
+
+        List<Entry> serverEntries = mEntriesByServerIf.get(entry.serverIf);
+        if (serverEntries == null) {
+            serverEntries = new ArrayList<Entry>();
+            mEntriesByServerIf.put(entry.serverIf, serverEntries);
+        }
+        serverEntries.add(entry);
     }
 
-    Entry getByHandle(int handle) {
+    private void rebuildIndexes() {
+        mEntriesByHandle.clear();
+        mEntriesByServerIf.clear();
         for (Entry entry : mEntries) {
-            if (entry.handle == handle) {
-                return entry;
-            }
+            indexEntry(entry);
         }
-        Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
-        return null;
     }
 
-    boolean checkServiceExists(UUID uuid, int handle) {
-        for (Entry entry : mEntries) {
-            if (entry.type == TYPE_SERVICE && entry.handle == handle && entry.uuid.equals(uuid)) {
-                return true;
-            }
+    synchronized void setStarted(int serverIf, int handle, boolean started) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null || entry.type != TYPE_SERVICE || entry.serverIf != serverIf) {
+            return;
         }
-        return false;
+
+        entry.started = started;
+    }
+
+    synchronized Entry getByHandle(int handle) {
+        Entry entry = mEntriesByHandle.get(handle);
+        if (entry == null) {
+            Log.e(TAG, "getByHandle() - Handle " + handle + " not found!");
+        }
+        return entry;
     }
 
-    void deleteService(int serverIf, int serviceHandle) {
-        mEntries.removeIf(entry -> ((entry.serverIf == serverIf)
-                && (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle)));
+    synchronized boolean checkServiceExists(UUID uuid, int handle) {
+        Entry entry = mEntriesByHandle.get(handle);
+        return entry != null && entry.type == TYPE_SERVICE && entry.uuid.equals(uuid);
+    }
+
+    synchronized void deleteService(int serverIf, int serviceHandle) {
+        if (mEntries.removeIf(entry -> ((entry.serverIf == serverIf)
+                && (entry.handle == serviceHandle || entry.serviceHandle == serviceHandle)))) {
+            rebuildIndexes();
+        }
     }
 
     List<Entry> getEntries() {
         return mEntries;
     }
 
+    /**
+     * Returns a snapshot of the entries of the given server, in the order they were added.
+     */
+    synchronized List<Entry> getEntriesByServerIf(int serverIf) {
+        List<Entry> entries = mEntriesByServerIf.get(serverIf);
+        return entries == null ? Collections.emptyList() : new ArrayList<Entry>(entries);
+    }
+
     void addRequest(int requestId, int handle) {
         mRequestMap.put(requestId, handle);
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Holds a single advertisement report received from the stack and lazily builds the
+ * {@link ScanResult}s handed out to scan clients.
+ *
+ * Each variant (fixed-size legacy data or full extended data) is parsed at most once and the
+ * resulting {@link ScanResult} is shared by every client that receives it, so the cost of an
+ * advertisement does not grow with the number of registered scanners. Instances are only used
+ * from the scan callback thread and are not thread safe.
+ *
+ * @hide
+ */
+/* package */ class ParsedAdvertisement {
+    // Legacy advertisement data and scan response are at most 31 bytes each.
+    @VisibleForTesting
+    static final int LEGACY_ADV_DATA_LENGTH = 62;
+
+    private static final int ET_LEGACY_MASK = 0x10;
+
+    private final int mEventType;
+    private final String mAddress;
+    private final int mPrimaryPhy;
+    private final int mSecondaryPhy;
+    private final int mAdvertisingSid;
+    private final int mTxPower;
+    private final int mRssi;
+    private final int mPeriodicAdvInt;
+    private final byte[] mAdvData;
+    private final long mTimestampNanos;
+
+    private BluetoothDevice mDevice;
+    private ScanResult mLegacyResult;
+    private ScanResult mExtendedResult;
+
+    ParsedAdvertisement(int eventType, String address, int primaryPhy, int secondaryPhy,
+            int advertisingSid, int txPower, int rssi, int periodicAdvInt, byte[] advData,
+            long timestampNanos) {
+        mEventType = eventType;
+        mAddress = address;
+        mPrimaryPhy = primaryPhy;
+        mSecondaryPhy = secondaryPhy;
+        mAdvertisingSid = advertisingSid;
+        mTxPower = txPower;
+        mRssi = rssi;
+        mPeriodicAdvInt = periodicAdvInt;
+        mAdvData = advData;
+        mTimestampNanos = timestampNanos;
+    }
+
+    /**
+     * Returns true if this report came from a legacy advertising PDU.
+     */
+    boolean isLegacy() {
+        return (mEventType & ET_LEGACY_MASK) != 0;
+    }
+
+    /**
+     * Returns the result to deliver to a client using the given legacy setting, or null if the
+     * client must not receive this report (legacy scan, non legacy result).
+     */
+    ScanResult getResult(boolean legacyScan) {
+        if (!legacyScan) {
+            if (mExtendedResult == null) {
+                mExtendedResult = buildResult(mAdvData);
+            }
+            return mExtendedResult;
+        }
+        if (!isLegacy()) {
+            return null;
+        }
+        if (mLegacyResult == null) {
+            // This is for compability with applications that assume fixed size scan data.
+            mLegacyResult = buildResult(Arrays.copyOfRange(mAdvData, 0, LEGACY_ADV_DATA_LENGTH));
+        }
+        return mLegacyResult;
+    }
+
+    private ScanResult buildResult(byte[] scanRecordData) {
+        return new ScanResult(getDevice(), mEventType, mPrimaryPhy, mSecondaryPhy,
+                mAdvertisingSid, mTxPower, mRssi, mPeriodicAdvInt,
+                ScanRecord.parseFromBytes(scanRecordData), mTimestampNanos);
+    }
+
+    private BluetoothDevice getDevice() {
+        if (mDevice == null) {
+            mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(mAddress);
+        }
+        return mDevice;
+    }
+}
@@ -114,6 +114,7 @@ import java.util.Objects;
                 .setMatchMode(settings.getMatchMode())
                 .setLegacy(settings.getLegacy())
                 .setPhy(settings.getPhy())
+                .setResultCoalescingWindowMillis(settings.getResultCoalescingWindowMillis())
                 .build();
         return true;
     }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the software scan filters of all regular scan clients.
+ *
+ * Every {@link ScanFilter} is bucketed under its most selective key: device address, then
+ * manufacturer ID, then service data UUID, then unmasked service UUID. Filters without any of
+ * these keys are kept in a residual list. Matching an advertisement only looks at the buckets
+ * selected by the fields present in its {@link ScanRecord}, and runs the full
+ * {@link ScanFilter#matches} check (masks, names, ...) on those candidates only.
+ *
+ * The index is rebuilt by {@link ScanManager} whenever the regular scan queue changes and can be
+ * queried concurrently from the scan callback thread.
+ *
+ * @hide
+ */
+/* package */ class ScanFilterIndex {
+    static final ScanFilterIndex EMPTY = new ScanFilterIndex();
+
+    private static class Entry {
+        final int mScannerId;
+        final ScanFilter mFilter;
+
+        Entry(int scannerId, ScanFilter filter) {
+            mScannerId = scannerId;
+            mFilter = filter;
+        }
+    }
+
+    // Filter lists that were indexed, keyed by client instance.
+    private final Map<ScanClient, List<ScanFilter>> mIndexedClients = new IdentityHashMap<>();
+    private final Set<Integer> mUnfiltered = new HashSet<>();
+    private final Map<String, List<Entry>> mByAddress = new HashMap<>();
+    private final SparseArray<List<Entry>> mByManufacturerId = new SparseArray<>();
+    private final Map<ParcelUuid, List<Entry>> mByServiceDataUuid = new HashMap<>();
+    private final Map<ParcelUuid, List<Entry>> mByServiceUuid = new HashMap<>();
+    private final List<Entry> mResidual = new ArrayList<>();
+    private int mNumFilters;
+
+    private ScanFilterIndex() {}
+
+    /**
+     * Builds an index of the filters of the given clients.
+     */
+    static ScanFilterIndex build(Collection<ScanClient> clients) {
+        ScanFilterIndex index = new ScanFilterIndex();
+        for (ScanClient client : clients) {
+            index.add(client);
+        }
+        return index;
+    }
+
+    private void add(ScanClient client) {
+        mIndexedClients.put(client, client.filters);
+        if (client.filters == null || client.filters.isEmpty()) {
+            mUnfiltered.add(client.scannerId);
+            return;
+        }
+        for (ScanFilter filter : client.filters) {
+            Entry entry = new Entry(client.scannerId, filter);
+            mNumFilters++;
+            if (filter.getDeviceAddress() != null) {
+                mByAddress.computeIfAbsent(filter.getDeviceAddress().toUpperCase(),
+                        k -> new ArrayList<>()).add(entry);
+            } else if (filter.getManufacturerId() >= 0) {
+                List<Entry> entries = mByManufacturerId.get(filter.getManufacturerId());
+                if (entries == null) {
+                    entries = new ArrayList<>();
+                    mByManufacturerId.put(filter.getManufacturerId(), entries);
+                }
+                entries.add(entry);
+            } else if (filter.getServiceDataUuid() != null) {
+                mByServiceDataUuid.computeIfAbsent(filter.getServiceDataUuid(),
+                        k -> new ArrayList<>()).add(entry);
+            } else if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+                mByServiceUuid.computeIfAbsent(filter.getServiceUuid(),
+                        k -> new ArrayList<>()).add(entry);
+            } else {
+                mResidual.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the current filters of {@code client} are part of this index, so that
+     * {@link #getMatchingScanners} can be used for it.
+     */
+    boolean isIndexed(ScanClient client) {
+        return mIndexedClients.containsKey(client)
+                && mIndexedClients.get(client) == client.filters;
+    }
+
+    /**
+     * Returns the number of indexed filters.
+     */
+    int getNumFilters() {
+        return mNumFilters;
+    }
+
+    /**
+     * Returns the IDs of all indexed scanners with at least one filter matching {@code result}
+     * or whose filter address equals {@code originalAddress}.
+     */
+    Set<Integer> getMatchingScanners(ScanResult result, String originalAddress) {
+        if (mIndexedClients.isEmpty()) {
+            return Collections.emptySet();
+        }
+        Set<Integer> matches = new HashSet<>(mUnfiltered);
+
+        BluetoothDevice device = result.getDevice();
+        if (device != null) {
+            matchCandidates(mByAddress.get(device.getAddress()), result, matches);
+        }
+        if (originalAddress != null) {
+            List<Entry> entries = mByAddress.get(originalAddress.toUpperCase());
+            if (entries != null) {
+                for (Entry entry : entries) {
+                    matches.add(entry.mScannerId);
+                }
+            }
+        }
+
+        ScanRecord record = result.getScanRecord();
+        if (record != null) {
+            SparseArray<byte[]> manufacturerData = record.getManufacturerSpecificData();
+            if (manufacturerData != null && mByManufacturerId.size() > 0) {
+                for (int i = 0; i < manufacturerData.size(); i++) {
+                    matchCandidates(mByManufacturerId.get(manufacturerData.keyAt(i)), result,
+                            matches);
+                }
+            }
+            Map<ParcelUuid, byte[]> serviceData = record.getServiceData();
+            if (serviceData != null && !mByServiceDataUuid.isEmpty()) {
+                for (ParcelUuid uuid : serviceData.keySet()) {
+                    matchCandidates(mByServiceDataUuid.get(uuid), result, matches);
+                }
+            }
+            List<ParcelUuid> serviceUuids = record.getServiceUuids();
+            if (serviceUuids != null && !mByServiceUuid.isEmpty()) {
+                for (ParcelUuid uuid : serviceUuids) {
+                    matchCandidates(mByServiceUuid.get(uuid), result, matches);
+                }
+            }
+        }
+        matchCandidates(mResidual, result, matches);
+        return matches;
+    }
+
+    private static void matchCandidates(List<Entry> candidates, ScanResult result,
+            Set<Integer> matches) {
+        if (candidates == null) {
+            return;
+        }
+        for (Entry entry : candidates) {
+            if (matches.contains(entry.mScannerId)) {
+                continue;
+            }
+            if (entry.mFilter.matches(result)) {
+                matches.add(entry.mScannerId);
+            }
+        }
+    }
+}
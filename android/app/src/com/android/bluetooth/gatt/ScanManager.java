@@ -22,6 +22,7 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -99,12 +100,15 @@ public class ScanManager {
     static final int MSG_SCREEN_ON = 7;
     static final int MSG_SCREEN_OFF = 8;
     static final int MSG_REVERT_SCAN_MODE_UPGRADE = 9;
+    static final int MSG_REPORT_SCAN_RESULTS = 10;
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
 
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
     private static final int MAX_IS_UID_FOREGROUND_MAP_SIZE = 500;
+    // Interval at which scan result counts are reported to battery stats and statsd.
+    private static final long SCAN_RESULTS_REPORT_INTERVAL_MS = 10000;
 
     private int mLastConfiguredScanSetting = Integer.MIN_VALUE;
     // Scan parameters for batch scan.
@@ -117,11 +121,14 @@ public class ScanManager {
     private boolean mBatchAlarmReceiverRegistered;
     private ScanNative mScanNative;
     private volatile ClientHandler mHandler;
+    private volatile ScanResultCoalescer mResultCoalescer;
     private BluetoothAdapterProxy mBluetoothAdapterProxy;
 
     private Set<ScanClient> mRegularScanClients;
     private Set<ScanClient> mBatchClients;
     private Set<ScanClient> mSuspendedScanClients;
+    // Software filter index of the regular scan clients, rebuilt on start/stop scan.
+    private volatile ScanFilterIndex mFilterIndex = ScanFilterIndex.EMPTY;
     private SparseIntArray mPriorityMap = new SparseIntArray();
 
     private CountDownLatch mLatch;
@@ -178,6 +185,8 @@ public class ScanManager {
         HandlerThread thread = new HandlerThread("BluetoothScanManager");
         thread.start();
         mHandler = new ClientHandler(thread.getLooper());
+        mResultCoalescer = new ScanResultCoalescer(thread.getLooper(),
+                mService::onCoalescedScanResults);
         if (mDm != null) {
             mDm.registerDisplayListener(mDisplayListener, null);
         }
@@ -194,6 +203,7 @@ public class ScanManager {
         mRegularScanClients.clear();
         mBatchClients.clear();
         mSuspendedScanClients.clear();
+        mFilterIndex = ScanFilterIndex.EMPTY;
         mScanNative.cleanup();
 
         if (mActivityManager != null) {
@@ -208,6 +218,11 @@ public class ScanManager {
             mDm.unregisterDisplayListener(mDisplayListener);
         }
 
+        if (mResultCoalescer != null) {
+            mResultCoalescer.cleanup();
+            mResultCoalescer = null;
+        }
+
         if (mHandler != null) {
             // Shut down the thread
             mHandler.removeCallbacksAndMessages(null);
@@ -241,6 +256,42 @@ public class ScanManager {
         return mRegularScanClients;
     }
 
+    /**
+     * Returns the software filter index of the regular scan queue.
+     */
+    ScanFilterIndex getFilterIndex() {
+        return mFilterIndex;
+    }
+
+    /**
+     * Queues a result for a client using a result coalescing window.
+     *
+     * @return false if the result could not be queued and must be delivered right away
+     */
+    boolean coalesceScanResult(ScanClient client, ScanResult result) {
+        ScanResultCoalescer coalescer = mResultCoalescer;
+        if (coalescer == null) {
+            return false;
+        }
+        coalescer.add(client.scannerId, client.settings.getResultCoalescingWindowMillis(),
+                result);
+        return true;
+    }
+
+    void dumpResultCoalescer(StringBuilder sb) {
+        ScanResultCoalescer coalescer = mResultCoalescer;
+        if (coalescer != null) {
+            coalescer.dump(sb);
+        }
+    }
+
+    private void updateFilterIndex() {
+        mFilterIndex = ScanFilterIndex.build(mRegularScanClients);
+        if (DBG) {
+            Log.d(TAG, "updateFilterIndex() - filters=" + mFilterIndex.getNumFilters());
+        }
+    }
+
     /**
      * Returns the suspended scan queue.
      */
@@ -362,6 +413,10 @@ public class ScanManager {
                 case MSG_IMPORTANCE_CHANGE:
                     handleImportanceChange((UidImportance) msg.obj);
                     break;
+                case MSG_REPORT_SCAN_RESULTS:
+                    mService.reportPendingScanResults();
+                    updateScanResultsReport();
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -411,6 +466,7 @@ public class ScanManager {
             } else {
                 updateScanModeBeforeStart(client);
                 mRegularScanClients.add(client);
+                updateFilterIndex();
                 mScanNative.startRegularScan(client);
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -428,9 +484,23 @@ public class ScanManager {
                     }
                 }
             }
+            updateScanResultsReport();
             client.started = true;
         }
 
+        /**
+         * Reports the pending scan results periodically as long as a scan is ongoing. To be called
+         * whenever a scan is started or stopped.
+         */
+        private void updateScanResultsReport() {
+            if (mRegularScanClients.isEmpty() && mBatchClients.isEmpty()) {
+                // The stopped scans already reported their remaining results.
+                removeMessages(MSG_REPORT_SCAN_RESULTS);
+            } else if (!hasMessages(MSG_REPORT_SCAN_RESULTS)) {
+                sendEmptyMessageDelayed(MSG_REPORT_SCAN_RESULTS, SCAN_RESULTS_REPORT_INTERVAL_MS);
+            }
+        }
+
         private boolean requiresScreenOn(ScanClient client) {
             boolean isFiltered = (client.filters != null) && !client.filters.isEmpty();
             return !mScanNative.isOpportunisticScanClient(client) && !isFiltered;
@@ -455,8 +525,13 @@ public class ScanManager {
             }
             removeMessages(MSG_REVERT_SCAN_MODE_UPGRADE, client);
             removeMessages(MSG_SCAN_TIMEOUT, client);
+            ScanResultCoalescer coalescer = mResultCoalescer;
+            if (coalescer != null) {
+                coalescer.remove(client.scannerId);
+            }
             if (mRegularScanClients.contains(client)) {
                 mScanNative.stopRegularScan(client);
+                updateFilterIndex();
 
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
@@ -464,6 +539,7 @@ public class ScanManager {
             } else {
                 mScanNative.stopBatchScan(client);
             }
+            updateScanResultsReport();
             if (client.appDied) {
                 if (DBG) {
                     Log.d(TAG, "app died, unregister scanner - " + client.scannerId);
@@ -674,6 +750,7 @@ public class ScanManager {
                 }
             }
             mSuspendedScanClients.clear();
+            updateScanResultsReport();
         }
 
         private void updateRegularScanClientsScreenOn() {
@@ -1117,6 +1194,7 @@ public class ScanManager {
             builder.setScanResultType(settings.getScanResultType());
             builder.setReportDelay(settings.getReportDelayMillis());
             builder.setNumOfMatches(settings.getNumOfMatches());
+            builder.setResultCoalescingWindowMillis(settings.getResultCoalescingWindowMillis());
             client.settings = builder.build();
         }
 
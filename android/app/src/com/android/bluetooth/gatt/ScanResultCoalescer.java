@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Coalesces {@link android.bluetooth.le.ScanSettings#CALLBACK_TYPE_ALL_MATCHES} results of
+ * scanners that requested a result coalescing window.
+ *
+ * The first result of a scanner opens a window; results found until the window expires are
+ * delivered together in one callback, keeping only the latest result of each device.
+ *
+ * @hide
+ */
+/* package */ class ScanResultCoalescer {
+    /**
+     * Receives the results of an expired coalescing window.
+     */
+    interface Callback {
+        void onCoalescedScanResults(int scannerId, ArrayList<ScanResult> results);
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    // Pending results per scanner id, keyed by device address.
+    private final SparseArray<LinkedHashMap<Object, ScanResult>> mPending = new SparseArray<>();
+    // Token of the delayed flush of the pending window per scanner id.
+    private final SparseArray<Object> mFlushTokens = new SparseArray<>();
+    private long mNumResults;
+    private long mNumDeliveries;
+
+    ScanResultCoalescer(Looper looper, Callback callback) {
+        mHandler = new Handler(looper);
+        mCallback = callback;
+    }
+
+    /**
+     * Queues {@code result} for the given scanner, opening a window of {@code windowMillis} if
+     * none is pending.
+     */
+    synchronized void add(int scannerId, long windowMillis, ScanResult result) {
+        LinkedHashMap<Object, ScanResult> pending = mPending.get(scannerId);
+        if (pending == null) {
+            pending = new LinkedHashMap<>();
+            mPending.put(scannerId, pending);
+            Object flushToken = new Object();
+            mFlushTokens.put(scannerId, flushToken);
+            // Posted under the lock, so the window can't be cancelled before its flush is posted.
+            mHandler.postDelayed(() -> flush(scannerId), flushToken, windowMillis);
+        }
+        BluetoothDevice device = result.getDevice();
+        // Results without device (sanitized) can't be deduplicated.
+        pending.put(device != null ? device.getAddress() : result, result);
+        mNumResults++;
+    }
+
+    /**
+     * Delivers the pending results of the given scanner now.
+     */
+    void flush(int scannerId) {
+        LinkedHashMap<Object, ScanResult> pending;
+        synchronized (this) {
+            pending = mPending.get(scannerId);
+            if (pending == null) {
+                return;
+            }
+            mPending.remove(scannerId);
+            cancelFlush(scannerId);
+            mNumDeliveries++;
+        }
+        mCallback.onCoalescedScanResults(scannerId, new ArrayList<>(pending.values()));
+    }
+
+    /**
+     * Drops the pending results of the given scanner.
+     */
+    synchronized void remove(int scannerId) {
+        mPending.remove(scannerId);
+        cancelFlush(scannerId);
+    }
+
+    // Cancels the delayed flush of the window, so it can't cut short a later one.
+    private void cancelFlush(int scannerId) {
+        Object flushToken = mFlushTokens.get(scannerId);
+        if (flushToken != null) {
+            mFlushTokens.remove(scannerId);
+            mHandler.removeCallbacksAndMessages(flushToken);
+        }
+    }
+
+    synchronized long getNumResults() {
+        return mNumResults;
+    }
+
+    synchronized long getNumDeliveries() {
+        return mNumDeliveries;
+    }
+
+    void cleanup() {
+        mHandler.removeCallbacksAndMessages(null);
+        synchronized (this) {
+            mPending.clear();
+            mFlushTokens.clear();
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        sb.append("  Coalesced results: ").append(mNumResults)
+                .append(", deliveries: ").append(mNumDeliveries)
+                .append(", pending scanners: ").append(mPending.size()).append("\n");
+    }
+}
@@ -23,12 +23,13 @@ import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
@@ -40,6 +41,7 @@ import com.android.bluetooth.util.GsmAlphabet;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -66,7 +68,7 @@ public class AtPhonebook {
 
     /** Android supports as many phonebook entries as the flash can hold, but
      *  BT periphals don't. Limit the number we'll report. */
-    private static final int MAX_PHONEBOOK_SIZE = 16384;
+    static final int MAX_PHONEBOOK_SIZE = 16384;
 
     private static final String OUTGOING_CALL_WHERE = Calls.TYPE + "=" + Calls.OUTGOING_TYPE;
     private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
@@ -79,6 +81,7 @@ public class AtPhonebook {
         public int numberPresentationColumn;
         public int typeColumn;
         public int nameColumn;
+        public int generation; // generation of the queried data at the time of the query
     }
 
     private Context mContext;
@@ -100,6 +103,27 @@ public class AtPhonebook {
     final HashMap<String, PhonebookResult> mPhonebooks =
             new HashMap<String, PhonebookResult>(4);
 
+    // Query results are kept until the contacts or the call log change, or the device
+    // disconnects, instead of being queried again by every AT+CPBS/AT+CPBR command.
+    private final AtomicInteger mContactsGeneration = new AtomicInteger();
+    private final AtomicInteger mCallLogGeneration = new AtomicInteger();
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mContactsGeneration.incrementAndGet();
+        }
+    };
+    private final ContentObserver mCallLogObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mCallLogGeneration.incrementAndGet();
+        }
+    };
+
+    @VisibleForTesting
+    final PhonebookNameIndex mNameIndex;
+    private int mNameIndexGeneration;
+
     static final int TYPE_UNKNOWN = -1;
     static final int TYPE_READ = 0;
     static final int TYPE_SET = 1;
@@ -116,9 +140,20 @@ public class AtPhonebook {
         mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
         mCurrentPhonebook = "ME";  // default to mobile phonebook
         mCpbrIndex1 = mCpbrIndex2 = -1;
+        mNameIndex = new PhonebookNameIndex(context, mContentResolver, MAX_PHONEBOOK_SIZE);
+        if (mContentResolver != null) {
+            mContentResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                    mContactsObserver);
+            mContentResolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+        }
     }
 
     public void cleanup() {
+        if (mContentResolver != null) {
+            mContentResolver.unregisterContentObserver(mContactsObserver);
+            mContentResolver.unregisterContentObserver(mCallLogObserver);
+        }
+        closePhonebooks();
         mPhonebooks.clear();
     }
 
@@ -225,7 +260,7 @@ public class AtPhonebook {
                     atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                     break;
                 }
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
@@ -234,8 +269,6 @@ public class AtPhonebook {
                 atCommandResponse =
                         "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(
                                 size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -296,7 +329,7 @@ public class AtPhonebook {
                 if ("SM".equals(mCurrentPhonebook)) {
                     size = 0;
                 } else {
-                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+                    PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
                     if (pbr == null) {
                         atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                         mNativeInterface.atResponseCode(remoteDevice, atCommandResult,
@@ -305,8 +338,6 @@ public class AtPhonebook {
                     }
                     size = pbr.cursor.getCount();
                     log("handleCpbrCommand - size = " + size);
-                    pbr.cursor.close();
-                    pbr.cursor = null;
                 }
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
@@ -391,7 +422,7 @@ public class AtPhonebook {
 
     /** Get the most recent result for the given phone book,
      *  with the cursor ready to go.
-     *  If force then re-query that phonebook
+     *  If force, or if its data changed since, then re-query that phonebook
      *  Returns null if the cursor is not ready
      */
     @VisibleForTesting
@@ -403,7 +434,7 @@ public class AtPhonebook {
         if (pbr == null) {
             pbr = new PhonebookResult();
         }
-        if (force || pbr.cursor == null) {
+        if (force || pbr.cursor == null || pbr.generation != getGeneration(pb)) {
             if (!queryPhonebook(pb, pbr)) {
                 return null;
             }
@@ -412,6 +443,10 @@ public class AtPhonebook {
         return pbr;
     }
 
+    private int getGeneration(String pb) {
+        return "ME".equals(pb) ? mContactsGeneration.get() : mCallLogGeneration.get();
+    }
+
     private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
         String where;
         boolean ancillaryPhonebook = true;
@@ -433,6 +468,8 @@ public class AtPhonebook {
             pbr.cursor.close();
             pbr.cursor = null;
         }
+        // Read before the query, so that a change during the query triggers another one.
+        pbr.generation = getGeneration(pb);
 
         if (ancillaryPhonebook) {
             Bundle queryArgs = new Bundle();
@@ -475,6 +512,28 @@ public class AtPhonebook {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
         mCheckingAccessPermission = false;
+        closePhonebooks();
+    }
+
+    /** Closes the cached phonebook cursors and drops the caller id index. */
+    private synchronized void closePhonebooks() {
+        for (PhonebookResult pbr : mPhonebooks.values()) {
+            if (pbr.cursor != null) {
+                pbr.cursor.close();
+                pbr.cursor = null;
+            }
+        }
+        mNameIndex.clear();
+    }
+
+    /** Returns the caller id of a call log number, or null if it has no contact. */
+    private synchronized PhonebookNameIndex.Entry getCallerId(String number) {
+        int generation = mContactsGeneration.get();
+        if (generation != mNameIndexGeneration) {
+            mNameIndex.clear();
+            mNameIndexGeneration = generation;
+        }
+        return mNameIndex.get(number);
     }
 
     @VisibleForTesting
@@ -516,7 +575,7 @@ public class AtPhonebook {
         }
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, false);
         if (pbr == null) {
             Log.e(TAG, "pbr is null");
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
@@ -549,20 +608,11 @@ public class AtPhonebook {
             String name = null;
             int type = -1;
             if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[]{
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
+                // try caller id lookup, served by the index of the contacts
+                PhonebookNameIndex.Entry callerId = getCallerId(number);
+                if (callerId != null) {
+                    name = callerId.mName;
+                    type = callerId.mType;
                 }
                 if (DBG && name == null) {
                     log("Caller ID lookup failed for " + number);
@@ -626,10 +676,6 @@ public class AtPhonebook {
                 break;
             }
         }
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
-        }
         return atCommandResult;
     }
 
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.bluetooth.util.DevicePolicyUtils;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Contact names and phone types of phone numbers, for the caller id of the call log entries
+ * returned by AT+CPBR.
+ *
+ * The index is built with a single query of the contacts phone table on first use and is kept
+ * until {@link #clear}, so that CPBR responses only format entries held in memory. Numbers are
+ * matched as PhoneLookup does: candidates share the trailing {@link #MIN_MATCH} digits and are
+ * confirmed with {@link PhoneNumberUtils#areSamePhoneNumber}. Numbers the index can't match are
+ * looked up once with PhoneLookup, and the result is remembered as well.
+ */
+class PhonebookNameIndex {
+    private static final String TAG = "PhonebookNameIndex";
+
+    /** Number of trailing digits compared to find the candidates of a number. */
+    @VisibleForTesting
+    static final int MIN_MATCH = 7;
+
+    private static final String[] PHONES_PROJECTION = new String[]{
+            Phone.NUMBER, Phone.DISPLAY_NAME, Phone.TYPE
+    };
+
+    /** The contact name and phone type of a number. */
+    static class Entry {
+        final String mNumber;
+        final String mName;
+        final int mType;
+
+        Entry(String number, String name, int type) {
+            mNumber = number;
+            mName = name;
+            mType = type;
+        }
+    }
+
+    private static final Entry NO_ENTRY = new Entry(null, null, -1);
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final int mMaxSize;
+
+    // Entries of the contacts phone table by the last digits of their number, null until built.
+    private HashMap<String, List<Entry>> mEntriesByMinMatch;
+    // Results by looked up number, NO_ENTRY if the number has no contact.
+    private final HashMap<String, Entry> mResults = new HashMap<>();
+    private String mCountryIso;
+
+    PhonebookNameIndex(Context context, ContentResolver contentResolver, int maxSize) {
+        mContext = context;
+        mContentResolver = contentResolver;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the contact of {@code number}, or null if it has none.
+     */
+    synchronized Entry get(String number) {
+        Entry result = mResults.get(number);
+        if (result == null) {
+            if (mEntriesByMinMatch == null) {
+                build();
+            }
+            result = match(number);
+            if (result == null) {
+                result = lookup(number);
+            }
+            mResults.put(number, result);
+        }
+        return result == NO_ENTRY ? null : result;
+    }
+
+    /**
+     * Drops the index, which is built again on next use.
+     */
+    synchronized void clear() {
+        mEntriesByMinMatch = null;
+        mResults.clear();
+    }
+
+    private void build() {
+        mEntriesByMinMatch = new HashMap<>();
+        TelephonyManager tm = mContext.getSystemService(TelephonyManager.class);
+        mCountryIso = tm != null ? tm.getNetworkCountryIso() : null;
+
+        Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, mMaxSize);
+        final Uri phoneContentUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
+                phoneContentUri, PHONES_PROJECTION, queryArgs, null);
+        if (c == null) {
+            return;
+        }
+        int count = 0;
+        try {
+            int numberColumn = c.getColumnIndex(Phone.NUMBER);
+            int nameColumn = c.getColumnIndex(Phone.DISPLAY_NAME);
+            int typeColumn = c.getColumnIndex(Phone.TYPE);
+            while (c.moveToNext()) {
+                String number = c.getString(numberColumn);
+                String minMatch = getMinMatch(number);
+                if (minMatch == null) {
+                    continue;
+                }
+                Entry entry = new Entry(number, c.getString(nameColumn), c.getInt(typeColumn));
+                mEntriesByMinMatch.computeIfAbsent(minMatch, k -> new ArrayList<>()).add(entry);
+                count++;
+            }
+        } finally {
+            c.close();
+        }
+        Log.i(TAG, "Indexed " + count + " phone numbers");
+    }
+
+    private Entry match(String number) {
+        List<Entry> candidates = mEntriesByMinMatch.get(getMinMatch(number));
+        if (candidates == null || mCountryIso == null) {
+            return null;
+        }
+        for (Entry entry : candidates) {
+            if (PhoneNumberUtils.areSamePhoneNumber(number, entry.mNumber, mCountryIso)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private Entry lookup(String number) {
+        Entry result = NO_ENTRY;
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mContentResolver,
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                new String[]{
+                        PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
+                }, null, null, null);
+        if (c != null) {
+            if (c.moveToFirst()) {
+                result = new Entry(number, c.getString(0), c.getInt(1));
+            }
+            c.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the trailing {@link #MIN_MATCH} digits of the network portion of a number, last
+     * digit first, or null if it has no digits.
+     */
+    @VisibleForTesting
+    static String getMinMatch(String number) {
+        String network = PhoneNumberUtils.extractNetworkPortion(number);
+        if (network == null) {
+            return null;
+        }
+        StringBuilder digits = new StringBuilder(MIN_MATCH);
+        for (int i = network.length() - 1; i >= 0 && digits.length() < MIN_MATCH; i--) {
+            char ch = network.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                digits.append(ch);
+            }
+        }
+        return digits.length() > 0 ? digits.toString() : null;
+    }
+}
@@ -60,6 +60,7 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 @TargetApi(19)
@@ -158,6 +159,7 @@ public class BluetoothMapContent {
     private final BluetoothMapAccountItem mAccount;
     /* The MasInstance reference is used to update persistent (over a connection) version counters*/
     private final BluetoothMapMasInstance mMasInstance;
+    private final ContactNameResolver mContactNames;
     @VisibleForTesting
     String mMessageVersion = BluetoothMapUtils.MAP_V10_STR;
 
@@ -276,6 +278,7 @@ public class BluetoothMapContent {
         int mPhoneType = 0;
         String mPhoneNum = null;
         String mPhoneAlphaTag = null;
+        String mCountryIso = null;
         /*column indices used to optimize queries */
         public int mMessageColId = -1;
         public int mMessageColDate = -1;
@@ -439,6 +442,7 @@ public class BluetoothMapContent {
         mContext = context;
         mResolver = mContext.getContentResolver();
         mMasInstance = mas;
+        mContactNames = new ContactNameResolver(mResolver);
         if (mResolver == null) {
             if (D) {
                 Log.d(TAG, "getContentResolver failed");
@@ -1056,7 +1060,7 @@ public class BluetoothMapContent {
                 if (msgType != 1) {
                     String phone = c.getString(fi.mSmsColAddress);
                     if (phone != null && !phone.isEmpty()) {
-                        name = getContactNameFromPhone(phone, mResolver);
+                        name = mContactNames.getName(phone);
                     }
                 } else {
                     name = fi.mPhoneAlphaTag;
@@ -1070,7 +1074,7 @@ public class BluetoothMapContent {
                     phone = e.getRecipientAddressing();
                 }
                 if (phone != null && !phone.isEmpty()) {
-                    name = getContactNameFromPhone(phone, mResolver);
+                    name = mContactNames.getName(phone);
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL) {
                 /* Might be another way to handle address and names */
@@ -1191,7 +1195,7 @@ public class BluetoothMapContent {
                 if (msgType == 1) {
                     String phone = c.getString(fi.mSmsColAddress);
                     if (phone != null && !phone.isEmpty()) {
-                        name = getContactNameFromPhone(phone, mResolver);
+                        name = mContactNames.getName(phone);
                     }
                 } else {
                     name = fi.mPhoneAlphaTag;
@@ -1205,7 +1209,7 @@ public class BluetoothMapContent {
                     phone = e.getSenderAddressing();
                 }
                 if (phone != null && !phone.isEmpty()) {
-                    name = getContactNameFromPhone(phone, mResolver);
+                    name = mContactNames.getName(phone);
                 }
             } else if (fi.mMsgType == FilterInfo.TYPE_EMAIL/*  ||
                        fi.mMsgType == FilterInfo.TYPE_IM*/) {
@@ -1573,7 +1577,7 @@ public class BluetoothMapContent {
                 }
                 res = true;
             } else {
-                String name = getContactNameFromPhone(phone, mResolver);
+                String name = mContactNames.getName(phone);
                 if (name != null && name.length() > 0 && name.matches(recip)) {
                     if (V) {
                         Log.v(TAG, "matchRecipientMms: match recipient name = " + name);
@@ -1617,7 +1621,7 @@ public class BluetoothMapContent {
                     }
                     res = true;
                 } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
+                    String name = mContactNames.getName(phone);
                     if (name != null && name.length() > 0 && name.matches(recip)) {
                         if (V) {
                             Log.v(TAG, "matchRecipientSms: match recipient name = " + name);
@@ -1667,7 +1671,7 @@ public class BluetoothMapContent {
                 }
                 res = true;
             } else {
-                String name = getContactNameFromPhone(phone, mResolver);
+                String name = mContactNames.getName(phone);
                 if (name != null && name.length() > 0 && name.matches(orig)) {
                     if (V) {
                         Log.v(TAG, "matchOriginatorMms: match originator name = " + name);
@@ -1695,7 +1699,7 @@ public class BluetoothMapContent {
                     }
                     res = true;
                 } else {
-                    String name = getContactNameFromPhone(phone, mResolver);
+                    String name = mContactNames.getName(phone);
                     if (name != null && name.length() > 0 && name.matches(orig)) {
                         if (V) {
                             Log.v(TAG, "matchOriginatorSms: match originator name = " + name);
@@ -2222,6 +2226,10 @@ public class BluetoothMapContent {
         if (tm != null) {
             fi.mPhoneType = tm.getPhoneType();
             fi.mPhoneNum = tm.getLine1Number();
+            fi.mCountryIso = tm.getNetworkCountryIso();
+            if (TextUtils.isEmpty(fi.mCountryIso)) {
+                fi.mCountryIso = tm.getSimCountryIso();
+            }
         }
     }
 
@@ -2301,6 +2309,11 @@ public class BluetoothMapContent {
                             Log.d(TAG, "Found " + smsCursor.getCount() + " sms messages.");
                         }
                         fi.setSmsColumns(smsCursor);
+                        if (!TextUtils.isEmpty(ap.getFilterOriginator())
+                                || !TextUtils.isEmpty(ap.getFilterRecipient())) {
+                            // Filters may match the contact name of any row.
+                            prefetchSmsContactNames(smsCursor, fi, null);
+                        }
                         while (smsCursor.moveToNext()) {
                             if (matchAddresses(smsCursor, fi, ap)) {
                                 if (V) {
@@ -2446,6 +2459,10 @@ public class BluetoothMapContent {
             bmList.segment(ap.getMaxListCount(), offsetNum);
             List<BluetoothMapMessageListingElement> list = bmList.getList();
             int listSize = list.size();
+            if (smsCursor != null
+                    && (ap.getParameterMask() & (MASK_SENDER_NAME | MASK_RECIPIENT_NAME)) != 0) {
+                prefetchSmsContactNames(smsCursor, fi, list);
+            }
             Cursor tmpCursor = null;
             for (int x = 0; x < listSize; x++) {
                 BluetoothMapMessageListingElement ele = list.get(x);
@@ -2502,6 +2519,7 @@ public class BluetoothMapContent {
             if (imCursor != null) {
                 imCursor.close();
             }
+            mContactNames.finishRequest();
         }
 
 
@@ -2511,6 +2529,32 @@ public class BluetoothMapContent {
         return bmList;
     }
 
+    /**
+     * Resolves the contact names of SMS addresses in bulk, so that the per message lookups of
+     * the listing don't each query the contacts provider.
+     * @param elements the listing elements of the SMS cursor to resolve, or null for all rows
+     */
+    private void prefetchSmsContactNames(Cursor smsCursor, FilterInfo fi,
+            List<BluetoothMapMessageListingElement> elements) {
+        HashSet<String> phones = new HashSet<>();
+        if (elements == null) {
+            while (smsCursor.moveToNext()) {
+                phones.add(smsCursor.getString(fi.mSmsColAddress));
+            }
+        } else {
+            for (BluetoothMapMessageListingElement ele : elements) {
+                TYPE type = ele.getType();
+                if ((TYPE.SMS_GSM).equals(type) || (TYPE.SMS_CDMA).equals(type)) {
+                    smsCursor.moveToPosition(ele.getCursorIndex());
+                    phones.add(smsCursor.getString(fi.mSmsColAddress));
+                }
+            }
+        }
+        smsCursor.moveToPosition(-1);
+        phones.remove(null);
+        mContactNames.prefetch(phones, fi.mCountryIso);
+    }
+
     /**
      * Get the size of the message listing
      * @param folderElement Must contain a valid folder string != null
@@ -3595,10 +3639,7 @@ public class BluetoothMapContent {
         TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
         mMessageVersion = version;
         long id = BluetoothMapUtils.getCpHandle(handle);
-        if (appParams.getFractionRequest() == BluetoothMapAppParams.FRACTION_REQUEST_NEXT) {
-            throw new IllegalArgumentException("FRACTION_REQUEST_NEXT does not make sence as"
-                    + " we always return the full message.");
-        }
+        checkFractionRequest(appParams);
         switch (type) {
             case SMS_GSM:
             case SMS_CDMA:
@@ -3613,6 +3654,45 @@ public class BluetoothMapContent {
         throw new IllegalArgumentException("Invalid message handle.");
     }
 
+    private static void checkFractionRequest(BluetoothMapAppParams appParams) {
+        if (appParams.getFractionRequest() == BluetoothMapAppParams.FRACTION_REQUEST_NEXT) {
+            throw new IllegalArgumentException("FRACTION_REQUEST_NEXT does not make sense as"
+                    + " we always return the full message.");
+        }
+    }
+
+    /**
+     * Returns the bMessage of {@code handle} to be encoded straight into the response, with the
+     * attachments of an MMS and the body of an email only read while encoded. Returns null for
+     * the message types only encoded by {@link #getMessage}.
+     */
+    public BluetoothMapbMessage getStreamedMessage(String handle, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement folderElement, String version) {
+        TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
+        if (type != TYPE.MMS && type != TYPE.EMAIL) {
+            return null;
+        }
+        mMessageVersion = version;
+        long id = BluetoothMapUtils.getCpHandle(handle);
+        checkFractionRequest(appParams);
+        if (type == TYPE.MMS) {
+            return getMmsbMessage(id, appParams, true);
+        }
+        return getEmailbMessage(id, appParams, folderElement, true);
+    }
+
+    /**
+     * Opens the content of a message part or body while it is encoded.
+     */
+    private InputStream openContent(Uri uri) throws IOException {
+        ParcelFileDescriptor fd = BluetoothMethodProxy.getInstance()
+                .contentResolverOpenFileDescriptor(mResolver, uri, "r");
+        if (fd == null) {
+            throw new FileNotFoundException("No content for " + uri);
+        }
+        return new ParcelFileDescriptor.AutoCloseInputStream(fd);
+    }
+
     private String setVCardFromPhoneNumber(BluetoothMapbMessage message, String phone,
             boolean incoming) {
         String contactId = null, contactName = null;
@@ -3842,8 +3922,10 @@ public class BluetoothMapContent {
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
      * @param message the bMessage object to add the information to
+     * @param deferAttachments whether to read the attachments only when the message is encoded
      */
-    private void extractMmsParts(long id, BluetoothMapbMessageMime message) {
+    private void extractMmsParts(long id, BluetoothMapbMessageMime message,
+            boolean deferAttachments) {
         final String[] projection = null;
         String selection = new String(Mms.Part.MSG_ID + "=" + id);
         String uriStr = new String(Mms.CONTENT_URI + "/" + id + "/part");
@@ -3916,8 +3998,18 @@ public class BluetoothMapContent {
                             part.mData = text.getBytes("UTF-8");
                             part.mCharsetName = "utf-8";
                         } else {
-                            part.mData =
-                                    readRawDataPart(Uri.parse(Mms.CONTENT_URI + "/part"), partId);
+                            Uri partUri = Uri.parse(Mms.CONTENT_URI + "/part/" + partId);
+                            long length = deferAttachments && message.getIncludeAttachments()
+                                    && isAttachment(part)
+                                    ? getContentLength(partUri) : -1;
+                            if (length >= 0) {
+                                part.mId = partId;
+                                part.mDataUri = partUri;
+                                part.mDataLength = length;
+                            } else {
+                                part.mData = readRawDataPart(
+                                        Uri.parse(Mms.CONTENT_URI + "/part"), partId);
+                            }
                             if (charset != null) {
                                 part.mCharsetName =
                                         CharacterSets.getMimeName(Integer.parseInt(charset));
@@ -3944,6 +4036,26 @@ public class BluetoothMapContent {
         }
     }
 
+    private static boolean isAttachment(MimePart part) {
+        // Text is quoted-printable encoded as a whole, only Base64 encoded parts are deferred.
+        return part.mContentType != null
+                && !part.mContentType.toUpperCase().contains("TEXT")
+                && !part.mContentType.toUpperCase().contains("SMIL");
+    }
+
+    /**
+     * Returns the length of the content of {@code uri}, or -1 if unknown.
+     */
+    private long getContentLength(Uri uri) {
+        try (ParcelFileDescriptor fd = BluetoothMethodProxy.getInstance()
+                .contentResolverOpenFileDescriptor(mResolver, uri, "r")) {
+            return fd != null ? fd.getStatSize() : -1;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to get the length of " + uri, e);
+            return -1;
+        }
+    }
+
     /**
      * Read out the mms parts and update the bMessage object provided i {@linkplain message}
      * @param id the content provider ID of the message
@@ -4027,6 +4139,11 @@ public class BluetoothMapContent {
      */
     public byte[] getMmsMessage(long id, BluetoothMapAppParams appParams)
             throws UnsupportedEncodingException {
+        return getMmsbMessage(id, appParams, false).encode();
+    }
+
+    private BluetoothMapbMessageMime getMmsbMessage(long id, BluetoothMapAppParams appParams,
+            boolean deferAttachments) {
         int msgBox, threadId;
         if (appParams.getCharset() == MAP_MESSAGE_CHARSET_NATIVE) {
             throw new IllegalArgumentException(
@@ -4061,13 +4178,13 @@ public class BluetoothMapContent {
                 // c.getInt(c.getColumnIndex(Mms.STATUS)); - don't know what this is
 
                 // The parts
-                extractMmsParts(id, message);
+                extractMmsParts(id, message, deferAttachments);
+                if (deferAttachments) {
+                    message.setContentReader(this::openContent);
+                }
 
                 // The addresses
                 extractMmsAddresses(id, message);
-
-
-                return message.encode();
             }
         } finally {
             if (c != null) {
@@ -4075,7 +4192,7 @@ public class BluetoothMapContent {
             }
         }
 
-        return message.encode();
+        return message;
     }
 
     /**
@@ -4088,6 +4205,11 @@ public class BluetoothMapContent {
      */
     public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams,
             BluetoothMapFolderElement currentFolder) throws UnsupportedEncodingException {
+        return getEmailbMessage(id, appParams, currentFolder, false).encode();
+    }
+
+    private BluetoothMapbMessageEmail getEmailbMessage(long id, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement currentFolder, boolean deferBody) {
         // Log print out of application parameters set
         if (D && appParams != null) {
             Log.d(TAG,
@@ -4198,6 +4320,10 @@ public class BluetoothMapContent {
                 String attStr = (appParams.getAttachment() == 0) ? "/"
                         + BluetoothMapContract.FILE_MSG_NO_ATTACHMENTS : "";
                 Uri uri = Uri.parse(contentUri + "/" + id + attStr);
+                if (deferBody) {
+                    message.setEmailBodyUri(uri, this::openContent);
+                    return message;
+                }
 
                 // Get email message body content
                 int count = 0;
@@ -4237,7 +4363,7 @@ public class BluetoothMapContent {
                     } catch (IOException e) {
                     }
                 }
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) {
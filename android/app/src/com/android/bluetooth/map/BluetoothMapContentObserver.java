@@ -38,11 +38,13 @@ import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.UserManager;
+import android.provider.BaseColumns;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.Sms;
 import android.provider.Telephony.Sms.Inbox;
+import android.provider.Telephony.Threads;
 import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
 import android.telephony.SmsManager;
@@ -78,10 +80,13 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 @TargetApi(19)
 public class BluetoothMapContentObserver {
@@ -224,6 +229,17 @@ public class BluetoothMapContentObserver {
             Sms._ID, Sms.THREAD_ID, Sms.ADDRESS, Sms.BODY, Sms.DATE, Sms.READ, Sms.TYPE,
     };
 
+    private static final Uri THREADS_URI =
+            Threads.CONTENT_URI.buildUpon().appendQueryParameter("simple", "true").build();
+
+    private static final String[] THREAD_MESSAGE_COUNT_PROJECTION = new String[]{
+            Threads._ID, Threads.MESSAGE_COUNT
+    };
+
+    // Folders of message URIs, e.g. content://sms/inbox/12.
+    private static final List<String> MESSAGE_URI_FOLDERS = Arrays.asList(
+            "inbox", "sent", "draft", "drafts", "outbox", "failed", "queued");
+
     static final String[] MMS_PROJECTION_SHORT = new String[]{
             Mms._ID, Mms.THREAD_ID, Mms.MESSAGE_TYPE, Mms.MESSAGE_BOX, Mms.READ
     };
@@ -917,6 +933,9 @@ public class BluetoothMapContentObserver {
 
     private Map<Long, Msg> mMsgListMsg = null;
 
+    // Message count of the SMS/MMS threads, used to find the deleted SMS on MmsSms changes.
+    private Map<Integer, Long> mThreadMessageCounts = null;
+
     private Map<String, BluetoothMapConvoContactElement> mContactList = null;
 
     public int setNotificationRegistration(int notificationStatus) throws RemoteException {
@@ -1033,6 +1052,10 @@ public class BluetoothMapContentObserver {
         if (mEnableSmsMms) {
             //this is sms/mms
             mResolver.registerContentObserver(MmsSms.CONTENT_URI, false, mObserver);
+            /* The SMS message URIs let us sync only the changed message. MMS changes are only
+             * notified on the MmsSms URI. */
+            mResolver.registerContentObserver(Sms.CONTENT_URI, true, mObserver);
+            mThreadMessageCounts = null;
             mObserverRegistered = true;
         }
 
@@ -1425,36 +1448,65 @@ public class BluetoothMapContentObserver {
 
     @VisibleForTesting
     void handleMsgListChangesSms() {
+        handleMsgListChangesSms(null, null);
+    }
+
+    /**
+     * Syncs the SMS list with the messages matching {@code selection}. Messages of the list
+     * accepted by {@code scope} that are no longer returned are reported deleted, the others are
+     * kept as is. A null selection and scope sync the whole table.
+     */
+    @VisibleForTesting
+    void handleMsgListChangesSms(String selection, Predicate<Msg> scope) {
         if (V) {
-            Log.d(TAG, "handleMsgListChangesSms");
+            Log.d(TAG, "handleMsgListChangesSms selection: " + selection);
         }
 
-        HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
         boolean listChanged = false;
 
         Cursor c;
         synchronized (getMsgListSms()) {
+            // The synced messages are moved from previousMsgs to msgListSms when found.
+            Map<Long, Msg> previousMsgs;
+            Map<Long, Msg> msgListSms;
+            if (scope == null) {
+                previousMsgs = getMsgListSms();
+                msgListSms = new HashMap<Long, Msg>();
+            } else {
+                msgListSms = getMsgListSms();
+                previousMsgs = extractMsgs(msgListSms, scope);
+            }
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT, null, null, null);
+                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT, selection, null, null);
             } else {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, null, null, null);
+                        Sms.CONTENT_URI, SMS_PROJECTION_SHORT_EXT, selection, null, null);
             }
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Sms._ID);
+                    int typeIndex = c.getColumnIndex(Sms.TYPE);
+                    int threadIdIndex = c.getColumnIndex(Sms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Sms.READ);
+                    int dateIndex = c.getColumnIndex(Sms.DATE);
+                    int bodyIndex = c.getColumnIndex(Sms.BODY);
+                    int addressIndex = c.getColumnIndex(Sms.ADDRESS);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Sms._ID);
                         if (c.isNull(idIndex)) {
                             Log.w(TAG, "handleMsgListChangesSms, ID is null");
                             continue;
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Sms.TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
-                        int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        int type = c.getInt(typeIndex);
+                        int threadId = c.getInt(threadIdIndex);
+                        int read = c.getInt(readIndex);
 
-                        Msg msg = getMsgListSms().remove(id);
+                        Msg msg = previousMsgs.remove(id);
+                        if (msg == null) {
+                            // Known message that was outside of the synced scope.
+                            msg = msgListSms.get(id);
+                        }
 
                         /* We must filter out any actions made by the MCE, hence do not send e.g.
                          * a message deleted and/or MessageShift for messages deleted by the MCE. */
@@ -1468,7 +1520,7 @@ public class BluetoothMapContentObserver {
                             if (mTransmitEvents && // extract contact details only if needed
                                     mMapEventReportVersion
                                             > BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
-                                long timestamp = c.getLong(c.getColumnIndex(Sms.DATE));
+                                long timestamp = c.getLong(dateIndex);
                                 String date = BluetoothMapUtils.getDateTimeString(timestamp);
                                 if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
                                     // Skip sending message events older than one year
@@ -1476,14 +1528,14 @@ public class BluetoothMapContentObserver {
                                     msgListSms.remove(id);
                                     continue;
                                 }
-                                String subject = c.getString(c.getColumnIndex(Sms.BODY));
+                                String subject = c.getString(bodyIndex);
                                 if (subject == null) {
                                     subject = "";
                                 }
                                 String name = "";
                                 String phone = "";
                                 if (type == 1) { //inbox
-                                    phone = c.getString(c.getColumnIndex(Sms.ADDRESS));
+                                    phone = c.getString(addressIndex);
                                     if (phone != null && !phone.isEmpty()) {
                                         name = BluetoothMapContent.getContactNameFromPhone(phone,
                                                 mResolver);
@@ -1576,7 +1628,7 @@ public class BluetoothMapContentObserver {
                 }
             }
             String eventType = EVENT_TYPE_DELETE;
-            for (Msg msg : getMsgListSms().values()) {
+            for (Msg msg : previousMsgs.values()) {
                 // "old_folder" used only for MessageShift event
                 if (mMapEventReportVersion >= BluetoothMapUtils.MAP_EVENT_REPORT_V12) {
                     eventType = EVENT_TYPE_REMOVED;
@@ -1594,39 +1646,68 @@ public class BluetoothMapContentObserver {
 
     @VisibleForTesting
     void handleMsgListChangesMms() {
+        handleMsgListChangesMms(null, null);
+    }
+
+    /**
+     * Syncs the MMS list with the messages matching {@code selection}, see
+     * {@link #handleMsgListChangesSms(String, Predicate)}.
+     */
+    @VisibleForTesting
+    void handleMsgListChangesMms(String selection, Predicate<Msg> scope) {
         if (V) {
-            Log.d(TAG, "handleMsgListChangesMms");
+            Log.d(TAG, "handleMsgListChangesMms selection: " + selection);
         }
 
-        HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
         boolean listChanged = false;
         Cursor c;
         synchronized (getMsgListMms()) {
+            // The synced messages are moved from previousMsgs to msgListMms when found.
+            Map<Long, Msg> previousMsgs;
+            Map<Long, Msg> msgListMms;
+            if (scope == null) {
+                previousMsgs = getMsgListMms();
+                msgListMms = new HashMap<Long, Msg>();
+            } else {
+                msgListMms = getMsgListMms();
+                previousMsgs = extractMsgs(msgListMms, scope);
+            }
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
+                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT, selection, null, null);
             } else {
                 c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, null, null, null);
+                        Mms.CONTENT_URI, MMS_PROJECTION_SHORT_EXT, selection, null, null);
             }
 
             try {
                 if (c != null && c.moveToFirst()) {
+                    int idIndex = c.getColumnIndexOrThrow(Mms._ID);
+                    int typeIndex = c.getColumnIndex(Mms.MESSAGE_BOX);
+                    int mtypeIndex = c.getColumnIndex(Mms.MESSAGE_TYPE);
+                    int threadIdIndex = c.getColumnIndex(Mms.THREAD_ID);
+                    int readIndex = c.getColumnIndex(Mms.READ);
+                    int dateIndex = c.getColumnIndex(Mms.DATE);
+                    int subjectIndex = c.getColumnIndex(Mms.SUBJECT);
+                    int priorityIndex = c.getColumnIndex(Mms.PRIORITY);
                     do {
-                        int idIndex = c.getColumnIndexOrThrow(Mms._ID);
                         if (c.isNull(idIndex)) {
                             Log.w(TAG, "handleMsgListChangesMms, ID is null");
                             continue;
                         }
                         long id = c.getLong(idIndex);
-                        int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
-                        int mtype = c.getInt(c.getColumnIndex(Mms.MESSAGE_TYPE));
-                        int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
+                        int type = c.getInt(typeIndex);
+                        int mtype = c.getInt(mtypeIndex);
+                        int threadId = c.getInt(threadIdIndex);
                         // TODO: Go through code to see if we have an issue with mismatch in types
                         //       for threadId. Seems to be a long in DB??
-                        int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        int read = c.getInt(readIndex);
 
-                        Msg msg = getMsgListMms().remove(id);
+                        Msg msg = previousMsgs.remove(id);
+                        if (msg == null) {
+                            // Known message that was outside of the synced scope.
+                            msg = msgListMms.get(id);
+                        }
 
                         /* We must filter out any actions made by the MCE, hence do not send
                          * e.g. a message deleted and/or MessageShift for messages deleted by the
@@ -1647,15 +1728,14 @@ public class BluetoothMapContentObserver {
                                             != BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                                 // MMS date field is in seconds
                                 long timestamp =
-                                        TimeUnit.SECONDS.toMillis(
-                                            c.getLong(c.getColumnIndex(Mms.DATE)));
+                                        TimeUnit.SECONDS.toMillis(c.getLong(dateIndex));
                                 String date = BluetoothMapUtils.getDateTimeString(timestamp);
                                 if (BluetoothMapUtils.isDateTimeOlderThanOneYear(timestamp)) {
                                     // Skip sending new message events older than one year
                                     msgListMms.remove(id);
                                     continue;
                                 }
-                                String subject = c.getString(c.getColumnIndex(Mms.SUBJECT));
+                                String subject = c.getString(subjectIndex);
                                 if (subject == null || subject.length() == 0) {
                                     /* Get subject from mms text body parts - if any exists */
                                     subject = BluetoothMapContent.getTextPartsMms(mResolver, id);
@@ -1663,7 +1743,7 @@ public class BluetoothMapContentObserver {
                                         subject = "";
                                     }
                                 }
-                                int tmpPri = c.getInt(c.getColumnIndex(Mms.PRIORITY));
+                                int tmpPri = c.getInt(priorityIndex);
                                 Log.d(TAG, "TEMP handleMsgListChangesMms, "
                                         + "newMessage 'read' state: " + read + "priority: "
                                         + tmpPri);
@@ -1760,7 +1840,7 @@ public class BluetoothMapContentObserver {
                     c.close();
                 }
             }
-            for (Msg msg : getMsgListMms().values()) {
+            for (Msg msg : previousMsgs.values()) {
                 // "old_folder" used only for MessageShift event
                 Event evt = new Event(EVENT_TYPE_DELETE, msg.id, getMmsFolderName(msg.type), null,
                         TYPE.MMS);
@@ -1981,9 +2061,125 @@ public class BluetoothMapContentObserver {
         }
         // TODO: check to see if there could be problem with IM and SMS in one instance
         if (mEnableSmsMms) {
+            handleMsgListChangesSmsMms(uri);
+        }
+    }
+
+    /**
+     * Syncs the SMS and MMS lists with the rows that may have changed according to {@code uri}.
+     *
+     * An SMS change is notified on its SMS URI, which syncs only that message (or the whole SMS
+     * table if the URI has no message id), then on the MmsSms URI. The MmsSms URI is the only one
+     * notified on MMS changes and on deletes of whole threads, so it syncs all MMS and the SMS of
+     * the threads that lost messages.
+     */
+    @VisibleForTesting
+    void handleMsgListChangesSmsMms(Uri uri) {
+        if (Sms.CONTENT_URI.getAuthority().equals(uri.getAuthority())) {
+            long id = getChangedMessageId(uri);
+            if (V) {
+                Log.v(TAG, "handleMsgListChangesSmsMms: " + uri + " id: " + id);
+            }
+            if (id < 0) {
+                handleMsgListChangesSms();
+            } else {
+                handleMsgListChangesSms(BaseColumns._ID + "=" + id, msg -> msg.id == id);
+            }
+            return;
+        }
+
+        // MMS updates can't be narrowed down, e.g. the read status of a message of a thread with
+        // other unread messages leaves the thread as is.
+        handleMsgListChangesMms();
+
+        Set<Integer> threadIds = getThreadIdsWithDeletedMessages();
+        if (V) {
+            Log.v(TAG, "handleMsgListChangesSmsMms: threads with deleted messages: " + threadIds);
+        }
+        if (threadIds == null) {
             handleMsgListChangesSms();
-            handleMsgListChangesMms();
+        } else if (!threadIds.isEmpty()) {
+            // Deleted messages are moved to DELETED_THREAD_ID, sync it as well.
+            threadIds.add(DELETED_THREAD_ID);
+            handleMsgListChangesSms(Sms.THREAD_ID + " IN (" + TextUtils.join(",", threadIds) + ")",
+                    msg -> threadIds.contains(msg.threadId));
+        }
+    }
+
+    /**
+     * Returns the id of the message of an SMS message URI, e.g. content://sms/12 or
+     * content://sms/inbox/12, or -1 for any other URI.
+     */
+    @VisibleForTesting
+    static long getChangedMessageId(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() == 1
+                || (segments.size() == 2 && MESSAGE_URI_FOLDERS.contains(segments.get(0)))) {
+            try {
+                return Long.parseLong(segments.get(segments.size() - 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the ids of the threads that were removed or whose message count went down since
+     * the last call, or null if they are unknown and all messages must be synced.
+     */
+    @VisibleForTesting
+    Set<Integer> getThreadIdsWithDeletedMessages() {
+        Map<Integer, Long> threadMessageCounts = new HashMap<>();
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                THREADS_URI, THREAD_MESSAGE_COUNT_PROJECTION, null, null, null);
+        if (c == null) {
+            mThreadMessageCounts = null;
+            return null;
+        }
+        try {
+            int idIndex = c.getColumnIndex(Threads._ID);
+            int countIndex = c.getColumnIndex(Threads.MESSAGE_COUNT);
+            if (idIndex < 0 || countIndex < 0) {
+                mThreadMessageCounts = null;
+                return null;
+            }
+            while (c.moveToNext()) {
+                threadMessageCounts.put(c.getInt(idIndex), c.getLong(countIndex));
+            }
+        } finally {
+            c.close();
+        }
+
+        Map<Integer, Long> previousCounts = mThreadMessageCounts;
+        mThreadMessageCounts = threadMessageCounts;
+        if (previousCounts == null) {
+            return null;
+        }
+        Set<Integer> threadIds = new HashSet<>();
+        for (Map.Entry<Integer, Long> entry : previousCounts.entrySet()) {
+            Long count = threadMessageCounts.get(entry.getKey());
+            if (count == null || count < entry.getValue()) {
+                threadIds.add(entry.getKey());
+            }
+        }
+        return threadIds;
+    }
+
+    /**
+     * Removes the messages accepted by {@code scope} from {@code msgs} and returns them.
+     */
+    private static Map<Long, Msg> extractMsgs(Map<Long, Msg> msgs, Predicate<Msg> scope) {
+        HashMap<Long, Msg> extracted = new HashMap<Long, Msg>();
+        Iterator<Msg> it = msgs.values().iterator();
+        while (it.hasNext()) {
+            Msg msg = it.next();
+            if (scope.test(msg)) {
+                extracted.put(msg.id, msg);
+                it.remove();
+            }
         }
+        return extracted;
     }
 
     @VisibleForTesting
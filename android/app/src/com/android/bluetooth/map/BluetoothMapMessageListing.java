@@ -22,8 +22,9 @@ import com.android.bluetooth.Utils;
 
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -90,19 +91,46 @@ public class BluetoothMapMessageListing {
     // TODO: Remove includeThreadId when MAP-IM is adopted
     public byte[] encode(boolean includeThreadId, String version)
             throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            encode(out, includeThreadId, version);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 XML directly into an
+     * output stream, element by element, without building the listing in memory first.
+     *
+     * @param out the stream to write to, flushed but not closed.
+     * @param version the version as a string, see {@link #encode(boolean, String)}.
+     * @throws IOException if writing to the stream failed.
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
         boolean isBenzCarkit;
+        boolean isBrezzaCarkit;
 
         if (Utils.isInstrumentationTestMode()) {
             isBenzCarkit = false;
+            isBrezzaCarkit = false;
         } else {
-            isBenzCarkit = DeviceWorkArounds.addressStartsWith(
-                    BluetoothMapService.getRemoteDevice().getAddress(),
+            String address = BluetoothMapService.getRemoteDevice().getAddress();
+            isBenzCarkit = DeviceWorkArounds.addressStartsWith(address,
                     DeviceWorkArounds.MERCEDES_BENZ_CARKIT);
+            isBrezzaCarkit = DeviceWorkArounds.addressStartsWith(address,
+                    DeviceWorkArounds.BREZZA_ZDI_CARKIT);
+        }
+        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
+        if (isBrezzaCarkit) {
+            out = ReplacingOutputStream.unescapeXml(out);
         }
         try {
             XmlSerializer xmlMsgElement = Xml.newSerializer();
-            xmlMsgElement.setOutput(sw);
+            xmlMsgElement.setOutput(out, "UTF-8");
             if (isBenzCarkit) {
                 Log.d(TAG, "java_interop: Remote is Mercedes Benz, "
                         + "using Xml Workaround.");
@@ -124,20 +152,8 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
-        }
-        /* Fix IOT issue to replace '&amp;' by '&', &lt; by < and '&gt; by '>' in MessageListing */
-        if (!Utils.isInstrumentationTestMode() && DeviceWorkArounds.addressStartsWith(
-                BluetoothMapService.getRemoteDevice().getAddress(),
-                DeviceWorkArounds.BREZZA_ZDI_CARKIT)) {
-            return sw.toString()
-                    .replaceAll("&amp;", "&")
-                    .replaceAll("&lt;", "<")
-                    .replaceAll("&gt;", ">")
-                    .getBytes("UTF-8");
         }
-        return sw.toString().getBytes("UTF-8");
+        out.flush();
     }
 
     public void sort() {
@@ -39,6 +39,7 @@ import com.android.obex.Operation;
 import com.android.obex.ResponseCodes;
 import com.android.obex.ServerRequestHandler;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -1140,12 +1141,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendMessageListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1194,16 +1195,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 outList = mOutContent.msgListing(folderToList, appParams);
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if (0 < (mRemoteFeatureMask
                         & BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
                 } else {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
-                /* This will only set the version, the bit must also be checked before adding any
-                 * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1263,19 +1260,21 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null) {
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                /* This will only set the version, the bit must also be checked before adding any
+                 * 1.1 bits to the listing. */
+                outList.encode(stopOnAbort(outStream), mThreadIdSupport, version);
             } catch (IOException e) {
                 if (D) {
                     Log.w(TAG, e);
                 }
                 // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(TAG, "sendMessageListingRsp: listing not fully written"
+                            + " - sending OBEX_HTTP_BAD_REQUEST");
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
             } finally {
                 if (outStream != null) {
                     try {
@@ -1284,11 +1283,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendMessageListingRsp: bytesWritten != outBytes.length"
-                        + " - sending OBEX_HTTP_BAD_REQUEST");
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
         } else {
             if (outStream != null) {
                 try {
@@ -1300,6 +1294,32 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Wraps the OBEX body stream so that encoding a listing or a message into it stops as soon
+     * as the peer aborts the operation. Fragmentation in packets is done by the OBEX stream.
+     */
+    private OutputStream stopOnAbort(OutputStream outStream) {
+        return new FilterOutputStream(outStream) {
+            @Override
+            public void write(int b) throws IOException {
+                checkAborted();
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkAborted();
+                out.write(b, off, len);
+            }
+
+            private void checkAborted() throws IOException {
+                if (mIsAborted) {
+                    throw new IOException("Operation aborted");
+                }
+            }
+        };
+    }
+
     /**
      * Update the {@link BluetoothMapAppParams} object message type filter mask to only contain
      * message types supported by this mas instance.
@@ -1356,12 +1376,10 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendConvoListingRsp(Operation op, BluetoothMapAppParams appParams,
             String folderName) {
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
         //boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapConvoListing outList;
+        BluetoothMapConvoListing outList = null;
         if (appParams == null) {
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1384,11 +1402,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if (appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
-                if (D) {
-                    Log.d(TAG, "outBytes size:" + outBytes.length);
-                }
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1411,7 +1424,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 Log.d(TAG, "outList size:" + outList.getCount() + " MaxListCount: "
                         + appParams.getMaxListCount());
             }
-            outList = null; // We don't need it anymore - we might as well give it up for GC
+            if (appParams.getMaxListCount() == 0) {
+                outList = null; // Only the size was requested, there is no body to send
+            }
             outAppParams.setDatabaseIdentifier(0, mMasInstance.getDbIdentifier());
 
             // Build the application parameter header
@@ -1450,19 +1465,19 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if (outBytes != null) {
+        if (outList != null) {
             try {
-                while (bytesWritten < outBytes.length && !mIsAborted) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                outList.encode(stopOnAbort(outStream));
             } catch (IOException e) {
                 if (D) {
                     Log.w(TAG, e);
                 }
                 // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(TAG, "sendConvoListingRsp: listing not fully written"
+                            + " - sending OBEX_HTTP_BAD_REQUEST");
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
             } finally {
                 if (outStream != null) {
                     try {
@@ -1471,11 +1486,6 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                     }
                 }
             }
-            if (bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG, "sendConvoListingRsp: bytesWritten != outBytes.length"
-                        + " - sending OBEX_HTTP_BAD_REQUEST");
-                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
-            }
         } else {
             if (outStream != null) {
                 try {
@@ -1726,11 +1736,17 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendGetMessageRsp(Operation op, String handle, BluetoothMapAppParams appParams,
             String version) {
         OutputStream outStream = null;
+        BluetoothMapbMessage message = null;
         byte[] outBytes = null;
         int maxChunkSize, bytesToWrite, bytesWritten = 0;
 
         try {
-            outBytes = mOutContent.getMessage(handle, appParams, mCurrentFolder, version);
+            // MMS and email are encoded straight into the body, reading their attachments
+            // while sent instead of before.
+            message = mOutContent.getStreamedMessage(handle, appParams, mCurrentFolder, version);
+            if (message == null) {
+                outBytes = mOutContent.getMessage(handle, appParams, mCurrentFolder, version);
+            }
 
             // If it is a fraction request of Email message, set header before responding
             if ((BluetoothMapUtils.getMsgTypeFromHandle(handle).equals(TYPE.EMAIL)
@@ -1779,6 +1795,28 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
+        if (message != null) {
+            try {
+                message.encode(stopOnAbort(outStream));
+            } catch (IOException e) {
+                if (D) {
+                    Log.w(TAG, e);
+                }
+                // We were probably aborted or disconnected
+                if (!mIsAborted) {
+                    Log.w(TAG, "sendGetMessageRsp: message not fully written"
+                            + " - sending OBEX_HTTP_BAD_REQUEST");
+                    return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
+                }
+            } finally {
+                try {
+                    outStream.close();
+                } catch (IOException e) {
+                }
+            }
+            return ResponseCodes.OBEX_HTTP_OK;
+        }
+
         maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
 
         if (outBytes != null) {
@@ -35,6 +35,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentFilter.MalformedMimeTypeException;
+import android.database.ContentObserver;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -42,6 +43,7 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.provider.ContactsContract;
 import android.sysprop.BluetoothProperties;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
@@ -141,6 +143,13 @@ public class BluetoothMapService extends ProfileService {
 
     private int mState;
     private BluetoothMapAppObserver mAppObserver = null;
+    // Drops the contact names cached for message listings when contacts change.
+    private final ContentObserver mContactsObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            ContactNameResolver.onContactsChanged();
+        }
+    };
     private AlarmManager mAlarmManager = null;
 
     private boolean mIsWaitingAuthorization = false;
@@ -705,6 +714,8 @@ public class BluetoothMapService extends ProfileService {
         }
         mAdapterService = AdapterService.getAdapterService();
         mAppObserver = new BluetoothMapAppObserver(this, this);
+        getContentResolver().registerContentObserver(ContactsContract.AUTHORITY_URI, true,
+                mContactsObserver);
 
         TelephonyManager tm = getSystemService(TelephonyManager.class);
         mSmsCapable = tm.isSmsCapable();
@@ -899,6 +910,7 @@ public class BluetoothMapService extends ProfileService {
             unregisterReceiver(mMapReceiver);
             mAppObserver.shutdown();
         }
+        getContentResolver().unregisterContentObserver(mContactsObserver);
         sendShutdownMessage();
         setComponentAvailable(MAP_SETTINGS_ACTIVITY, false);
         setComponentAvailable(MAP_FILE_PROVIDER, false);
@@ -1426,5 +1438,6 @@ public class BluetoothMapService extends ProfileService {
         for (BluetoothMapAccountItem account : mEnabledAccounts) {
             println(sb, "  " + account);
         }
+        ContactNameResolver.dump(sb);
     }
 }
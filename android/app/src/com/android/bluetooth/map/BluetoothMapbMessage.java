@@ -14,6 +14,7 @@
 */
 package com.android.bluetooth.map;
 
+import android.net.Uri;
 import android.os.Environment;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
@@ -28,6 +29,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
@@ -41,6 +43,22 @@ public abstract class BluetoothMapbMessage {
 
     public static final int INVALID_VALUE = -1;
 
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    /**
+     * Opens content of the message that is only read while the message is encoded.
+     */
+    public interface ContentReader {
+        InputStream openContent(Uri uri) throws IOException;
+    }
+
+    /**
+     * Writes a body fragment into the encoded bMessage.
+     */
+    protected interface FragmentWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
     protected int mAppParamCharset = BluetoothMapAppParams.INVALID_VALUE_PARAMETER;
 
     /* BMSG attributes */
@@ -810,6 +828,18 @@ public abstract class BluetoothMapbMessage {
 
     public abstract byte[] encode() throws UnsupportedEncodingException;
 
+    /**
+     * Encodes the bMessage into {@code out}. Messages with content read by a
+     * {@link ContentReader} override this to write it without holding it in memory.
+     */
+    public void encode(OutputStream out) throws IOException {
+        byte[] data = encode();
+        if (data == null) {
+            throw new IOException("Unable to encode the bMessage");
+        }
+        out.write(data);
+    }
+
     public void setStatus(boolean read) {
         if (read) {
             this.mStatus = "READ";
@@ -983,8 +1013,58 @@ public abstract class BluetoothMapbMessage {
 
     public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments)
             throws UnsupportedEncodingException {
-        StringBuilder sb = new StringBuilder(256);
         byte[] msgStart, msgEnd;
+
+        int length = 0;
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + 22;
+        }
+
+        // Extract the initial part of the bMessage string
+        msgStart = encodeGenericStart(length);
+        msgEnd = encodeGenericEnd();
+
+        try {
+
+            ByteArrayOutputStream stream =
+                    new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
+            stream.write(msgStart);
+
+            for (byte[] fragment : bodyFragments) {
+                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+                stream.write(fragment);
+                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+            }
+            stream.write(msgEnd);
+
+            if (V) {
+                Log.v(TAG, stream.toString("UTF-8"));
+            }
+            return stream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+    }
+
+    /**
+     * Encodes the bMessage into {@code out}, with a single body fragment of
+     * {@code fragmentLength} bytes written by {@code writer}. The fragment is never held in
+     * memory as a whole, its length has to be known before it is written.
+     */
+    protected void encodeGeneric(OutputStream out, long fragmentLength, FragmentWriter writer)
+            throws IOException {
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        out.write(encodeGenericStart(fragmentLength + 22));
+        out.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+        writer.write(out);
+        out.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+        out.write(encodeGenericEnd());
+    }
+
+    private byte[] encodeGenericStart(long length) throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder(256);
         sb.append("BEGIN:BMSG").append("\r\n");
 
         sb.append(mVersionString).append("\r\n");
@@ -1026,44 +1106,70 @@ public abstract class BluetoothMapbMessage {
             sb.append("CHARSET:").append(mCharset).append("\r\n");
         }
 
-
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
 
-        // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        sb = new StringBuilder(31);
+    private byte[] encodeGenericEnd() throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder(31);
         sb.append("END:BBODY").append("\r\n");
         sb.append("END:BENV").append("\r\n");
         sb.append("END:BMSG").append("\r\n");
 
-        msgEnd = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        try {
+    /**
+     * Copies {@code in} into {@code out}, and returns the number of bytes copied.
+     */
+    static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long count = 0;
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+            count += len;
+        }
+        return count;
+    }
 
-            ByteArrayOutputStream stream =
-                    new ByteArrayOutputStream(msgStart.length + msgEnd.length + length);
-            stream.write(msgStart);
+    /**
+     * Counts the bytes written, to compute the length of a body fragment before writing it, or
+     * to check the length of the fragment written.
+     */
+    static class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        private long mCount = 0;
 
-            for (byte[] fragment : bodyFragments) {
-                stream.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
-                stream.write(fragment);
-                stream.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+        /** Counts and discards the bytes written. */
+        CountingOutputStream() {
+            this(null);
+        }
+
+        /** Counts the bytes written into {@code out}. */
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mOut != null) {
+                mOut.write(b);
             }
-            stream.write(msgEnd);
+            mCount++;
+        }
 
-            if (V) {
-                Log.v(TAG, stream.toString("UTF-8"));
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mOut != null) {
+                mOut.write(b, off, len);
             }
-            return stream.toByteArray();
-        } catch (IOException e) {
-            Log.w(TAG, e);
-            return null;
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
         }
     }
 }
@@ -14,8 +14,13 @@
 */
 package com.android.bluetooth.map;
 
+import android.net.Uri;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
@@ -23,6 +28,9 @@ import java.util.ArrayList;
 public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
 
     private String mEmailBody = null;
+    // Body read while the message is encoded, instead of mEmailBody.
+    private Uri mEmailBodyUri = null;
+    private ContentReader mContentReader = null;
 
     public void setEmailBody(String emailBody) {
         this.mEmailBody = emailBody;
@@ -30,6 +38,15 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
         this.mEncoding = "8bit";
     }
 
+    /**
+     * Sets the body to be read from {@code uri} with {@code reader} while the message is
+     * encoded, so that it is never held in memory as a whole.
+     */
+    public void setEmailBodyUri(Uri uri, ContentReader reader) {
+        this.mEmailBodyUri = uri;
+        this.mContentReader = reader;
+    }
+
     public String getEmailBody() {
         return mEmailBody;
     }
@@ -54,6 +71,16 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
 
     @Override
     public byte[] encode() throws UnsupportedEncodingException {
+        if (mEmailBodyUri != null) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            try {
+                encode(stream);
+            } catch (IOException e) {
+                Log.w(TAG, e);
+                return null;
+            }
+            return stream.toByteArray();
+        }
         ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
 
         /* Store the messages in an ArrayList to be able to handle the different message types in
@@ -70,4 +97,47 @@ public class BluetoothMapbMessageEmail extends BluetoothMapbMessage {
         return encodeGeneric(bodyFragments);
     }
 
+    @Override
+    public void encode(OutputStream out) throws IOException {
+        if (mEmailBodyUri == null) {
+            super.encode(out);
+            return;
+        }
+        // The body is read twice, to know its length before writing it.
+        long length = -1;
+        try (InputStream in = mContentReader.openContent(mEmailBodyUri)) {
+            CountingOutputStream counter = new CountingOutputStream();
+            OutputStream escaper = escapeBody(counter);
+            copy(in, escaper);
+            escaper.flush();
+            length = counter.getCount();
+        } catch (IOException | NullPointerException e) {
+            Log.w(TAG, e);
+        }
+        if (length < 0) {
+            Log.e(TAG, "Email has no body - this should not be possible");
+            encodeGeneric(out, 0, fragmentOut -> { });
+            return;
+        }
+        mCharset = "UTF-8";
+        mEncoding = "8bit";
+
+        final long bodyLength = length;
+        encodeGeneric(out, bodyLength, fragmentOut -> {
+            CountingOutputStream counter = new CountingOutputStream(fragmentOut);
+            OutputStream escaper = escapeBody(counter);
+            try (InputStream in = mContentReader.openContent(mEmailBodyUri)) {
+                copy(in, escaper);
+            }
+            escaper.flush();
+            if (counter.getCount() != bodyLength) {
+                throw new IOException("Email body changed while encoded");
+            }
+        });
+    }
+
+    private static OutputStream escapeBody(OutputStream out) {
+        // Replace any occurrences of END:MSG with /END:MSG, as done on the body string
+        return new ReplacingOutputStream(out, "END:MSG", "/END:MSG");
+    }
 }
@@ -14,11 +14,19 @@
 */
 package com.android.bluetooth.map;
 
+import android.net.Uri;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -44,7 +52,9 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         public String mFileName = null;     /* Do not seem to be used */
         public byte[] mData = null;        /* The raw un-encoded data e.g. the raw
                                             * jpeg data or the text.getBytes("utf-8") */
-
+        public Uri mDataUri = null;        /* The raw data read while encoding, in place
+                                            * of mData, for attachments */
+        public long mDataLength = INVALID_VALUE; /* The length of the data of mDataUri */
 
         public String getDataAsString() {
             String result = null;
@@ -79,23 +89,7 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
 
         public void encode(StringBuilder sb, String boundaryTag, boolean last)
                 throws UnsupportedEncodingException {
-            sb.append("--").append(boundaryTag).append("\r\n");
-            if (mContentType != null) {
-                sb.append("Content-Type: ").append(mContentType);
-            }
-            if (mCharsetName != null) {
-                sb.append("; ").append("charset=\"").append(mCharsetName).append("\"");
-            }
-            sb.append("\r\n");
-            if (mContentLocation != null) {
-                sb.append("Content-Location: ").append(mContentLocation).append("\r\n");
-            }
-            if (mContentId != null) {
-                sb.append("Content-ID: ").append(mContentId).append("\r\n");
-            }
-            if (mContentDisposition != null) {
-                sb.append("Content-Disposition: ").append(mContentDisposition).append("\r\n");
-            }
+            encodePartHeaders(sb, boundaryTag);
             if (mData != null) {
                 /* TODO: If errata 4176 is adopted in the current form (it is not in either 1.1
                 or 1.2),
@@ -124,6 +118,61 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             }
         }
 
+        /**
+         * Encodes the headers of a part with its data in {@link #mDataUri}, the Base64 data is
+         * written with {@link #encodeData}.
+         */
+        void encodeDeferredStart(StringBuilder sb, String boundaryTag) {
+            encodePartHeaders(sb, boundaryTag);
+            /* Add the header split empty line */
+            sb.append("Content-Transfer-Encoding: Base64\r\n\r\n");
+        }
+
+        void encodeDeferredEnd(StringBuilder sb, String boundaryTag, boolean last) {
+            sb.append("\r\n");
+            if (last) {
+                sb.append("--").append(boundaryTag).append("--").append("\r\n");
+            }
+        }
+
+        /**
+         * Reads the data of {@link #mDataUri} with {@code reader}, and writes it Base64 encoded
+         * into {@code out}.
+         */
+        void encodeData(OutputStream out, ContentReader reader) throws IOException {
+            // Closing the Base64 stream closes counter, which leaves out open.
+            CountingOutputStream counter = new CountingOutputStream(out);
+            long length;
+            try (InputStream in = reader.openContent(mDataUri);
+                    Base64OutputStream base64 = new Base64OutputStream(counter, Base64.DEFAULT)) {
+                length = copy(in, base64);
+            }
+            if (length != mDataLength || counter.getCount() != getBase64Length(mDataLength)) {
+                throw new IOException("Part " + mId + " changed while encoded, length " + length
+                        + " instead of " + mDataLength);
+            }
+        }
+
+        private void encodePartHeaders(StringBuilder sb, String boundaryTag) {
+            sb.append("--").append(boundaryTag).append("\r\n");
+            if (mContentType != null) {
+                sb.append("Content-Type: ").append(mContentType);
+            }
+            if (mCharsetName != null) {
+                sb.append("; ").append("charset=\"").append(mCharsetName).append("\"");
+            }
+            sb.append("\r\n");
+            if (mContentLocation != null) {
+                sb.append("Content-Location: ").append(mContentLocation).append("\r\n");
+            }
+            if (mContentId != null) {
+                sb.append("Content-ID: ").append(mContentId).append("\r\n");
+            }
+            if (mContentDisposition != null) {
+                sb.append("Content-Disposition: ").append(mContentDisposition).append("\r\n");
+            }
+        }
+
         public void encodePlainText(StringBuilder sb) throws UnsupportedEncodingException {
             if (mContentType != null && mContentType.toUpperCase().contains("TEXT")) {
                 String text = new String(mData, "UTF-8");
@@ -160,6 +209,7 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
     private boolean mIncludeAttachments;
     private boolean mHasHeaders = false;
     private String mMyEncoding = null;
+    private ContentReader mContentReader = null;
 
     private String getBoundary() {
         // Include "=_" as these cannot occur in quoted printable text
@@ -191,6 +241,13 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         return sb.toString();
     }
 
+    /**
+     * Sets the reader of the parts with their data in {@link MimePart#mDataUri}.
+     */
+    public void setContentReader(ContentReader reader) {
+        this.mContentReader = reader;
+    }
+
     public MimePart addMimePart() {
         if (mParts == null) {
             mParts = new ArrayList<BluetoothMapbMessageMime.MimePart>();
@@ -363,7 +420,7 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         int messageSize = 0;
         if (mParts != null) {
             for (MimePart part : mParts) {
-                messageSize += part.mData.length;
+                messageSize += part.mDataUri != null ? part.mDataLength : part.mData.length;
             }
         }
         return messageSize;
@@ -505,10 +562,29 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
      * @throws UnsupportedEncodingException
      */
     public byte[] encodeMime() throws UnsupportedEncodingException {
-        ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encodeMime(stream);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Encode the bMessage as a Mime message(MMS/IM) into {@code out}. The data of the parts in
+     * {@link MimePart#mDataUri} is read and Base64 encoded while written, so that attachments
+     * are never held in memory as a whole.
+     */
+    public void encodeMime(OutputStream out) throws IOException {
+        // The text before, between and after the parts with their data read while written.
+        ArrayList<byte[]> texts = new ArrayList<byte[]>();
+        ArrayList<MimePart> deferredParts = new ArrayList<MimePart>();
         StringBuilder sb = new StringBuilder();
         int count = 0;
-        String mimeBody;
 
         mEncoding = "8BIT"; // The encoding used
 
@@ -523,22 +599,54 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             } else {
                 for (MimePart part : mParts) {
                     count++;
-                    part.encode(sb, getBoundary(), (count == mParts.size()));
+                    if (part.mDataUri == null) {
+                        part.encode(sb, getBoundary(), (count == mParts.size()));
+                        continue;
+                    }
+                    part.encodeDeferredStart(sb, getBoundary());
+                    texts.add(escapeBody(sb.toString()));
+                    deferredParts.add(part);
+                    sb = new StringBuilder();
+                    part.encodeDeferredEnd(sb, getBoundary(), (count == mParts.size()));
                 }
             }
         }
+        texts.add(escapeBody(sb.toString()));
 
-        mimeBody = sb.toString();
-
-        if (mimeBody != null) {
-            // Replace any occurrences of END:MSG with \END:MSG
-            String tmpBody = mimeBody.replaceAll("END:MSG", "/END\\:MSG");
-            bodyFragments.add(tmpBody.getBytes("UTF-8"));
-        } else {
-            bodyFragments.add(new byte[0]);
+        // Base64 never contains END:MSG, only the texts are escaped.
+        long length = 0;
+        for (byte[] text : texts) {
+            length += text.length;
+        }
+        for (MimePart part : deferredParts) {
+            length += getBase64Length(part.mDataLength);
         }
 
-        return encodeGeneric(bodyFragments);
+        encodeGeneric(out, length, fragmentOut -> {
+            for (int i = 0; i < deferredParts.size(); i++) {
+                fragmentOut.write(texts.get(i));
+                deferredParts.get(i).encodeData(fragmentOut, mContentReader);
+            }
+            fragmentOut.write(texts.get(texts.size() - 1));
+        });
+    }
+
+    private static byte[] escapeBody(String body) throws UnsupportedEncodingException {
+        // Replace any occurrences of END:MSG with \END:MSG
+        return body.replaceAll("END:MSG", "/END\\:MSG").getBytes("UTF-8");
+    }
+
+    /**
+     * Returns the length of {@code length} bytes encoded with {@link Base64#DEFAULT}: lines of
+     * 76 characters, each ended by a line feed.
+     */
+    @VisibleForTesting
+    static long getBase64Length(long length) {
+        if (length <= 0) {
+            return 0;
+        }
+        long chars = (length + 2) / 3 * 4;
+        return chars + (chars + 75) / 76;
     }
 
 
@@ -823,4 +931,9 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         return encodeMime();
     }
 
+    @Override
+    public void encode(OutputStream out) throws IOException {
+        encodeMime(out);
+    }
+
 }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resolves the contact names of the phone numbers of SMS and MMS messages.
+ *
+ * The numbers of a message listing are resolved in bulk by {@link #prefetch}, with one query on
+ * the contacts phone table for many normalized numbers, instead of one PhoneLookup query per
+ * message. Numbers that can't be normalized, or that have no match in the bulk query, fall back
+ * to {@link BluetoothMapContent#getContactNameFromPhone} once. Resolved names are kept for
+ * {@link #CACHE_TIMEOUT_MS} so that the following requests of a session are served from memory,
+ * and dropped as soon as the contacts database changes, see {@link #onContactsChanged}.
+ *
+ * An instance is not thread safe: it belongs to one {@link BluetoothMapContent}, which is only
+ * used from the OBEX server thread of its session.
+ */
+class ContactNameResolver {
+    private static final String TAG = "ContactNameResolver";
+    private static final boolean D = BluetoothMapService.DEBUG;
+    private static final boolean V = BluetoothMapService.VERBOSE;
+
+    @VisibleForTesting
+    static final long CACHE_TIMEOUT_MS = 60 * 1000;
+    @VisibleForTesting
+    static final int MAX_CACHE_SIZE = 1000;
+    // Keeps the number of selection arguments well below the SQLite limit.
+    @VisibleForTesting
+    static final int MAX_NUMBERS_PER_QUERY = 500;
+
+    @VisibleForTesting
+    static final String[] PHONE_PROJECTION = {Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME};
+
+    // Bumped by every change of the contacts database.
+    private static final AtomicInteger sContactsGeneration = new AtomicInteger();
+
+    // Totals of all requests, for dumpsys.
+    private static final Object sStatsLock = new Object();
+    private static long sNumRequests;
+    private static long sNumLookups;
+    private static long sNumCacheHits;
+    private static long sNumQueries;
+    private static long sTotalTimeMillis;
+    private static long sMaxTimeMillis;
+
+    private final ContentResolver mResolver;
+    // The contact name of each phone number, or "" if the number has no contact.
+    private final HashMap<String, String> mNames = new HashMap<>();
+    private long mCacheTimestamp;
+    private int mCacheGeneration;
+
+    // Stats of the current request.
+    private int mLookups;
+    private int mCacheHits;
+    private int mQueries;
+    private long mTimeMillis;
+
+    ContactNameResolver(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Drops the names cached by all resolvers. Called when the contacts database changes.
+     */
+    static void onContactsChanged() {
+        sContactsGeneration.incrementAndGet();
+    }
+
+    /**
+     * Resolves the names of {@code phones} that are not cached yet, using as few queries as
+     * possible.
+     *
+     * @param countryIso the country used to normalize the numbers, or null to skip the bulk
+     * query
+     */
+    void prefetch(Collection<String> phones, String countryIso) {
+        validateCache();
+        if (TextUtils.isEmpty(countryIso)) {
+            return;
+        }
+        countryIso = countryIso.toUpperCase(Locale.ROOT);
+
+        // Normalized number to the phone numbers of the messages that have it.
+        HashMap<String, List<String>> pending = new HashMap<>();
+        for (String phone : phones) {
+            if (TextUtils.isEmpty(phone) || mNames.containsKey(phone)) {
+                continue;
+            }
+            String normalized = PhoneNumberUtils.formatNumberToE164(phone, countryIso);
+            if (normalized != null) {
+                pending.computeIfAbsent(normalized, k -> new ArrayList<>()).add(phone);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        List<String> numbers = new ArrayList<>(pending.keySet());
+        for (int i = 0; i < numbers.size(); i += MAX_NUMBERS_PER_QUERY) {
+            List<String> chunk =
+                    numbers.subList(i, Math.min(i + MAX_NUMBERS_PER_QUERY, numbers.size()));
+            queryNames(chunk, pending);
+        }
+        mTimeMillis += SystemClock.elapsedRealtime() - start;
+        if (V) {
+            Log.v(TAG, "prefetch: " + numbers.size() + " numbers, cache size " + mNames.size());
+        }
+    }
+
+    private void queryNames(List<String> numbers, HashMap<String, List<String>> pending) {
+        StringBuilder selection = new StringBuilder();
+        selection.append(Contacts.IN_VISIBLE_GROUP).append("=1 AND ")
+                .append(Phone.NORMALIZED_NUMBER).append(" IN (");
+        for (int i = 0; i < numbers.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        selection.append(")");
+        String orderBy = Phone.DISPLAY_NAME + " ASC";
+
+        mQueries++;
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
+                Phone.CONTENT_URI, PHONE_PROJECTION, selection.toString(),
+                numbers.toArray(new String[0]), orderBy);
+        if (c == null) {
+            // Leave the numbers to the PhoneLookup fallback.
+            return;
+        }
+        try {
+            int numberIndex = c.getColumnIndex(Phone.NORMALIZED_NUMBER);
+            int nameIndex = c.getColumnIndex(Phone.DISPLAY_NAME);
+            while (c.moveToNext()) {
+                // Rows are sorted by name: keep the first one of each number, as PhoneLookup.
+                List<String> phones = pending.remove(c.getString(numberIndex));
+                if (phones == null) {
+                    continue;
+                }
+                String name = c.getString(nameIndex);
+                for (String phone : phones) {
+                    putName(phone, name);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        // Numbers left in pending are not cached: PhoneLookup matches more loosely than the
+        // normalized number and may still find a contact for them.
+    }
+
+    /**
+     * Returns the contact name of {@code phone}, or null if it has no contact.
+     */
+    String getName(String phone) {
+        if (TextUtils.isEmpty(phone)) {
+            return null;
+        }
+        validateCache();
+        mLookups++;
+        String name = mNames.get(phone);
+        if (name != null) {
+            mCacheHits++;
+        } else {
+            long start = SystemClock.elapsedRealtime();
+            mQueries++;
+            name = BluetoothMapContent.getContactNameFromPhone(phone, mResolver);
+            mTimeMillis += SystemClock.elapsedRealtime() - start;
+            putName(phone, name);
+        }
+        return name == null || name.isEmpty() ? null : name;
+    }
+
+    /**
+     * Adds the stats of the current request to the totals shown in dumpsys.
+     */
+    void finishRequest() {
+        if (mLookups == 0 && mQueries == 0) {
+            return;
+        }
+        if (D) {
+            Log.d(TAG, "finishRequest: lookups=" + mLookups + " cacheHits=" + mCacheHits
+                    + " queries=" + mQueries + " time=" + mTimeMillis + "ms");
+        }
+        synchronized (sStatsLock) {
+            sNumRequests++;
+            sNumLookups += mLookups;
+            sNumCacheHits += mCacheHits;
+            sNumQueries += mQueries;
+            sTotalTimeMillis += mTimeMillis;
+            sMaxTimeMillis = Math.max(sMaxTimeMillis, mTimeMillis);
+        }
+        mLookups = 0;
+        mCacheHits = 0;
+        mQueries = 0;
+        mTimeMillis = 0;
+    }
+
+    private void putName(String phone, String name) {
+        if (mNames.size() >= MAX_CACHE_SIZE) {
+            mNames.clear();
+        }
+        mNames.put(phone, name == null ? "" : name);
+    }
+
+    private void validateCache() {
+        long now = SystemClock.elapsedRealtime();
+        int generation = sContactsGeneration.get();
+        if (generation != mCacheGeneration || now - mCacheTimestamp > CACHE_TIMEOUT_MS) {
+            mNames.clear();
+            mCacheGeneration = generation;
+            mCacheTimestamp = now;
+        }
+    }
+
+    static void dump(StringBuilder sb) {
+        synchronized (sStatsLock) {
+            ProfileService.println(sb, "Contact name lookups: requests=" + sNumRequests
+                    + " lookups=" + sNumLookups + " cacheHits=" + sNumCacheHits
+                    + " queries=" + sNumQueries + " totalTime=" + sTotalTimeMillis + "ms"
+                    + " maxTime=" + sMaxTimeMillis + "ms");
+        }
+    }
+
+    @VisibleForTesting
+    static void resetStats() {
+        synchronized (sStatsLock) {
+            sNumRequests = 0;
+            sNumLookups = 0;
+            sNumCacheHits = 0;
+            sNumQueries = 0;
+            sTotalTimeMillis = 0;
+            sMaxTimeMillis = 0;
+        }
+    }
+}
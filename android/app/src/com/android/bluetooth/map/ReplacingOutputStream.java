@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Replaces every occurrence of a byte sequence by another one on the way to the wrapped stream.
+ *
+ * Occurrences are found as the bytes are written, holding back at most the length of the
+ * pattern, so a listing can be transformed while it is being sent instead of once fully built.
+ * Like {@link String#replace}, non overlapping occurrences are replaced from left to right. The
+ * first byte of the pattern must not appear again in it, which holds for XML entities.
+ *
+ * {@link #flush} writes out a partial occurrence held back, so it must only be called where no
+ * occurrence can span, e.g. at the end of the document.
+ */
+class ReplacingOutputStream extends FilterOutputStream {
+    private final byte[] mPattern;
+    private final byte[] mReplacement;
+    private final byte[] mSingleByte = new byte[1];
+    // Number of bytes of the pattern matched and held back.
+    private int mMatched;
+
+    ReplacingOutputStream(OutputStream out, String pattern, String replacement) {
+        super(out);
+        mPattern = pattern.getBytes(StandardCharsets.UTF_8);
+        mReplacement = replacement.getBytes(StandardCharsets.UTF_8);
+        if (mPattern.length < 2) {
+            throw new IllegalArgumentException("pattern too short: " + pattern);
+        }
+        for (int i = 1; i < mPattern.length; i++) {
+            if (mPattern[i] == mPattern[0]) {
+                throw new IllegalArgumentException("pattern repeats its first byte: " + pattern);
+            }
+        }
+    }
+
+    /**
+     * Returns a stream undoing the escaping of '&', '<' and '>' by the XML serializer, for
+     * remotes that can't parse the entities.
+     */
+    static OutputStream unescapeXml(OutputStream out) {
+        // Written bytes go through "&amp;" first, then "&lt;" and "&gt;", so that "&amp;lt;"
+        // becomes "<" as with consecutive String.replaceAll() calls.
+        out = new ReplacingOutputStream(out, "&gt;", ">");
+        out = new ReplacingOutputStream(out, "&lt;", "<");
+        return new ReplacingOutputStream(out, "&amp;", "&");
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        mSingleByte[0] = (byte) b;
+        write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        // First byte of b not yet written nor matched.
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (mMatched > 0) {
+                if (b[i] == mPattern[mMatched]) {
+                    start = i + 1;
+                    if (++mMatched == mPattern.length) {
+                        out.write(mReplacement);
+                        mMatched = 0;
+                    }
+                    continue;
+                }
+                // Not an occurrence after all, release the bytes held back.
+                out.write(mPattern, 0, mMatched);
+                mMatched = 0;
+                start = i;
+            }
+            if (b[i] == mPattern[0]) {
+                out.write(b, start, i - start);
+                mMatched = 1;
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            out.write(b, start, end - start);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mMatched > 0) {
+            out.write(mPattern, 0, mMatched);
+            mMatched = 0;
+        }
+        out.flush();
+    }
+}
@@ -113,6 +113,10 @@ class BluetoothOppNotification {
 
     private int mPendingUpdate = 0;
 
+    // Whether a pending update needs to re-query the provider, rather than only refresh the live
+    // progress of the active transfers.
+    private boolean mPendingFullUpdate = false;
+
     public static final int NOTIFICATION_ID_PROGRESS = -1000004;
 
     @VisibleForTesting
@@ -171,19 +175,35 @@ class BluetoothOppNotification {
      */
     public void updateNotification() {
         synchronized (BluetoothOppNotification.this) {
-            mPendingUpdate++;
-            if (mPendingUpdate > 1) {
-                if (V) {
-                    Log.v(TAG, "update too frequent, put in queue");
-                }
-                return;
+            mPendingFullUpdate = true;
+            scheduleUpdate();
+        }
+    }
+
+    /**
+     * Update the progress of the active transfers from {@link BluetoothOppTransferProgress},
+     * without re-querying the provider.
+     */
+    public void updateProgressNotification() {
+        synchronized (BluetoothOppNotification.this) {
+            scheduleUpdate();
+        }
+    }
+
+    // Must be called with the BluetoothOppNotification lock held.
+    private void scheduleUpdate() {
+        mPendingUpdate++;
+        if (mPendingUpdate > 1) {
+            if (V) {
+                Log.v(TAG, "update too frequent, put in queue");
             }
-            if (!mHandler.hasMessages(NOTIFY)) {
-                if (V) {
-                    Log.v(TAG, "send message");
-                }
-                mHandler.sendMessage(mHandler.obtainMessage(NOTIFY));
+            return;
+        }
+        if (!mHandler.hasMessages(NOTIFY)) {
+            if (V) {
+                Log.v(TAG, "send message");
             }
+            mHandler.sendMessage(mHandler.obtainMessage(NOTIFY));
         }
     }
 
@@ -232,16 +252,23 @@ class BluetoothOppNotification {
         @Override
         public void run() {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean fullUpdate;
             synchronized (BluetoothOppNotification.this) {
                 if (mUpdateNotificationThread != this) {
                     throw new IllegalStateException(
                             "multiple UpdateThreads in BluetoothOppNotification");
                 }
                 mPendingUpdate = 0;
+                fullUpdate = mPendingFullUpdate;
+                mPendingFullUpdate = false;
+            }
+            if (fullUpdate) {
+                updateActiveNotification();
+                updateCompletedNotification();
+                updateIncomingFileConfirmNotification();
+            } else {
+                refreshActiveNotification();
             }
-            updateActiveNotification();
-            updateCompletedNotification();
-            updateIncomingFileConfirmNotification();
             synchronized (BluetoothOppNotification.this) {
                 mUpdateNotificationThread = null;
             }
@@ -285,7 +312,9 @@ class BluetoothOppNotification {
             int dir = cursor.getInt(directionIndex);
             int id = cursor.getInt(idIndex);
             long total = cursor.getLong(totalBytesIndex);
-            long current = cursor.getLong(currentBytesIndex);
+            // Live progress of running transfers is not written to the provider for every packet.
+            long current = BluetoothOppTransferProgress.getCurrentBytes(id,
+                    cursor.getLong(currentBytesIndex));
             int confirmation = cursor.getInt(confirmIndex);
 
             String destination = cursor.getString(destinationIndex);
@@ -333,7 +362,29 @@ class BluetoothOppNotification {
         }
         cursor.close();
 
-        // Add the notifications
+        showActiveNotifications();
+    }
+
+    /**
+     * Shows the active transfers of the last provider query with their live progress. Transfers
+     * that are no longer tracked have finished and are left to the next full update.
+     */
+    @VisibleForTesting
+    void refreshActiveNotification() {
+        boolean changed = false;
+        for (NotificationItem item : mNotifications.values()) {
+            if (BluetoothOppTransferProgress.isTracked(item.id)) {
+                item.totalCurrent =
+                        BluetoothOppTransferProgress.getCurrentBytes(item.id, item.totalCurrent);
+                changed = true;
+            }
+        }
+        if (changed) {
+            showActiveNotifications();
+        }
+    }
+
+    private void showActiveNotifications() {
         for (NotificationItem item : mNotifications.values()) {
             if (item.handoverInitiated) {
                 float progress = 0;
@@ -126,18 +126,6 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
         mThread.addShare(share);
     }
 
-    private static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
-        int done = 0;
-        while (done < size) {
-            int got = is.read(buffer, done, size - done);
-            if (got <= 0) {
-                break;
-            }
-            done += got;
-        }
-        return done;
-    }
-
     private class ClientThread extends Thread {
 
         private static final int SLEEP_TIME = 500;
@@ -386,6 +374,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             ClientOperation putOperation = null;
             OutputStream outputStream = null;
             InputStream inputStream = null;
+            BluetoothOppSendPipeline pipeline = null;
+            BluetoothOppTransferProgress.Tracker progress = null;
             try {
                 synchronized (this) {
                     mWaitingForRemote = true;
@@ -447,18 +437,24 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
 
                 if (!error) {
                     int readLength = 0;
-                    long percent = 0;
-                    long prevPercent = 0;
                     boolean okToProceed = false;
                     long timestamp = 0;
                     long currentTime = 0;
-                    long prevTimestamp = SystemClock.elapsedRealtime();
+                    long startTimestamp = 0;
+                    long startPosition = 0;
                     int outputBufferSize = putOperation.getMaxPacketSize();
-                    byte[] buffer = new byte[outputBufferSize];
                     BufferedInputStream a = new BufferedInputStream(fileInfo.mInputStream, 0x4000);
+                    pipeline = new BluetoothOppSendPipeline(a, fileInfo.mLength,
+                            outputBufferSize, BluetoothOppSendPipeline.DEFAULT_NUM_BUFFERS);
+                    pipeline.start();
+                    mInfo.mBytesPerSecond = 0;
 
+                    BluetoothOppSendPipeline.Packet packet = null;
                     if (!mInterrupted && (position != fileInfo.mLength)) {
-                        readLength = readFully(a, buffer, outputBufferSize);
+                        packet = takePacket(pipeline);
+                    }
+                    if (packet != null) {
+                        readLength = packet.mLength;
 
                         mCallback.sendMessageDelayed(mCallback.obtainMessage(
                                 BluetoothOppObexSession.MSG_CONNECT_TIMEOUT),
@@ -468,7 +464,8 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                         }
 
                         // first packet will block here
-                        outputStream.write(buffer, 0, readLength);
+                        outputStream.write(packet.mBuffer, 0, readLength);
+                        pipeline.recycle(packet);
 
                         position += readLength;
 
@@ -493,10 +490,16 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                 Log.v(TAG, "Remote accept");
                             }
                             okToProceed = true;
+                            // Measure throughput once the remote accepted, excluding the time
+                            // spent waiting for the user on the remote side.
+                            startTimestamp = SystemClock.elapsedRealtime();
+                            startPosition = position;
                             updateValues = new ContentValues();
                             updateValues.put(BluetoothShare.CURRENT_BYTES, position);
                             mContext1.getContentResolver()
                                     .update(contentUri, updateValues, null, null);
+                            progress = BluetoothOppTransferProgress.start(mContext1, mInfo.mId,
+                                    fileInfo.mLength, position);
                             mNumFilesAttemptedToSend++;
                         } else {
                             Log.i(TAG, "Remote reject, Response code is " + responseCode);
@@ -508,8 +511,14 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                             timestamp = SystemClock.elapsedRealtime();
                         }
 
-                        readLength = a.read(buffer, 0, outputBufferSize);
-                        outputStream.write(buffer, 0, readLength);
+                        packet = takePacket(pipeline);
+                        if (packet == null) {
+                            // Interrupted while waiting for the reader.
+                            break;
+                        }
+                        readLength = packet.mLength;
+                        outputStream.write(packet.mBuffer, 0, readLength);
+                        pipeline.recycle(packet);
 
                         /* check remote abort */
                         responseCode = putOperation.getResponseCode();
@@ -528,18 +537,19 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
                                         + " readLength " + readLength + " bytes took "
                                         + (currentTime - timestamp) + " ms");
                             }
-                            // Update the Progress Bar only if there is change in percentage
-                            // or once per a period to notify NFC of this transfer is still alive
-                            percent = position * 100 / fileInfo.mLength;
-                            if (percent > prevPercent
-                                    || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
-                                updateValues = new ContentValues();
-                                updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                                mContext1.getContentResolver()
-                                        .update(contentUri, updateValues, null, null);
-                                prevPercent = percent;
-                                prevTimestamp = currentTime;
-                            }
+                            mInfo.mBytesPerSecond = BluetoothOppSendPipeline.getBytesPerSecond(
+                                    position - startPosition, currentTime - startTimestamp);
+                            progress.update(position);
+                        }
+                    }
+
+                    if (okToProceed) {
+                        mInfo.mBytesPerSecond = BluetoothOppSendPipeline.getBytesPerSecond(
+                                position - startPosition,
+                                SystemClock.elapsedRealtime() - startTimestamp);
+                        if (D) {
+                            Log.d(TAG, "Sent " + position + " bytes at " + mInfo.mBytesPerSecond
+                                    + " B/s");
                         }
                     }
 
@@ -571,6 +581,12 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             } catch (IndexOutOfBoundsException e) {
                 handleSendException(e.toString());
             } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
+                if (progress != null) {
+                    progress.finish();
+                }
                 try {
                     if (outputStream != null) {
                         outputStream.close();
@@ -628,6 +644,21 @@ public class BluetoothOppObexClientSession implements BluetoothOppObexSession {
             return status;
         }
 
+        /**
+         * Returns the next packet read ahead by {@code pipeline}, or null if the thread was
+         * interrupted.
+         *
+         * @throws IOException if the file could not be read or ended early
+         */
+        private BluetoothOppSendPipeline.Packet takePacket(BluetoothOppSendPipeline pipeline)
+                throws IOException {
+            BluetoothOppSendPipeline.Packet packet = pipeline.take();
+            if (packet == null && !mInterrupted) {
+                throw new IOException("Unexpected end of file");
+            }
+            return packet;
+        }
+
         private void handleSendException(String exception) {
             Log.e(TAG, "Error when sending file: " + exception);
             // Update interrupted outbound content resolver entry when
@@ -447,8 +447,6 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
         }
 
         long position = 0;
-        long percent;
-        long prevPercent = 0;
 
         if (!error) {
             try {
@@ -465,7 +463,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
             int readLength;
             long timestamp = 0;
             long currentTime;
-            long prevTimestamp = SystemClock.elapsedRealtime();
+            BluetoothOppTransferProgress.Tracker progress =
+                    BluetoothOppTransferProgress.start(mContext, mInfo.mId, fileInfo.mLength, 0);
             try {
                 while ((!mInterrupted) && (position != fileInfo.mLength)) {
 
@@ -484,25 +483,15 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
 
                     os.write(b, 0, readLength);
                     position += readLength;
-                    percent = position * 100 / fileInfo.mLength;
-                    currentTime = SystemClock.elapsedRealtime();
 
                     if (V) {
+                        currentTime = SystemClock.elapsedRealtime();
                         Log.v(TAG,
                                 "Receive file position = " + position + " readLength " + readLength
                                         + " bytes took " + (currentTime - timestamp) + " ms");
                     }
 
-                    // Update the Progress Bar only if there is change in percentage
-                    // or once per a period to notify NFC of this transfer is still alive
-                    if (percent > prevPercent
-                            || currentTime - prevTimestamp > Constants.NFC_ALIVE_CHECK_MS) {
-                        ContentValues updateValues = new ContentValues();
-                        updateValues.put(BluetoothShare.CURRENT_BYTES, position);
-                        mContext.getContentResolver().update(contentUri, updateValues, null, null);
-                        prevPercent = percent;
-                        prevTimestamp = currentTime;
-                    }
+                    progress.update(position);
                 }
             } catch (IOException e1) {
                 Log.e(TAG, "Error when receiving file: " + e1);
@@ -513,6 +502,8 @@ public class BluetoothOppObexServerSession extends ServerRequestHandler
                     status = BluetoothShare.STATUS_OBEX_DATA_ERROR;
                 }
                 error = true;
+            } finally {
+                progress.finish();
             }
         }
 
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads an outbound file ahead of the OBEX put operation.
+ *
+ * A reader thread fills a bounded pool of packet-size buffers from the file input stream while
+ * the client thread writes the packets read before to the remote device, so that file or
+ * content provider I/O overlaps with radio transmission. Buffers go back to the pool once
+ * written; no buffer is allocated after the pipeline is created.
+ */
+class BluetoothOppSendPipeline implements Closeable {
+    private static final String TAG = "BtOppSendPipeline";
+    private static final boolean V = Constants.VERBOSE;
+
+    static final int DEFAULT_NUM_BUFFERS = 4;
+
+    /**
+     * A buffer of the pool and the number of bytes read into it.
+     */
+    static class Packet {
+        final byte[] mBuffer;
+        int mLength;
+
+        Packet(int size) {
+            mBuffer = new byte[size];
+        }
+    }
+
+    private static final Packet END_OF_STREAM = new Packet(0);
+
+    private final InputStream mInputStream;
+    private final long mLength;
+    private final BlockingQueue<Packet> mFreePackets;
+    // One more slot than buffers, for the end of stream marker.
+    private final BlockingQueue<Packet> mFilledPackets;
+    private final Thread mReaderThread;
+
+    private volatile IOException mReadError;
+    private volatile boolean mClosed;
+
+    /**
+     * @param inputStream the stream to read, not closed by the pipeline
+     * @param length the number of bytes to read from the stream
+     * @param packetSize the size of each buffer, usually the OBEX max packet size
+     * @param numBuffers the number of buffers of the pool
+     */
+    BluetoothOppSendPipeline(InputStream inputStream, long length, int packetSize,
+            int numBuffers) {
+        if (packetSize <= 0 || numBuffers <= 0) {
+            throw new IllegalArgumentException("invalid packetSize " + packetSize
+                    + " or numBuffers " + numBuffers);
+        }
+        mInputStream = inputStream;
+        mLength = length;
+        mFreePackets = new ArrayBlockingQueue<>(numBuffers);
+        mFilledPackets = new ArrayBlockingQueue<>(numBuffers + 1);
+        for (int i = 0; i < numBuffers; i++) {
+            mFreePackets.add(new Packet(packetSize));
+        }
+        mReaderThread = new Thread(this::readLoop, "BtOppSendPipeline");
+    }
+
+    void start() {
+        mReaderThread.start();
+    }
+
+    private void readLoop() {
+        long remaining = mLength;
+        try {
+            while (remaining > 0 && !mClosed) {
+                Packet packet = mFreePackets.take();
+                int size = (int) Math.min(packet.mBuffer.length, remaining);
+                packet.mLength = readFully(mInputStream, packet.mBuffer, size);
+                if (packet.mLength <= 0) {
+                    mFreePackets.add(packet);
+                    break;
+                }
+                remaining -= packet.mLength;
+                mFilledPackets.put(packet);
+                if (packet.mLength < size) {
+                    // The stream ended before the expected length.
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                Log.e(TAG, "Error reading file: " + e);
+            }
+            mReadError = e;
+        } catch (InterruptedException e) {
+            if (V) {
+                Log.v(TAG, "Reader interrupted");
+            }
+        }
+        // Never blocks: the queue has room for every buffer plus the marker.
+        mFilledPackets.offer(END_OF_STREAM);
+    }
+
+    /**
+     * Returns the next packet to send, waiting for it to be read if needed. The packet must be
+     * given back with {@link #recycle} once written.
+     *
+     * @return the next packet, or null at the end of the stream or if the calling thread was
+     * interrupted
+     * @throws IOException if reading the stream failed
+     */
+    Packet take() throws IOException {
+        Packet packet;
+        try {
+            packet = mFilledPackets.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (packet == END_OF_STREAM) {
+            // Keep the marker for any later call.
+            mFilledPackets.offer(END_OF_STREAM);
+            if (mReadError != null) {
+                throw mReadError;
+            }
+            return null;
+        }
+        return packet;
+    }
+
+    /**
+     * Gives a packet returned by {@link #take} back to the pool.
+     */
+    void recycle(Packet packet) {
+        mFreePackets.offer(packet);
+    }
+
+    /**
+     * Stops the reader thread. The input stream is left open and must be closed by the caller,
+     * which also unblocks a read in progress.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        mReaderThread.interrupt();
+    }
+
+    static int readFully(InputStream is, byte[] buffer, int size) throws IOException {
+        int done = 0;
+        while (done < size) {
+            int got = is.read(buffer, done, size - done);
+            if (got <= 0) {
+                break;
+            }
+            done += got;
+        }
+        return done;
+    }
+
+    /**
+     * Returns the throughput of a transfer of {@code bytes} that took {@code elapsedMillis}.
+     */
+    static long getBytesPerSecond(long bytes, long elapsedMillis) {
+        if (elapsedMillis <= 0) {
+            return 0;
+        }
+        return bytes * 1000 / elapsedMillis;
+    }
+}
@@ -264,6 +264,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
         mNotifier = new BluetoothOppNotification(this);
         mNotifier.mNotificationMgr.cancelAll();
         mNotifier.updateNotification();
+        BluetoothOppTransferProgress.setListener(mNotifier::updateProgressNotification);
         updateFromProvider();
         setBluetoothOppService(this);
         mAdapterService.notifyActivityAttributionInfo(
@@ -282,6 +283,7 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                 getAttributionSource(),
                 AdapterService.ACTIVITY_ATTRIBUTION_NO_ACTIVE_DEVICE_ADDRESS);
         setBluetoothOppService(null);
+        BluetoothOppTransferProgress.setListener(null);
         mHandler.sendMessage(mHandler.obtainMessage(STOP_LISTENER));
 
         setComponentAvailable(OPP_PROVIDER, false);
@@ -316,8 +318,12 @@ public class BluetoothOppService extends ProfileService implements IObexConnecti
                 String dir = info.mDirection == BluetoothShare.DIRECTION_OUTBOUND ? " -> " : " <- ";
                 SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss", Locale.US);
                 Date date = new Date(info.mTimestamp);
-                println(sb, "  " + format.format(date) + dir + info.mCurrentBytes + "/"
-                        + info.mTotalBytes);
+                long currentBytes =
+                        BluetoothOppTransferProgress.getCurrentBytes(info.mId, info.mCurrentBytes);
+                String throughput = info.mBytesPerSecond > 0
+                        ? " (" + info.mBytesPerSecond + " B/s)" : "";
+                println(sb, "  " + format.format(date) + dir + currentBytes + "/"
+                        + info.mTotalBytes + throughput);
             }
         }
     }
@@ -68,6 +68,9 @@ public class BluetoothOppShareInfo {
 
     public boolean mMediaScanned;
 
+    // Throughput of the outbound transfer in progress or last completed, not persisted.
+    public volatile long mBytesPerSecond;
+
     public BluetoothOppShareInfo(int id, Uri uri, String hint, String filename, String mimetype,
             int direction, String destination, int visibility, int confirm, int status,
             long totalBytes, long currentBytes, long timestamp, boolean mediaScanned) {
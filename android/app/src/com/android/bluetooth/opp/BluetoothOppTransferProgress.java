@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory progress of the running OPP transfers.
+ *
+ * Sessions report the transferred bytes of every packet to a {@link Tracker}. The notification
+ * layer reads the live value with {@link #getCurrentBytes} and is told about visible changes
+ * through the {@link Listener}, while {@link BluetoothShare#CURRENT_BYTES} is only written to
+ * the provider every {@link #PERSIST_INTERVAL_MS}, so that progress doesn't go through the
+ * provider, the service content observer and a full re-query for every percent.
+ */
+class BluetoothOppTransferProgress {
+    /** Minimum interval between two writes of the progress of a transfer to the provider. */
+    @VisibleForTesting
+    static final long PERSIST_INTERVAL_MS = 3000;
+
+    /**
+     * Notified from the session threads when the progress of a transfer should be shown.
+     */
+    interface Listener {
+        void onProgressChanged();
+    }
+
+    private static final ConcurrentHashMap<Integer, Tracker> sTrackers =
+            new ConcurrentHashMap<>();
+
+    private static volatile Listener sListener;
+
+    static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * Starts tracking the progress of a share from {@code currentBytes}, which must already be
+     * persisted. Any previous tracker of the share is replaced.
+     */
+    static Tracker start(Context context, int shareId, long totalBytes, long currentBytes) {
+        Tracker tracker = new Tracker(context, shareId, totalBytes, currentBytes,
+                SystemClock.elapsedRealtime());
+        sTrackers.put(shareId, tracker);
+        return tracker;
+    }
+
+    /**
+     * Returns the live transferred bytes of a share, or {@code persistedBytes} if the share is
+     * not being transferred.
+     */
+    static long getCurrentBytes(int shareId, long persistedBytes) {
+        Tracker tracker = sTrackers.get(shareId);
+        return tracker != null ? tracker.getCurrentBytes() : persistedBytes;
+    }
+
+    /**
+     * Returns whether a share is being transferred.
+     */
+    static boolean isTracked(int shareId) {
+        return sTrackers.containsKey(shareId);
+    }
+
+    @VisibleForTesting
+    static void clear() {
+        sTrackers.clear();
+    }
+
+    /**
+     * Progress of one transfer. {@link #update} and {@link #finish} must be called from the
+     * session thread only; {@link #getCurrentBytes} can be called from any thread.
+     */
+    static class Tracker {
+        private final Context mContext;
+        private final int mShareId;
+        private final long mTotalBytes;
+        private final AtomicLong mCurrentBytes = new AtomicLong();
+
+        private long mPersistedBytes;
+        private long mPrevPercent;
+        private long mPrevNotifyTime;
+        private long mPrevPersistTime;
+
+        @VisibleForTesting
+        Tracker(Context context, int shareId, long totalBytes, long currentBytes, long now) {
+            mContext = context;
+            mShareId = shareId;
+            mTotalBytes = totalBytes;
+            mCurrentBytes.set(currentBytes);
+            mPersistedBytes = currentBytes;
+            mPrevPercent = totalBytes > 0 ? currentBytes * 100 / totalBytes : 0;
+            mPrevNotifyTime = now;
+            mPrevPersistTime = now;
+        }
+
+        long getCurrentBytes() {
+            return mCurrentBytes.get();
+        }
+
+        /**
+         * Records that {@code position} bytes were transferred.
+         */
+        void update(long position) {
+            update(position, SystemClock.elapsedRealtime());
+        }
+
+        @VisibleForTesting
+        void update(long position, long now) {
+            mCurrentBytes.set(position);
+
+            // Show the progress only if there is change in percentage or once per a period to
+            // notify NFC of this transfer is still alive.
+            long percent = mTotalBytes > 0 ? position * 100 / mTotalBytes : 0;
+            if (percent > mPrevPercent || now - mPrevNotifyTime > Constants.NFC_ALIVE_CHECK_MS) {
+                mPrevPercent = percent;
+                mPrevNotifyTime = now;
+                Listener listener = sListener;
+                if (listener != null) {
+                    listener.onProgressChanged();
+                }
+            }
+            if (now - mPrevPersistTime >= PERSIST_INTERVAL_MS) {
+                mPrevPersistTime = now;
+                persist(position);
+            }
+        }
+
+        /**
+         * Writes the last progress to the provider and stops tracking the transfer.
+         */
+        void finish() {
+            persist(mCurrentBytes.get());
+            sTrackers.remove(mShareId, this);
+        }
+
+        private void persist(long position) {
+            if (position == mPersistedBytes) {
+                return;
+            }
+            mPersistedBytes = position;
+            Uri contentUri = Uri.parse(BluetoothShare.CONTENT_URI + "/" + mShareId);
+            ContentValues updateValues = new ContentValues();
+            updateValues.put(BluetoothShare.CURRENT_BYTES, position);
+            mContext.getContentResolver().update(contentUri, updateValues, null, null);
+        }
+    }
+}
@@ -219,6 +219,8 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
 
     private BluetoothPbapVcardManager mVcardManager;
 
+    private PbapListingIndex mListingIndex;
+
     BluetoothPbapSimVcardManager mVcardSimManager;
 
     private int mOrderBy = ORDER_BY_INDEXED;
@@ -271,6 +273,7 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
         mCallback = callback;
         mContext = context;
         mVcardManager = new BluetoothPbapVcardManager(mContext);
+        mListingIndex = new PbapListingIndex(mVcardManager);
         mVcardSimManager = new BluetoothPbapSimVcardManager(mContext);
         mStateMachine = stateMachine;
         mPbapMethodProxy = BluetoothMethodProxy.getInstance();
@@ -875,37 +878,31 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             StringBuilder result, String type, ContactsType contactType) {
         int itemsFound = 0;
 
-        ArrayList<String> nameList = null;
-        if (mVcardSelector) {
-            if (contactType == ContactsType.TYPE_PHONEBOOK) {
-                nameList = mVcardManager.getSelectedPhonebookNameList(mOrderBy,
-                    appParamValue.vcard21, needSendBody, size, appParamValue.vCardSelector,
-                    appParamValue.vCardSelectorOperator);
-            } else if(contactType == ContactsType.TYPE_SIM) {
-                nameList = mVcardSimManager.getSIMPhonebookNameList(mOrderBy);
-            }
-        } else {
-            if (contactType == ContactsType.TYPE_PHONEBOOK) {
-                nameList = mVcardManager.getPhonebookNameList(mOrderBy);
-            } else if( contactType == ContactsType.TYPE_SIM) {
-                nameList = mVcardSimManager.getSIMPhonebookNameList(mOrderBy);
+        PbapListingIndex.Listing listing = null;
+        if (contactType == ContactsType.TYPE_PHONEBOOK) {
+            if (mVcardSelector) {
+                listing = mListingIndex.getSelectedListing(mOrderBy, appParamValue.vcard21,
+                        appParamValue.vCardSelector, appParamValue.vCardSelectorOperator);
+            } else {
+                listing = mListingIndex.getListing(mOrderBy);
             }
+        } else if (contactType == ContactsType.TYPE_SIM) {
+            listing = new PbapListingIndex.Listing(
+                    mVcardSimManager.getSIMPhonebookNameList(mOrderBy));
         }
 
+        final int listSize = listing.size();
         final int requestSize =
-                nameList.size() >= appParamValue.maxListCount ? appParamValue.maxListCount
-                        : nameList.size();
-        final int listSize = nameList.size();
-        String compareValue = "", currentValue;
+                listSize >= appParamValue.maxListCount ? appParamValue.maxListCount : listSize;
+        String compareValue = "";
 
         if (D) {
             Log.d(TAG, "search by " + type + ", requestSize=" + requestSize + " offset="
                     + appParamValue.listStartOffset + " searchValue=" + appParamValue.searchValue);
         }
 
+        ArrayList<Integer> savedPosList = new ArrayList<>();
         if (type.equals("number")) {
-            ArrayList<Integer> savedPosList = new ArrayList<>();
-            ArrayList<String> selectedNameList = new ArrayList<String>();
             // query the number, to get the names
             ArrayList<String> names =  new ArrayList<>();
             if (contactType == ContactsType.TYPE_PHONEBOOK) {
@@ -917,56 +914,28 @@ public class BluetoothPbapObexServer extends ServerRequestHandler {
             for (int i = 0; i < names.size(); i++) {
                 compareValue = names.get(i).trim();
                 if (D) Log.d(TAG, "compareValue=" + compareValue);
-                for (int pos = 0; pos < listSize; pos++) {
-                    currentValue = nameList.get(pos);
-                    if (V) {
-                        Log.d(TAG, "currentValue=" + currentValue);
-                    }
-                    if (currentValue.equals(compareValue)) {
-                        if (currentValue.contains(",")) {
-                            currentValue = currentValue.substring(0, currentValue.lastIndexOf(','));
-                        }
-                        selectedNameList.add(currentValue);
-                        savedPosList.add(pos);
-                    }
-                }
-            }
-
-            for (int j = appParamValue.listStartOffset;
-                    j < selectedNameList.size() && itemsFound < requestSize; j++) {
-                itemsFound++;
-                writeVCardEntry(savedPosList.get(j), selectedNameList.get(j), result);
+                savedPosList.addAll(listing.getPositions(compareValue));
             }
-
         } else {
-            ArrayList<Integer> savedPosList = new ArrayList<>();
-            ArrayList<String> selectedNameList = new ArrayList<String>();
             if (appParamValue.searchValue != null) {
                 compareValue = appParamValue.searchValue.trim().toLowerCase();
             }
 
-            for (int pos = 0; pos < listSize; pos++) {
-                currentValue = nameList.get(pos);
-
-                if (currentValue.contains(",")) {
-                    currentValue = currentValue.substring(0, currentValue.lastIndexOf(','));
-                }
-
-                if (appParamValue.searchValue != null) {
+            if (appParamValue.searchValue != null) {
+                for (int pos = 0; pos < listSize; pos++) {
                     if (appParamValue.searchValue.isEmpty()
-                            || ((currentValue.toLowerCase())
-                                               .startsWith(compareValue.toLowerCase()))) {
-                        selectedNameList.add(currentValue);
+                            || listing.mSearchKeys[pos].startsWith(compareValue)) {
                         savedPosList.add(pos);
                     }
                 }
             }
+        }
 
-            for (int i = appParamValue.listStartOffset;
-                    i < selectedNameList.size() && itemsFound < requestSize; i++) {
-                itemsFound++;
-                writeVCardEntry(savedPosList.get(i), selectedNameList.get(i), result);
-            }
+        for (int i = appParamValue.listStartOffset;
+                i < savedPosList.size() && itemsFound < requestSize; i++) {
+            itemsFound++;
+            int pos = savedPosList.get(i);
+            writeVCardEntry(pos, listing.mNames[pos], result);
         }
         return itemsFound;
     }
@@ -194,6 +194,7 @@ public class BluetoothPbapService extends ProfileService implements IObexConnect
         @Override
         public void onChange(boolean selfChange) {
             Log.d(TAG, " onChange on contact uri ");
+            PbapListingIndex.onContactsChanged();
             sendUpdateRequest();
         }
     }
@@ -51,6 +51,9 @@ public class BluetoothPbapSimVcardManager {
 
     private static final boolean V = BluetoothPbapService.VERBOSE;
 
+    private static final BluetoothPbapVcardManager.VCardFilter NO_FILTER =
+            new BluetoothPbapVcardManager.VCardFilter(null);
+
     @VisibleForTesting
     public static final String FAILURE_REASON_FAILED_TO_GET_DATABASE_INFO =
         "Failed to get database information";
@@ -400,7 +403,8 @@ public class BluetoothPbapSimVcardManager {
                             + composer.getErrorReason() + ", count:" + count);
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
-                buffer.writeVCard(vcard);
+                buffer.writeVCard(vcard, NO_FILTER, vcardType21,
+                        /*stripTelephoneNumbers=*/ false);
             }
         } finally {
             if (composer != null) {
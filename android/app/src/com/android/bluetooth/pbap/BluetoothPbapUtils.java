@@ -68,8 +68,9 @@ class BluetoothPbapUtils {
 
     static AtomicLong sDbIdentifier = new AtomicLong();
 
-    static long sPrimaryVersionCounter = 0;
-    static long sSecondaryVersionCounter = 0;
+    // Only updated from the service handler thread, but read from the OBEX server threads.
+    static volatile long sPrimaryVersionCounter = 0;
+    static volatile long sSecondaryVersionCounter = 0;
     @VisibleForTesting
     static long sTotalContacts = 0;
 
@@ -62,9 +62,10 @@ import com.android.vcard.VCardComposer;
 import com.android.vcard.VCardConfig;
 import com.android.vcard.VCardPhoneNumberTranslationCallback;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 
 public class BluetoothPbapVcardManager {
     private static final String TAG = "BluetoothPbapVcardManager";
@@ -271,8 +272,10 @@ public class BluetoothPbapVcardManager {
         return list;
     }
 
-    public final ArrayList<String> getPhonebookNameList(final int orderByWhat) {
-        ArrayList<String> nameList = new ArrayList<String>();
+    /**
+     * Returns the name listed for the owner vCard, handle 0.
+     */
+    String getOwnerName() {
         //Owner vCard enhancement. Use "ME" profile if configured
         String ownerName = null;
         if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
@@ -281,11 +284,15 @@ public class BluetoothPbapVcardManager {
         if (ownerName == null || ownerName.length() == 0) {
             ownerName = BluetoothPbapService.getLocalPhoneName();
         }
-        if (ownerName != null) {
-            nameList.add(ownerName);
-        }
         //End enhancement
+        return ownerName;
+    }
 
+    /**
+     * Returns the "display_name,contact_id" of every contact, without the owner.
+     */
+    ArrayList<String> getContactNameIdList(final int orderByWhat) {
+        ArrayList<String> nameList = new ArrayList<String>();
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
         // By default order is indexed
@@ -313,21 +320,20 @@ public class BluetoothPbapVcardManager {
         return nameList;
     }
 
-    final ArrayList<String> getSelectedPhonebookNameList(final int orderByWhat,
-            final boolean vcardType21, int needSendBody, int pbSize, byte[] selector,
-            String vCardSelectorOperator) {
-        ArrayList<String> nameList = new ArrayList<String>();
-        PropertySelector vcardselector = new PropertySelector(selector);
-        VCardComposer composer = null;
+    /**
+     * Composes every contact once and returns the {@link PropertySelector} mask of its
+     * properties by contact id, or null if the contacts could not be read.
+     */
+    HashMap<Long, Long> getContactPropertyMasks(final boolean vcardType21) {
         int vcardType;
-
         if (vcardType21) {
             vcardType = VCardConfig.VCARD_TYPE_V21_GENERIC;
         } else {
             vcardType = VCardConfig.VCARD_TYPE_V30_GENERIC;
         }
 
-        composer = BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
+        VCardComposer composer =
+                BluetoothPbapUtils.createFilteredVCardComposer(mContext, vcardType, null);
         composer.setPhoneNumberTranslationCallback(new VCardPhoneNumberTranslationCallback() {
 
             @Override
@@ -339,91 +345,52 @@ public class BluetoothPbapVcardManager {
             }
         });
 
-        // Owner vCard enhancement. Use "ME" profile if configured
-        String ownerName = null;
-        if (BluetoothPbapConfig.useProfileForOwnerVcard()) {
-            ownerName = BluetoothPbapUtils.getProfileName(mContext);
-        }
-        if (ownerName == null || ownerName.length() == 0) {
-            ownerName = BluetoothPbapService.getLocalPhoneName();
-        }
-        nameList.add(ownerName);
-        // End enhancement
-
         final Uri myUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
         Cursor contactCursor = null;
         try {
             contactCursor = BluetoothMethodProxy.getInstance().contentResolverQuery(mResolver,
-                    myUri, PHONES_CONTACTS_PROJECTION, null, null,
-                    Phone.CONTACT_ID);
-
-            ArrayList<String> contactNameIdList = new ArrayList<String>();
-            appendDistinctNameIdList(contactNameIdList,
-                    mContext.getString(android.R.string.unknownName), contactCursor);
-
-            if (contactCursor != null) {
-                if (!composer.init(contactCursor)) {
-                    return nameList;
-                }
-                int idColumn = contactCursor.getColumnIndex(Data.CONTACT_ID);
-                if (idColumn < 0) {
-                    idColumn = contactCursor.getColumnIndex(Contacts._ID);
-                }
-
-                int i = 0;
-                contactCursor.moveToFirst();
-                while (!contactCursor.isAfterLast()) {
-                    String vcard = composer.buildVCard(RawContactsEntity.queryRawContactEntity(
-                                mResolver, contactCursor.getLong(idColumn)));
-                    if (!contactCursor.moveToNext()) {
-                        Log.e(TAG, "Cursor#moveToNext() returned false");
-                    }
-                    if (vcard == null) {
-                        Log.e(TAG, "Failed to read a contact.");
-                        return nameList;
-                    } else if (vcard.isEmpty()) {
-                        Log.i(TAG, "Contact may have been deleted during operation");
-                        continue;
-                    }
-                    if (V) {
-                        Log.v(TAG, "Checking selected bits in the vcard composer" + vcard);
-                    }
+                    myUri, PHONES_CONTACTS_PROJECTION, null, null, Phone.CONTACT_ID);
+            if (contactCursor == null || !composer.init(contactCursor)) {
+                return null;
+            }
+            int idColumn = contactCursor.getColumnIndex(Data.CONTACT_ID);
+            if (idColumn < 0) {
+                idColumn = contactCursor.getColumnIndex(Contacts._ID);
+            }
 
-                    if (!vcardselector.checkVCardSelector(vcard, vCardSelectorOperator)) {
-                        Log.e(TAG, "vcard selector check fail");
-                        vcard = null;
-                        pbSize--;
-                        continue;
-                    } else {
-                        String name = getNameFromVCard(vcard);
-                        if (TextUtils.isEmpty(name)) {
-                            name = mContext.getString(android.R.string.unknownName);
-                        }
-                        nameList.add(contactNameIdList.get(i));
-                    }
-                    i++;
+            HashMap<Long, Long> masks = new HashMap<>();
+            contactCursor.moveToPosition(-1);
+            while (contactCursor.moveToNext()) {
+                long contactId = contactCursor.getLong(idColumn);
+                // The cursor has a row per phone number of a contact.
+                if (masks.containsKey(contactId)) {
+                    continue;
                 }
-                if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_INDEXED) {
-                    if (V) {
-                        Log.v(TAG, "getPhonebookNameList, order by index");
-                    }
-                    // Do not need to do anything, as we sort it by index already
-                } else if (orderByWhat == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
-                    if (V) {
-                        Log.v(TAG, "getPhonebookNameList, order by alpha");
-                    }
-                    Collections.sort(nameList);
+                String vcard = composer.buildVCard(
+                        RawContactsEntity.queryRawContactEntity(mResolver, contactId));
+                if (vcard == null) {
+                    Log.e(TAG, "Failed to read a contact.");
+                    return null;
+                } else if (vcard.isEmpty()) {
+                    Log.i(TAG, "Contact may have been deleted during operation");
+                    continue;
                 }
+                masks.put(contactId, PropertySelector.getPropertyMask(vcard));
             }
+            if (V) {
+                Log.v(TAG, "getContactPropertyMasks, " + masks.size() + " contacts");
+            }
+            return masks;
         } catch (CursorWindowAllocationException e) {
-            Log.e(TAG, "CursorWindowAllocationException while getting Phonebook name list");
+            Log.e(TAG, "CursorWindowAllocationException while getting contact properties");
         } finally {
+            composer.terminate();
             if (contactCursor != null) {
                 contactCursor.close();
                 contactCursor = null;
             }
         }
-        return nameList;
+        return null;
     }
 
     public final ArrayList<String> getContactNamesByNumber(final String phoneNumber) {
@@ -780,14 +747,13 @@ public class BluetoothPbapVcardManager {
                     Log.v(TAG, "vCard from composer: " + vcard);
                 }
 
-                vcard = vcardfilter.apply(vcard, vcardType21);
-                vcard = stripTelephoneNumber(vcard);
-
                 if (V) {
-                    Log.v(TAG, "vCard after cleanup: " + vcard);
+                    Log.v(TAG, "vCard after cleanup: "
+                            + cleanUpVCard(vcard, vcardfilter, vcardType21, true));
                 }
 
-                if (!buffer.writeVCard(vcard)) {
+                if (!buffer.writeVCard(vcard, vcardfilter, vcardType21,
+                        /*stripTelephoneNumbers=*/ true)) {
                     // onEntryCreate() already emits error.
                     return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                 }
@@ -895,14 +861,13 @@ public class BluetoothPbapVcardManager {
                 Log.e(TAG, "vcard selector check pass");
 
                 if (needSendBody == NEED_SEND_BODY) {
-                    vcard = vcardfilter.apply(vcard, vcardType21);
-                    vcard = stripTelephoneNumber(vcard);
-
                     if (V) {
-                        Log.v(TAG, "vCard after cleanup: " + vcard);
+                        Log.v(TAG, "vCard after cleanup: "
+                                + cleanUpVCard(vcard, vcardfilter, vcardType21, true));
                     }
 
-                    if (!buffer.writeVCard(vcard)) {
+                    if (!buffer.writeVCard(vcard, vcardfilter, vcardType21,
+                            /*stripTelephoneNumbers=*/ true)) {
                         // onEntryCreate() already emits error.
                         return ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
                     }
@@ -974,13 +939,12 @@ public class BluetoothPbapVcardManager {
                             Log.i(TAG, "Call Log may have been deleted during operation");
                             continue;
                         }
-                        vcard = vcardfilter.apply(vcard, vcardType21);
-
                         if (V) {
                             Log.v(TAG, "Vcard Entry:");
                             Log.v(TAG, vcard);
                         }
-                        buffer.writeVCard(vcard);
+                        buffer.writeVCard(vcard, vcardfilter, vcardType21,
+                                /*stripTelephoneNumbers=*/ false);
                     }
                 } else {
                     if (vcard == null) {
@@ -1015,37 +979,80 @@ public class BluetoothPbapVcardManager {
     }
 
     public String stripTelephoneNumber(String vCard) {
+        String stripedVCard = cleanUpVCard(vCard, new VCardFilter(null), false, true);
+        if (V) {
+            Log.v(TAG, "vCard with stripped telephone no.: " + stripedVCard);
+        }
+        return stripedVCard;
+    }
+
+    /**
+     * Returns {@code vCard} as written by {@link #appendVCard}.
+     */
+    static String cleanUpVCard(String vCard, VCardFilter filter, boolean vCardType21,
+            boolean stripTelephoneNumbers) {
+        StringBuilder out = new StringBuilder(vCard.length());
+        try {
+            appendVCard(vCard, filter, vCardType21, stripTelephoneNumbers, out);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw.
+            throw new AssertionError(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends {@code vCard} without the lines excluded by {@code filter} and, if
+     * {@code stripTelephoneNumbers}, without the '-', '(', ')' and ' ' of its TEL numbers. Empty
+     * lines are dropped, unless the vCard is appended unchanged.
+     */
+    static void appendVCard(String vCard, VCardFilter filter, boolean vCardType21,
+            boolean stripTelephoneNumbers, Appendable out) throws IOException {
+        if (filter.isEmpty() && !stripTelephoneNumbers) {
+            out.append(vCard);
+            return;
+        }
         String separator = System.getProperty("line.separator");
-        String[] attr = vCard.split(separator);
-        String stripedVCard = "";
-        for (int i = 0; i < attr.length; i++) {
-            if (attr[i].startsWith("TEL")) {
-                String[] vTagAndTel = attr[i].split(":", 2);
-                int telLenBefore = vTagAndTel[1].length();
-                // Remove '-', '(', ')' or ' ' from TEL number
-                vTagAndTel[1] = vTagAndTel[1].replace("-", "")
-                                             .replace("(", "")
-                                             .replace(")", "")
-                                             .replace(" ", "");
-                if (vTagAndTel[1].length() < telLenBefore) {
-                    if (V) {
-                        Log.v(TAG, "Fixing vCard TEL to " + vTagAndTel[1]);
+        boolean filteredIn = false;
+        int start = 0;
+        while (start < vCard.length()) {
+            int end = vCard.indexOf(separator, start);
+            if (end < 0) {
+                end = vCard.length();
+            }
+            if (end > start) {
+                filteredIn = filter.isEmpty()
+                        || filter.isLineFilteredIn(vCard, start, end, vCardType21, filteredIn);
+                if (filteredIn) {
+                    if (stripTelephoneNumbers) {
+                        appendStrippedLine(vCard, start, end, out);
+                    } else {
+                        out.append(vCard, start, end);
                     }
-                    attr[i] = new StringBuilder().append(vTagAndTel[0]).append(":")
-                                                 .append(vTagAndTel[1]).toString();
+                    out.append(separator);
                 }
             }
+            start = end + separator.length();
         }
+    }
 
-        for (int i = 0; i < attr.length; i++) {
-            if (!attr[i].isEmpty()) {
-                stripedVCard = stripedVCard.concat(attr[i] + separator);
-            }
+    private static void appendStrippedLine(String vCard, int start, int end, Appendable out)
+            throws IOException {
+        int value = vCard.startsWith("TEL", start) ? vCard.indexOf(':', start) + 1 : 0;
+        if (value <= 0 || value > end) {
+            out.append(vCard, start, end);
+            return;
         }
-        if (V) {
-            Log.v(TAG, "vCard with stripped telephone no.: " + stripedVCard);
+        out.append(vCard, start, value);
+        int run = value;
+        for (int i = value; i < end; i++) {
+            char c = vCard.charAt(i);
+            if (c == '-' || c == '(' || c == ')' || c == ' ') {
+                out.append(vCard, run, i);
+                run = i + 1;
+            }
         }
-        return stripedVCard;
+        out.append(vCard, run, end);
     }
 
     public static class VCardFilter {
@@ -1077,7 +1084,6 @@ public class BluetoothPbapVcardManager {
             }
         }
 
-        private static final String SEPARATOR = System.getProperty("line.separator");
         private final byte[] mFilter;
 
         //This function returns true if the attributes needs to be included in the filtered vcard.
@@ -1108,42 +1114,45 @@ public class BluetoothPbapVcardManager {
             if (mFilter == null) {
                 return vCard;
             }
-            String[] lines = vCard.split(SEPARATOR);
-            StringBuilder filteredVCard = new StringBuilder();
-            boolean filteredIn = false;
-
-            for (String line : lines) {
-                // Check whether the current property is changing (ignoring multi-line properties)
-                // and determine if the current property is filtered in.
-                if (!Character.isWhitespace(line.charAt(0)) && !line.startsWith("=")) {
-                    String currentProp = line.split("[;:]")[0];
-                    filteredIn = true;
-
-                    for (FilterBit bit : FilterBit.values()) {
-                        if (bit.prop.equals(currentProp)) {
-                            filteredIn = isFilteredIn(bit, vCardType21);
-                            break;
-                        }
-                    }
+            return cleanUpVCard(vCard, this, vCardType21, false);
+        }
 
-                    // Since PBAP does not have filter bits for IM and SIP,
-                    // exclude them by default. Easiest way is to exclude all
-                    // X- fields, except date time....
-                    if (currentProp.startsWith("X-")) {
-                        filteredIn = false;
-                        if (currentProp.equals("X-IRMC-CALL-DATETIME")) {
-                            filteredIn = true;
-                        }
-                    }
-                }
+        /** Returns whether {@link #apply} drops no line. */
+        boolean isEmpty() {
+            return mFilter == null;
+        }
 
-                // Build filtered vCard
-                if (filteredIn) {
-                    filteredVCard.append(line + SEPARATOR);
+        /**
+         * Returns whether the non empty line of {@code vCard} in [{@code start}, {@code end}) is
+         * kept by {@link #apply}, {@code filteredIn} telling if the previous line was kept.
+         */
+        boolean isLineFilteredIn(String vCard, int start, int end, boolean vCardType21,
+                boolean filteredIn) {
+            // Check whether the current property is changing (ignoring multi-line properties)
+            // and determine if the current property is filtered in.
+            if (Character.isWhitespace(vCard.charAt(start)) || vCard.charAt(start) == '=') {
+                return filteredIn;
+            }
+            int propEnd = start;
+            while (propEnd < end && vCard.charAt(propEnd) != ';'
+                    && vCard.charAt(propEnd) != ':') {
+                propEnd++;
+            }
+            int propLength = propEnd - start;
+
+            // Since PBAP does not have filter bits for IM and SIP,
+            // exclude them by default. Easiest way is to exclude all
+            // X- fields, except date time....
+            if (vCard.startsWith("X-", start)) {
+                return propLength == FilterBit.DATETIME.prop.length()
+                        && vCard.startsWith(FilterBit.DATETIME.prop, start);
+            }
+            for (FilterBit bit : FilterBit.values()) {
+                if (propLength == bit.prop.length() && vCard.startsWith(bit.prop, start)) {
+                    return isFilteredIn(bit, vCardType21);
                 }
             }
-
-            return filteredVCard.toString();
+            return true;
         }
     }
 
@@ -1222,6 +1231,57 @@ public class BluetoothPbapVcardManager {
             return result;
         }
 
+        /**
+         * Same as {@link #checkVCardSelector} for a vCard whose properties are
+         * {@code propertyMask}, as returned by {@link #getPropertyMask}.
+         */
+        boolean checkPropertyMask(long propertyMask, String vCardSelectorOperator) {
+            long selected = 0;
+            for (PropertyMask mask : PropertyMask.values()) {
+                if (checkBit(mask.mBitPosition, mSelector)) {
+                    selected |= 1L << mask.mBitPosition;
+                }
+            }
+
+            if (vCardSelectorOperator.equals("0")) {
+                return selected == 0 || (propertyMask & selected) != 0;
+            } else if (vCardSelectorOperator.equals("1")) {
+                return (propertyMask & selected) == selected;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the bits of the selectable properties {@code vCard} has, in one pass.
+         */
+        static long getPropertyMask(String vCard) {
+            long propertyMask = 0;
+            int start = 0;
+            while (start < vCard.length()) {
+                int end = vCard.indexOf(SEPARATOR, start);
+                if (end < 0) {
+                    end = vCard.length();
+                }
+                if (end > start && !Character.isWhitespace(vCard.charAt(start))
+                        && vCard.charAt(start) != '=') {
+                    int propEnd = start;
+                    while (propEnd < end && vCard.charAt(propEnd) != ';'
+                            && vCard.charAt(propEnd) != ':') {
+                        propEnd++;
+                    }
+                    for (PropertyMask mask : PropertyMask.values()) {
+                        if (propEnd - start == mask.mProperty.length()
+                                && vCard.startsWith(mask.mProperty, start)) {
+                            propertyMask |= 1L << mask.mBitPosition;
+                            break;
+                        }
+                    }
+                }
+                start = end + SEPARATOR.length();
+            }
+            return propertyMask;
+        }
+
         private boolean checkBit(int attrBit, byte[] selector) {
             int offset = (attrBit / 8) + 1;
             if (mSelector == null || offset > mSelector.length) {
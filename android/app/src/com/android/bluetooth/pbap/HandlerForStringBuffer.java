@@ -18,21 +18,59 @@ package com.android.bluetooth.pbap;
 
 import android.util.Log;
 
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
 import com.android.obex.Operation;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Handler to emit vCards to PCE.
+ *
+ * The composed vCards given with their filter are encoded line by line into a buffer of the size
+ * of an OBEX packet, which is written out once full. The buffer is kept for the next pull.
  */
 public class HandlerForStringBuffer {
     private static final String TAG = "HandlerForStringBuffer";
+    private static final int MIN_BUFFER_SIZE = 1024;
+
+    // Buffer of the last pull, taken by the next one.
+    private static final AtomicReference<ByteBuffer> sBuffer = new AtomicReference<>();
 
     private final Operation mOperation;
     private final String mOwnerVCard;
+    private final CharsetEncoder mEncoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final Appendable mEncoderOutput = new Appendable() {
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            encode(csq, 0, csq.length());
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            encode(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            encode(String.valueOf(c), 0, 1);
+            return this;
+        }
+    };
 
     private OutputStream mOutputStream;
+    private ByteBuffer mBuffer;
 
     public HandlerForStringBuffer(Operation op, String ownerVCard) {
         mOperation = op;
@@ -45,6 +83,7 @@ public class HandlerForStringBuffer {
     public boolean init() {
         try {
             mOutputStream = mOperation.openOutputStream();
+            mBuffer = acquireBuffer(mOperation.getMaxPacketSize());
             if (mOwnerVCard != null) {
                 return writeVCard(mOwnerVCard);
             }
@@ -58,6 +97,7 @@ public class HandlerForStringBuffer {
     public boolean writeVCard(String vCard) {
         try {
             if (vCard != null) {
+                flushBuffer();
                 mOutputStream.write(vCard.getBytes());
                 return true;
             }
@@ -67,7 +107,70 @@ public class HandlerForStringBuffer {
         return false;
     }
 
+    /**
+     * Writes a composed vCard cleaned up by {@link BluetoothPbapVcardManager#appendVCard},
+     * without building an intermediate string.
+     */
+    public boolean writeVCard(String vCard, VCardFilter filter, boolean vCardType21,
+            boolean stripTelephoneNumbers) {
+        if (vCard == null) {
+            return false;
+        }
+        try {
+            BluetoothPbapVcardManager.appendVCard(vCard, filter, vCardType21,
+                    stripTelephoneNumbers, mEncoderOutput);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "write failed", e);
+        }
+        return false;
+    }
+
+    // The range must not split a surrogate pair, which holds as it is delimited by ASCII chars.
+    private void encode(CharSequence s, int start, int end) throws IOException {
+        if (start == end) {
+            return;
+        }
+        CharBuffer in = CharBuffer.wrap(s, start, end);
+        while (mEncoder.encode(in, mBuffer, false).isOverflow()) {
+            flushBuffer();
+        }
+        if (in.hasRemaining()) {
+            // A high surrogate ending the string, replaced as String#getBytes() does.
+            if (!mBuffer.hasRemaining()) {
+                flushBuffer();
+            }
+            mBuffer.put(mEncoder.replacement());
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mBuffer != null && mBuffer.position() > 0) {
+            mOutputStream.write(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.clear();
+        }
+    }
+
+    private static ByteBuffer acquireBuffer(int size) {
+        size = Math.max(size, MIN_BUFFER_SIZE);
+        ByteBuffer buffer = sBuffer.getAndSet(null);
+        if (buffer == null || buffer.capacity() != size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        return buffer;
+    }
+
     public void terminate() {
+        if (mBuffer != null) {
+            try {
+                flushBuffer();
+            } catch (IOException e) {
+                Log.e(TAG, "write failed", e);
+            }
+            mBuffer.clear();
+            sBuffer.set(mBuffer);
+            mBuffer = null;
+        }
         boolean result = BluetoothPbapObexServer.closeStream(mOutputStream, mOperation);
         if (BluetoothPbapService.VERBOSE) {
             if (result) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contacts listing of a PBAP session, kept until the contacts change.
+ *
+ * Clients page through the same listing with several requests, and search it. The contacts are
+ * read once per order, and composed once to know their properties if a vCard selector is used,
+ * instead of for every request.
+ */
+class PbapListingIndex {
+    private static final String TAG = "PbapListingIndex";
+
+    private static final boolean V = BluetoothPbapService.VERBOSE;
+
+    // Bumped on every contacts change, as the primary version counter is only updated later,
+    // once the contacts are loaded.
+    private static final AtomicLong sContactsChanges = new AtomicLong();
+
+    /**
+     * A listing, the position of an entry is its handle.
+     */
+    static class Listing {
+        // "display_name,contact_id", as the entries are looked up by number.
+        final ArrayList<String> mNameIds;
+        // Names without the contact id, as sent to the client.
+        final String[] mNames;
+        // Lower case names, to search by name.
+        final String[] mSearchKeys;
+
+        private HashMap<String, ArrayList<Integer>> mPositions;
+
+        Listing(ArrayList<String> nameIds) {
+            mNameIds = nameIds;
+            mNames = new String[nameIds.size()];
+            mSearchKeys = new String[nameIds.size()];
+            for (int i = 0; i < mNames.length; i++) {
+                String name = nameIds.get(i);
+                if (name.contains(",")) {
+                    name = name.substring(0, name.lastIndexOf(','));
+                }
+                mNames[i] = name;
+                mSearchKeys[i] = name.toLowerCase();
+            }
+        }
+
+        int size() {
+            return mNames.length;
+        }
+
+        /**
+         * Returns the positions of {@code nameId} in the listing.
+         */
+        List<Integer> getPositions(String nameId) {
+            if (mPositions == null) {
+                mPositions = new HashMap<>();
+                for (int i = 0; i < mNameIds.size(); i++) {
+                    mPositions.computeIfAbsent(mNameIds.get(i), k -> new ArrayList<>()).add(i);
+                }
+            }
+            List<Integer> positions = mPositions.get(nameId);
+            return positions != null ? positions : Collections.emptyList();
+        }
+    }
+
+    private final BluetoothPbapVcardManager mVcardManager;
+
+    private long mVersion = -1;
+    private long mContactsChanges = -1;
+    // Contacts without the owner, by order.
+    private ArrayList<String> mIndexedContacts;
+    private ArrayList<String> mAlphabeticalContacts;
+    // Properties of the contacts by contact id, for vCards of mPropertyMasksVcard21.
+    private HashMap<Long, Long> mPropertyMasks;
+    private boolean mPropertyMasksVcard21;
+
+    // Last listing served and what it was built for.
+    private Listing mListing;
+    private String mListingKey;
+
+    PbapListingIndex(BluetoothPbapVcardManager vcardManager) {
+        mVcardManager = vcardManager;
+    }
+
+    /**
+     * Drops the listings of every session. Called when the contacts provider notifies a change.
+     */
+    static void onContactsChanged() {
+        sContactsChanges.incrementAndGet();
+    }
+
+    /**
+     * Returns the listing of the owner and every contact, by {@code orderBy}.
+     */
+    Listing getListing(int orderBy) {
+        return getListing(orderBy, false, null, null);
+    }
+
+    /**
+     * Returns the listing of the owner and the contacts matching {@code vCardSelector}, by
+     * {@code orderBy}.
+     */
+    Listing getSelectedListing(int orderBy, boolean vcard21, byte[] vCardSelector,
+            String vCardSelectorOperator) {
+        return getListing(orderBy, vcard21, vCardSelector, vCardSelectorOperator);
+    }
+
+    private Listing getListing(int orderBy, boolean vcard21, byte[] vCardSelector,
+            String vCardSelectorOperator) {
+        checkVersion();
+
+        String ownerName = mVcardManager.getOwnerName();
+        String key = orderBy + "/" + ownerName;
+        if (vCardSelector != null) {
+            key += "/" + vcard21 + "/" + Arrays.toString(vCardSelector) + "/"
+                    + vCardSelectorOperator;
+        }
+        if (mListing != null && Objects.equals(key, mListingKey)) {
+            if (V) {
+                Log.v(TAG, "Listing of version " + mVersion + " reused, key=" + key);
+            }
+            return mListing;
+        }
+
+        ArrayList<String> nameIds = new ArrayList<>();
+        boolean complete = true;
+        if (ownerName != null) {
+            nameIds.add(ownerName);
+        }
+        if (vCardSelector == null) {
+            nameIds.addAll(getContacts(orderBy));
+        } else {
+            BluetoothPbapVcardManager.PropertySelector selector =
+                    new BluetoothPbapVcardManager.PropertySelector(vCardSelector);
+            HashMap<Long, Long> propertyMasks = getPropertyMasks(vcard21);
+            if (propertyMasks != null) {
+                for (String nameId : getContacts(BluetoothPbapObexServer.ORDER_BY_INDEXED)) {
+                    Long propertyMask = propertyMasks.get(getContactId(nameId));
+                    if (propertyMask != null
+                            && selector.checkPropertyMask(propertyMask, vCardSelectorOperator)) {
+                        nameIds.add(nameId);
+                    }
+                }
+            } else {
+                complete = false;
+            }
+            if (orderBy == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+                Collections.sort(nameIds);
+            }
+        }
+
+        Listing listing = new Listing(nameIds);
+        if (V) {
+            Log.v(TAG, "Listing of version " + mVersion + " built, key=" + key + " size="
+                    + listing.size());
+        }
+        // Read the contacts again next time if they could not be read now.
+        if (complete) {
+            mListing = listing;
+            mListingKey = key;
+        }
+        return listing;
+    }
+
+    private void checkVersion() {
+        long version = BluetoothPbapUtils.sPrimaryVersionCounter;
+        long contactsChanges = sContactsChanges.get();
+        if (version != mVersion || contactsChanges != mContactsChanges) {
+            if (V) {
+                Log.v(TAG, "Contacts changed, version " + mVersion + " -> " + version);
+            }
+            mVersion = version;
+            mContactsChanges = contactsChanges;
+            mIndexedContacts = null;
+            mAlphabeticalContacts = null;
+            mPropertyMasks = null;
+            mListing = null;
+            mListingKey = null;
+        }
+    }
+
+    private ArrayList<String> getContacts(int orderBy) {
+        if (orderBy == BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL) {
+            if (mAlphabeticalContacts == null) {
+                mAlphabeticalContacts = mVcardManager.getContactNameIdList(orderBy);
+            }
+            return mAlphabeticalContacts;
+        }
+        if (mIndexedContacts == null) {
+            mIndexedContacts = mVcardManager.getContactNameIdList(orderBy);
+        }
+        return mIndexedContacts;
+    }
+
+    private HashMap<Long, Long> getPropertyMasks(boolean vcard21) {
+        if (mPropertyMasks == null || mPropertyMasksVcard21 != vcard21) {
+            mPropertyMasks = mVcardManager.getContactPropertyMasks(vcard21);
+            mPropertyMasksVcard21 = vcard21;
+        }
+        return mPropertyMasks;
+    }
+
+    @VisibleForTesting
+    static long getContactId(String nameId) {
+        try {
+            return Long.parseLong(nameId.substring(nameId.lastIndexOf(',') + 1));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "No contact id in " + nameId);
+            return -1;
+        }
+    }
+}
@@ -31,6 +31,8 @@ final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
 
     private int mSize;
 
+    private PhonebookVersion mVersion;
+
     BluetoothPbapRequestPullPhoneBookSize(String pbName, long filter) {
         mHeaderSet.setHeader(HeaderSet.NAME, pbName);
 
@@ -59,9 +61,27 @@ final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
         if (oap.exists(OAP_TAGID_PHONEBOOK_SIZE)) {
             mSize = oap.getShort(OAP_TAGID_PHONEBOOK_SIZE);
         }
+
+        // Only sent by servers supporting database identifiers and folder version counters, and
+        // for phonebooks but not call histories.
+        if (oap.exists(OAP_TAGID_DATABASE_IDENTIFIER)
+                && oap.exists(OAP_TAGID_PRIMARY_VERSION_COUNTER)
+                && oap.exists(OAP_TAGID_SECONDARY_VERSION_COUNTER)) {
+            mVersion = new PhonebookVersion(oap.getByteArray(OAP_TAGID_DATABASE_IDENTIFIER),
+                    oap.getByteArray(OAP_TAGID_PRIMARY_VERSION_COUNTER),
+                    oap.getByteArray(OAP_TAGID_SECONDARY_VERSION_COUNTER));
+        }
     }
 
     public int getSize() {
         return mSize;
     }
+
+    /**
+     * Returns the database identifier and folder versions of the phonebook, or null if the server
+     * didn't send them.
+     */
+    public PhonebookVersion getVersion() {
+        return mVersion;
+    }
 }
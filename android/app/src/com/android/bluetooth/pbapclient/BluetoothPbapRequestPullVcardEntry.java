@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.accounts.Account;
+import android.util.Log;
+
+import com.android.bluetooth.ObexAppParameters;
+import com.android.obex.HeaderSet;
+import com.android.vcard.VCardEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pulls a single entry of the current folder by handle, PBAP v1.2.3 Sec 5.4.
+ */
+final class BluetoothPbapRequestPullVcardEntry extends BluetoothPbapRequest {
+
+    private static final boolean VDBG = Utils.VDBG;
+
+    private static final String TAG = "BtPbapReqPullVcardEntry";
+
+    private static final String TYPE = "x-bt/vcard";
+
+    private BluetoothPbapVcardList mResponse;
+
+    private final Account mAccount;
+
+    private final byte mFormat;
+
+    BluetoothPbapRequestPullVcardEntry(String handle, Account account, long filter, byte format) {
+        mAccount = account;
+
+        mHeaderSet.setHeader(HeaderSet.NAME, handle);
+
+        mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
+
+        ObexAppParameters oap = new ObexAppParameters();
+
+        /* make sure format is one of allowed values */
+        if (format != PbapClientConnectionHandler.VCARD_TYPE_21
+                && format != PbapClientConnectionHandler.VCARD_TYPE_30) {
+            format = PbapClientConnectionHandler.VCARD_TYPE_21;
+        }
+
+        if (filter != 0) {
+            oap.add(OAP_TAGID_FILTER, filter);
+        }
+
+        oap.add(OAP_TAGID_FORMAT, format);
+
+        oap.addToHeaderSet(mHeaderSet);
+
+        mFormat = format;
+    }
+
+    @Override
+    protected void readResponse(InputStream stream) throws IOException {
+        if (VDBG) Log.v(TAG, "readResponse");
+
+        mResponse = new BluetoothPbapVcardList(mAccount, stream, mFormat);
+    }
+
+    /**
+     * Returns the pulled entry, or null if the response had none.
+     */
+    public VCardEntry getEntry() {
+        if (mResponse == null || mResponse.getCount() == 0) {
+            return null;
+        }
+        return mResponse.getFirst();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.util.Log;
+
+import com.android.bluetooth.ObexAppParameters;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.obex.HeaderSet;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+
+/**
+ * Pulls the handles and names of the entries of the current folder, PBAP v1.2.3 Sec 5.3.
+ */
+final class BluetoothPbapRequestPullVcardListing extends BluetoothPbapRequest {
+
+    private static final boolean VDBG = Utils.VDBG;
+
+    private static final String TAG = "BtPbapReqPullVcardListing";
+
+    private static final String TYPE = "x-bt/vcard-listing";
+
+    private static final byte ORDER_INDEXED = 0x00;
+
+    private final LinkedHashMap<String, String> mHandles = new LinkedHashMap<>();
+
+    BluetoothPbapRequestPullVcardListing() {
+        // An empty name is the current folder.
+        mHeaderSet.setEmptyNameHeader();
+
+        mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
+
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(OAP_TAGID_ORDER, ORDER_INDEXED);
+        oap.add(OAP_TAGID_MAX_LIST_COUNT, (short) 65535);
+        oap.addToHeaderSet(mHeaderSet);
+    }
+
+    @Override
+    protected void readResponse(InputStream stream) throws IOException {
+        if (VDBG) Log.v(TAG, "readResponse");
+
+        parse(stream, mHandles);
+        if (VDBG) {
+            Log.d(TAG, "Read " + mHandles.size() + " handles.");
+        }
+    }
+
+    @VisibleForTesting
+    static void parse(InputStream stream, LinkedHashMap<String, String> handles)
+            throws IOException {
+        try {
+            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+            xpp.setInput(stream, "utf-8");
+
+            int event = xpp.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG && xpp.getName().equals("card")) {
+                    String handle = xpp.getAttributeValue(null, "handle");
+                    if (handle != null) {
+                        String name = xpp.getAttributeValue(null, "name");
+                        handles.put(handle, name != null ? name : "");
+                    }
+                }
+                event = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Invalid vCard listing", e);
+        }
+    }
+
+    /**
+     * Returns the names of the entries by handle, in handle order.
+     */
+    public LinkedHashMap<String, String> getHandles() {
+        return mHandles;
+    }
+}
@@ -25,6 +25,7 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.util.Log;
@@ -41,6 +42,9 @@ import com.android.vcard.VCardEntry;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 /* Bluetooth/pbapclient/PbapClientConnectionHandler is responsible
  * for connecting, disconnecting and downloading contacts from the
@@ -48,11 +52,6 @@ import java.util.HashMap;
  * controlling state machine.
  */
 class PbapClientConnectionHandler extends Handler {
-    // Tradeoff: larger BATCH_SIZE leads to faster download rates, while smaller
-    // BATCH_SIZE is less prone to IO Exceptions if there is a download in
-    // progress when Bluetooth stack is torn down.
-    private static final int DEFAULT_BATCH_SIZE = 250;
-
     // Upper limit on the indices of the vcf cards/entries, inclusive,
     // i.e., valid indices are [0, 1, ... , UPPER_LIMIT]
     private static final int UPPER_LIMIT = 65535;
@@ -88,6 +87,11 @@ class PbapClientConnectionHandler extends Handler {
     private static final int PBAP_FEATURE_DEFAULT_IMAGE_FORMAT = 0x00000200;
     private static final int PBAP_FEATURE_BROWSING = 0x00000002;
     private static final int PBAP_FEATURE_DOWNLOADING = 0x00000001;
+    private static final int PBAP_FEATURE_DATABASE_IDENTIFIER = 0x00000004;
+    private static final int PBAP_FEATURE_FOLDER_VERSION_COUNTERS = 0x00000008;
+    // Features needed to only apply the changes since the previous sync of a phonebook.
+    private static final int PBAP_INCREMENTAL_SYNC_FEATURES = PBAP_FEATURE_BROWSING
+            | PBAP_FEATURE_DATABASE_IDENTIFIER | PBAP_FEATURE_FOLDER_VERSION_COUNTERS;
 
     private static final long PBAP_FILTER_VERSION = 1 << 0;
     private static final long PBAP_FILTER_FN = 1 << 1;
@@ -137,6 +141,12 @@ class PbapClientConnectionHandler extends Handler {
     private BluetoothPbapObexAuthenticator mAuth = null;
     private final PbapClientStateMachine mPbapClientStateMachine;
     private boolean mAccountCreated;
+    private final boolean mIncrementalSync;
+
+    // Key of the synced version of a phonebook in the user data of the account.
+    private static final String VERSION_KEY_PREFIX = "version:";
+    // Handle of the owner card, only found in the pb folder.
+    private static final String OWNER_CARD_HANDLE = "0.vcf";
 
     /**
      * Constructs PCEConnectionHandler object
@@ -152,6 +162,7 @@ class PbapClientConnectionHandler extends Handler {
         mAccountManager = AccountManager.get(mPbapClientStateMachine.getContext());
         mAccount =
                 new Account(mDevice.getAddress(), mContext.getString(R.string.pbap_account_type));
+        mIncrementalSync = mContext.getResources().getBoolean(R.bool.pbap_client_incremental_sync);
     }
 
     public static class Builder {
@@ -240,26 +251,29 @@ class PbapClientConnectionHandler extends Handler {
                 if (DBG) {
                     Log.d(TAG, "Completing Disconnect");
                 }
-                removeAccount();
+                if (!mIncrementalSync) {
+                    removeAccount();
+                }
                 removeCallLog();
 
                 mPbapClientStateMachine.sendMessage(PbapClientStateMachine.MSG_CONNECTION_CLOSED);
                 break;
 
             case MSG_DOWNLOAD:
-                mAccountCreated = addAccount();
+                // The account of the device is kept across connections when syncing incrementally.
+                mAccountCreated = addAccount() || (mIncrementalSync && hasAccount());
                 if (!mAccountCreated) {
                     Log.e(TAG, "Account creation failed.");
                     return;
                 }
                 if (isRepositorySupported(SUPPORTED_REPOSITORIES_FAVORITES)) {
-                    downloadContacts(FAV_PATH);
+                    syncContacts(FAV_PATH);
                 }
                 if (isRepositorySupported(SUPPORTED_REPOSITORIES_LOCALPHONEBOOK)) {
-                    downloadContacts(PB_PATH);
+                    syncContacts(PB_PATH);
                 }
                 if (isRepositorySupported(SUPPORTED_REPOSITORIES_SIMCARD)) {
-                    downloadContacts(SIM_PB_PATH);
+                    syncContacts(SIM_PB_PATH);
                 }
 
                 HashMap<String, Integer> callCounter = new HashMap<>();
@@ -341,7 +355,9 @@ class PbapClientConnectionHandler extends Handler {
 
                 if (mPseRec.getProfileVersion() >= PBAP_V1_2) {
                     oap.add(BluetoothPbapRequest.OAP_TAGID_PBAP_SUPPORTED_FEATURES,
-                            PBAP_SUPPORTED_FEATURE);
+                            mIncrementalSync
+                                    ? PBAP_SUPPORTED_FEATURE | PBAP_INCREMENTAL_SYNC_FEATURES
+                                    : PBAP_SUPPORTED_FEATURE);
                 }
 
                 oap.addToHeaderSet(connectionRequest);
@@ -392,13 +408,202 @@ class PbapClientConnectionHandler extends Handler {
                     new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
                             mAccount);
 
-            // Download contacts in batches of size DEFAULT_BATCH_SIZE
             BluetoothPbapRequestPullPhoneBookSize requestPbSize =
                     new BluetoothPbapRequestPullPhoneBookSize(path,
                             PBAP_REQUESTED_FIELDS);
             requestPbSize.execute(mObexSession);
 
-            int numberOfContactsRemaining = requestPbSize.getSize();
+            pullContacts(path, processor, requestPbSize.getSize(), null);
+        } catch (IOException e) {
+            Log.w(TAG, "Download contacts failure" + e.toString());
+        }
+    }
+
+    /**
+     * Brings the contacts of the phonebook at {@code path} up to date when the account is kept
+     * across connections.
+     *
+     * The version of the phonebook downloaded last is kept in the account. If the remote one is
+     * the same, nothing is pulled. If only the folder versions changed, the vCard listing is
+     * compared with the handles stored in the source id of the raw contacts and only the added,
+     * removed and renamed entries are applied. Otherwise, or if the changes can't be located from
+     * the listing, the phonebook is downloaded again.
+     */
+    @VisibleForTesting
+    void syncContacts(String path) {
+        if (!mIncrementalSync) {
+            downloadContacts(path);
+            return;
+        }
+        try {
+            PhonebookPullRequest processor =
+                    new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
+                            mAccount);
+
+            BluetoothPbapRequestPullPhoneBookSize requestPbSize =
+                    new BluetoothPbapRequestPullPhoneBookSize(path,
+                            PBAP_REQUESTED_FIELDS);
+            requestPbSize.execute(mObexSession);
+
+            syncContacts(path, processor, requestPbSize.getSize(),
+                    isIncrementalSyncSupported() ? requestPbSize.getVersion() : null);
+        } catch (IOException e) {
+            Log.w(TAG, "Sync contacts failure " + e.toString());
+        }
+    }
+
+    @VisibleForTesting
+    void syncContacts(String path, PhonebookPullRequest processor, int numberOfContacts,
+            PhonebookVersion version) throws IOException {
+        String folder = getFolder(path);
+        PhonebookVersion lastVersion = getSyncedVersion(path);
+        if (version != null && version.equals(lastVersion)) {
+            if (DBG) {
+                Log.d(TAG, "Contacts of " + path + " are up to date");
+            }
+            return;
+        }
+        // Until the contacts match a version again.
+        setSyncedVersion(path, null);
+
+        LinkedHashMap<String, String> handles = null;
+        if (version != null) {
+            try {
+                handles = pullVcardListing(folder);
+            } catch (IOException e) {
+                Log.w(TAG, "Pull vCard listing of " + path + " failed, downloading it: " + e);
+            }
+        }
+        if (handles != null && handles.size() != numberOfContacts) {
+            Log.w(TAG, "vCard listing of " + path + " doesn't match its size");
+            handles = null;
+        }
+        if (handles != null && version.hasSameDatabase(lastVersion)
+                && updateContacts(path, processor, handles)) {
+            // Entries edited in place keep their handle and name, so the listing can't tell
+            // whether some were missed: the version isn't saved and the next sync downloads the
+            // phonebook again.
+            return;
+        }
+        processor.deleteSourceIds(folder + "/", null);
+        if (pullContacts(path, processor, numberOfContacts, handles) && handles != null
+                && !Thread.currentThread().isInterrupted()) {
+            setSyncedVersion(path, version);
+        }
+    }
+
+    /**
+     * Returns the version of the phonebook at {@code path} the contacts were downloaded from, or
+     * null if unknown.
+     */
+    @VisibleForTesting
+    PhonebookVersion getSyncedVersion(String path) {
+        return PhonebookVersion.fromString(
+                mAccountManager.getUserData(mAccount, VERSION_KEY_PREFIX + path));
+    }
+
+    @VisibleForTesting
+    void setSyncedVersion(String path, PhonebookVersion version) {
+        mAccountManager.setUserData(mAccount, VERSION_KEY_PREFIX + path,
+                version != null ? version.toString() : null);
+    }
+
+    /**
+     * Applies the differences between the vCard listing of the phonebook at {@code path} and the
+     * local contacts, returns false if there are none or too many to pull them one by one.
+     */
+    @VisibleForTesting
+    boolean updateContacts(String path, PhonebookPullRequest processor,
+            LinkedHashMap<String, String> handles) throws IOException {
+        String folder = getFolder(path);
+        HashMap<String, String> names = processor.querySourceIds(folder + "/");
+        ArrayList<String> removed = new ArrayList<>();
+        for (String sourceId : names.keySet()) {
+            if (!handles.containsKey(getHandle(folder, sourceId))) {
+                removed.add(sourceId);
+            }
+        }
+        LinkedHashMap<String, String> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> handle : handles.entrySet()) {
+            if (PB_PATH.equals(path) && OWNER_CARD_HANDLE.equals(handle.getKey())) {
+                continue;
+            }
+            String sourceId = getSourceId(folder, handle.getKey());
+            if (!Objects.equals(names.get(sourceId), handle.getValue())) {
+                changed.put(handle.getKey(), handle.getValue());
+                if (names.containsKey(sourceId)) {
+                    removed.add(sourceId);
+                }
+            }
+        }
+        // Past half of the entries, one download costs less than pulling them one by one.
+        if ((changed.isEmpty() && removed.isEmpty())
+                || changed.size() + removed.size() > handles.size() / 2) {
+            return false;
+        }
+        if (DBG) {
+            Log.d(TAG, "Updating " + path + ": pulling " + changed.size() + ", removing "
+                    + removed.size());
+        }
+
+        ArrayList<VCardEntry> vcards = new ArrayList<>();
+        setPath(folder);
+        try {
+            for (Map.Entry<String, String> handle : changed.entrySet()) {
+                BluetoothPbapRequestPullVcardEntry request =
+                        new BluetoothPbapRequestPullVcardEntry(handle.getKey(), mAccount,
+                                PBAP_REQUESTED_FIELDS, VCARD_TYPE_30);
+                request.execute(mObexSession);
+                VCardEntry vcard = request.getEntry();
+                if (!request.isSuccess() || vcard == null) {
+                    throw new IOException("Pull vCard entry " + handle.getKey() + " failed");
+                }
+                if (path == FAV_PATH) {
+                    vcard.setStarred(true);
+                }
+                processor.setSourceId(vcard, getSourceId(folder, handle.getKey()),
+                        handle.getValue());
+                vcards.add(vcard);
+            }
+        } finally {
+            setPath(null);
+        }
+        processor.deleteSourceIds(folder + "/", removed);
+        processor.setResults(vcards);
+        processor.onPullComplete();
+        return true;
+    }
+
+    @VisibleForTesting
+    LinkedHashMap<String, String> pullVcardListing(String folder) throws IOException {
+        setPath(folder);
+        try {
+            BluetoothPbapRequestPullVcardListing request =
+                    new BluetoothPbapRequestPullVcardListing();
+            request.execute(mObexSession);
+            if (!request.isSuccess()) {
+                throw new IOException("Pull vCard listing of " + folder + " failed");
+            }
+            return request.getHandles();
+        } finally {
+            setPath(null);
+        }
+    }
+
+    /**
+     * Pulls the {@code numberOfContacts} entries of the phonebook at {@code path} in batches, each
+     * inserted while the next one is pulled. The inserted contacts keep their handle from
+     * {@code handles} if not null. Returns whether every entry was pulled.
+     */
+    @VisibleForTesting
+    boolean pullContacts(String path, PhonebookPullRequest processor,
+            int numberOfContacts, LinkedHashMap<String, String> handles) throws IOException {
+        String folder = getFolder(path);
+        ArrayList<Map.Entry<String, String>> listing =
+                handles != null ? new ArrayList<>(handles.entrySet()) : null;
+        PhonebookDownloadPipeline pipeline = null;
+        try {
+            int numberOfContactsRemaining = numberOfContacts;
             int startOffset = 0;
             if (PB_PATH.equals(path)) {
                 // PBAP v1.2.3, Sec 3.1.5. The first contact in pb is owner card 0.vcf, which we
@@ -409,36 +614,114 @@ class PbapClientConnectionHandler extends Handler {
                 numberOfContactsRemaining -= 1;
             }
 
+            // Download contacts in batches, each batch is inserted by the pipeline while the
+            // next one is pulled.
+            pipeline = new PhonebookDownloadPipeline(processor, path);
             while ((numberOfContactsRemaining > 0) && (startOffset <= UPPER_LIMIT)) {
                 int numberOfContactsToDownload =
-                        Math.min(Math.min(DEFAULT_BATCH_SIZE, numberOfContactsRemaining),
+                        Math.min(Math.min(pipeline.getBatchSize(), numberOfContactsRemaining),
                         UPPER_LIMIT - startOffset + 1);
                 BluetoothPbapRequestPullPhoneBook request =
                         new BluetoothPbapRequestPullPhoneBook(path, mAccount,
                                 PBAP_REQUESTED_FIELDS, VCARD_TYPE_30,
                                 numberOfContactsToDownload, startOffset);
+                long pullStart = SystemClock.elapsedRealtime();
                 request.execute(mObexSession);
                 ArrayList<VCardEntry> vcards = request.getList();
-                if (path == FAV_PATH) {
-                    // mark each vcard as a favorite
-                    for (VCardEntry v : vcards) {
+                for (int i = 0; i < vcards.size(); i++) {
+                    VCardEntry v = vcards.get(i);
+                    if (path == FAV_PATH) {
+                        // mark each vcard as a favorite
                         v.setStarred(true);
                     }
+                    if (mIncrementalSync) {
+                        // Entries are pulled in handle order, as listed. Entries without a known
+                        // handle are still tagged with the folder to be removed on next sync.
+                        Map.Entry<String, String> handle =
+                                listing != null && startOffset + i < listing.size()
+                                        ? listing.get(startOffset + i) : null;
+                        processor.setSourceId(v,
+                                getSourceId(folder, handle != null ? handle.getKey() : ""),
+                                handle != null ? handle.getValue() : null);
+                    }
                 }
-                processor.setResults(vcards);
-                processor.onPullComplete();
+                pipeline.submit(vcards, SystemClock.elapsedRealtime() - pullStart);
 
                 startOffset += numberOfContactsToDownload;
                 numberOfContactsRemaining -= numberOfContactsToDownload;
             }
             if ((startOffset > UPPER_LIMIT) && (numberOfContactsRemaining > 0)) {
                 Log.w(TAG, "Download contacts incomplete, index exceeded upper limit.");
+                return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Download contacts interrupted");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (pipeline != null) {
+                finishPipeline(pipeline);
             }
-        } catch (IOException e) {
-            Log.w(TAG, "Download contacts failure" + e.toString());
         }
     }
 
+    // Inserts the batches pulled before the end or failure of a download, unless it was aborted.
+    private static void finishPipeline(PhonebookDownloadPipeline pipeline) {
+        if (!Thread.currentThread().isInterrupted()) {
+            try {
+                pipeline.finish();
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        pipeline.cancel();
+    }
+
+    // Sets the current folder of the session, the root if folder is null.
+    private void setPath(String folder) throws IOException {
+        HeaderSet root = new HeaderSet();
+        root.setEmptyNameHeader();
+        checkSetPath(mObexSession.setPath(root, false, false));
+        if (folder == null) {
+            return;
+        }
+        // PBAP v1.2.3, Sec 5.2. A SetPath goes down a single level.
+        for (String name : folder.split("/")) {
+            HeaderSet down = new HeaderSet();
+            down.setHeader(HeaderSet.NAME, name);
+            checkSetPath(mObexSession.setPath(down, false, false));
+        }
+    }
+
+    private static void checkSetPath(HeaderSet reply) throws IOException {
+        if (reply.getResponseCode() != ResponseCodes.OBEX_HTTP_OK) {
+            throw new IOException("SetPath failed: " + reply.getResponseCode());
+        }
+    }
+
+    private boolean isIncrementalSyncSupported() {
+        return mPseRec != null && mPseRec.getProfileVersion() >= PBAP_V1_2
+                && (mPseRec.getSupportedFeatures() & PBAP_INCREMENTAL_SYNC_FEATURES)
+                        == PBAP_INCREMENTAL_SYNC_FEATURES;
+    }
+
+    // Folder of a phonebook object, e.g. telecom/pb for telecom/pb.vcf.
+    @VisibleForTesting
+    static String getFolder(String path) {
+        return path.substring(0, path.length() - ".vcf".length());
+    }
+
+    @VisibleForTesting
+    static String getSourceId(String folder, String handle) {
+        return folder + "/" + handle;
+    }
+
+    private static String getHandle(String folder, String sourceId) {
+        return sourceId.substring(folder.length() + 1);
+    }
+
     @VisibleForTesting
     void downloadCallLog(String path, HashMap<String, Integer> callCounter) {
         try {
@@ -466,6 +749,15 @@ class PbapClientConnectionHandler extends Handler {
         return false;
     }
 
+    private boolean hasAccount() {
+        for (Account account : mAccountManager.getAccountsByType(mAccount.type)) {
+            if (account.equals(mAccount)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @VisibleForTesting
     void removeAccount() {
         if (mAccountManager.removeAccountExplicitly(mAccount)) {
@@ -19,6 +19,7 @@ package com.android.bluetooth.pbapclient;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.annotation.RequiresPermission;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothHeadsetClient;
 import android.bluetooth.BluetoothProfile;
@@ -142,6 +143,8 @@ public class PbapClientService extends ProfileService {
         // To remove call logs when PBAP was never connected while calls were made,
         // we also listen for HFP to become disconnected.
         filter.addAction(BluetoothHeadsetClient.ACTION_CONNECTION_STATE_CHANGED);
+        // Contacts kept across connections are removed when the device is unbonded.
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         try {
             registerReceiver(mPbapBroadcastReceiver, filter);
         } catch (Exception e) {
@@ -221,24 +224,42 @@ public class PbapClientService extends ProfileService {
             return;
         }
 
-        // Find all accounts that match the type "pbap" and delete them.
+        // Find all accounts that match the type "pbap" and delete them, except the ones of bonded
+        // devices when their contacts are kept across connections.
+        boolean keepBonded = getResources().getBoolean(R.bool.pbap_client_incremental_sync);
         AccountManager accountManager = AccountManager.get(this);
         Account[] accounts =
                 accountManager.getAccountsByType(getString(R.string.pbap_account_type));
         if (VDBG) Log.v(TAG, "Found " + accounts.length + " unclean accounts");
         for (Account acc : accounts) {
-            Log.w(TAG, "Deleting " + acc);
-            try {
-                getContentResolver().delete(CallLog.Calls.CONTENT_URI,
-                        CallLog.Calls.PHONE_ACCOUNT_ID + "=?", new String[]{acc.name});
-            } catch (IllegalArgumentException e) {
-                Log.w(TAG, "Call Logs could not be deleted, they may not exist yet.");
+            if (keepBonded && isBonded(acc.name)) {
+                continue;
             }
-            // The device ID is the name of the account.
-            accountManager.removeAccountExplicitly(acc);
+            removeAccount(acc);
         }
     }
 
+    private static boolean isBonded(String address) {
+        AdapterService adapterService = AdapterService.getAdapterService();
+        if (adapterService == null || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
+        }
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+        return adapterService.getBondState(device) == BluetoothDevice.BOND_BONDED;
+    }
+
+    private void removeAccount(Account acc) {
+        Log.w(TAG, "Deleting " + acc);
+        try {
+            getContentResolver().delete(CallLog.Calls.CONTENT_URI,
+                    CallLog.Calls.PHONE_ACCOUNT_ID + "=?", new String[]{acc.name});
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Call Logs could not be deleted, they may not exist yet.");
+        }
+        // The device ID is the name of the account.
+        AccountManager.get(this).removeAccountExplicitly(acc);
+    }
+
     private void removeHfpCallLog(String accountName, Context context) {
         if (DBG) Log.d(TAG, "Removing call logs from " + accountName);
         // Delete call logs belonging to accountName==BD_ADDR that also match
@@ -314,6 +335,16 @@ public class PbapClientService extends ProfileService {
                     // HFP client stores entries in calllog.db by BD_ADDR and component name
                     removeHfpCallLog(device.getAddress(), context);
                 }
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                        BluetoothDevice.ERROR);
+                if (bondState == BluetoothDevice.BOND_NONE && device != null
+                        && getResources().getBoolean(R.bool.pbap_client_incremental_sync)
+                        && isAuthenticationServiceReady()) {
+                    removeAccount(new Account(device.getAddress(),
+                            getString(R.string.pbap_account_type)));
+                }
             }
         }
     }
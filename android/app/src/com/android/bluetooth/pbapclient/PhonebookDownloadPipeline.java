@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.vcard.VCardEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Inserts the batches of a phonebook download on a worker thread, so that the next batch is
+ * pulled from the server while the previous one is written to the contacts provider.
+ *
+ * At most {@link #MAX_PENDING_BATCHES} pulled batches wait for their insert, the puller blocks
+ * in {@link #submit} beyond that. The size of the next batch is adapted from the throughput of
+ * the previous pull, aiming at pulls of {@link #TARGET_PULL_TIME_MS}: fast links get fewer and
+ * larger requests, slow ones keep the amount of data lost to a failed pull small.
+ */
+class PhonebookDownloadPipeline {
+    private static final String TAG = "PbapDownloadPipeline";
+    private static final boolean DBG = Utils.DBG;
+
+    @VisibleForTesting
+    static final int MIN_BATCH_SIZE = 50;
+    @VisibleForTesting
+    static final int MAX_BATCH_SIZE = 1000;
+    @VisibleForTesting
+    static final int INITIAL_BATCH_SIZE = 250;
+    @VisibleForTesting
+    static final long TARGET_PULL_TIME_MS = 2000;
+    @VisibleForTesting
+    static final int MAX_PENDING_BATCHES = 2;
+
+    // Marks the end of the download in the queue.
+    private static final List<VCardEntry> END_OF_DOWNLOAD = new ArrayList<>();
+
+    private final PullRequest mProcessor;
+    private final String mPath;
+    private final BlockingQueue<List<VCardEntry>> mQueue =
+            new ArrayBlockingQueue<>(MAX_PENDING_BATCHES);
+    private final Thread mWorker;
+
+    private int mBatchSize = INITIAL_BATCH_SIZE;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    // Written by the puller only.
+    private int mBatches;
+    private int mEntries;
+    private long mPullTimeMs;
+    private long mWaitTimeMs;
+    // Written by the worker only, read once it is done.
+    private volatile long mInsertTimeMs;
+
+    PhonebookDownloadPipeline(PullRequest processor, String path) {
+        mProcessor = processor;
+        mPath = path;
+        mWorker = new Thread(this::insertBatches, TAG);
+        mWorker.start();
+    }
+
+    /**
+     * Returns the number of entries to pull next.
+     */
+    int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * Queues a pulled batch for insertion, blocking while {@link #MAX_PENDING_BATCHES} are
+     * waiting already, and adapts the batch size to the time the pull took.
+     */
+    void submit(List<VCardEntry> entries, long pullTimeMs) throws InterruptedException {
+        mBatches++;
+        mEntries += entries.size();
+        mPullTimeMs += pullTimeMs;
+        mBatchSize = nextBatchSize(entries.size(), pullTimeMs);
+
+        long start = SystemClock.elapsedRealtime();
+        mQueue.put(entries);
+        mWaitTimeMs += SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Waits until every submitted batch is inserted.
+     */
+    void finish() throws InterruptedException {
+        mQueue.put(END_OF_DOWNLOAD);
+        mWorker.join();
+        if (DBG) {
+            Log.d(TAG, getStats());
+        }
+    }
+
+    /**
+     * Drops the batches not inserted yet and stops the insert in progress, then waits for the
+     * worker so that nothing is written once the download is over. Keeps the interrupt status
+     * of the calling thread.
+     */
+    void cancel() {
+        mQueue.clear();
+        mWorker.interrupt();
+        boolean interrupted = false;
+        while (mWorker.isAlive()) {
+            try {
+                mWorker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Log.w(TAG, "Cancelled, " + getStats());
+    }
+
+    @VisibleForTesting
+    int nextBatchSize(int pulled, long pullTimeMs) {
+        if (pulled < mBatchSize) {
+            // Last batch, or the server has fewer entries than it reported.
+            return mBatchSize;
+        }
+        long size = pullTimeMs > 0 ? pulled * TARGET_PULL_TIME_MS / pullTimeMs : MAX_BATCH_SIZE;
+        // At most double or halve at once, a single pull is a noisy measure.
+        size = Math.max(Math.min(size, 2L * mBatchSize), mBatchSize / 2);
+        return (int) Math.max(Math.min(size, MAX_BATCH_SIZE), MIN_BATCH_SIZE);
+    }
+
+    @VisibleForTesting
+    String getStats() {
+        return "path=" + mPath + " batches=" + mBatches + " entries=" + mEntries
+                + " pullMs=" + mPullTimeMs + " insertMs=" + mInsertTimeMs
+                + " waitMs=" + mWaitTimeMs
+                + " totalMs=" + (SystemClock.elapsedRealtime() - mStartTime);
+    }
+
+    private void insertBatches() {
+        try {
+            List<VCardEntry> entries;
+            while ((entries = mQueue.take()) != END_OF_DOWNLOAD) {
+                long start = SystemClock.elapsedRealtime();
+                mProcessor.setResults(entries);
+                mProcessor.onPullComplete();
+                mInsertTimeMs += SystemClock.elapsedRealtime() - start;
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for a batch.
+        }
+    }
+}
@@ -20,14 +20,23 @@ import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
 import android.util.Log;
+import android.util.Pair;
 
+import com.android.bluetooth.BluetoothMethodProxy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.vcard.VCardEntry;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PhonebookPullRequest extends PullRequest {
     @VisibleForTesting
@@ -37,6 +46,8 @@ public class PhonebookPullRequest extends PullRequest {
 
     private final Account mAccount;
     private final Context mContext;
+    // Source id and listing name to store with the raw contact of an entry, see setSourceId().
+    private final Map<VCardEntry, Pair<String, String>> mSourceIds = new ConcurrentHashMap<>();
     public boolean complete = false;
 
     public PhonebookPullRequest(Context context, Account account) {
@@ -69,13 +80,14 @@ public class PhonebookPullRequest extends PullRequest {
                 }
                 int numberOfOperations = insertOperations.size();
                 // Append current vcard to list of insert operations.
-                e.constructInsertOperations(contactsProvider, insertOperations);
+                constructInsertOperations(contactsProvider, e, insertOperations);
                 if (insertOperations.size() >= MAX_OPS) {
                     // If we have exceded the limit to the insert operation remove the latest vcard
                     // and submit.
                     insertOperations.subList(numberOfOperations, insertOperations.size()).clear();
                     contactsProvider.applyBatch(ContactsContract.AUTHORITY, insertOperations);
-                    insertOperations = e.constructInsertOperations(contactsProvider, null);
+                    insertOperations = new ArrayList<>();
+                    constructInsertOperations(contactsProvider, e, insertOperations);
                     if (insertOperations.size() >= MAX_OPS) {
                         // Current VCard has more than 500 attributes, drop the card.
                         insertOperations.clear();
@@ -93,7 +105,112 @@ public class PhonebookPullRequest extends PullRequest {
         } catch (OperationApplicationException | RemoteException | NumberFormatException e) {
             Log.e(TAG, "Got exception: ", e);
         } finally {
+            for (VCardEntry e : mEntries) {
+                mSourceIds.remove(e);
+            }
             complete = true;
         }
     }
+
+    /**
+     * Stores {@code sourceId} and the listing {@code name} of an entry in the source id and sync1
+     * columns of its raw contact once inserted, to find it again on the next sync.
+     */
+    public void setSourceId(VCardEntry entry, String sourceId, String name) {
+        mSourceIds.put(entry, new Pair<>(sourceId, name));
+    }
+
+    /**
+     * Returns the listing names of the raw contacts of the account by source id, for the source
+     * ids starting with {@code prefix}.
+     */
+    public HashMap<String, String> querySourceIds(String prefix) {
+        HashMap<String, String> sourceIds = new HashMap<>();
+        Cursor c = BluetoothMethodProxy.getInstance().contentResolverQuery(
+                mContext.getContentResolver(), RawContacts.CONTENT_URI,
+                new String[] {RawContacts.SOURCE_ID, RawContacts.SYNC1},
+                getSelection(true, 0), getSelectionArgs(prefix + "%", null), null);
+        if (c == null) {
+            return sourceIds;
+        }
+        try {
+            while (c.moveToNext()) {
+                sourceIds.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return sourceIds;
+    }
+
+    /**
+     * Deletes the raw contacts of the account with the given source ids, or all those with a
+     * source id starting with {@code prefix} if {@code sourceIds} is null.
+     */
+    public void deleteSourceIds(String prefix, Collection<String> sourceIds) {
+        ContentResolver contactsProvider = mContext.getContentResolver();
+        Uri uri = RawContacts.CONTENT_URI.buildUpon()
+                .appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+        if (sourceIds == null) {
+            contactsProvider.delete(uri, getSelection(true, 0),
+                    getSelectionArgs(prefix + "%", null));
+            return;
+        }
+        ArrayList<String> batch = new ArrayList<>();
+        for (String sourceId : sourceIds) {
+            batch.add(sourceId);
+            if (batch.size() == MAX_OPS) {
+                contactsProvider.delete(uri, getSelection(false, batch.size()),
+                        getSelectionArgs(null, batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            contactsProvider.delete(uri, getSelection(false, batch.size()),
+                    getSelectionArgs(null, batch));
+        }
+    }
+
+    private void constructInsertOperations(ContentResolver contactsProvider, VCardEntry e,
+            ArrayList<ContentProviderOperation> operations) {
+        int rawContactIndex = operations.size();
+        e.constructInsertOperations(contactsProvider, operations);
+        Pair<String, String> source = mSourceIds.get(e);
+        if (source == null || operations.size() == rawContactIndex) {
+            return;
+        }
+        // The first operation of an entry inserts its raw contact.
+        operations.add(ContentProviderOperation.newUpdate(RawContacts.CONTENT_URI)
+                .withSelection(RawContacts._ID + "=?", new String[1])
+                .withSelectionBackReference(0, rawContactIndex)
+                .withValue(RawContacts.SOURCE_ID, source.first)
+                .withValue(RawContacts.SYNC1, source.second)
+                .build());
+    }
+
+    private static String getSelection(boolean byPrefix, int count) {
+        StringBuilder selection = new StringBuilder(RawContacts.ACCOUNT_NAME + "=? AND "
+                + RawContacts.ACCOUNT_TYPE + "=? AND " + RawContacts.SOURCE_ID);
+        if (byPrefix) {
+            return selection.append(" LIKE ?").toString();
+        }
+        selection.append(" IN (?");
+        for (int i = 1; i < count; i++) {
+            selection.append(",?");
+        }
+        return selection.append(")").toString();
+    }
+
+    private String[] getSelectionArgs(String pattern, Collection<String> sourceIds) {
+        ArrayList<String> args = new ArrayList<>();
+        args.add(mAccount.name);
+        args.add(mAccount.type);
+        if (pattern != null) {
+            args.add(pattern);
+        } else {
+            args.addAll(sourceIds);
+        }
+        return args.toArray(new String[0]);
+    }
 }
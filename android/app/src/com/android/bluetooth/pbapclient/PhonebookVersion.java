@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.util.Base64;
+
+import java.util.Arrays;
+
+/**
+ * The database identifier and folder version counters of a remote phonebook, PBAP v1.2.3
+ * Sec 5.1.4.
+ *
+ * The handles of the phonebook are only stable for a given database identifier. The primary
+ * version changes with any change of the phonebook, the secondary one only with changes of the
+ * N, FN, TEL, EMAIL and ADDRESS properties or of the entries themselves.
+ */
+final class PhonebookVersion {
+    private static final String SEPARATOR = ":";
+
+    private final byte[] mDatabaseIdentifier;
+    private final byte[] mPrimaryVersion;
+    private final byte[] mSecondaryVersion;
+
+    PhonebookVersion(byte[] databaseIdentifier, byte[] primaryVersion, byte[] secondaryVersion) {
+        mDatabaseIdentifier = databaseIdentifier;
+        mPrimaryVersion = primaryVersion;
+        mSecondaryVersion = secondaryVersion;
+    }
+
+    /**
+     * Returns whether the handles known for {@code other} are still valid for this version.
+     */
+    boolean hasSameDatabase(PhonebookVersion other) {
+        return other != null && Arrays.equals(mDatabaseIdentifier, other.mDatabaseIdentifier);
+    }
+
+    /**
+     * Parses a version written by {@link #toString}, returns null if it is not valid.
+     */
+    static PhonebookVersion fromString(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] parts = value.split(SEPARATOR, -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new PhonebookVersion(Base64.decode(parts[0], Base64.NO_WRAP),
+                    Base64.decode(parts[1], Base64.NO_WRAP),
+                    Base64.decode(parts[2], Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PhonebookVersion)) {
+            return false;
+        }
+        PhonebookVersion other = (PhonebookVersion) o;
+        return Arrays.equals(mDatabaseIdentifier, other.mDatabaseIdentifier)
+                && Arrays.equals(mPrimaryVersion, other.mPrimaryVersion)
+                && Arrays.equals(mSecondaryVersion, other.mSecondaryVersion);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(mDatabaseIdentifier) * 31 + Arrays.hashCode(mPrimaryVersion);
+    }
+
+    @Override
+    public String toString() {
+        return Base64.encodeToString(mDatabaseIdentifier, Base64.NO_WRAP) + SEPARATOR
+                + Base64.encodeToString(mPrimaryVersion, Base64.NO_WRAP) + SEPARATOR
+                + Base64.encodeToString(mSecondaryVersion, Base64.NO_WRAP);
+    }
+}
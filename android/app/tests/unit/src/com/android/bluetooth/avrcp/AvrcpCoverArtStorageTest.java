@@ -170,4 +170,20 @@ public class AvrcpCoverArtStorageTest {
         assertThat(mAvrcpCoverArtStorage.getImage(handle_green)).isEqualTo(artwork_green);
         assertThat(mAvrcpCoverArtStorage.getImage(handle_blue)).isNull();
     }
+
+    /**
+     * Make sure the thumbnail of a new image is encoded ahead of the requests for it
+     */
+    @Test
+    public void testStoreImageEncodesThumbnail() {
+        AvrcpCoverArtStorage storage = new AvrcpCoverArtStorage(2, Runnable::run);
+        CoverArt artwork = getCoverArt(com.android.bluetooth.tests.R.raw.image_200_200);
+        storage.storeImage(artwork);
+        assertThat(artwork.getThumbnail()).isNotNull();
+
+        StringBuilder sb = new StringBuilder();
+        storage.dump(sb);
+        assertThat(sb.toString())
+                .contains("Encoded images: 1 requests, 1 already encoded (100%), 1 encodings");
+    }
 }
@@ -215,6 +215,20 @@ public class CoverArtTest {
         assertThat(isThumbnailFormat(image)).isTrue();
     }
 
+    /**
+     * Make sure the thumbnail is only encoded once for all the requests of its format
+     */
+    @Test
+    public void testGetThumbnailImageEncodedOnce() {
+        CoverArt artwork = new CoverArt(mImage);
+        byte[] thumbnail = artwork.getThumbnail();
+        assertThat(thumbnail).isNotNull();
+        assertThat(artwork.getThumbnail()).isSameInstanceAs(thumbnail);
+        assertThat(artwork.getImage()).isSameInstanceAs(thumbnail);
+        BipImageDescriptor descriptor = getDescriptor(BipEncoding.JPEG, 200, 200);
+        assertThat(artwork.getImage(descriptor)).isSameInstanceAs(thumbnail);
+    }
+
     /**
      * Make sure you can set the image handle associated with this object
      */
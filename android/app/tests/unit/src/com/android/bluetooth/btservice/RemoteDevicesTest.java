@@ -34,6 +34,8 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 
 @MediumTest
@@ -539,6 +541,81 @@ public class RemoteDevicesTest {
                 .getHfAudioPolicyForRemoteAg());
     }
 
+    @Test
+    public void testGetIdentityAddress_afterLeAddressAssociate() {
+        String identityAddress = "AA:BB:CC:DD:EE:FF";
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        Assert.assertNull(mRemoteDevices.getIdentityAddress(TEST_BT_ADDR_1));
+
+        mRemoteDevices.leAddressAssociateCallback(Utils.getBytesFromAddress(TEST_BT_ADDR_1),
+                Utils.getBytesFromAddress(identityAddress));
+
+        Assert.assertEquals(identityAddress, mRemoteDevices.getIdentityAddress(TEST_BT_ADDR_1));
+        Assert.assertEquals(identityAddress,
+                mRemoteDevices.getIdentityAddress(TEST_BT_ADDR_1.toLowerCase()));
+        Assert.assertNull(mRemoteDevices.getIdentityAddress(identityAddress));
+    }
+
+    @Test
+    public void testGetIdentityAddress_forgottenWithTheDeviceProperties() {
+        String identityAddress = "AA:BB:CC:DD:EE:FF";
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        mRemoteDevices.leAddressAssociateCallback(Utils.getBytesFromAddress(TEST_BT_ADDR_1),
+                Utils.getBytesFromAddress(identityAddress));
+
+        // Add enough devices to evict the first one
+        for (int i = 0; i < RemoteDevices.MAX_DEVICE_CACHE_SIZE; i++) {
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+
+        Assert.assertNull(mRemoteDevices.getDeviceProperties(mDevice1));
+        Assert.assertNull(mRemoteDevices.getIdentityAddress(TEST_BT_ADDR_1));
+    }
+
+    @Test
+    public void testAddDeviceProperties_evictsLeastRecentlyUsedFirst() {
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        for (int i = 0; i < RemoteDevices.MAX_DEVICE_CACHE_SIZE; i++) {
+            if (i == RemoteDevices.MAX_DEVICE_CACHE_SIZE / 2) {
+                // Using the first device keeps it over the ones added before
+                Assert.assertNotNull(mRemoteDevices.getDeviceProperties(mDevice1));
+            }
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+
+        Assert.assertNotNull(mRemoteDevices.getDeviceProperties(mDevice1));
+        Assert.assertNull(mRemoteDevices.getDevice(getTestAddress(0)));
+        Assert.assertNotNull(mRemoteDevices.getDevice(
+                getTestAddress(RemoteDevices.MAX_DEVICE_CACHE_SIZE - 1)));
+    }
+
+    @Test
+    public void testAddDeviceProperties_keepsBondedDevices() {
+        DeviceProperties prop =
+                mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        prop.mBondState = BluetoothDevice.BOND_BONDED;
+        for (int i = 0; i < RemoteDevices.MAX_DEVICE_CACHE_SIZE; i++) {
+            mRemoteDevices.addDeviceProperties(getTestAddress(i));
+        }
+
+        Assert.assertSame(prop, mRemoteDevices.getDeviceProperties(mDevice1));
+    }
+
+    @Test
+    public void testDump_countsCacheUses() {
+        mRemoteDevices.getDeviceProperties(mDevice1);
+        mRemoteDevices.addDeviceProperties(Utils.getBytesFromAddress(TEST_BT_ADDR_1));
+        mRemoteDevices.getDeviceProperties(mDevice1);
+
+        StringWriter out = new StringWriter();
+        mRemoteDevices.dump(new PrintWriter(out));
+        Assert.assertTrue(out.toString(), out.toString().contains("hits=1, misses=1"));
+    }
+
+    private static byte[] getTestAddress(int index) {
+        return new byte[] {0x10, 0, 0, 0, (byte) (index >> 8), (byte) index};
+    }
+
     private static void verifyBatteryLevelChangedIntent(BluetoothDevice device, int batteryLevel,
             ArgumentCaptor<Intent> intentArgument) {
         verifyBatteryLevelChangedIntent(device, batteryLevel, intentArgument.getValue());
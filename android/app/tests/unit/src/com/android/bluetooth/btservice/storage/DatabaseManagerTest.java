@@ -34,6 +34,7 @@ import android.bluetooth.BluetoothSinkAudioPolicy;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
 
 import androidx.room.Room;
 import androidx.room.testing.MigrationTestHelper;
@@ -57,7 +58,10 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 @MediumTest
 @RunWith(AndroidJUnit4.class)
@@ -104,6 +108,8 @@ public final class DatabaseManagerTest {
         when(mAdapterService.getPackageManager()).thenReturn(
                 InstrumentationRegistry.getTargetContext().getPackageManager());
         mDatabaseManager = new DatabaseManager(mAdapterService);
+        // Write the changes as soon as the handler thread is available
+        mDatabaseManager.mWriteDelayMillis = 0;
 
         BluetoothDevice[] bondedDevices = {mTestDevice};
         doReturn(bondedDevices).when(mAdapterService).getBondedDevices();
@@ -325,6 +331,83 @@ public final class DatabaseManagerTest {
 
     }
 
+    @Test
+    public void testUpdates_whileHandlerIsBusy_areWrittenTogether() throws Exception {
+        // Keep the handler thread busy while the device changes
+        CountDownLatch busy = new CountDownLatch(1);
+        new Handler(mDatabaseManager.getHandlerLooper()).post(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.A2DP,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setCustomMeta(mTestDevice, BluetoothDevice.METADATA_MANUFACTURER_NAME,
+                TEST_BYTE_ARRAY);
+        // A row deleted then created again is written once
+        Metadata other = new Metadata(OTHER_BT_ADDR1);
+        mDatabaseManager.deleteDatabase(other);
+        mDatabaseManager.mMetadataCache.put(OTHER_BT_ADDR1, other);
+        mDatabaseManager.setProfileConnectionPolicy(
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(OTHER_BT_ADDR1),
+                BluetoothProfile.A2DP, BluetoothProfile.CONNECTION_POLICY_FORBIDDEN);
+
+        StringWriter dump = new StringWriter();
+        mDatabaseManager.dump(new PrintWriter(dump));
+        Assert.assertTrue(dump.toString(), dump.toString().contains("pending=2"));
+
+        busy.countDown();
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(2, list.size());
+        for (Metadata data : list) {
+            if (data.getAddress().equals(TEST_BT_ADDR)) {
+                Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                        data.getProfileConnectionPolicy(BluetoothProfile.A2DP));
+                Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                        data.getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+                Assert.assertArrayEquals(TEST_BYTE_ARRAY, data.getCustomizedMeta(
+                        BluetoothDevice.METADATA_MANUFACTURER_NAME));
+            } else {
+                Assert.assertEquals(OTHER_BT_ADDR1, data.getAddress());
+                Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_FORBIDDEN,
+                        data.getProfileConnectionPolicy(BluetoothProfile.A2DP));
+            }
+        }
+    }
+
+    @Test
+    public void testUpdates_withinWriteDelay_areWrittenTogetherOnCleanup() throws Exception {
+        mDatabaseManager.mWriteDelayMillis = 60000;
+
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.A2DP,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        mDatabaseManager.setProfileConnectionPolicy(mTestDevice, BluetoothProfile.HEADSET,
+                BluetoothProfile.CONNECTION_POLICY_ALLOWED);
+        TestUtils.waitForLooperToFinishScheduledTask(mDatabaseManager.getHandlerLooper());
+
+        // The idle handler thread waits for more changes
+        StringWriter dump = new StringWriter();
+        mDatabaseManager.dump(new PrintWriter(dump));
+        Assert.assertTrue(dump.toString(), dump.toString().contains("pending=1"));
+        Assert.assertTrue(mDatabase.load().isEmpty());
+
+        mDatabaseManager.cleanup();
+
+        List<Metadata> list = mDatabase.load();
+        Assert.assertEquals(1, list.size());
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.A2DP));
+        Assert.assertEquals(BluetoothProfile.CONNECTION_POLICY_ALLOWED,
+                list.get(0).getProfileConnectionPolicy(BluetoothProfile.HEADSET));
+    }
+
     @Test
     public void testSetGetCustomMeta() {
         int badKey = 100;
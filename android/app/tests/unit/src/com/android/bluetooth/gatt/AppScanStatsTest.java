@@ -18,11 +18,19 @@ package com.android.bluetooth.gatt;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanSettings;
+import android.os.BatteryStatsManager;
 import android.os.WorkSource;
 
 import androidx.test.filters.SmallTest;
@@ -30,6 +38,7 @@ import androidx.test.rule.ServiceTestRule;
 import androidx.test.runner.AndroidJUnit4;
 
 import com.android.bluetooth.TestUtils;
+import com.android.internal.app.IBatteryStats;
 import com.android.bluetooth.btservice.AdapterService;
 import com.android.bluetooth.btservice.BluetoothAdapterProxy;
 
@@ -62,6 +71,11 @@ public class AppScanStatsTest {
     @Mock
     private AdapterService mAdapterService;
 
+    // BatteryStatsManager is final and cannot be mocked with regular mockito, so just mock the
+    // underlying binder calls.
+    @Mock
+    private IBatteryStats mBatteryStats;
+
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
@@ -99,6 +113,64 @@ public class AppScanStatsTest {
         assertThat(appScanStats.isScanning()).isEqualTo(false);
     }
 
+    @Test
+    public void addResult_countsPerScan() {
+        AppScanStats appScanStats = new AppScanStats("appName", null, map, mService);
+        ScanSettings settings = new ScanSettings.Builder().build();
+        int scannerId = 1;
+
+        // Results of unknown scans only count toward the app total
+        appScanStats.addResult(scannerId);
+
+        appScanStats.recordScanStart(settings, new ArrayList<>(), false, true, scannerId);
+        appScanStats.addResult(scannerId);
+        appScanStats.addResult(scannerId);
+
+        AppScanStats.LastScan scan = appScanStats.getScanFromScannerId(scannerId);
+        assertThat(scan.results.get()).isEqualTo(2);
+        assertThat(scan.reportedResults).isEqualTo(0);
+        assertThat(appScanStats.results.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void reportPendingResults_reportsDeltaAndRemainderOnStop() throws Exception {
+        doReturn(5).when(mAdapterService).getScanQuotaCount();
+        AppScanStats appScanStats = new AppScanStats("appName", null, map, mService);
+        appScanStats.mBatteryStatsManager = new BatteryStatsManager(mBatteryStats);
+        ScanSettings settings = new ScanSettings.Builder().build();
+        int scannerId = 1;
+
+        appScanStats.recordScanStart(settings, new ArrayList<>(), false, true, scannerId);
+        appScanStats.addResult(scannerId);
+        appScanStats.addResult(scannerId);
+
+        appScanStats.reportPendingResults();
+        verify(mBatteryStats).noteBleScanResults(any(), eq(2));
+        assertThat(appScanStats.getScanFromScannerId(scannerId).reportedResults).isEqualTo(2);
+
+        // Nothing new since the last report
+        clearInvocations(mBatteryStats);
+        appScanStats.reportPendingResults();
+        verify(mBatteryStats, never()).noteBleScanResults(any(), anyInt());
+
+        appScanStats.addResult(scannerId);
+        appScanStats.addResult(scannerId);
+        appScanStats.addResult(scannerId);
+        appScanStats.reportPendingResults();
+        verify(mBatteryStats).noteBleScanResults(any(), eq(3));
+
+        // Only the results received after the last periodic report are flushed on stop
+        clearInvocations(mBatteryStats);
+        appScanStats.addResult(scannerId);
+        appScanStats.recordScanStop(scannerId);
+        verify(mBatteryStats).noteBleScanResults(any(), eq(1));
+        verify(mBatteryStats).noteBleScanStopped(any(), anyBoolean());
+
+        clearInvocations(mBatteryStats);
+        appScanStats.reportPendingResults();
+        verify(mBatteryStats, never()).noteBleScanResults(any(), anyInt());
+    }
+
     @Test
     public void testDump_doesNotCrash() throws Exception {
         String name = "appName";
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link BatchScanRecordDecoder}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatchScanRecordDecoderTest {
+
+    @Test
+    public void fullRecords() {
+        byte[] batchRecord = new byte[] {
+                // Address 00:11:22:33:44:55, type, tx power, rssi -60, timestamp 0x07CA
+                0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x01, 0x7F, (byte) 0xC4, (byte) 0xCA, 0x07,
+                // Advertising data and scan response
+                0x03, 0x02, 0x01, 0x06, 0x02, 0x01, 0x09,
+                // Address AA:BB:CC:DD:EE:FF, no advertising data nor scan response
+                (byte) 0xFF, (byte) 0xEE, (byte) 0xDD, (byte) 0xCC, (byte) 0xBB, (byte) 0xAA,
+                0x00, 0x00, (byte) 0xB0, 0x01, 0x00, 0x00, 0x00};
+        BatchScanRecordDecoder decoder = new BatchScanRecordDecoder(batchRecord, 2, false);
+
+        assertThat(decoder.next()).isTrue();
+        assertThat(decoder.getAddress()).isEqualTo("00:11:22:33:44:55");
+        assertThat(decoder.getRssi()).isEqualTo(-60);
+        assertThat(decoder.getTimestampAgeNanos()).isEqualTo(99700000000L);
+        assertThat(decoder.getScanRecordLength()).isEqualTo(5);
+        assertThat(decoder.copyScanRecord()).isEqualTo(new byte[] {0x02, 0x01, 0x06, 0x01, 0x09});
+
+        assertThat(decoder.next()).isTrue();
+        assertThat(decoder.getAddress()).isEqualTo("AA:BB:CC:DD:EE:FF");
+        assertThat(decoder.getRssi()).isEqualTo(-80);
+        assertThat(decoder.getTimestampAgeNanos()).isEqualTo(50000000L);
+        assertThat(decoder.getScanRecordLength()).isEqualTo(0);
+
+        assertThat(decoder.next()).isFalse();
+    }
+
+    @Test
+    public void truncatedRecords() {
+        byte[] batchRecord = new byte[] {
+                0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x01, 0x7F, (byte) 0xC4, 0x02, 0x00,
+                0x56, 0x44, 0x33, 0x22, 0x11, 0x00, 0x01, 0x7F, (byte) 0xC5, 0x03, 0x00,
+                // Trailing bytes beyond numRecords are ignored.
+                0x00, 0x00};
+        BatchScanRecordDecoder decoder = new BatchScanRecordDecoder(batchRecord, 2, true);
+
+        assertThat(decoder.next()).isTrue();
+        assertThat(decoder.getAddress()).isEqualTo("00:11:22:33:44:55");
+        assertThat(decoder.getTimestampAgeNanos()).isEqualTo(100000000L);
+        assertThat(decoder.next()).isTrue();
+        assertThat(decoder.getAddress()).isEqualTo("00:11:22:33:44:56");
+        assertThat(decoder.getRssi()).isEqualTo(-59);
+        assertThat(decoder.getScanRecordLength()).isEqualTo(0);
+        assertThat(decoder.next()).isFalse();
+    }
+
+    @Test
+    public void timestamp_isInUnitsOf50Millis() {
+        byte[] batchRecord = new byte[] {
+                0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x01, 0x7F, (byte) 0xC4, -54, 7};
+        BatchScanRecordDecoder decoder = new BatchScanRecordDecoder(batchRecord, 1, true);
+
+        assertThat(decoder.next()).isTrue();
+        assertThat(decoder.getTimestampAgeNanos()).isEqualTo(99700000000L);
+    }
+
+    @Test
+    public void incompleteRecord_stopsDecoding() {
+        byte[] batchRecord = new byte[] {
+                0x55, 0x44, 0x33, 0x22, 0x11, 0x00, 0x01, 0x7F, (byte) 0xC4, 0x02, 0x00,
+                // Advertising data length larger than the remaining data
+                0x10, 0x02, 0x01};
+        BatchScanRecordDecoder decoder = new BatchScanRecordDecoder(batchRecord, 1, false);
+
+        assertThat(decoder.next()).isFalse();
+    }
+}
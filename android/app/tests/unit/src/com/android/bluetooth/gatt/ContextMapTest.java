@@ -113,6 +113,57 @@ public class ContextMapTest {
         assertThat(contextMapByName.name).isEqualTo(appName);
     }
 
+    @Test
+    public void getById_afterIdAssigned() {
+        ContextMap contextMap = new ContextMap<>();
+        UUID uuid = UUID.randomUUID();
+
+        ContextMap.App app = contextMap.add(uuid, null, null, null, mService);
+        assertThat(contextMap.getByUuid(uuid)).isSameInstanceAs(app);
+        assertThat(contextMap.getById(7)).isNull();
+
+        app.id = 7;
+        assertThat(contextMap.getById(7)).isSameInstanceAs(app);
+
+        app.id = 8;
+        assertThat(contextMap.getById(7)).isNull();
+        assertThat(contextMap.getById(8)).isSameInstanceAs(app);
+
+        contextMap.remove(uuid);
+        assertThat(contextMap.getById(8)).isNull();
+        assertThat(contextMap.getByUuid(uuid)).isNull();
+    }
+
+    @Test
+    public void connections() {
+        ContextMap contextMap = new ContextMap<>();
+        String address = "00:11:22:33:44:55";
+        String otherAddress = "00:11:22:33:44:66";
+
+        ContextMap.App app = contextMap.add(UUID.randomUUID(), null, null, null, mService);
+        app.id = 3;
+        contextMap.addConnection(3, 30, address);
+        contextMap.addConnection(3, 31, otherAddress);
+        // Connections of unknown apps are ignored
+        contextMap.addConnection(4, 40, address);
+
+        assertThat(contextMap.getByConnId(30)).isSameInstanceAs(app);
+        assertThat(contextMap.getByConnId(40)).isNull();
+        assertThat(contextMap.connIdByAddress(3, address.toLowerCase())).isEqualTo(30);
+        assertThat(contextMap.addressByConnId(31)).isEqualTo(otherAddress);
+        assertThat(contextMap.getConnectionByApp(3)).hasSize(2);
+        assertThat(contextMap.getConnectedDevices()).containsExactly(address, otherAddress);
+
+        contextMap.removeConnection(3, 30);
+        assertThat(contextMap.addressByConnId(30)).isNull();
+        assertThat(contextMap.connIdByAddress(3, address)).isNull();
+        assertThat(contextMap.getConnectedMap()).containsExactly(3, otherAddress);
+
+        contextMap.remove(3);
+        assertThat(contextMap.getConnectionByApp(3)).isEmpty();
+        assertThat(contextMap.getConnectedDevices()).isEmpty();
+    }
+
     @Test
     public void advertisingSetAndData() {
         ContextMap contextMap = new ContextMap<>();
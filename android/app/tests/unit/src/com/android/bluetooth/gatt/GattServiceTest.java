@@ -173,14 +173,6 @@ public class GattServiceTest {
         }
     }
 
-    @Test
-    public void testParseBatchTimestamp() {
-        long timestampNanos = mService.parseTimestampNanos(new byte[]{
-                -54, 7
-        });
-        Assert.assertEquals(99700000000L, timestampNanos);
-    }
-
     public void emptyClearServices() {
         int serverIf = 1;
 
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothStatusCodes;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link GattWriteScheduler}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class GattWriteSchedulerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final int REQUEST = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    private static final int COMMAND = BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+    private static final byte[] VALUE = new byte[] {1, 2};
+
+    // Handles of the issued writes.
+    private final List<Integer> mIssued = new ArrayList<>();
+    private GattWriteScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mScheduler = new GattWriteScheduler(
+                (connId, handle, writeType, authReq, value) -> mIssued.add(handle));
+        mScheduler.addDevice(ADDRESS);
+    }
+
+    @Test
+    public void write_notConnected_fails() {
+        assertThat(mScheduler.write(1, 1, "00:11:22:33:44:66", 10, REQUEST, 0, VALUE))
+                .isEqualTo(BluetoothStatusCodes.ERROR_DEVICE_NOT_CONNECTED);
+        assertThat(mIssued).isEmpty();
+    }
+
+    @Test
+    public void write_requestsOfOtherClients_areQueuedUntilCompleted() {
+        assertThat(mScheduler.write(1, 1, ADDRESS, 10, REQUEST, 0, VALUE))
+                .isEqualTo(BluetoothStatusCodes.SUCCESS);
+        assertThat(mScheduler.write(2, 2, ADDRESS, 20, REQUEST, 0, VALUE))
+                .isEqualTo(BluetoothStatusCodes.SUCCESS);
+        assertThat(mIssued).containsExactly(10);
+        assertThat(mScheduler.getQueueDepth(ADDRESS)).isEqualTo(1);
+
+        mScheduler.onWriteCompleted(ADDRESS, 1, 10);
+
+        assertThat(mIssued).containsExactly(10, 20).inOrder();
+        assertThat(mScheduler.getQueueDepth(ADDRESS)).isEqualTo(0);
+    }
+
+    @Test
+    public void write_queuedRequests_areServedRoundRobin() {
+        mScheduler.write(1, 1, ADDRESS, 10, REQUEST, 0, VALUE);
+        mScheduler.write(1, 1, ADDRESS, 11, REQUEST, 0, VALUE);
+        mScheduler.write(1, 1, ADDRESS, 12, REQUEST, 0, VALUE);
+        mScheduler.write(2, 2, ADDRESS, 20, REQUEST, 0, VALUE);
+
+        mScheduler.onWriteCompleted(ADDRESS, 1, 10);
+        mScheduler.onWriteCompleted(ADDRESS, 1, 11);
+        mScheduler.onWriteCompleted(ADDRESS, 2, 20);
+
+        assertThat(mIssued).containsExactly(10, 11, 20, 12).inOrder();
+    }
+
+    @Test
+    public void write_commands_arePipelinedUpToCredits() {
+        for (int i = 0; i < GattWriteScheduler.WRITE_COMMAND_CREDITS + 1; i++) {
+            mScheduler.write(1, 1, ADDRESS, i, COMMAND, 0, VALUE);
+        }
+        assertThat(mIssued).hasSize(GattWriteScheduler.WRITE_COMMAND_CREDITS);
+
+        mScheduler.onWriteCompleted(ADDRESS, 1, 0);
+
+        assertThat(mIssued).hasSize(GattWriteScheduler.WRITE_COMMAND_CREDITS + 1);
+    }
+
+    @Test
+    public void write_whileCongested_issuesOneCommandAtATime() {
+        mScheduler.setCongested(ADDRESS, true);
+        mScheduler.write(1, 1, ADDRESS, 10, COMMAND, 0, VALUE);
+        mScheduler.write(1, 1, ADDRESS, 11, COMMAND, 0, VALUE);
+        assertThat(mIssued).containsExactly(10);
+
+        mScheduler.setCongested(ADDRESS, false);
+
+        assertThat(mIssued).containsExactly(10, 11).inOrder();
+    }
+
+    @Test
+    public void write_clientQueueFull_returnsBusy() {
+        mScheduler.write(1, 1, ADDRESS, 0, REQUEST, 0, VALUE);
+        for (int i = 0; i < GattWriteScheduler.MAX_QUEUED_WRITES_PER_CLIENT; i++) {
+            assertThat(mScheduler.write(1, 1, ADDRESS, i + 1, REQUEST, 0, VALUE))
+                    .isEqualTo(BluetoothStatusCodes.SUCCESS);
+        }
+
+        assertThat(mScheduler.write(1, 1, ADDRESS, 100, REQUEST, 0, VALUE))
+                .isEqualTo(BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY);
+        assertThat(mScheduler.write(2, 2, ADDRESS, 200, REQUEST, 0, VALUE))
+                .isEqualTo(BluetoothStatusCodes.SUCCESS);
+    }
+
+    @Test
+    public void removeConnection_dropsItsWritesAndIssuesOthers() {
+        mScheduler.write(1, 1, ADDRESS, 10, REQUEST, 0, VALUE);
+        mScheduler.write(1, 1, ADDRESS, 11, REQUEST, 0, VALUE);
+        mScheduler.write(2, 2, ADDRESS, 20, REQUEST, 0, VALUE);
+
+        mScheduler.removeConnection(ADDRESS, 1, false);
+
+        assertThat(mIssued).containsExactly(10, 20).inOrder();
+        assertThat(mScheduler.getQueueDepth(ADDRESS)).isEqualTo(0);
+
+        mScheduler.removeConnection(ADDRESS, 2, true);
+
+        assertThat(mScheduler.write(2, 2, ADDRESS, 21, REQUEST, 0, VALUE))
+                .isEqualTo(BluetoothStatusCodes.ERROR_DEVICE_NOT_CONNECTED);
+    }
+
+    @Test
+    public void dump_reportsQueueDepth() {
+        mScheduler.write(1, 1, ADDRESS, 10, REQUEST, 0, VALUE);
+        mScheduler.write(2, 2, ADDRESS, 20, REQUEST, 0, VALUE);
+
+        StringBuilder sb = new StringBuilder();
+        mScheduler.dump(sb);
+
+        assertThat(sb.toString()).contains("Writes: 2, queued: 1");
+        assertThat(sb.toString()).contains(ADDRESS + ": queue depth: 1, in flight: 1");
+    }
+}
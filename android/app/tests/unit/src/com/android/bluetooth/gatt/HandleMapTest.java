@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for {@link HandleMap}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HandleMapTest {
+    private static final int SERVER_IF = 1;
+    private static final int OTHER_SERVER_IF = 2;
+    private static final UUID SERVICE_UUID =
+            UUID.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+    private static final UUID CHAR_UUID = UUID.fromString("00002A19-0000-1000-8000-00805F9B34FB");
+    private static final UUID DESC_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+
+    private HandleMap mHandleMap;
+
+    @Before
+    public void setUp() {
+        mHandleMap = new HandleMap();
+        mHandleMap.addService(SERVER_IF, 10, SERVICE_UUID, 0, 0, false);
+        mHandleMap.addCharacteristic(SERVER_IF, 11, CHAR_UUID, 10);
+        mHandleMap.addDescriptor(SERVER_IF, 12, DESC_UUID, 10);
+        mHandleMap.addService(OTHER_SERVER_IF, 20, SERVICE_UUID, 0, 1, false);
+        mHandleMap.addCharacteristic(OTHER_SERVER_IF, 21, CHAR_UUID, 20);
+    }
+
+    @Test
+    public void getByHandle() {
+        HandleMap.Entry entry = mHandleMap.getByHandle(12);
+
+        assertThat(entry.type).isEqualTo(HandleMap.TYPE_DESCRIPTOR);
+        assertThat(entry.serviceHandle).isEqualTo(10);
+        assertThat(entry.charHandle).isEqualTo(11);
+        assertThat(mHandleMap.getByHandle(13)).isNull();
+    }
+
+    @Test
+    public void getByRequestId() {
+        mHandleMap.addRequest(5, 21);
+
+        assertThat(mHandleMap.getByRequestId(5).uuid).isEqualTo(CHAR_UUID);
+
+        mHandleMap.deleteRequest(5);
+        assertThat(mHandleMap.getByRequestId(5)).isNull();
+    }
+
+    @Test
+    public void setStarted() {
+        mHandleMap.setStarted(OTHER_SERVER_IF, 10, true);
+        assertThat(mHandleMap.getByHandle(10).started).isFalse();
+
+        mHandleMap.setStarted(SERVER_IF, 11, true);
+        assertThat(mHandleMap.getByHandle(11).started).isFalse();
+
+        mHandleMap.setStarted(SERVER_IF, 10, true);
+        assertThat(mHandleMap.getByHandle(10).started).isTrue();
+    }
+
+    @Test
+    public void checkServiceExists() {
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 20)).isTrue();
+        assertThat(mHandleMap.checkServiceExists(SERVICE_UUID, 21)).isFalse();
+        assertThat(mHandleMap.checkServiceExists(CHAR_UUID, 10)).isFalse();
+    }
+
+    @Test
+    public void deleteService() {
+        mHandleMap.deleteService(SERVER_IF, 10);
+
+        assertThat(mHandleMap.getByHandle(10)).isNull();
+        assertThat(mHandleMap.getByHandle(12)).isNull();
+        assertThat(mHandleMap.getByHandle(21)).isNotNull();
+        assertThat(mHandleMap.getEntries()).hasSize(2);
+        assertThat(mHandleMap.getEntriesByServerIf(SERVER_IF)).isEmpty();
+    }
+
+    @Test
+    public void getEntriesByServerIf() {
+        assertThat(mHandleMap.getEntriesByServerIf(SERVER_IF)).containsExactly(
+                mHandleMap.getByHandle(10), mHandleMap.getByHandle(11),
+                mHandleMap.getByHandle(12)).inOrder();
+        assertThat(mHandleMap.getEntriesByServerIf(OTHER_SERVER_IF)).hasSize(2);
+        assertThat(mHandleMap.getEntriesByServerIf(3)).isEmpty();
+    }
+
+    @Test
+    public void getEntriesByServerIf_returnsSnapshot() {
+        List<HandleMap.Entry> entries = mHandleMap.getEntriesByServerIf(OTHER_SERVER_IF);
+
+        mHandleMap.addDescriptor(OTHER_SERVER_IF, 22, DESC_UUID, 20);
+
+        assertThat(entries).hasSize(2);
+        assertThat(mHandleMap.getEntriesByServerIf(OTHER_SERVER_IF)).hasSize(3);
+    }
+
+    @Test
+    public void clear() {
+        mHandleMap.addRequest(5, 21);
+        mHandleMap.clear();
+
+        assertThat(mHandleMap.getEntries()).isEmpty();
+        assertThat(mHandleMap.getByHandle(10)).isNull();
+        assertThat(mHandleMap.getByRequestId(5)).isNull();
+        assertThat(mHandleMap.getEntriesByServerIf(SERVER_IF)).isEmpty();
+    }
+}
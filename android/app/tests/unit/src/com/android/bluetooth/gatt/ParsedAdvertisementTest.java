@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanResult;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Test cases for {@link ParsedAdvertisement}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParsedAdvertisementTest {
+    private static final String ADDRESS = "00:11:22:33:FF:EE";
+    private static final int ET_LEGACY = 0x1b;
+    private static final int ET_EXTENDED = 0x01;
+    private static final byte[] ADV_DATA = new byte[] {0x02, 0x01, 0x06, 0x03, 0x03, 0x12, 0x18};
+
+    private static ParsedAdvertisement create(int eventType) {
+        return new ParsedAdvertisement(eventType, ADDRESS, 1, 0, 0xff, 127, -54, 0, ADV_DATA,
+                1000L);
+    }
+
+    @Test
+    public void getResult_sharedAcrossCallers() {
+        ParsedAdvertisement advertisement = create(ET_LEGACY);
+
+        ScanResult extended = advertisement.getResult(false);
+        ScanResult legacy = advertisement.getResult(true);
+
+        assertThat(advertisement.getResult(false)).isSameInstanceAs(extended);
+        assertThat(advertisement.getResult(true)).isSameInstanceAs(legacy);
+        assertThat(legacy).isNotSameInstanceAs(extended);
+        assertThat(legacy.getDevice()).isSameInstanceAs(extended.getDevice());
+    }
+
+    @Test
+    public void getResult_legacyDataPaddedToFixedSize() {
+        ParsedAdvertisement advertisement = create(ET_LEGACY);
+
+        assertThat(advertisement.getResult(true).getScanRecord().getBytes())
+                .hasLength(ParsedAdvertisement.LEGACY_ADV_DATA_LENGTH);
+        assertThat(advertisement.getResult(false).getScanRecord().getBytes())
+                .isEqualTo(ADV_DATA);
+    }
+
+    @Test
+    public void getResult_legacyScanSkipsExtendedReport() {
+        ParsedAdvertisement advertisement = create(ET_EXTENDED);
+
+        assertThat(advertisement.isLegacy()).isFalse();
+        assertThat(advertisement.getResult(true)).isNull();
+        assertThat(advertisement.getResult(false)).isNotNull();
+    }
+
+    @Test
+    public void getResult_keepsReportFields() {
+        ScanResult result = create(ET_LEGACY).getResult(false);
+
+        assertThat(result.getDevice().getAddress()).isEqualTo(ADDRESS);
+        assertThat(result.getEventType()).isEqualTo(ET_LEGACY);
+        assertThat(result.getRssi()).isEqualTo(-54);
+        assertThat(result.getTxPower()).isEqualTo(127);
+        assertThat(result.getTimestampNanos()).isEqualTo(1000L);
+    }
+}
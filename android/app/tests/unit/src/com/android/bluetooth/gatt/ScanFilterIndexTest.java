@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanFilterIndex}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanFilterIndexTest {
+    private static final String ADDRESS = "00:11:22:33:FF:EE";
+    private static final String OTHER_ADDRESS = "00:11:22:33:44:55";
+    // Flags, 16-bit service UUID 0x180F, service data for 0x180F, manufacturer data for 0x00E0.
+    private static final byte[] ADV_DATA = new byte[] {
+            0x02, 0x01, 0x06,
+            0x03, 0x03, 0x0F, 0x18,
+            0x04, 0x16, 0x0F, 0x18, 0x64,
+            0x05, (byte) 0xFF, (byte) 0xE0, 0x00, 0x01, 0x02};
+    private static final ParcelUuid BATTERY_UUID =
+            ParcelUuid.fromString("0000180F-0000-1000-8000-00805F9B34FB");
+    private static final ParcelUuid HEART_RATE_UUID =
+            ParcelUuid.fromString("0000180D-0000-1000-8000-00805F9B34FB");
+
+    private static ScanClient createClient(int scannerId, ScanFilter... filters) {
+        return new ScanClient(scannerId, new ScanSettings.Builder().build(),
+                filters.length == 0 ? null : Arrays.asList(filters));
+    }
+
+    private static ScanResult createResult() {
+        return new ParsedAdvertisement(0x1b, ADDRESS, 1, 0, 0xff, 127, -54, 0, ADV_DATA, 0)
+                .getResult(false);
+    }
+
+    @Test
+    public void getMatchingScanners_matchesEachKey() {
+        List<ScanClient> clients = new ArrayList<>();
+        clients.add(createClient(1, new ScanFilter.Builder().setDeviceAddress(ADDRESS).build()));
+        clients.add(createClient(2,
+                new ScanFilter.Builder().setManufacturerData(0x00E0, new byte[] {0x01}).build()));
+        clients.add(createClient(3,
+                new ScanFilter.Builder().setServiceData(BATTERY_UUID, new byte[] {0x64}).build()));
+        clients.add(createClient(4, new ScanFilter.Builder().setServiceUuid(BATTERY_UUID).build()));
+        clients.add(createClient(5));
+        clients.add(createClient(6,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build(),
+                new ScanFilter.Builder().setServiceUuid(HEART_RATE_UUID).build(),
+                new ScanFilter.Builder().setManufacturerData(0x00E0, new byte[] {0x07}).build()));
+
+        ScanFilterIndex index = ScanFilterIndex.build(clients);
+
+        assertThat(index.getNumFilters()).isEqualTo(7);
+        assertThat(index.getMatchingScanners(createResult(), null))
+                .containsExactly(1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void getMatchingScanners_originalAddress() {
+        ScanClient client = createClient(1,
+                new ScanFilter.Builder().setDeviceAddress(OTHER_ADDRESS).build());
+        ScanFilterIndex index = ScanFilterIndex.build(Arrays.asList(client));
+
+        assertThat(index.getMatchingScanners(createResult(), null)).isEmpty();
+        assertThat(index.getMatchingScanners(createResult(), OTHER_ADDRESS.toLowerCase()))
+                .containsExactly(1);
+    }
+
+    @Test
+    public void getMatchingScanners_residualFilters() {
+        ScanClient masked = createClient(1, new ScanFilter.Builder()
+                .setServiceUuid(BATTERY_UUID,
+                        ParcelUuid.fromString("0000FF00-0000-0000-0000-000000000000"))
+                .build());
+        ScanClient named = createClient(2,
+                new ScanFilter.Builder().setDeviceName("unknown").build());
+        ScanFilterIndex index = ScanFilterIndex.build(Arrays.asList(masked, named));
+
+        assertThat(index.getMatchingScanners(createResult(), null)).containsExactly(1);
+    }
+
+    @Test
+    public void isIndexed() {
+        ScanClient client = createClient(1, new ScanFilter.Builder().build());
+        ScanFilterIndex index = ScanFilterIndex.build(Arrays.asList(client));
+
+        assertThat(index.isIndexed(client)).isTrue();
+        assertThat(index.isIndexed(createClient(1))).isFalse();
+        assertThat(ScanFilterIndex.EMPTY.isIndexed(client)).isFalse();
+
+        client.filters = new ArrayList<>();
+        assertThat(index.isIndexed(client)).isFalse();
+    }
+}
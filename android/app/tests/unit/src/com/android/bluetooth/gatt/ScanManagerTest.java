@@ -398,6 +398,24 @@ public class ScanManagerTest {
         }
     }
 
+    @Test
+    public void testReportScanResultsOfResumedScan() {
+        // Turn off screen
+        sendMessageWaitForProcessed(createScreenOnOffMessage(false));
+        // Start an unfiltered scan, which is suspended
+        ScanClient client = createScanClient(0, false, SCAN_MODE_LOW_LATENCY);
+        sendMessageWaitForProcessed(createStartStopScanMessage(true, client));
+        assertThat(mScanManager.getSuspendedScanQueue().contains(client)).isTrue();
+        assertThat(mHandler.hasMessages(ScanManager.MSG_REPORT_SCAN_RESULTS)).isFalse();
+        // Turn on screen
+        sendMessageWaitForProcessed(createScreenOnOffMessage(true));
+        assertThat(mScanManager.getRegularScanQueue().contains(client)).isTrue();
+        assertThat(mHandler.hasMessages(ScanManager.MSG_REPORT_SCAN_RESULTS)).isTrue();
+        // Stop scan
+        sendMessageWaitForProcessed(createStartStopScanMessage(false, client));
+        assertThat(mHandler.hasMessages(ScanManager.MSG_REPORT_SCAN_RESULTS)).isFalse();
+    }
+
     @Test
     public void testUnfilteredScanTimeout() {
         // Set filtered scan flag
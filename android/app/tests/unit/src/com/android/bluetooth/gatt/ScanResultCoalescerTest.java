@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.bluetooth.le.ScanResult;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.os.TestLooperManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test cases for {@link ScanResultCoalescer}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ScanResultCoalescerTest {
+    private static final long WINDOW_MILLIS = 60_000;
+    private static final byte[] ADV_DATA = new byte[] {0x02, 0x01, 0x06};
+
+    private final List<Integer> mScannerIds = new ArrayList<>();
+    private final List<ArrayList<ScanResult>> mDeliveries = new ArrayList<>();
+    private ScanResultCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        mCoalescer = new ScanResultCoalescer(Looper.getMainLooper(), (scannerId, results) -> {
+            mScannerIds.add(scannerId);
+            mDeliveries.add(results);
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mCoalescer.cleanup();
+    }
+
+    private static ScanResult createResult(String address, int rssi) {
+        return new ParsedAdvertisement(0x1b, address, 1, 0, 0xff, 127, rssi, 0, ADV_DATA, 0)
+                .getResult(false);
+    }
+
+    @Test
+    public void flush_deduplicatesPerDevice() {
+        ScanResult first = createResult("00:11:22:33:44:55", -80);
+        ScanResult other = createResult("00:11:22:33:44:66", -70);
+        ScanResult latest = createResult("00:11:22:33:44:55", -60);
+
+        mCoalescer.add(1, WINDOW_MILLIS, first);
+        mCoalescer.add(1, WINDOW_MILLIS, other);
+        mCoalescer.add(1, WINDOW_MILLIS, latest);
+        mCoalescer.flush(1);
+
+        assertThat(mScannerIds).containsExactly(1);
+        assertThat(mDeliveries.get(0)).containsExactly(latest, other).inOrder();
+        assertThat(mCoalescer.getNumResults()).isEqualTo(3);
+        assertThat(mCoalescer.getNumDeliveries()).isEqualTo(1);
+    }
+
+    @Test
+    public void flush_perScanner() {
+        ScanResult result = createResult("00:11:22:33:44:55", -80);
+
+        mCoalescer.add(1, WINDOW_MILLIS, result);
+        mCoalescer.add(2, WINDOW_MILLIS, result);
+        mCoalescer.flush(2);
+        mCoalescer.flush(2);
+
+        assertThat(mScannerIds).containsExactly(2);
+    }
+
+    @Test
+    public void remove_dropsPendingResults() {
+        mCoalescer.add(1, WINDOW_MILLIS, createResult("00:11:22:33:44:55", -80));
+        mCoalescer.remove(1);
+        mCoalescer.flush(1);
+
+        assertThat(mDeliveries).isEmpty();
+        assertThat(mCoalescer.getNumDeliveries()).isEqualTo(0);
+    }
+
+    @Test
+    public void remove_cancelsWindowOfRestartedScanner() {
+        HandlerThread thread = new HandlerThread("ScanResultCoalescerTest");
+        thread.start();
+        TestLooperManager looperManager = InstrumentationRegistry.getInstrumentation()
+                .acquireLooperManager(thread.getLooper());
+        ScanResultCoalescer coalescer = new ScanResultCoalescer(thread.getLooper(),
+                (scannerId, results) -> mDeliveries.add(results));
+        try {
+            coalescer.add(1, 100, createResult("00:11:22:33:44:55", -80));
+            coalescer.remove(1);
+            long restartTime = SystemClock.uptimeMillis();
+            coalescer.add(1, 300, createResult("00:11:22:33:44:55", -70));
+
+            // The first flush is the one of the new window, not the one of the removed window.
+            Message msg = looperManager.next();
+            assertThat(msg.getWhen()).isAtLeast(restartTime + 300);
+            looperManager.execute(msg);
+            looperManager.recycle(msg);
+
+            assertThat(mDeliveries).hasSize(1);
+        } finally {
+            coalescer.cleanup();
+            looperManager.release();
+            thread.quit();
+        }
+    }
+}
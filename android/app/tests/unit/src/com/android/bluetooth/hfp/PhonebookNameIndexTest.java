@@ -0,0 +1,124 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.PhoneLookup;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhonebookNameIndexTest {
+    private static final String TEST_NUMBER = "+16502530000";
+    private static final String TEST_NUMBER_FORMATTED = "+1 650-253-0000";
+    private static final String TEST_NAME = "test_name";
+    private static final String TEST_UNKNOWN_NUMBER = "+16502531111";
+    private static final String TEST_LOOKUP_NAME = "test_lookup_name";
+
+    @Spy
+    private BluetoothMethodProxy mHfpMethodProxy = BluetoothMethodProxy.getInstance();
+
+    private PhonebookNameIndex mIndex;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        BluetoothMethodProxy.setInstanceForTesting(mHfpMethodProxy);
+
+        doAnswer(invocation -> {
+            MatrixCursor cursor =
+                    new MatrixCursor(new String[] {Phone.NUMBER, Phone.DISPLAY_NAME, Phone.TYPE});
+            cursor.addRow(new Object[] {TEST_NUMBER_FORMATTED, TEST_NAME, Phone.TYPE_MOBILE});
+            return cursor;
+        }).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any());
+        doAnswer(invocation -> {
+            MatrixCursor cursor =
+                    new MatrixCursor(new String[] {PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE});
+            cursor.addRow(new Object[] {TEST_LOOKUP_NAME, Phone.TYPE_WORK});
+            return cursor;
+        }).when(mHfpMethodProxy).contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        mIndex = new PhonebookNameIndex(context, context.getContentResolver(),
+                AtPhonebook.MAX_PHONEBOOK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothMethodProxy.setInstanceForTesting(null);
+    }
+
+    @Test
+    public void get_matchesIndexedNumber_withoutLookup() {
+        PhonebookNameIndex.Entry entry = mIndex.get(TEST_NUMBER);
+
+        assertThat(entry.mName).isEqualTo(TEST_NAME);
+        assertThat(entry.mType).isEqualTo(Phone.TYPE_MOBILE);
+        verify(mHfpMethodProxy, times(1)).contentResolverQuery(any(), any(), any(), any(), any());
+        verify(mHfpMethodProxy, times(0)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void get_unknownNumber_looksUpOnce() {
+        assertThat(mIndex.get(TEST_UNKNOWN_NUMBER).mName).isEqualTo(TEST_LOOKUP_NAME);
+        assertThat(mIndex.get(TEST_UNKNOWN_NUMBER).mName).isEqualTo(TEST_LOOKUP_NAME);
+
+        verify(mHfpMethodProxy, times(1)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void clear_rebuildsIndex() {
+        mIndex.get(TEST_NUMBER);
+        mIndex.clear();
+        mIndex.get(TEST_NUMBER);
+
+        verify(mHfpMethodProxy, times(2)).contentResolverQuery(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void getMinMatch() {
+        assertThat(PhonebookNameIndex.getMinMatch("+1 (650) 253-0000"))
+                .isEqualTo(PhonebookNameIndex.getMinMatch("2530000"));
+        assertThat(PhonebookNameIndex.getMinMatch("+1 (650) 253-0000")).hasLength(
+                PhonebookNameIndex.MIN_MATCH);
+        assertThat(PhonebookNameIndex.getMinMatch("")).isNull();
+        assertThat(PhonebookNameIndex.getMinMatch(null)).isNull();
+    }
+}
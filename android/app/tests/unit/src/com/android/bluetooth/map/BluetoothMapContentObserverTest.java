@@ -35,6 +35,7 @@ import android.provider.ContactsContract;
 import android.provider.Telephony;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
+import android.provider.Telephony.Threads;
 import android.telephony.TelephonyManager;
 import android.test.mock.MockContentProvider;
 import android.test.mock.MockContentResolver;
@@ -64,10 +65,12 @@ import org.mockito.Spy;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 @MediumTest
@@ -1939,6 +1942,161 @@ public class BluetoothMapContentObserverTest {
         verify(mProviderClient, never()).query(any(), any(), any(), any(), any(), any());
     }
 
+    @Test
+    public void getChangedMessageId() {
+        Assert.assertEquals(12, BluetoothMapContentObserver.getChangedMessageId(
+                Uri.parse("content://sms/12")));
+        Assert.assertEquals(12, BluetoothMapContentObserver.getChangedMessageId(
+                Uri.parse("content://sms/inbox/12")));
+        Assert.assertEquals(-1, BluetoothMapContentObserver.getChangedMessageId(
+                Uri.parse("content://sms")));
+        Assert.assertEquals(-1, BluetoothMapContentObserver.getChangedMessageId(
+                Uri.parse("content://sms/conversations/12")));
+    }
+
+    @Test
+    public void getThreadIdsWithDeletedMessages_returnsNullUntilCountsAreKnown() {
+        doReturn(createThreadsCursor(new long[][] {{1, 2}})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Assert.assertNull(mObserver.getThreadIdsWithDeletedMessages());
+
+        doReturn(createThreadsCursor(new long[][] {{1, 2}})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Assert.assertTrue(mObserver.getThreadIdsWithDeletedMessages().isEmpty());
+    }
+
+    @Test
+    public void getThreadIdsWithDeletedMessages_returnsRemovedAndShrunkThreads() {
+        doReturn(createThreadsCursor(new long[][] {{1, 2}, {2, 2}, {3, 2}, {4, 2}}))
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mObserver.getThreadIdsWithDeletedMessages();
+        // Thread 1 is unchanged, 2 lost a message, 3 was removed, 4 and 5 got new messages.
+        doReturn(createThreadsCursor(new long[][] {{1, 2}, {2, 1}, {4, 3}, {5, 1}}))
+                .when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Set<Integer> threadIds = mObserver.getThreadIdsWithDeletedMessages();
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2, 3)), threadIds);
+    }
+
+    @Test
+    public void getThreadIdsWithDeletedMessages_withoutCursor_forgetsCounts() {
+        doReturn(createThreadsCursor(new long[][] {{1, 2}})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mObserver.getThreadIdsWithDeletedMessages();
+        doReturn(null).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Assert.assertNull(mObserver.getThreadIdsWithDeletedMessages());
+
+        doReturn(createThreadsCursor(new long[][] {{1, 1}})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Assert.assertNull(mObserver.getThreadIdsWithDeletedMessages());
+    }
+
+    @Test
+    public void getThreadIdsWithDeletedMessages_withMissingColumn_returnsNull() {
+        doReturn(createThreadsCursor(new long[][] {{1, 2}})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+        mObserver.getThreadIdsWithDeletedMessages();
+        doReturn(new MatrixCursor(new String[] {Threads._ID})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), any(), any(), any(), any());
+
+        Assert.assertNull(mObserver.getThreadIdsWithDeletedMessages());
+    }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withSmsUri_syncsOnlyThatSms() {
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.setMsgListMms(new HashMap<>(), true);
+
+        mObserver.handleMsgListChangesSmsMms(Uri.parse("content://sms/" + TEST_HANDLE_ONE));
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(),
+                eq(Sms._ID + "=" + TEST_HANDLE_ONE), any(), any());
+        verify(mMapMethodProxy, never()).contentResolverQuery(any(), eq(Mms.CONTENT_URI), any(),
+                any(), any(), any());
+    }
+
+    @Test
+    public void handleMsgListChangesSmsMms_withMmsSmsUri_syncsAllMms() {
+        mObserver.setMsgListSms(new HashMap<>(), true);
+        mObserver.setMsgListMms(new HashMap<>(), true);
+        doAnswer(invocation -> createThreadsCursor(new long[][] {{1, 2}})).when(mMapMethodProxy)
+                .contentResolverQuery(any(), argThat(uri -> !Sms.CONTENT_URI.equals(uri)
+                        && !Mms.CONTENT_URI.equals(uri)), any(), any(), any(), any());
+        mObserver.getThreadIdsWithDeletedMessages();
+
+        mObserver.handleMsgListChangesSmsMms(Telephony.MmsSms.CONTENT_URI);
+
+        verify(mMapMethodProxy).contentResolverQuery(any(), eq(Mms.CONTENT_URI), any(),
+                isNull(), any(), any());
+        // No thread lost messages, the SMS were synced on their own URIs.
+        verify(mMapMethodProxy, never()).contentResolverQuery(any(), eq(Sms.CONTENT_URI), any(),
+                any(), any(), any());
+    }
+
+    @Test
+    public void handleMsgListChangesSms_withScope_keepsOtherMessages() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Sms._ID, Sms.TYPE, Sms.THREAD_ID,
+                Sms.READ});
+        cursor.addRow(new Object[] {TEST_HANDLE_ONE, TEST_SMS_TYPE_INBOX, TEST_THREAD_ID,
+                TEST_READ_FLAG_ONE});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(),
+                eq(Sms._ID + "=" + TEST_HANDLE_ONE), any(), any());
+
+        Map<Long, BluetoothMapContentObserver.Msg> map = new HashMap<>();
+        map.put(TEST_HANDLE_ONE, new BluetoothMapContentObserver.Msg(TEST_HANDLE_ONE,
+                TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ZERO));
+        map.put(TEST_HANDLE_TWO, new BluetoothMapContentObserver.Msg(TEST_HANDLE_TWO,
+                TEST_SMS_TYPE_INBOX, TEST_THREAD_ID, TEST_READ_FLAG_ZERO));
+        mObserver.setMsgListSms(map, true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+
+        mObserver.handleMsgListChangesSms(Sms._ID + "=" + TEST_HANDLE_ONE,
+                msg -> msg.id == TEST_HANDLE_ONE);
+
+        Assert.assertEquals(mObserver.getMsgListSms().get(TEST_HANDLE_ONE).flagRead,
+                TEST_READ_FLAG_ONE);
+        Assert.assertEquals(mObserver.getMsgListSms().get(TEST_HANDLE_TWO).flagRead,
+                TEST_READ_FLAG_ZERO);
+    }
+
+    @Test
+    public void handleMsgListChangesMms_withScope_removesMissingMessage() {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Mms._ID, Mms.MESSAGE_BOX,
+                Mms.MESSAGE_TYPE, Mms.THREAD_ID, Mms.READ});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(), any(),
+                eq(Mms._ID + "=" + TEST_HANDLE_TWO), any(), any());
+
+        Map<Long, BluetoothMapContentObserver.Msg> map = new HashMap<>();
+        map.put(TEST_HANDLE_ONE, new BluetoothMapContentObserver.Msg(TEST_HANDLE_ONE,
+                TEST_MMS_TYPE_ALL, TEST_THREAD_ID, TEST_READ_FLAG_ZERO));
+        map.put(TEST_HANDLE_TWO, new BluetoothMapContentObserver.Msg(TEST_HANDLE_TWO,
+                TEST_MMS_TYPE_ALL, TEST_THREAD_ID, TEST_READ_FLAG_ZERO));
+        mObserver.setMsgListMms(map, true);
+        mObserver.mMapEventReportVersion = BluetoothMapUtils.MAP_EVENT_REPORT_V10;
+
+        mObserver.handleMsgListChangesMms(Mms._ID + "=" + TEST_HANDLE_TWO,
+                msg -> msg.id == TEST_HANDLE_TWO);
+
+        Assert.assertNotNull(mObserver.getMsgListMms().get(TEST_HANDLE_ONE));
+        Assert.assertNull(mObserver.getMsgListMms().get(TEST_HANDLE_TWO));
+    }
+
+    private MatrixCursor createThreadsCursor(long[][] threadMessageCounts) {
+        MatrixCursor cursor = new MatrixCursor(new String[] {Threads._ID, Threads.MESSAGE_COUNT});
+        for (long[] threadMessageCount : threadMessageCounts) {
+            cursor.addRow(new Object[] {threadMessageCount[0], threadMessageCount[1]});
+        }
+        return cursor;
+    }
+
     private BluetoothMapContentObserver.Msg createSimpleMsg() {
         return new BluetoothMapContentObserver.Msg(1, 1L, 1);
     }
@@ -806,6 +806,18 @@ public class BluetoothMapContentTest {
         assertThat(mConvoListingElement.getLastActivity()).isEqualTo(TEST_DATE_EMAIL);
     }
 
+    @Test
+    public void getMessage_withFractionRequestNext_throws() {
+        when(mParams.getFractionRequest()).thenReturn(
+                BluetoothMapAppParams.FRACTION_REQUEST_NEXT);
+        String handle = BluetoothMapUtils.getMapHandle(TEST_ID, TYPE.MMS);
+
+        assertThrows(IllegalArgumentException.class, () -> mContent.getMessage(handle,
+                mParams, mCurrentFolder, "1.0"));
+        assertThrows(IllegalArgumentException.class, () -> mContent.getStreamedMessage(handle,
+                mParams, mCurrentFolder, "1.0"));
+    }
+
     @Test
     public void getEmailMessage_withCharsetNative() {
         when(mParams.getCharset()).thenReturn(BluetoothMapContent.MAP_MESSAGE_CHARSET_NATIVE);
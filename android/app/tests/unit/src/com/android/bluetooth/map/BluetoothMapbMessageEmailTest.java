@@ -18,6 +18,8 @@ package com.android.bluetooth.map;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import android.net.Uri;
+
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
@@ -27,7 +29,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
@@ -75,4 +79,25 @@ public class BluetoothMapbMessageEmailTest {
         BluetoothMapbMessageEmail messageEmailParsed = (BluetoothMapbMessageEmail) messageParsed;
         assertThat(messageEmailParsed.getEmailBody()).isEqualTo("");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void encodeToStream_withBodyReadWhileEncoded_equalsBodyInMemory() throws Exception {
+        String body = "first line\r\nEND:MSG\r\nlast END:MSG";
+        BluetoothMapbMessageEmail messageInMemory = new BluetoothMapbMessageEmail();
+        messageInMemory.setType(TYPE.EMAIL);
+        messageInMemory.setFolder("placeholder");
+        messageInMemory.setStatus(true);
+        messageInMemory.setEmailBody(body);
+        BluetoothMapbMessageEmail messageStreamed = new BluetoothMapbMessageEmail();
+        messageStreamed.setType(TYPE.EMAIL);
+        messageStreamed.setFolder("placeholder");
+        messageStreamed.setStatus(true);
+        messageStreamed.setEmailBodyUri(Uri.parse("content://test/1"),
+                uri -> new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        messageStreamed.encode(stream);
+
+        assertThat(stream.toByteArray()).isEqualTo(messageInMemory.encode());
+    }
+}
@@ -18,7 +18,9 @@ package com.android.bluetooth.map;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import android.net.Uri;
 import android.text.util.Rfc822Token;
+import android.util.Base64;
 
 import androidx.test.filters.MediumTest;
 import androidx.test.runner.AndroidJUnit4;
@@ -27,6 +29,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -218,4 +222,49 @@ public class BluetoothMapbMessageMimeTest {
         BluetoothMapbMessageMime bMessageMime = new BluetoothMapbMessageMime();
         bMessageMime.parseMsgPart(null);
     }
+
+    @Test
+    public void getBase64Length_matchesBase64Encoding() {
+        for (int length : new int[] {0, 1, 2, 3, 56, 57, 58, 114, 1000}) {
+            assertThat(BluetoothMapbMessageMime.getBase64Length(length)).isEqualTo(
+                    Base64.encodeToString(new byte[length], Base64.DEFAULT).length());
+        }
+    }
+
+    @Test
+    public void encodeMime_withPartReadWhileEncoded_equalsPartInMemory() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        mMime.setType(BluetoothMapUtils.TYPE.MMS);
+        mMime.setFolder("placeholder");
+        BluetoothMapbMessageMime.MimePart part = mMime.getMimeParts().get(0);
+        part.mContentType = "image/jpeg";
+        part.mData = data;
+        byte[] encodedInMemory = mMime.encodeMime();
+
+        part.mData = null;
+        part.mDataUri = Uri.parse("content://mms/part/1");
+        part.mDataLength = data.length;
+        mMime.setContentReader(uri -> new ByteArrayInputStream(data));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        mMime.encode(stream);
+
+        assertThat(stream.toByteArray()).isEqualTo(encodedInMemory);
+        assertThat(mMime.getSize()).isEqualTo(data.length);
+    }
+
+    @Test
+    public void encodeMime_withPartChangedWhileEncoded_fails() throws Exception {
+        mMime.setType(BluetoothMapUtils.TYPE.MMS);
+        mMime.setFolder("placeholder");
+        BluetoothMapbMessageMime.MimePart part = mMime.getMimeParts().get(0);
+        part.mContentType = "image/jpeg";
+        part.mDataUri = Uri.parse("content://mms/part/1");
+        part.mDataLength = 10;
+        mMime.setContentReader(uri -> new ByteArrayInputStream(new byte[5]));
+
+        assertThat(mMime.encodeMime()).isNull();
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.bluetooth.BluetoothMethodProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+
+import java.util.Arrays;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContactNameResolverTest {
+    private static final String TEST_COUNTRY_ISO = "us";
+    private static final String TEST_PHONE = "650-253-0000";
+    private static final String TEST_PHONE_OTHER_FORMAT = "(650) 253-0000";
+    private static final String TEST_NORMALIZED_PHONE = "+16502530000";
+    private static final String TEST_NAME = "test_name";
+    private static final String[] LOOKUP_PROJECTION = {Contacts._ID, Contacts.DISPLAY_NAME};
+
+    @Mock
+    private ContentResolver mContentResolver;
+    @Spy
+    private BluetoothMethodProxy mMapMethodProxy = BluetoothMethodProxy.getInstance();
+
+    private ContactNameResolver mResolver;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        BluetoothMethodProxy.setInstanceForTesting(mMapMethodProxy);
+        mResolver = new ContactNameResolver(mContentResolver);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothMethodProxy.setInstanceForTesting(null);
+        ContactNameResolver.resetStats();
+    }
+
+    @Test
+    public void prefetch_resolvesAllFormatsOfNumberWithOneQuery() {
+        MatrixCursor cursor = new MatrixCursor(ContactNameResolver.PHONE_PROJECTION);
+        cursor.addRow(new Object[] {TEST_NORMALIZED_PHONE, TEST_NAME});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), eq(Phone.CONTENT_URI),
+                eq(ContactNameResolver.PHONE_PROJECTION), any(), any(), any());
+
+        mResolver.prefetch(Arrays.asList(TEST_PHONE, TEST_PHONE_OTHER_FORMAT), TEST_COUNTRY_ISO);
+
+        assertThat(mResolver.getName(TEST_PHONE)).isEqualTo(TEST_NAME);
+        assertThat(mResolver.getName(TEST_PHONE_OTHER_FORMAT)).isEqualTo(TEST_NAME);
+        verify(mMapMethodProxy, times(1)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void getName_withoutBulkResult_fallsBackToPhoneLookupOnce() {
+        doReturn(null).when(mMapMethodProxy).contentResolverQuery(any(), eq(Phone.CONTENT_URI),
+                eq(ContactNameResolver.PHONE_PROJECTION), any(), any(), any());
+        MatrixCursor cursor = new MatrixCursor(LOOKUP_PROJECTION);
+        cursor.addRow(new Object[] {1, TEST_NAME});
+        doReturn(cursor).when(mMapMethodProxy).contentResolverQuery(any(), any(),
+                eq(LOOKUP_PROJECTION), any(), any(), any());
+
+        mResolver.prefetch(Arrays.asList(TEST_PHONE), TEST_COUNTRY_ISO);
+
+        assertThat(mResolver.getName(TEST_PHONE)).isEqualTo(TEST_NAME);
+        assertThat(mResolver.getName(TEST_PHONE)).isEqualTo(TEST_NAME);
+        verify(mMapMethodProxy, times(1)).contentResolverQuery(any(), any(),
+                eq(LOOKUP_PROJECTION), any(), any(), any());
+    }
+
+    @Test
+    public void getName_withoutContact_cachesMissingName() {
+        doAnswer(invocation -> new MatrixCursor(LOOKUP_PROJECTION)).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), eq(LOOKUP_PROJECTION), any(), any(), any());
+
+        assertThat(mResolver.getName(TEST_PHONE)).isNull();
+        assertThat(mResolver.getName(TEST_PHONE)).isNull();
+        verify(mMapMethodProxy, times(1)).contentResolverQuery(any(), any(), any(), any(), any(),
+                any());
+    }
+
+    @Test
+    public void onContactsChanged_dropsCachedNames() {
+        doAnswer(invocation -> {
+            MatrixCursor cursor = new MatrixCursor(LOOKUP_PROJECTION);
+            cursor.addRow(new Object[] {1, TEST_NAME});
+            return cursor;
+        }).when(mMapMethodProxy).contentResolverQuery(any(), any(), eq(LOOKUP_PROJECTION),
+                any(), any(), any());
+
+        assertThat(mResolver.getName(TEST_PHONE)).isEqualTo(TEST_NAME);
+        ContactNameResolver.onContactsChanged();
+        assertThat(mResolver.getName(TEST_PHONE)).isEqualTo(TEST_NAME);
+
+        verify(mMapMethodProxy, times(2)).contentResolverQuery(any(), any(),
+                eq(LOOKUP_PROJECTION), any(), any(), any());
+    }
+
+    @Test
+    public void finishRequest_addsStatsToDump() {
+        doAnswer(invocation -> new MatrixCursor(LOOKUP_PROJECTION)).when(mMapMethodProxy)
+                .contentResolverQuery(any(), any(), eq(LOOKUP_PROJECTION), any(), any(), any());
+        mResolver.getName(TEST_PHONE);
+        mResolver.getName(TEST_PHONE);
+
+        mResolver.finishRequest();
+
+        StringBuilder sb = new StringBuilder();
+        ContactNameResolver.dump(sb);
+        assertThat(sb.toString()).contains("requests=1 lookups=2 cacheHits=1 queries=1");
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ReplacingOutputStreamTest {
+    private static final String TEST_XML =
+            "<msg subject=\"a &amp;lt; b &lt; c &gt; d &amp;amp; &amp\" />&a";
+
+    private static String unescape(String input, int chunkSize) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        OutputStream out = ReplacingOutputStream.unescapeXml(sink);
+        byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            out.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+        }
+        out.flush();
+        return sink.toString("UTF-8");
+    }
+
+    @Test
+    public void unescapeXml_matchesReplaceAll() throws Exception {
+        String expected = TEST_XML.replaceAll("&amp;", "&")
+                .replaceAll("&lt;", "<")
+                .replaceAll("&gt;", ">");
+
+        // Occurrences split across writes are replaced too.
+        for (int chunkSize = 1; chunkSize <= TEST_XML.length(); chunkSize++) {
+            assertThat(unescape(TEST_XML, chunkSize)).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void write_keepsMultiByteCharacters() throws Exception {
+        assertThat(unescape("é&lt;中&amp;é", 1)).isEqualTo("é<中&é");
+    }
+
+    @Test
+    public void constructor_withRepeatedFirstByte_throws() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new ReplacingOutputStream(new ByteArrayOutputStream(), "&a&", ""));
+    }
+}
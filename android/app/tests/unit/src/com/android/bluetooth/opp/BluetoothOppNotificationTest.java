@@ -26,8 +26,10 @@ import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import android.app.Notification;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.content.ContextWrapper;
@@ -78,6 +80,7 @@ public class BluetoothOppNotificationTest {
     @After
     public void tearDown() {
         BluetoothMethodProxy.setInstanceForTesting(null);
+        BluetoothOppTransferProgress.clear();
         Intents.release();
     }
 
@@ -123,6 +126,65 @@ public class BluetoothOppNotificationTest {
         ));
     }
 
+    @Test
+    public void refreshActiveNotification_showsLiveProgressWithoutQuery() {
+        long timestamp = 10L;
+        int dir = BluetoothShare.DIRECTION_OUTBOUND;
+        int id = 3;
+        long total = 200;
+        long current = 100;
+        int status = BluetoothShare.STATUS_RUNNING;
+        int confirmation = BluetoothShare.USER_CONFIRMATION_CONFIRMED;
+        String destination = "AA:BB:CC:DD:EE:FF";
+        NotificationManager mockNotificationManager = mock(NotificationManager.class);
+        mOppNotification.mNotificationMgr = mockNotificationManager;
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                BluetoothShare.TIMESTAMP, BluetoothShare.DIRECTION, BluetoothShare._ID,
+                BluetoothShare.TOTAL_BYTES, BluetoothShare.CURRENT_BYTES, BluetoothShare._DATA,
+                BluetoothShare.FILENAME_HINT, BluetoothShare.USER_CONFIRMATION,
+                BluetoothShare.DESTINATION, BluetoothShare.STATUS
+        });
+        cursor.addRow(new Object[]{
+                timestamp, dir, id, total, current, null, null, confirmation, destination, status
+        });
+        doReturn(cursor).when(mMethodProxy).contentResolverQuery(any(),
+                eq(BluetoothShare.CONTENT_URI), any(), any(), any(), any());
+
+        mOppNotification.updateActiveNotification();
+        BluetoothOppTransferProgress.start(mTargetContext, id, total, 150);
+        mOppNotification.refreshActiveNotification();
+
+        verify(mMethodProxy, times(1)).contentResolverQuery(any(),
+                eq(BluetoothShare.CONTENT_URI), any(), any(), any(), any());
+        verify(mockNotificationManager).notify(eq(NOTIFICATION_ID_PROGRESS), argThat(
+                arg -> arg.extras.getInt(Notification.EXTRA_PROGRESS) == 75));
+    }
+
+    @Test
+    public void refreshActiveNotification_skipsFinishedTransfers() {
+        NotificationManager mockNotificationManager = mock(NotificationManager.class);
+        mOppNotification.mNotificationMgr = mockNotificationManager;
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                BluetoothShare.TIMESTAMP, BluetoothShare.DIRECTION, BluetoothShare._ID,
+                BluetoothShare.TOTAL_BYTES, BluetoothShare.CURRENT_BYTES, BluetoothShare._DATA,
+                BluetoothShare.FILENAME_HINT, BluetoothShare.USER_CONFIRMATION,
+                BluetoothShare.DESTINATION, BluetoothShare.STATUS
+        });
+        cursor.addRow(new Object[]{
+                10L, BluetoothShare.DIRECTION_OUTBOUND, 3, 200L, 100L, null, null,
+                BluetoothShare.USER_CONFIRMATION_CONFIRMED, "AA:BB:CC:DD:EE:FF",
+                BluetoothShare.STATUS_RUNNING
+        });
+        doReturn(cursor).when(mMethodProxy).contentResolverQuery(any(),
+                eq(BluetoothShare.CONTENT_URI), any(), any(), any(), any());
+
+        mOppNotification.updateActiveNotification();
+        mOppNotification.refreshActiveNotification();
+
+        // Only the notification of the full update is shown.
+        verify(mockNotificationManager, times(1)).notify(eq(NOTIFICATION_ID_PROGRESS), any());
+    }
+
     @Test
     public void updateCompletedNotification_withOutBoundShare_showsNoti() {
         long timestamp = 10L;
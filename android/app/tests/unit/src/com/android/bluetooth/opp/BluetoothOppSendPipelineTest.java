@@ -0,0 +1,107 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppSendPipelineTest {
+    private static final int PACKET_SIZE = 16;
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void take_returnsWholeStreamInPackets() throws Exception {
+        byte[] data = createData(PACKET_SIZE * 10 + 3);
+        BluetoothOppSendPipeline pipeline = new BluetoothOppSendPipeline(
+                new ByteArrayInputStream(data), data.length, PACKET_SIZE, 2);
+        pipeline.start();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Set<byte[]> buffers = new HashSet<>();
+        BluetoothOppSendPipeline.Packet packet;
+        while ((packet = pipeline.take()) != null) {
+            assertThat(packet.mLength).isAtMost(PACKET_SIZE);
+            out.write(packet.mBuffer, 0, packet.mLength);
+            buffers.add(packet.mBuffer);
+            pipeline.recycle(packet);
+        }
+        pipeline.close();
+
+        assertThat(out.toByteArray()).isEqualTo(data);
+        // Buffers are reused from the pool.
+        assertThat(buffers.size()).isAtMost(2);
+        assertThat(pipeline.take()).isNull();
+    }
+
+    @Test
+    public void take_stopsAtLength() throws Exception {
+        byte[] data = createData(PACKET_SIZE * 2);
+        BluetoothOppSendPipeline pipeline = new BluetoothOppSendPipeline(
+                new ByteArrayInputStream(data), PACKET_SIZE + 1, PACKET_SIZE, 4);
+        pipeline.start();
+
+        assertThat(pipeline.take().mLength).isEqualTo(PACKET_SIZE);
+        assertThat(pipeline.take().mLength).isEqualTo(1);
+        assertThat(pipeline.take()).isNull();
+        pipeline.close();
+    }
+
+    @Test
+    public void take_readError_throws() throws Exception {
+        InputStream failing = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("read failed");
+            }
+        };
+        BluetoothOppSendPipeline pipeline =
+                new BluetoothOppSendPipeline(failing, PACKET_SIZE, PACKET_SIZE, 2);
+        pipeline.start();
+
+        assertThrows(IOException.class, pipeline::take);
+        pipeline.close();
+    }
+
+    @Test
+    public void getBytesPerSecond() {
+        assertThat(BluetoothOppSendPipeline.getBytesPerSecond(1000, 500)).isEqualTo(2000);
+        assertThat(BluetoothOppSendPipeline.getBytesPerSecond(1000, 0)).isEqualTo(0);
+    }
+}
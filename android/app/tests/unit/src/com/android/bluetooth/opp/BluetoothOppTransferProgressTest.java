@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.opp;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothOppTransferProgressTest {
+    private static final int SHARE_ID = 7;
+    private static final long TOTAL_BYTES = 1000;
+
+    @Mock
+    private Context mContext;
+
+    private final List<Long> mPersistedBytes = new ArrayList<>();
+    private int mNumNotifications;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        MockContentResolver resolver =
+                new MockContentResolver(InstrumentationRegistry.getTargetContext());
+        resolver.addProvider(BluetoothShare.CONTENT_URI.getAuthority(),
+                new MockContentProvider(mContext) {
+                    @Override
+                    public int update(Uri uri, ContentValues values, String selection,
+                            String[] selectionArgs) {
+                        mPersistedBytes.add(values.getAsLong(BluetoothShare.CURRENT_BYTES));
+                        return 1;
+                    }
+                });
+        when(mContext.getContentResolver()).thenReturn(resolver);
+        BluetoothOppTransferProgress.setListener(() -> mNumNotifications++);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothOppTransferProgress.setListener(null);
+        BluetoothOppTransferProgress.clear();
+    }
+
+    @Test
+    public void update_notifiesOnPercentChange() {
+        BluetoothOppTransferProgress.Tracker tracker =
+                new BluetoothOppTransferProgress.Tracker(mContext, SHARE_ID, TOTAL_BYTES, 0, 0);
+
+        tracker.update(5, 1);
+        assertThat(mNumNotifications).isEqualTo(0);
+        tracker.update(10, 2);
+        assertThat(mNumNotifications).isEqualTo(1);
+        tracker.update(15, 3);
+        assertThat(mNumNotifications).isEqualTo(1);
+        tracker.update(15, 3 + Constants.NFC_ALIVE_CHECK_MS);
+        assertThat(mNumNotifications).isEqualTo(2);
+        assertThat(tracker.getCurrentBytes()).isEqualTo(15);
+    }
+
+    @Test
+    public void update_persistsAtBoundedCadence() {
+        BluetoothOppTransferProgress.Tracker tracker =
+                new BluetoothOppTransferProgress.Tracker(mContext, SHARE_ID, TOTAL_BYTES, 0, 0);
+
+        for (int i = 1; i <= 100; i++) {
+            tracker.update(i * 5, i);
+        }
+        assertThat(mPersistedBytes).isEmpty();
+
+        tracker.update(600, BluetoothOppTransferProgress.PERSIST_INTERVAL_MS);
+        assertThat(mPersistedBytes).containsExactly(600L);
+
+        tracker.update(700, BluetoothOppTransferProgress.PERSIST_INTERVAL_MS + 1);
+        tracker.finish();
+        assertThat(mPersistedBytes).containsExactly(600L, 700L).inOrder();
+    }
+
+    @Test
+    public void getCurrentBytes_readsLiveProgress() {
+        BluetoothOppTransferProgress.Tracker tracker =
+                BluetoothOppTransferProgress.start(mContext, SHARE_ID, TOTAL_BYTES, 0);
+        assertThat(BluetoothOppTransferProgress.getCurrentBytes(SHARE_ID, 42)).isEqualTo(0);
+
+        tracker.update(300);
+        assertThat(BluetoothOppTransferProgress.getCurrentBytes(SHARE_ID, 42)).isEqualTo(300);
+
+        tracker.finish();
+        assertThat(BluetoothOppTransferProgress.getCurrentBytes(SHARE_ID, 42)).isEqualTo(42);
+        assertThat(mPersistedBytes).containsExactly(300L);
+    }
+}
@@ -234,7 +234,7 @@ public class BluetoothPbapVcardManagerTest {
     }
 
     @Test
-    public void testGetPhonebookNameList() {
+    public void testGetContactNameIdList() {
         final String localPhoneName = "test_local_phone_name";
         BluetoothPbapService.setLocalPhoneName(localPhoneName);
 
@@ -246,7 +246,6 @@ public class BluetoothPbapVcardManagerTest {
         List<Integer> contactIdList = Arrays.asList(0, 1, 2, 3);
 
         List<String> expectedResult = Arrays.asList(
-                localPhoneName,
                 "A,0",
                 "B,1",
                 "C,2",
@@ -277,7 +276,8 @@ public class BluetoothPbapVcardManagerTest {
             return nameList.get(currentPosition.get());
         });
 
-        assertThat(mManager.getPhonebookNameList(BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL))
+        assertThat(mManager.getOwnerName()).isEqualTo(localPhoneName);
+        assertThat(mManager.getContactNameIdList(BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL))
                 .isEqualTo(expectedResult);
     }
 
@@ -343,4 +343,31 @@ public class BluetoothPbapVcardManagerTest {
 
         assertThat(BluetoothPbapVcardManager.getNameFromVCard(vCard)).isEqualTo("Test Name");
     }
+
+    @Test
+    public void propertySelector_checkPropertyMask_matchesCheckVCardSelector() {
+        final String separator = System.getProperty("line.separator");
+        String vCard = "BEGIN:VCARD" + separator
+                + "VERSION:2.1" + separator
+                + "N:Name" + separator
+                + "TEL;CELL:123" + separator
+                + " folded line" + separator
+                + "END:VCARD" + separator;
+        long propertyMask = BluetoothPbapVcardManager.PropertySelector.getPropertyMask(vCard);
+
+        // No property, TEL, EMAIL, TEL and EMAIL.
+        byte[][] selectors = new byte[][] {
+                new byte[8],
+                new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) 0x80},
+                new byte[] {0, 0, 0, 0, 0, 0, 0x01, 0},
+                new byte[] {0, 0, 0, 0, 0, 0, 0x01, (byte) 0x80}};
+        for (byte[] bytes : selectors) {
+            BluetoothPbapVcardManager.PropertySelector selector =
+                    new BluetoothPbapVcardManager.PropertySelector(bytes);
+            for (String operator : new String[] {"0", "1"}) {
+                assertThat(selector.checkPropertyMask(propertyMask, operator))
+                        .isEqualTo(selector.checkVCardSelector(vCard, operator));
+            }
+        }
+    }
 }
@@ -27,6 +27,7 @@ import static org.mockito.Mockito.when;
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.pbap.BluetoothPbapVcardManager.VCardFilter;
 import com.android.obex.Operation;
 
 import org.junit.Before;
@@ -35,8 +36,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 
 @SmallTest
 @RunWith(AndroidJUnit4.class)
@@ -125,4 +128,88 @@ public class HandlerForStringBufferTest {
 
         verify(mOutputStream).close();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void writeVCard_withFilter_writesCleanedUpVCards() throws Exception {
+        final String separator = System.getProperty("line.separator");
+        // Excludes EMAIL.
+        VCardFilter filter = new VCardFilter(new byte[] {(byte) 0xFE, (byte) 0xFF});
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        when(mOperation.openOutputStream()).thenReturn(output);
+        // Smaller than a vCard, so that every vCard spans several writes.
+        when(mOperation.getMaxPacketSize()).thenReturn(0);
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(mOperation, "owner" + separator);
+        buffer.init();
+        expected.write(("owner" + separator).getBytes());
+
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            longName.append("é中");
+        }
+        for (int i = 0; i < 1000; i++) {
+            String vCard = "BEGIN:VCARD" + separator
+                    + "VERSION:2.1" + separator
+                    + "N:" + longName + i + ";;;;" + separator
+                    + "TEL;TYPE=CELL:+1 (650) 253-" + i + separator
+                    + "EMAIL:test" + i + "@android.com" + separator
+                    + "X-ANDROID-CUSTOM:vnd.android.cursor.item/nickname" + separator
+                    + separator
+                    + "END:VCARD" + separator;
+            boolean strip = i % 2 == 0;
+            // EMAIL, X- properties and empty lines are dropped.
+            String cleanedUp = "BEGIN:VCARD" + separator
+                    + "VERSION:2.1" + separator
+                    + "N:" + longName + i + ";;;;" + separator
+                    + (strip ? "TEL;TYPE=CELL:+1650253" + i : "TEL;TYPE=CELL:+1 (650) 253-" + i)
+                    + separator
+                    + "END:VCARD" + separator;
+            expected.write(cleanedUp.getBytes(StandardCharsets.UTF_8));
+
+            assertThat(buffer.writeVCard(vCard, filter, /*vCardType21=*/ true, strip)).isTrue();
+        }
+        buffer.terminate();
+
+        assertThat(output.toByteArray()).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    public void writeVCard_withoutFilter_writesVCard() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        when(mOperation.openOutputStream()).thenReturn(output);
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(mOperation, null);
+        buffer.init();
+        String vCard = "BEGIN:VCARD\r\nTEL:+1 (650) 253-0000\r\nEND:VCARD\r\n";
+
+        assertThat(buffer.writeVCard(vCard, new VCardFilter(null), /*vCardType21=*/ false,
+                /*stripTelephoneNumbers=*/ false)).isTrue();
+        // Buffered until the end of the pull.
+        assertThat(output.size()).isEqualTo(0);
+        buffer.terminate();
+
+        assertThat(output.toString("UTF-8")).isEqualTo(vCard);
+    }
+
+    @Test
+    public void writeVCard_strippingTelephoneNumbers_writesExpectedBytes() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        when(mOperation.openOutputStream()).thenReturn(output);
+        HandlerForStringBuffer buffer = new HandlerForStringBuffer(mOperation, null);
+        buffer.init();
+        String separator = System.getProperty("line.separator");
+        String vCard = "BEGIN:VCARD" + separator
+                + "TEL;TYPE=HOME:(650) 253-0000" + separator
+                + "NOTE:call (650) 253-0000" + separator
+                + "END:VCARD" + separator;
+
+        assertThat(buffer.writeVCard(vCard, new VCardFilter(null), /*vCardType21=*/ false,
+                /*stripTelephoneNumbers=*/ true)).isTrue();
+        buffer.terminate();
+
+        String expected = "BEGIN:VCARD" + separator
+                + "TEL;TYPE=HOME:6502530000" + separator
+                + "NOTE:call (650) 253-0000" + separator
+                + "END:VCARD" + separator;
+        assertThat(output.toByteArray()).isEqualTo(expected.getBytes(StandardCharsets.UTF_8));
+    }
+}
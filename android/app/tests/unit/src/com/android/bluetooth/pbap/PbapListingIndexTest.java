@@ -0,0 +1,152 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbap;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PbapListingIndexTest {
+    private static final String OWNER = "Owner";
+    // Bits of the vCard selector, PBAP v1.2.3 Sec 5.1.4.11.
+    private static final long TEL = 1L << 7;
+    private static final long EMAIL = 1L << 8;
+    private static final byte[] SELECT_TEL = new byte[] {0, 0, 0, 0, 0, 0, 0, (byte) 0x80};
+    private static final String OPERATOR_OR = "0";
+
+    private BluetoothPbapVcardManager mVcardManager;
+    private PbapListingIndex mIndex;
+    private long mSavedVersion;
+
+    @Before
+    public void setUp() {
+        mSavedVersion = BluetoothPbapUtils.sPrimaryVersionCounter;
+        mVcardManager = mock(BluetoothPbapVcardManager.class);
+        doReturn(OWNER).when(mVcardManager).getOwnerName();
+        doReturn(new ArrayList<>(Arrays.asList("Bob,2", "alice,1", "Carol,3")))
+                .when(mVcardManager).getContactNameIdList(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+        doReturn(new ArrayList<>(Arrays.asList("alice,1", "Bob,2", "Carol,3")))
+                .when(mVcardManager)
+                .getContactNameIdList(BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL);
+        HashMap<Long, Long> masks = new HashMap<>();
+        masks.put(1L, TEL);
+        masks.put(2L, EMAIL);
+        masks.put(3L, TEL | EMAIL);
+        doReturn(masks).when(mVcardManager).getContactPropertyMasks(anyBoolean());
+        mIndex = new PbapListingIndex(mVcardManager);
+    }
+
+    @After
+    public void tearDown() {
+        BluetoothPbapUtils.sPrimaryVersionCounter = mSavedVersion;
+    }
+
+    @Test
+    public void getListing_putsOwnerFirstAndStripsContactIds() {
+        PbapListingIndex.Listing listing =
+                mIndex.getListing(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+
+        assertThat(listing.mNames).asList().containsExactly(OWNER, "Bob", "alice", "Carol")
+                .inOrder();
+        assertThat(listing.mSearchKeys).asList()
+                .containsExactly("owner", "bob", "alice", "carol").inOrder();
+        assertThat(listing.getPositions("alice,1")).containsExactly(2);
+        assertThat(listing.getPositions("Dave,4")).isEmpty();
+    }
+
+    @Test
+    public void getListing_readsContactsOnceForTheSameVersion() {
+        PbapListingIndex.Listing first =
+                mIndex.getListing(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+        PbapListingIndex.Listing second =
+                mIndex.getListing(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+
+        assertThat(second).isSameInstanceAs(first);
+        verify(mVcardManager, times(1)).getContactNameIdList(anyInt());
+
+        BluetoothPbapUtils.sPrimaryVersionCounter++;
+        mIndex.getListing(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+
+        verify(mVcardManager, times(2)).getContactNameIdList(anyInt());
+    }
+
+    @Test
+    public void getListing_readsContactsAgainAfterContactsChanged() {
+        PbapListingIndex.Listing first =
+                mIndex.getListing(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+
+        // The version counter is not updated yet.
+        PbapListingIndex.onContactsChanged();
+        PbapListingIndex.Listing second =
+                mIndex.getListing(BluetoothPbapObexServer.ORDER_BY_INDEXED);
+
+        assertThat(second).isNotSameInstanceAs(first);
+        verify(mVcardManager, times(2)).getContactNameIdList(anyInt());
+    }
+
+    @Test
+    public void getSelectedListing_filtersWithoutComposingAgain() {
+        PbapListingIndex.Listing tel = mIndex.getSelectedListing(
+                BluetoothPbapObexServer.ORDER_BY_INDEXED, true, SELECT_TEL, OPERATOR_OR);
+        assertThat(tel.mNames).asList().containsExactly(OWNER, "alice", "Carol").inOrder();
+
+        byte[] selectEmail = new byte[] {0, 0, 0, 0, 0, 0, 0x01, 0};
+        PbapListingIndex.Listing email = mIndex.getSelectedListing(
+                BluetoothPbapObexServer.ORDER_BY_ALPHABETICAL, true, selectEmail, OPERATOR_OR);
+        assertThat(email.mNames).asList().containsExactly("Bob", "Carol", OWNER).inOrder();
+
+        verify(mVcardManager, times(1)).getContactPropertyMasks(true);
+    }
+
+    @Test
+    public void getSelectedListing_whenContactsCannotBeComposed_isNotKept() {
+        doReturn(null).when(mVcardManager).getContactPropertyMasks(anyBoolean());
+
+        PbapListingIndex.Listing listing = mIndex.getSelectedListing(
+                BluetoothPbapObexServer.ORDER_BY_INDEXED, true, SELECT_TEL, OPERATOR_OR);
+        assertThat(listing.mNames).asList().containsExactly(OWNER);
+
+        mIndex.getSelectedListing(
+                BluetoothPbapObexServer.ORDER_BY_INDEXED, true, SELECT_TEL, OPERATOR_OR);
+        verify(mVcardManager, times(2)).getContactPropertyMasks(true);
+    }
+
+    @Test
+    public void getContactId() {
+        assertThat(PbapListingIndex.getContactId("Name, with comma,42")).isEqualTo(42);
+        assertThat(PbapListingIndex.getContactId(OWNER)).isEqualTo(-1);
+    }
+}
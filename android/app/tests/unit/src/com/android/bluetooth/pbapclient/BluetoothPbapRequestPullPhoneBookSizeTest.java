@@ -22,6 +22,7 @@ import static com.google.common.truth.Truth.assertWithMessage;
 import androidx.test.filters.SmallTest;
 import androidx.test.runner.AndroidJUnit4;
 
+import com.android.bluetooth.ObexAppParameters;
 import com.android.obex.HeaderSet;
 
 import org.junit.Before;
@@ -49,4 +50,33 @@ public class BluetoothPbapRequestPullPhoneBookSizeTest {
             assertWithMessage("Exception should not happen.").fail();
         }
     }
+
+    @Test
+    public void readResponseHeaders_withVersionCounters() {
+        byte[] databaseIdentifier = new byte[16];
+        byte[] primaryVersion = new byte[16];
+        byte[] secondaryVersion = new byte[16];
+        primaryVersion[15] = 2;
+        secondaryVersion[15] = 1;
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PHONEBOOK_SIZE, (short) 10);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_DATABASE_IDENTIFIER, databaseIdentifier);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_PRIMARY_VERSION_COUNTER, primaryVersion);
+        oap.add(BluetoothPbapRequest.OAP_TAGID_SECONDARY_VERSION_COUNTER, secondaryVersion);
+        HeaderSet headerSet = new HeaderSet();
+        oap.addToHeaderSet(headerSet);
+
+        mRequest.readResponseHeaders(headerSet);
+
+        assertThat(mRequest.getSize()).isEqualTo(10);
+        assertThat(mRequest.getVersion()).isEqualTo(
+                new PhonebookVersion(databaseIdentifier, primaryVersion, secondaryVersion));
+    }
+
+    @Test
+    public void readResponseHeaders_withoutVersionCounters() {
+        mRequest.readResponseHeaders(new HeaderSet());
+
+        assertThat(mRequest.getVersion()).isNull();
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothPbapRequestPullVcardListingTest {
+    private static final String TEST_LISTING = "<?xml version=\"1.0\"?>"
+            + "<!DOCTYPE vcard-listing SYSTEM \"vcard-listing.dtd\">"
+            + "<vCard-listing version=\"1.0\">"
+            + "<card handle=\"0.vcf\" name=\"Owner\"/>"
+            + "<card handle=\"2.vcf\" name=\"Doe;John\"/>"
+            + "<card handle=\"1.vcf\"/>"
+            + "</vCard-listing>";
+
+    @Test
+    public void parse_keepsHandleOrder() throws Exception {
+        LinkedHashMap<String, String> handles = new LinkedHashMap<>();
+
+        BluetoothPbapRequestPullVcardListing.parse(
+                new ByteArrayInputStream(TEST_LISTING.getBytes(StandardCharsets.UTF_8)), handles);
+
+        assertThat(handles).containsExactly("0.vcf", "Owner", "2.vcf", "Doe;John", "1.vcf", "")
+                .inOrder();
+    }
+
+    @Test
+    public void parse_invalidListing_throws() {
+        assertThrows(IOException.class,
+                () -> BluetoothPbapRequestPullVcardListing.parse(
+                        new ByteArrayInputStream("<vCard-listing><card".getBytes(
+                                StandardCharsets.UTF_8)), new LinkedHashMap<>()));
+    }
+}
@@ -19,10 +19,18 @@ package com.android.bluetooth.pbapclient;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.accounts.Account;
@@ -53,12 +61,20 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
 @SmallTest
 @RunWith(AndroidJUnit4.class)
 public class PbapClientConnectionHandlerTest {
 
     private static final String TAG = "ConnHandlerTest";
     private static final String REMOTE_DEVICE_ADDRESS = "00:00:00:00:00:00";
+    private static final String PB_FOLDER = "telecom/pb";
+    private static final PhonebookVersion VERSION =
+            new PhonebookVersion(new byte[] {1}, new byte[] {2}, new byte[] {3});
+    private static final PhonebookVersion NEXT_VERSION =
+            new PhonebookVersion(new byte[] {1}, new byte[] {3}, new byte[] {3});
 
     private HandlerThread mThread;
     private Looper mLooper;
@@ -197,4 +213,84 @@ public class PbapClientConnectionHandlerTest {
 
         assertThat(mHandler.isRepositorySupported(mask)).isTrue();
     }
+
+    @Test
+    public void syncContacts_withSameVersion_pullsNothing() throws Exception {
+        PbapClientConnectionHandler handler = spy(mHandler);
+        PhonebookPullRequest processor = mock(PhonebookPullRequest.class);
+        doReturn(VERSION).when(handler).getSyncedVersion(PbapClientConnectionHandler.PB_PATH);
+
+        handler.syncContacts(PbapClientConnectionHandler.PB_PATH, processor, 3, VERSION);
+
+        verify(handler, never()).pullVcardListing(any());
+        verify(handler, never()).pullContacts(any(), any(), anyInt(), any());
+        verify(handler, never()).setSyncedVersion(any(), any());
+    }
+
+    @Test
+    public void syncContacts_withListingChanges_updatesContactsWithoutSavingVersion()
+            throws Exception {
+        PbapClientConnectionHandler handler = spy(mHandler);
+        PhonebookPullRequest processor = mock(PhonebookPullRequest.class);
+        LinkedHashMap<String, String> handles = createHandles(3);
+        doReturn(VERSION).when(handler).getSyncedVersion(PbapClientConnectionHandler.PB_PATH);
+        doNothing().when(handler).setSyncedVersion(any(), any());
+        doReturn(handles).when(handler).pullVcardListing(PB_FOLDER);
+        doReturn(true).when(handler).updateContacts(PbapClientConnectionHandler.PB_PATH,
+                processor, handles);
+
+        handler.syncContacts(PbapClientConnectionHandler.PB_PATH, processor, 3, NEXT_VERSION);
+
+        verify(handler, never()).pullContacts(any(), any(), anyInt(), any());
+        // Entries edited in place may have been missed, the next sync downloads them again.
+        verify(handler).setSyncedVersion(PbapClientConnectionHandler.PB_PATH, null);
+        verify(handler, never()).setSyncedVersion(any(), eq(NEXT_VERSION));
+    }
+
+    @Test
+    public void syncContacts_withoutListingChanges_downloadsContacts() throws Exception {
+        PbapClientConnectionHandler handler = spy(mHandler);
+        PhonebookPullRequest processor = mock(PhonebookPullRequest.class);
+        LinkedHashMap<String, String> handles = createHandles(3);
+        doReturn(VERSION).when(handler).getSyncedVersion(PbapClientConnectionHandler.PB_PATH);
+        doNothing().when(handler).setSyncedVersion(any(), any());
+        doReturn(handles).when(handler).pullVcardListing(PB_FOLDER);
+        doReturn(false).when(handler).updateContacts(PbapClientConnectionHandler.PB_PATH,
+                processor, handles);
+        doReturn(true).when(handler).pullContacts(PbapClientConnectionHandler.PB_PATH,
+                processor, 3, handles);
+
+        handler.syncContacts(PbapClientConnectionHandler.PB_PATH, processor, 3, NEXT_VERSION);
+
+        verify(processor).deleteSourceIds(PB_FOLDER + "/", null);
+        verify(handler).pullContacts(PbapClientConnectionHandler.PB_PATH, processor, 3, handles);
+        verify(handler).setSyncedVersion(PbapClientConnectionHandler.PB_PATH, NEXT_VERSION);
+    }
+
+    @Test
+    public void syncContacts_whenListingFails_downloadsContacts() throws Exception {
+        PbapClientConnectionHandler handler = spy(mHandler);
+        PhonebookPullRequest processor = mock(PhonebookPullRequest.class);
+        doReturn(VERSION).when(handler).getSyncedVersion(PbapClientConnectionHandler.PB_PATH);
+        doNothing().when(handler).setSyncedVersion(any(), any());
+        doThrow(new IOException()).when(handler).pullVcardListing(PB_FOLDER);
+        doReturn(true).when(handler).pullContacts(PbapClientConnectionHandler.PB_PATH,
+                processor, 3, null);
+
+        handler.syncContacts(PbapClientConnectionHandler.PB_PATH, processor, 3, NEXT_VERSION);
+
+        verify(handler, never()).updateContacts(any(), any(), any());
+        verify(handler).pullContacts(eq(PbapClientConnectionHandler.PB_PATH), eq(processor),
+                eq(3), isNull());
+        // Without handles, the contacts can't be updated from the next listing.
+        verify(handler, never()).setSyncedVersion(any(), eq(NEXT_VERSION));
+    }
+
+    private static LinkedHashMap<String, String> createHandles(int count) {
+        LinkedHashMap<String, String> handles = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            handles.put(i + ".vcf", "Name " + i);
+        }
+        return handles;
+    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.vcard.VCardEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhonebookDownloadPipelineTest {
+    private static final String TEST_PATH = PbapClientConnectionHandler.PB_PATH;
+
+    private static class RecordingRequest extends PullRequest {
+        final List<List<VCardEntry>> mInserted = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> mThreads = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch mBlock = new CountDownLatch(0);
+
+        @Override
+        public void onPullComplete() {
+            try {
+                mBlock.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            mInserted.add(mEntries);
+            mThreads.add(Thread.currentThread());
+        }
+    }
+
+    private static List<VCardEntry> entries(int count) {
+        List<VCardEntry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(new VCardEntry());
+        }
+        return entries;
+    }
+
+    @Test
+    public void finish_insertsEveryBatchInOrderOffThePullingThread() throws Exception {
+        RecordingRequest request = new RecordingRequest();
+        PhonebookDownloadPipeline pipeline = new PhonebookDownloadPipeline(request, TEST_PATH);
+        List<VCardEntry> first = entries(2);
+        List<VCardEntry> second = entries(3);
+
+        pipeline.submit(first, 10);
+        pipeline.submit(second, 10);
+        pipeline.finish();
+
+        assertThat(request.mInserted).containsExactly(first, second).inOrder();
+        assertThat(request.mThreads).doesNotContain(Thread.currentThread());
+        assertThat(pipeline.getStats()).contains("batches=2 entries=5");
+    }
+
+    @Test
+    public void cancel_dropsPendingBatches() throws Exception {
+        RecordingRequest request = new RecordingRequest();
+        request.mBlock = new CountDownLatch(1);
+        PhonebookDownloadPipeline pipeline = new PhonebookDownloadPipeline(request, TEST_PATH);
+
+        for (int i = 0; i < PhonebookDownloadPipeline.MAX_PENDING_BATCHES; i++) {
+            pipeline.submit(entries(1), 10);
+        }
+        pipeline.cancel();
+
+        assertThat(request.mInserted).isEmpty();
+        assertThat(Thread.currentThread().isInterrupted()).isFalse();
+    }
+
+    @Test
+    public void nextBatchSize_followsPullThroughput() throws Exception {
+        PhonebookDownloadPipeline pipeline =
+                new PhonebookDownloadPipeline(new RecordingRequest(), TEST_PATH);
+        int size = PhonebookDownloadPipeline.INITIAL_BATCH_SIZE;
+
+        // A fast pull doubles the batch at most.
+        assertThat(pipeline.nextBatchSize(size, PhonebookDownloadPipeline.TARGET_PULL_TIME_MS / 10))
+                .isEqualTo(2 * size);
+        // A slow pull halves it at most.
+        assertThat(pipeline.nextBatchSize(size, PhonebookDownloadPipeline.TARGET_PULL_TIME_MS * 10))
+                .isEqualTo(size / 2);
+        // A pull taking the target time keeps it.
+        assertThat(pipeline.nextBatchSize(size, PhonebookDownloadPipeline.TARGET_PULL_TIME_MS))
+                .isEqualTo(size);
+        // A short last batch says nothing about the throughput.
+        assertThat(pipeline.nextBatchSize(1, PhonebookDownloadPipeline.TARGET_PULL_TIME_MS * 10))
+                .isEqualTo(size);
+        pipeline.finish();
+    }
+
+    @Test
+    public void submit_keepsBatchSizeWithinBounds() throws Exception {
+        PhonebookDownloadPipeline pipeline =
+                new PhonebookDownloadPipeline(new RecordingRequest(), TEST_PATH);
+
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit(entries(pipeline.getBatchSize()), 0);
+        }
+        assertThat(pipeline.getBatchSize()).isEqualTo(PhonebookDownloadPipeline.MAX_BATCH_SIZE);
+
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit(entries(pipeline.getBatchSize()),
+                    PhonebookDownloadPipeline.TARGET_PULL_TIME_MS * 10);
+        }
+        assertThat(pipeline.getBatchSize()).isEqualTo(PhonebookDownloadPipeline.MIN_BATCH_SIZE);
+        pipeline.finish();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PhonebookVersionTest {
+    private static final byte[] TEST_DATABASE_IDENTIFIER = {1, 2, 3, 4};
+    private static final byte[] TEST_OTHER_DATABASE_IDENTIFIER = {4, 3, 2, 1};
+    private static final byte[] TEST_PRIMARY_VERSION = {0, 0, 0, 7};
+    private static final byte[] TEST_SECONDARY_VERSION = {0, 0, 0, 5};
+
+    @Test
+    public void fromString_readsToString() {
+        PhonebookVersion version = new PhonebookVersion(TEST_DATABASE_IDENTIFIER,
+                TEST_PRIMARY_VERSION, TEST_SECONDARY_VERSION);
+
+        assertThat(PhonebookVersion.fromString(version.toString())).isEqualTo(version);
+    }
+
+    @Test
+    public void fromString_invalid_returnsNull() {
+        assertThat(PhonebookVersion.fromString(null)).isNull();
+        assertThat(PhonebookVersion.fromString("")).isNull();
+        assertThat(PhonebookVersion.fromString("AQ==:AQ==")).isNull();
+        assertThat(PhonebookVersion.fromString("!:!:!")).isNull();
+    }
+
+    @Test
+    public void hasSameDatabase() {
+        PhonebookVersion version = new PhonebookVersion(TEST_DATABASE_IDENTIFIER,
+                TEST_PRIMARY_VERSION, TEST_SECONDARY_VERSION);
+        PhonebookVersion updated = new PhonebookVersion(TEST_DATABASE_IDENTIFIER,
+                TEST_SECONDARY_VERSION, TEST_SECONDARY_VERSION);
+        PhonebookVersion reset = new PhonebookVersion(TEST_OTHER_DATABASE_IDENTIFIER,
+                TEST_PRIMARY_VERSION, TEST_SECONDARY_VERSION);
+
+        assertThat(updated).isNotEqualTo(version);
+        assertThat(updated.hasSameDatabase(version)).isTrue();
+        assertThat(reset).isNotEqualTo(version);
+        assertThat(reset.hasSameDatabase(version)).isFalse();
+        assertThat(version.hasSameDatabase(null)).isFalse();
+    }
+}
@@ -38,6 +38,7 @@ import com.android.modules.utils.SynchronousResultReceiver;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -82,6 +83,11 @@ public final class BluetoothGatt implements BluetoothProfile {
     private boolean mOpportunistic;
     private final AttributionSource mAttributionSource;
 
+    // Operations of the queued mode, guarded by mDeviceBusyLock.
+    private boolean mOperationQueueEnabled;
+    private final ArrayDeque<GattOperation> mPendingOperations = new ArrayDeque<>();
+    private final ArrayList<GattOperation> mInFlightOperations = new ArrayList<>();
+
     private static final int AUTH_RETRY_STATE_IDLE = 0;
     private static final int AUTH_RETRY_STATE_NO_MITM = 1;
     private static final int AUTH_RETRY_STATE_MITM = 2;
@@ -95,6 +101,42 @@ public final class BluetoothGatt implements BluetoothProfile {
     private static final int WRITE_CHARACTERISTIC_MAX_RETRIES = 5;
     private static final int WRITE_CHARACTERISTIC_TIME_TO_WAIT = 10; // milliseconds
 
+    private static final int OPERATION_READ_CHARACTERISTIC = 0;
+    private static final int OPERATION_WRITE_CHARACTERISTIC = 1;
+    private static final int OPERATION_READ_DESCRIPTOR = 2;
+    private static final int OPERATION_WRITE_DESCRIPTOR = 3;
+
+    // Writes without response sent before waiting for their completion, in queued mode.
+    private static final int MAX_WRITE_COMMANDS_IN_FLIGHT = 8;
+
+    /**
+     * Sends an operation to the remote device, returns a {@link BluetoothStatusCodes} value.
+     */
+    private interface OperationIssuer {
+        int issue() throws RemoteException, TimeoutException;
+    }
+
+    /**
+     * An operation accepted in queued mode, sent once the previous ones allow it.
+     */
+    private static final class GattOperation {
+        final int mType;
+        final int mHandle;
+        final boolean mIsWriteCommand;
+        final OperationIssuer mIssuer;
+        // Reports the operation as failed if it can't be sent.
+        final Runnable mFailureCallback;
+
+        GattOperation(int type, int handle, boolean isWriteCommand, OperationIssuer issuer,
+                Runnable failureCallback) {
+            mType = type;
+            mHandle = handle;
+            mIsWriteCommand = isWriteCommand;
+            mIssuer = issuer;
+            mFailureCallback = failureCallback;
+        }
+    }
+
     private List<BluetoothGattService> mServices;
 
     /** A GATT operation completed successfully */
@@ -312,6 +354,9 @@ public final class BluetoothGatt implements BluetoothProfile {
 
                     synchronized (mDeviceBusyLock) {
                         mDeviceBusy = false;
+                        // Operations don't survive the connection.
+                        mPendingOperations.clear();
+                        mInFlightOperations.clear();
                     }
                 }
 
@@ -386,9 +431,8 @@ public final class BluetoothGatt implements BluetoothProfile {
                         return;
                     }
 
-                    synchronized (mDeviceBusyLock) {
-                        mDeviceBusy = false;
-                    }
+                    final GattOperation operation =
+                            onOperationResponse(OPERATION_READ_CHARACTERISTIC, handle);
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                             || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -413,6 +457,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             handle);
                     if (characteristic == null) {
                         Log.w(TAG, "onCharacteristicRead() failed to find characteristic!");
+                        onOperationCompleted(operation);
                         return;
                     }
 
@@ -427,6 +472,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             }
                         }
                     });
+                    onOperationCompleted(operation);
                 }
 
                 /**
@@ -447,13 +493,15 @@ public final class BluetoothGatt implements BluetoothProfile {
                         return;
                     }
 
-                    synchronized (mDeviceBusyLock) {
-                        mDeviceBusy = false;
-                    }
+                    final GattOperation operation =
+                            onOperationResponse(OPERATION_WRITE_CHARACTERISTIC, handle);
 
                     BluetoothGattCharacteristic characteristic = getCharacteristicById(mDevice,
                             handle);
-                    if (characteristic == null) return;
+                    if (characteristic == null) {
+                        onOperationCompleted(operation);
+                        return;
+                    }
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                             || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -497,6 +545,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             }
                         }
                     });
+                    onOperationCompleted(operation);
                 }
 
                 /**
@@ -545,12 +594,14 @@ public final class BluetoothGatt implements BluetoothProfile {
                         return;
                     }
 
-                    synchronized (mDeviceBusyLock) {
-                        mDeviceBusy = false;
-                    }
+                    final GattOperation operation =
+                            onOperationResponse(OPERATION_READ_DESCRIPTOR, handle);
 
                     BluetoothGattDescriptor descriptor = getDescriptorById(mDevice, handle);
-                    if (descriptor == null) return;
+                    if (descriptor == null) {
+                        onOperationCompleted(operation);
+                        return;
+                    }
 
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
@@ -583,6 +634,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             }
                         }
                     });
+                    onOperationCompleted(operation);
                 }
 
                 /**
@@ -602,12 +654,14 @@ public final class BluetoothGatt implements BluetoothProfile {
                         return;
                     }
 
-                    synchronized (mDeviceBusyLock) {
-                        mDeviceBusy = false;
-                    }
+                    final GattOperation operation =
+                            onOperationResponse(OPERATION_WRITE_DESCRIPTOR, handle);
 
                     BluetoothGattDescriptor descriptor = getDescriptorById(mDevice, handle);
-                    if (descriptor == null) return;
+                    if (descriptor == null) {
+                        onOperationCompleted(operation);
+                        return;
+                    }
 
                     if ((status == GATT_INSUFFICIENT_AUTHENTICATION
                             || status == GATT_INSUFFICIENT_ENCRYPTION)
@@ -637,6 +691,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             }
                         }
                     });
+                    onOperationCompleted(operation);
                 }
 
                 /**
@@ -653,6 +708,8 @@ public final class BluetoothGatt implements BluetoothProfile {
                         return;
                     }
 
+                    // Reliable writes are not queued, they are only sent when no operation is
+                    // in flight.
                     synchronized (mDeviceBusyLock) {
                         mDeviceBusy = false;
                     }
@@ -666,6 +723,7 @@ public final class BluetoothGatt implements BluetoothProfile {
                             }
                         }
                     });
+                    issuePendingOperations();
                 }
 
                 /**
@@ -799,6 +857,10 @@ public final class BluetoothGatt implements BluetoothProfile {
         unregisterApp();
         mConnState = CONN_STATE_CLOSED;
         mAuthRetryState = AUTH_RETRY_STATE_IDLE;
+        synchronized (mDeviceBusyLock) {
+            mPendingOperations.clear();
+            mInFlightOperations.clear();
+        }
     }
 
     /**
@@ -854,6 +916,148 @@ public final class BluetoothGatt implements BluetoothProfile {
         return null;
     }
 
+    /**
+     * Sets whether GATT operations are queued while the remote device is busy.
+     *
+     * <p>By default, {@link #readCharacteristic}, {@link #writeCharacteristic(
+     * BluetoothGattCharacteristic, byte[], int)}, {@link #readDescriptor} and
+     * {@link #writeDescriptor(BluetoothGattDescriptor, byte[])} fail while a previous operation
+     * is outstanding, and the application has to wait for its callback before retrying. Once
+     * the queue is enabled, these operations are accepted and sent in order as the previous
+     * ones complete. Each one is still reported by its {@link BluetoothGattCallback} callback,
+     * in the order the operations were made; an operation that can't be sent once its turn
+     * comes is reported with {@link #GATT_FAILURE}.
+     *
+     * <p>Consecutive writes with {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE} are
+     * sent without waiting for each other's completion.
+     *
+     * <p>Operations still queued when the connection is lost are dropped.
+     *
+     * @param enabled whether operations are queued
+     */
+    @RequiresNoPermission
+    public void setOperationQueueEnabled(boolean enabled) {
+        synchronized (mDeviceBusyLock) {
+            mOperationQueueEnabled = enabled;
+        }
+    }
+
+    /**
+     * Returns whether GATT operations are queued while the remote device is busy.
+     *
+     * @see #setOperationQueueEnabled
+     */
+    @RequiresNoPermission
+    public boolean isOperationQueueEnabled() {
+        synchronized (mDeviceBusyLock) {
+            return mOperationQueueEnabled;
+        }
+    }
+
+    /**
+     * Sends {@code operation} now if the operations in flight allow it, queues it otherwise.
+     */
+    private int queueOperation(GattOperation operation) {
+        synchronized (mDeviceBusyLock) {
+            if (!mPendingOperations.isEmpty() || !canIssueOperation(operation)) {
+                mPendingOperations.add(operation);
+                return BluetoothStatusCodes.SUCCESS;
+            }
+            mInFlightOperations.add(operation);
+            mDeviceBusy = true;
+        }
+        int status = issueOperation(operation);
+        if (status != BluetoothStatusCodes.SUCCESS) {
+            synchronized (mDeviceBusyLock) {
+                mInFlightOperations.remove(operation);
+                mDeviceBusy = !mInFlightOperations.isEmpty();
+            }
+            issuePendingOperations();
+        }
+        return status;
+    }
+
+    private boolean canIssueOperation(GattOperation operation) {
+        if (mInFlightOperations.isEmpty()) {
+            // An operation made outside of the queue may be in flight.
+            return !mDeviceBusy;
+        }
+        if (!operation.mIsWriteCommand
+                || mInFlightOperations.size() >= MAX_WRITE_COMMANDS_IN_FLIGHT) {
+            return false;
+        }
+        for (GattOperation inFlight : mInFlightOperations) {
+            if (!inFlight.mIsWriteCommand) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int issueOperation(GattOperation operation) {
+        try {
+            return operation.mIssuer.issue();
+        } catch (RemoteException | TimeoutException e) {
+            Log.e(TAG, "", e);
+            return BluetoothStatusCodes.ERROR_UNKNOWN;
+        }
+    }
+
+    /**
+     * Returns the queued operation of {@code type} on {@code handle} a response was received for.
+     * It stays in flight until {@link #onOperationCompleted}, so that an authentication retry is
+     * sent as the same operation. Returns null for an operation made outside of the queue, and
+     * releases the device as before.
+     */
+    private GattOperation onOperationResponse(int type, int handle) {
+        synchronized (mDeviceBusyLock) {
+            for (GattOperation operation : mInFlightOperations) {
+                if (operation.mType == type && operation.mHandle == handle) {
+                    return operation;
+                }
+            }
+            mDeviceBusy = !mInFlightOperations.isEmpty();
+            return null;
+        }
+    }
+
+    /**
+     * Releases {@code operation} once its callback was posted, and sends the queued operations
+     * it was holding, so that their callbacks come after its one.
+     */
+    private void onOperationCompleted(GattOperation operation) {
+        if (operation != null) {
+            synchronized (mDeviceBusyLock) {
+                mInFlightOperations.remove(operation);
+                mDeviceBusy = !mInFlightOperations.isEmpty();
+            }
+        }
+        issuePendingOperations();
+    }
+
+    private void issuePendingOperations() {
+        while (true) {
+            GattOperation operation;
+            synchronized (mDeviceBusyLock) {
+                operation = mPendingOperations.peek();
+                if (operation == null || !canIssueOperation(operation)) {
+                    return;
+                }
+                mPendingOperations.poll();
+                mInFlightOperations.add(operation);
+                mDeviceBusy = true;
+            }
+            if (issueOperation(operation) != BluetoothStatusCodes.SUCCESS) {
+                Log.w(TAG, "Failed to send queued operation " + operation.mType);
+                synchronized (mDeviceBusyLock) {
+                    mInFlightOperations.remove(operation);
+                    mDeviceBusy = !mInFlightOperations.isEmpty();
+                }
+                runOrQueueCallback(operation.mFailureCallback);
+            }
+        }
+    }
+
     /**
      * Queue the runnable on a {@link Handler} provided by the user, or execute the runnable
      * immediately if no Handler was provided.
@@ -1237,16 +1441,31 @@ public final class BluetoothGatt implements BluetoothProfile {
         BluetoothDevice device = service.getDevice();
         if (device == null) return false;
 
+        OperationIssuer issuer = () -> {
+            final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
+            mService.readCharacteristic(mClientIf, device.getAddress(),
+                    characteristic.getInstanceId(), AUTHENTICATION_NONE, mAttributionSource, recv);
+            recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
+            return BluetoothStatusCodes.SUCCESS;
+        };
+        if (isOperationQueueEnabled()) {
+            return queueOperation(new GattOperation(OPERATION_READ_CHARACTERISTIC,
+                    characteristic.getInstanceId(), false, issuer, () -> {
+                        final BluetoothGattCallback callback = mCallback;
+                        if (callback != null) {
+                            callback.onCharacteristicRead(BluetoothGatt.this, characteristic,
+                                    new byte[0], GATT_FAILURE);
+                        }
+                    })) == BluetoothStatusCodes.SUCCESS;
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return false;
             mDeviceBusy = true;
         }
 
         try {
-            final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
-            mService.readCharacteristic(mClientIf, device.getAddress(),
-                    characteristic.getInstanceId(), AUTHENTICATION_NONE, mAttributionSource, recv);
-            recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
+            issuer.issue();
         } catch (RemoteException | TimeoutException e) {
             Log.e(TAG, "", e);
             synchronized (mDeviceBusyLock) {
@@ -1381,15 +1600,8 @@ public final class BluetoothGatt implements BluetoothProfile {
             throw new IllegalArgumentException("Service must have a non-null device");
         }
 
-        synchronized (mDeviceBusyLock) {
-            if (mDeviceBusy) {
-                return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
-            }
-            mDeviceBusy = true;
-        }
-
-        int requestStatus = BluetoothStatusCodes.ERROR_UNKNOWN;
-        try {
+        OperationIssuer issuer = () -> {
+            int requestStatus = BluetoothStatusCodes.ERROR_UNKNOWN;
             for (int i = 0; i < WRITE_CHARACTERISTIC_MAX_RETRIES; i++) {
                 final SynchronousResultReceiver<Integer> recv = SynchronousResultReceiver.get();
                 mService.writeCharacteristic(mClientIf, device.getAddress(),
@@ -1405,6 +1617,31 @@ public final class BluetoothGatt implements BluetoothProfile {
                 } catch (InterruptedException e) {
                 }
             }
+            return requestStatus;
+        };
+        if (isOperationQueueEnabled()) {
+            return queueOperation(new GattOperation(OPERATION_WRITE_CHARACTERISTIC,
+                    characteristic.getInstanceId(),
+                    writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, issuer,
+                    () -> {
+                        final BluetoothGattCallback callback = mCallback;
+                        if (callback != null) {
+                            callback.onCharacteristicWrite(BluetoothGatt.this, characteristic,
+                                    GATT_FAILURE);
+                        }
+                    }));
+        }
+
+        synchronized (mDeviceBusyLock) {
+            if (mDeviceBusy) {
+                return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+            }
+            mDeviceBusy = true;
+        }
+
+        int requestStatus = BluetoothStatusCodes.ERROR_UNKNOWN;
+        try {
+            requestStatus = issuer.issue();
         } catch (TimeoutException e) {
             Log.e(TAG, "", e);
             synchronized (mDeviceBusyLock) {
@@ -1447,16 +1684,31 @@ public final class BluetoothGatt implements BluetoothProfile {
         BluetoothDevice device = service.getDevice();
         if (device == null) return false;
 
+        OperationIssuer issuer = () -> {
+            final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
+            mService.readDescriptor(mClientIf, device.getAddress(),
+                    descriptor.getInstanceId(), AUTHENTICATION_NONE, mAttributionSource, recv);
+            recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
+            return BluetoothStatusCodes.SUCCESS;
+        };
+        if (isOperationQueueEnabled()) {
+            return queueOperation(new GattOperation(OPERATION_READ_DESCRIPTOR,
+                    descriptor.getInstanceId(), false, issuer, () -> {
+                        final BluetoothGattCallback callback = mCallback;
+                        if (callback != null) {
+                            callback.onDescriptorRead(BluetoothGatt.this, descriptor,
+                                    GATT_FAILURE, new byte[0]);
+                        }
+                    })) == BluetoothStatusCodes.SUCCESS;
+        }
+
         synchronized (mDeviceBusyLock) {
             if (mDeviceBusy) return false;
             mDeviceBusy = true;
         }
 
         try {
-            final SynchronousResultReceiver recv = SynchronousResultReceiver.get();
-            mService.readDescriptor(mClientIf, device.getAddress(),
-                    descriptor.getInstanceId(), AUTHENTICATION_NONE, mAttributionSource, recv);
-            recv.awaitResultNoInterrupt(getSyncTimeout()).getValue(null);
+            issuer.issue();
         } catch (RemoteException | TimeoutException e) {
             Log.e(TAG, "", e);
             synchronized (mDeviceBusyLock) {
@@ -1536,18 +1788,32 @@ public final class BluetoothGatt implements BluetoothProfile {
             throw new IllegalArgumentException("Service must have a non-null device");
         }
 
-        synchronized (mDeviceBusyLock) {
-            if (mDeviceBusy) return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
-            mDeviceBusy = true;
-        }
-
-        try {
+        OperationIssuer issuer = () -> {
             final SynchronousResultReceiver<Integer> recv = SynchronousResultReceiver.get();
             mService.writeDescriptor(mClientIf, device.getAddress(),
                     descriptor.getInstanceId(), AUTHENTICATION_NONE, value, mAttributionSource,
                     recv);
             return recv.awaitResultNoInterrupt(getSyncTimeout())
                 .getValue(BluetoothStatusCodes.ERROR_PROFILE_SERVICE_NOT_BOUND);
+        };
+        if (isOperationQueueEnabled()) {
+            return queueOperation(new GattOperation(OPERATION_WRITE_DESCRIPTOR,
+                    descriptor.getInstanceId(), false, issuer, () -> {
+                        final BluetoothGattCallback callback = mCallback;
+                        if (callback != null) {
+                            callback.onDescriptorWrite(BluetoothGatt.this, descriptor,
+                                    GATT_FAILURE);
+                        }
+                    }));
+        }
+
+        synchronized (mDeviceBusyLock) {
+            if (mDeviceBusy) return BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY;
+            mDeviceBusy = true;
+        }
+
+        try {
+            return issuer.issue();
         } catch (TimeoutException e) {
             Log.e(TAG, "", e);
             synchronized (mDeviceBusyLock) {
@@ -31,6 +31,8 @@ import java.io.InputStream;
 @SuppressLint("AndroidFrameworkBluetoothPermission")
 /*package*/ final class BluetoothInputStream extends InputStream {
     private BluetoothSocket mSocket;
+    // Reused by read(), single byte reads of a stream aren't concurrent.
+    private final byte[] mByte = new byte[1];
 
     /*package*/ BluetoothInputStream(BluetoothSocket s) {
         mSocket = s;
@@ -58,10 +60,9 @@ import java.io.InputStream;
      * @since Android 1.5
      */
     public int read() throws IOException {
-        byte[] b = new byte[1];
-        int ret = mSocket.read(b, 0, 1);
+        int ret = mSocket.read(mByte, 0, 1);
         if (ret == 1) {
-            return (int) b[0] & 0xff;
+            return (int) mByte[0] & 0xff;
         } else {
             return -1;
         }
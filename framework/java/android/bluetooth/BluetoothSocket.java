@@ -16,6 +16,7 @@
 
 package android.bluetooth;
 
+import android.annotation.NonNull;
 import android.annotation.RequiresNoPermission;
 import android.annotation.RequiresPermission;
 import android.bluetooth.annotations.RequiresBluetoothConnectPermission;
@@ -25,6 +26,8 @@ import android.os.Build;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelUuid;
 import android.os.RemoteException;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
 
 import java.io.Closeable;
@@ -149,7 +152,13 @@ public final class BluetoothSocket implements Closeable {
 
     private static final int SOCK_SIGNAL_SIZE = 20;
 
+    // Buffers passed to a single gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
     private ByteBuffer mL2capBuffer = null;
+    // Packs the small buffers of a gathering write into L2CAP packets, guarded by itself.
+    private final Object mL2capTxLock = new Object();
+    private ByteBuffer mL2capTxBuffer = null;
     private int mMaxTxPacketSize = 0; // The l2cap maximum packet size supported by the peer.
     private int mMaxRxPacketSize = 0; // The l2cap maximum packet size that can be received.
 
@@ -634,6 +643,120 @@ public final class BluetoothSocket implements Closeable {
         return length;
     }
 
+    /**
+     * Reads bytes from this socket into {@code dst}, from its position up to its limit.
+     *
+     * <p>This is equivalent to a read of the {@link #getInputStream input stream}, without
+     * copying the data through an intermediate array when {@code dst} is a direct buffer. As
+     * with the input stream, a read of an L2CAP socket returns at most one packet; a buffer of
+     * at least {@link #getMaxReceivePacketSize} bytes receives it without an extra copy.
+     *
+     * @param dst the buffer to store the bytes read into
+     * @return the number of bytes read
+     * @throws IOException if the socket is closed or another I/O error occurs
+     */
+    @RequiresNoPermission
+    public int read(@NonNull ByteBuffer dst) throws IOException {
+        if (dst == null) {
+            throw new NullPointerException("buffer is null");
+        }
+        int ret;
+        if (VDBG) Log.d(TAG, "read in:  " + mSocketIS + " len: " + dst.remaining());
+        if ((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) {
+            if (mL2capBuffer == null) {
+                createL2capRxBuffer();
+            }
+            if (mL2capBuffer.remaining() == 0 && dst.remaining() >= mMaxRxPacketSize) {
+                // A whole packet fits in dst, read it in place.
+                ret = readDirect(dst);
+            } else if (mL2capBuffer.remaining() == 0 && fillL2capRxBuffer() == -1) {
+                ret = -1;
+            } else {
+                ret = Math.min(dst.remaining(), mL2capBuffer.remaining());
+                int limit = mL2capBuffer.limit();
+                mL2capBuffer.limit(mL2capBuffer.position() + ret);
+                dst.put(mL2capBuffer);
+                mL2capBuffer.limit(limit);
+            }
+        } else {
+            ret = readDirect(dst);
+        }
+        if (ret < 0) {
+            throw new IOException("bt socket closed, read return: " + ret);
+        }
+        if (VDBG) Log.d(TAG, "read out:  " + mSocketIS + " ret: " + ret);
+        return ret;
+    }
+
+    /**
+     * Writes the bytes of {@code src} from its position up to its limit to this socket.
+     *
+     * <p>This is equivalent to a write to the {@link #getOutputStream output stream}, without
+     * copying the data through an intermediate array when {@code src} is a direct buffer. On an
+     * L2CAP socket, bytes beyond {@link #getMaxTransmitPacketSize} are sent in further packets.
+     *
+     * @param src the buffer to write the bytes of
+     * @return the number of bytes written
+     * @throws IOException if the socket is closed or another I/O error occurs
+     */
+    @RequiresNoPermission
+    public int write(@NonNull ByteBuffer src) throws IOException {
+        if (src == null) {
+            throw new NullPointerException("buffer is null");
+        }
+        int length = src.remaining();
+        if (VDBG) Log.d(TAG, "write: " + mSocketOS + " length: " + length);
+        if (((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) && mMaxTxPacketSize > 0) {
+            if (DBG && length > mMaxTxPacketSize) {
+                Log.w(TAG, "WARNING: Write buffer larger than L2CAP packet size!\n"
+                        + "Packet will be divided into SDU packets of size "
+                        + mMaxTxPacketSize);
+            }
+            while (src.hasRemaining()) {
+                writePacket(src, Math.min(src.remaining(), mMaxTxPacketSize));
+            }
+        } else {
+            writeDirect(src);
+        }
+        if (VDBG) Log.d(TAG, "write out: " + mSocketOS + " length: " + length);
+        return length;
+    }
+
+    /**
+     * Writes the bytes of each of {@code srcs} from its position up to its limit, in order, to
+     * this socket.
+     *
+     * <p>On an RFCOMM socket, the buffers are written together with a single system call where
+     * possible. On an L2CAP socket, the bytes are packed into packets of
+     * {@link #getMaxTransmitPacketSize} bytes, so that each small buffer doesn't use a packet of
+     * its own; the receiver has to split the messages itself.
+     *
+     * @param srcs the buffers to write the bytes of
+     * @return the number of bytes written
+     * @throws IOException if the socket is closed or another I/O error occurs
+     */
+    @RequiresNoPermission
+    public long write(@NonNull ByteBuffer[] srcs) throws IOException {
+        if (srcs == null) {
+            throw new NullPointerException("buffers are null");
+        }
+        long length = 0;
+        for (ByteBuffer src : srcs) {
+            if (src == null) {
+                throw new NullPointerException("buffer is null");
+            }
+            length += src.remaining();
+        }
+        if (VDBG) Log.d(TAG, "write: " + mSocketOS + " length: " + length);
+        if (((mType == TYPE_L2CAP) || (mType == TYPE_L2CAP_LE)) && mMaxTxPacketSize > 0) {
+            writePackets(srcs);
+        } else {
+            writeGathered(srcs);
+        }
+        if (VDBG) Log.d(TAG, "write out: " + mSocketOS + " length: " + length);
+        return length;
+    }
+
     @Override
     public void close() throws IOException {
         Log.d(TAG, "close() this: " + this + ", channel: " + mPort + ", mSocketIS: " + mSocketIS
@@ -834,6 +957,130 @@ public final class BluetoothSocket implements Closeable {
         return bb.getInt();
     }
 
+    private FileDescriptor getSocketFileDescriptor() throws IOException {
+        LocalSocket socket = mSocket;
+        if (socket == null || mSocketState == SocketState.CLOSED) {
+            throw new IOException("bt socket closed");
+        }
+        return socket.getFileDescriptor();
+    }
+
+    private int readDirect(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        try {
+            int ret = Os.read(getSocketFileDescriptor(), dst);
+            // read(2) returns 0 at the end of stream.
+            return ret == 0 ? -1 : ret;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    private void writeDirect(ByteBuffer src) throws IOException {
+        FileDescriptor fd = getSocketFileDescriptor();
+        try {
+            while (src.hasRemaining()) {
+                Os.write(fd, src);
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    // Writes the next length bytes of src as one L2CAP packet.
+    private void writePacket(ByteBuffer src, int length) throws IOException {
+        int limit = src.limit();
+        src.limit(src.position() + length);
+        try {
+            writeDirect(src);
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    private void writePackets(ByteBuffer[] srcs) throws IOException {
+        synchronized (mL2capTxLock) {
+            if (mL2capTxBuffer == null || mL2capTxBuffer.capacity() != mMaxTxPacketSize) {
+                mL2capTxBuffer = ByteBuffer.allocateDirect(mMaxTxPacketSize);
+            }
+            ByteBuffer packet = mL2capTxBuffer;
+            packet.clear();
+            for (ByteBuffer src : srcs) {
+                while (src.hasRemaining()) {
+                    if (packet.position() == 0 && src.remaining() >= mMaxTxPacketSize) {
+                        // Full packets are sent from the source buffer directly.
+                        writePacket(src, mMaxTxPacketSize);
+                        continue;
+                    }
+                    int length = Math.min(src.remaining(), packet.remaining());
+                    int limit = src.limit();
+                    src.limit(src.position() + length);
+                    packet.put(src);
+                    src.limit(limit);
+                    if (!packet.hasRemaining()) {
+                        packet.flip();
+                        writeDirect(packet);
+                        packet.clear();
+                    }
+                }
+            }
+            if (packet.position() > 0) {
+                packet.flip();
+                writeDirect(packet);
+            }
+        }
+    }
+
+    private void writeGathered(ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer src : srcs) {
+            // writev(2) takes arrays or direct buffers only.
+            if (!src.isDirect() && !src.hasArray()) {
+                for (ByteBuffer buffer : srcs) {
+                    writeDirect(buffer);
+                }
+                return;
+            }
+        }
+        FileDescriptor fd = getSocketFileDescriptor();
+        int first = 0;
+        try {
+            while (true) {
+                while (first < srcs.length && !srcs[first].hasRemaining()) {
+                    first++;
+                }
+                if (first == srcs.length) {
+                    return;
+                }
+                int count = Math.min(srcs.length - first, MAX_GATHERED_BUFFERS);
+                Object[] buffers = new Object[count];
+                int[] offsets = new int[count];
+                int[] byteCounts = new int[count];
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer src = srcs[first + i];
+                    if (src.isDirect()) {
+                        buffers[i] = src;
+                        offsets[i] = src.position();
+                    } else {
+                        buffers[i] = src.array();
+                        offsets[i] = src.arrayOffset() + src.position();
+                    }
+                    byteCounts[i] = src.remaining();
+                }
+                int written = Os.writev(fd, buffers, offsets, byteCounts);
+                // writev(2) may write part of the buffers, skip what was written.
+                for (int i = first; i < srcs.length && written > 0; i++) {
+                    int length = Math.min(written, srcs[i].remaining());
+                    srcs[i].position(srcs[i].position() + length);
+                    written -= length;
+                }
+            }
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
     private int fillL2capRxBuffer() throws IOException {
         mL2capBuffer.rewind();
         int ret = mSocketIS.read(mL2capBuffer.array());
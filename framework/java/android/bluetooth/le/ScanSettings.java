@@ -16,6 +16,7 @@
 
 package android.bluetooth.le;
 
+import android.annotation.NonNull;
 import android.annotation.SystemApi;
 import android.bluetooth.BluetoothDevice;
 import android.os.Parcel;
@@ -158,6 +159,14 @@ public final class ScanSettings implements Parcelable {
      */
     public static final int PHY_LE_ALL_SUPPORTED = 255;
 
+    /**
+     * Maximum window used to coalesce scan results, see
+     * {@link Builder#setResultCoalescingWindowMillis}.
+     *
+     * @hide
+     */
+    public static final long MAX_RESULT_COALESCING_WINDOW_MILLIS = 1000;
+
     // Bluetooth LE scan mode.
     private int mScanMode;
 
@@ -179,6 +188,9 @@ public final class ScanSettings implements Parcelable {
 
     private int mPhy;
 
+    // Window during which results are coalesced before delivery, 0 to deliver immediately
+    private long mResultCoalescingWindowMillis;
+
     public int getScanMode() {
         return mScanMode;
     }
@@ -228,9 +240,21 @@ public final class ScanSettings implements Parcelable {
         return mReportDelayMillis;
     }
 
+    /**
+     * Returns the window during which scan results are coalesced before being delivered, or 0 if
+     * results are delivered as soon as they are found.
+     *
+     * @hide
+     */
+    @SystemApi
+    public long getResultCoalescingWindowMillis() {
+        return mResultCoalescingWindowMillis;
+    }
+
     private ScanSettings(int scanMode, int callbackType, int scanResultType,
             long reportDelayMillis, int matchMode,
-            int numOfMatchesPerFilter, boolean legacy, int phy) {
+            int numOfMatchesPerFilter, boolean legacy, int phy,
+            long resultCoalescingWindowMillis) {
         mScanMode = scanMode;
         mCallbackType = callbackType;
         mScanResultType = scanResultType;
@@ -239,6 +263,7 @@ public final class ScanSettings implements Parcelable {
         mMatchMode = matchMode;
         mLegacy = legacy;
         mPhy = phy;
+        mResultCoalescingWindowMillis = resultCoalescingWindowMillis;
     }
 
     private ScanSettings(Parcel in) {
@@ -250,6 +275,7 @@ public final class ScanSettings implements Parcelable {
         mNumOfMatchesPerFilter = in.readInt();
         mLegacy = in.readInt() != 0;
         mPhy = in.readInt();
+        mResultCoalescingWindowMillis = in.readLong();
     }
 
     @Override
@@ -262,6 +288,7 @@ public final class ScanSettings implements Parcelable {
         dest.writeInt(mNumOfMatchesPerFilter);
         dest.writeInt(mLegacy ? 1 : 0);
         dest.writeInt(mPhy);
+        dest.writeLong(mResultCoalescingWindowMillis);
     }
 
     @Override
@@ -294,6 +321,7 @@ public final class ScanSettings implements Parcelable {
         private int mNumOfMatchesPerFilter = MATCH_NUM_MAX_ADVERTISEMENT;
         private boolean mLegacy = true;
         private int mPhy = PHY_LE_ALL_SUPPORTED;
+        private long mResultCoalescingWindowMillis = 0;
 
         /**
          * Set scan mode for Bluetooth LE scan.
@@ -445,13 +473,34 @@ public final class ScanSettings implements Parcelable {
             return this;
         }
 
+        /**
+         * Set the window during which scan results are coalesced before being delivered. If set
+         * to 0, every result is delivered as soon as it is found. If &gt; 0, results found during
+         * the window are delivered together through {@link ScanCallback#onBatchScanResults},
+         * keeping only the latest result of each device. This only applies to scans using
+         * {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES} without report delay.
+         *
+         * @param windowMillis coalescing window in milliseconds, at most 1000
+         * @throws IllegalArgumentException If the {@code windowMillis} is invalid.
+         * @hide
+         */
+        @SystemApi
+        public @NonNull Builder setResultCoalescingWindowMillis(long windowMillis) {
+            if (windowMillis < 0 || windowMillis > MAX_RESULT_COALESCING_WINDOW_MILLIS) {
+                throw new IllegalArgumentException(
+                        "invalid result coalescing window - " + windowMillis);
+            }
+            mResultCoalescingWindowMillis = windowMillis;
+            return this;
+        }
+
         /**
          * Build {@link ScanSettings}.
          */
         public ScanSettings build() {
             return new ScanSettings(mScanMode, mCallbackType, mScanResultType,
                     mReportDelayMillis, mMatchMode,
-                    mNumOfMatchesPerFilter, mLegacy, mPhy);
+                    mNumOfMatchesPerFilter, mLegacy, mPhy, mResultCoalescingWindowMillis);
         }
     }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.AttributionSource;
+import android.os.Handler;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Test cases for the operation queue of {@link BluetoothGatt}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothGattOperationQueueTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final int CLIENT_IF = 1;
+    private static final int FIRST_HANDLE = 2;
+    private static final int SECOND_HANDLE = 4;
+    private static final int DESCRIPTOR_HANDLE = 5;
+
+    private final FakeGattService mFakeService = new FakeGattService();
+    // Requests sent to the fake service and callbacks received, in order.
+    private final List<String> mEvents = new ArrayList<>();
+
+    private BluetoothGatt mGatt;
+    private BluetoothGattCharacteristic mFirst;
+    private BluetoothGattCharacteristic mSecond;
+    private BluetoothGattDescriptor mDescriptor;
+
+    @Before
+    public void setUp() throws Exception {
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        // BluetoothGatt is loaded by the boot class loader, so its package private members are
+        // not accessible from the test without reflection.
+        Constructor<BluetoothGatt> constructor = BluetoothGatt.class.getDeclaredConstructor(
+                IBluetoothGatt.class, BluetoothDevice.class, int.class, boolean.class, int.class,
+                AttributionSource.class);
+        constructor.setAccessible(true);
+        mGatt = constructor.newInstance(mFakeService.asInterface(), device,
+                BluetoothDevice.TRANSPORT_LE, false, BluetoothDevice.PHY_LE_1M_MASK, null);
+
+        Method connect = BluetoothGatt.class.getDeclaredMethod("connect", Boolean.class,
+                BluetoothGattCallback.class, Handler.class);
+        connect.setAccessible(true);
+        // Without handler, the callbacks are run as they are posted.
+        assertThat((boolean) connect.invoke(mGatt, false, new RecordingCallback(), null))
+                .isTrue();
+        mFakeService.mCallback.onClientRegistered(BluetoothGatt.GATT_SUCCESS, CLIENT_IF);
+
+        int properties = BluetoothGattCharacteristic.PROPERTY_READ
+                | BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE;
+        BluetoothGattService service = new BluetoothGattService(UUID.randomUUID(), 1,
+                BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        mFirst = new BluetoothGattCharacteristic(UUID.randomUUID(), FIRST_HANDLE, properties, 0);
+        mSecond = new BluetoothGattCharacteristic(UUID.randomUUID(), SECOND_HANDLE, properties,
+                0);
+        mDescriptor = new BluetoothGattDescriptor(UUID.randomUUID(), DESCRIPTOR_HANDLE, 0);
+        mSecond.addDescriptor(mDescriptor);
+        service.addCharacteristic(mFirst);
+        service.addCharacteristic(mSecond);
+        mFakeService.mCallback.onSearchComplete(ADDRESS, Arrays.asList(service),
+                BluetoothGatt.GATT_SUCCESS);
+
+        mGatt.setOperationQueueEnabled(true);
+        mEvents.clear();
+    }
+
+    @After
+    public void tearDown() {
+        mGatt.close();
+    }
+
+    @Test
+    public void setOperationQueueEnabled() {
+        assertThat(mGatt.isOperationQueueEnabled()).isTrue();
+
+        mGatt.setOperationQueueEnabled(false);
+
+        assertThat(mGatt.isOperationQueueEnabled()).isFalse();
+    }
+
+    @Test
+    public void queuedOperations_areSentAndReportedInOrder() throws Exception {
+        assertThat(mGatt.readCharacteristic(mFirst)).isTrue();
+        assertThat(mGatt.writeCharacteristic(mSecond, new byte[] {1},
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT))
+                .isEqualTo(BluetoothStatusCodes.SUCCESS);
+        assertThat(mGatt.readDescriptor(mDescriptor)).isTrue();
+        assertThat(mEvents).containsExactly("read 2 auth 0");
+
+        mFakeService.mCallback.onCharacteristicRead(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                FIRST_HANDLE, new byte[] {2});
+        mFakeService.mCallback.onCharacteristicWrite(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                SECOND_HANDLE, new byte[] {1});
+        mFakeService.mCallback.onDescriptorRead(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                DESCRIPTOR_HANDLE, new byte[] {3});
+
+        assertThat(mEvents).containsExactly(
+                "read 2 auth 0",
+                "onCharacteristicRead 2 status 0",
+                "write 4 type 2 auth 0",
+                "onCharacteristicWrite 4 status 0",
+                "read 5 auth 0",
+                "onDescriptorRead 5 status 0").inOrder();
+    }
+
+    @Test
+    public void writeCommands_areSentWithoutWaitingUpToTheLimit() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertThat(mGatt.writeCharacteristic(mFirst, new byte[] {(byte) i},
+                    BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE))
+                    .isEqualTo(BluetoothStatusCodes.SUCCESS);
+        }
+        assertThat(mGatt.readCharacteristic(mSecond)).isTrue();
+        assertThat(mEvents).hasSize(8);
+
+        mFakeService.mCallback.onCharacteristicWrite(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                FIRST_HANDLE, new byte[] {0});
+        // The callback of the completed write comes before the next write is sent.
+        assertThat(mEvents.subList(8, mEvents.size())).containsExactly(
+                "onCharacteristicWrite 2 status 0", "write 2 type 1 auth 0").inOrder();
+
+        for (int i = 1; i < 10; i++) {
+            assertThat(mEvents).doesNotContain("read 4 auth 0");
+            mFakeService.mCallback.onCharacteristicWrite(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                    FIRST_HANDLE, new byte[] {(byte) i});
+        }
+        // The read waits for every write command to complete.
+        assertThat(mEvents.get(mEvents.size() - 1)).isEqualTo("read 4 auth 0");
+    }
+
+    @Test
+    public void authenticationRetry_keepsTheOperationInFlight() throws Exception {
+        assertThat(mGatt.readCharacteristic(mFirst)).isTrue();
+        assertThat(mGatt.readCharacteristic(mSecond)).isTrue();
+
+        mFakeService.mCallback.onCharacteristicRead(ADDRESS,
+                BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION, FIRST_HANDLE, new byte[0]);
+
+        // The read is sent again with authentication, and the second one still waits.
+        assertThat(mEvents).containsExactly("read 2 auth 0",
+                "read 2 auth " + BluetoothGatt.AUTHENTICATION_NO_MITM).inOrder();
+
+        mFakeService.mCallback.onCharacteristicRead(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                FIRST_HANDLE, new byte[] {2});
+
+        assertThat(mEvents.subList(2, mEvents.size())).containsExactly(
+                "onCharacteristicRead 2 status 0", "read 4 auth 0").inOrder();
+    }
+
+    @Test
+    public void operationFailingToBeSent_isReportedAfterThePreviousOne() throws Exception {
+        assertThat(mGatt.readCharacteristic(mFirst)).isTrue();
+        assertThat(mGatt.writeDescriptor(mDescriptor, new byte[] {1}))
+                .isEqualTo(BluetoothStatusCodes.SUCCESS);
+        mFakeService.mWriteStatus = BluetoothStatusCodes.ERROR_UNKNOWN;
+
+        mFakeService.mCallback.onCharacteristicRead(ADDRESS, BluetoothGatt.GATT_SUCCESS,
+                FIRST_HANDLE, new byte[] {2});
+
+        assertThat(mEvents).containsExactly(
+                "read 2 auth 0",
+                "onCharacteristicRead 2 status 0",
+                "write 5 auth 0",
+                "onDescriptorWrite 5 status " + BluetoothGatt.GATT_FAILURE).inOrder();
+    }
+
+    @Test
+    public void reliableWrite_sendsTheOperationsQueuedMeanwhileOnCompletion() throws Exception {
+        assertThat(mGatt.executeReliableWrite()).isTrue();
+        assertThat(mGatt.readCharacteristic(mFirst)).isTrue();
+        assertThat(mEvents).containsExactly("endReliableWrite");
+
+        mFakeService.mCallback.onExecuteWrite(ADDRESS, BluetoothGatt.GATT_SUCCESS);
+
+        assertThat(mEvents).containsExactly(
+                "endReliableWrite",
+                "onReliableWriteCompleted status 0",
+                "read 2 auth 0").inOrder();
+    }
+
+    /**
+     * Records the requests sent to the service and answers them as sent.
+     *
+     * The methods of IBluetoothGatt take a SynchronousResultReceiver, which is renamed in the
+     * module, so the fake implements the interface with a proxy rather than overriding them.
+     */
+    private class FakeGattService {
+        IBluetoothGattCallback mCallback;
+        int mWriteStatus = BluetoothStatusCodes.SUCCESS;
+
+        IBluetoothGatt asInterface() {
+            return (IBluetoothGatt) Proxy.newProxyInstance(IBluetoothGatt.class.getClassLoader(),
+                    new Class<?>[] {IBluetoothGatt.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "registerClient":
+                                mCallback = (IBluetoothGattCallback) args[1];
+                                break;
+                            case "readCharacteristic":
+                            case "readDescriptor":
+                                mEvents.add("read " + args[2] + " auth " + args[3]);
+                                break;
+                            case "writeCharacteristic":
+                                mEvents.add("write " + args[2] + " type " + args[3] + " auth "
+                                        + args[4]);
+                                return reply(args, mWriteStatus);
+                            case "writeDescriptor":
+                                mEvents.add("write " + args[2] + " auth " + args[3]);
+                                return reply(args, mWriteStatus);
+                            case "endReliableWrite":
+                                mEvents.add("endReliableWrite");
+                                break;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return "FakeGattService";
+                            default:
+                                break;
+                        }
+                        return reply(args, null);
+                    });
+        }
+
+        private Object reply(Object[] args, Object value) throws Exception {
+            Object receiver = args != null && args.length > 0 ? args[args.length - 1] : null;
+            if (receiver != null
+                    && receiver.getClass().getSimpleName().equals("SynchronousResultReceiver")) {
+                receiver.getClass().getMethod("send", Object.class).invoke(receiver, value);
+            }
+            return null;
+        }
+    }
+
+    private class RecordingCallback extends BluetoothGattCallback {
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                BluetoothGattCharacteristic characteristic, byte[] value, int status) {
+            mEvents.add("onCharacteristicRead " + characteristic.getInstanceId() + " status "
+                    + status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                BluetoothGattCharacteristic characteristic, int status) {
+            mEvents.add("onCharacteristicWrite " + characteristic.getInstanceId() + " status "
+                    + status);
+        }
+
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                int status, byte[] value) {
+            mEvents.add("onDescriptorRead " + descriptor.getInstanceId() + " status " + status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                int status) {
+            mEvents.add("onDescriptorWrite " + descriptor.getInstanceId() + " status " + status);
+        }
+
+        @Override
+        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+            mEvents.add("onReliableWriteCompleted status " + status);
+        }
+    }
+}
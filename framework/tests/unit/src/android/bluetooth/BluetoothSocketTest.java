@@ -0,0 +1,331 @@
+/*
+ * Copyright 2023 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.bluetooth;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.net.LocalSocket;
+import android.os.ParcelUuid;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructTimeval;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test cases for the {@link ByteBuffer} reads and writes of {@link BluetoothSocket}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BluetoothSocketTest {
+    private static final String ADDRESS = "00:01:02:03:04:05";
+    private static final int MAX_PACKET_SIZE = 16;
+
+    private BluetoothSocket mSocket;
+    // The other end of the socket.
+    private FileDescriptor mPeer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mSocket != null) {
+            mSocket.close();
+        }
+        if (mPeer != null) {
+            Os.close(mPeer);
+        }
+    }
+
+    @Test
+    public void rfcomm_writeAndRead_withHeapAndDirectBuffers() throws Exception {
+        connect(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        byte[] data = createData(10);
+
+        ByteBuffer heap = ByteBuffer.wrap(data, 2, 5);
+        assertThat(mSocket.write(heap)).isEqualTo(5);
+        assertThat(heap.hasRemaining()).isFalse();
+        ByteBuffer direct = ByteBuffer.allocateDirect(10);
+        direct.put(data).flip();
+        assertThat(mSocket.write(direct)).isEqualTo(10);
+        assertThat(direct.hasRemaining()).isFalse();
+
+        assertThat(readPeer(15)).isEqualTo(concat(Arrays.copyOfRange(data, 2, 7), data));
+
+        Os.write(mPeer, data, 0, data.length);
+        direct.clear().limit(4);
+        assertThat(mSocket.read(direct)).isEqualTo(4);
+        heap = ByteBuffer.allocate(10);
+        assertThat(mSocket.read(heap)).isEqualTo(6);
+
+        assertThat(toArray(direct)).isEqualTo(Arrays.copyOf(data, 4));
+        assertThat(Arrays.copyOf(heap.array(), 6)).isEqualTo(Arrays.copyOfRange(data, 4, 10));
+    }
+
+    @Test
+    public void rfcomm_gatheringWrite_writesBuffersInOrder() throws Exception {
+        connect(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        // More buffers than a single writev(2) takes, of every kind.
+        List<ByteBuffer> buffers = new ArrayList<>();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = createData(i % 7);
+            ByteBuffer buffer;
+            switch (i % 3) {
+                case 0:
+                    buffer = ByteBuffer.allocateDirect(data.length).put(data);
+                    buffer.flip();
+                    break;
+                case 1:
+                    // Slice with an array offset.
+                    buffer = ByteBuffer.wrap(concat(new byte[3], data));
+                    buffer.position(3);
+                    buffer = buffer.slice();
+                    break;
+                default:
+                    buffer = ByteBuffer.wrap(data);
+                    break;
+            }
+            buffers.add(buffer);
+            expected.write(data);
+        }
+        ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[0]);
+
+        assertThat(mSocket.write(srcs)).isEqualTo(expected.size());
+
+        for (ByteBuffer buffer : srcs) {
+            assertThat(buffer.hasRemaining()).isFalse();
+        }
+        assertThat(readPeer(expected.size())).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    public void rfcomm_gatheringWrite_withReadOnlyBuffer() throws Exception {
+        connect(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        byte[] data = createData(12);
+        ByteBuffer[] srcs = new ByteBuffer[] {
+                ByteBuffer.wrap(data, 0, 4),
+                ByteBuffer.wrap(data, 4, 4).slice().asReadOnlyBuffer(),
+                ByteBuffer.wrap(data, 8, 4),
+        };
+
+        assertThat(mSocket.write(srcs)).isEqualTo(12);
+
+        assertThat(readPeer(12)).isEqualTo(data);
+    }
+
+    @Test
+    public void rfcomm_gatheringWrite_resumesAfterPartialWrites() throws Exception {
+        connect(BluetoothSocket.TYPE_RFCOMM, OsConstants.SOCK_STREAM);
+        // With a small send buffer drained slowly, each writev(2) times out after writing part
+        // of the buffers.
+        FileDescriptor fd = getSocketFileDescriptor();
+        Os.setsockoptInt(fd, OsConstants.SOL_SOCKET, OsConstants.SO_SNDBUF, 4096);
+        Os.setsockoptTimeval(fd, OsConstants.SOL_SOCKET, OsConstants.SO_SNDTIMEO,
+                StructTimeval.fromMillis(20));
+        byte[] data = createData(256 * 1024);
+        ByteBuffer direct = ByteBuffer.allocateDirect(64 * 1024 + 3);
+        direct.put(data, 0, direct.capacity()).flip();
+        ByteBuffer[] srcs = new ByteBuffer[] {
+                ByteBuffer.wrap(data, 0, 0),
+                direct,
+                ByteBuffer.wrap(data, direct.capacity(), data.length - direct.capacity()),
+        };
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> {
+            byte[] chunk = new byte[1024];
+            try {
+                while (received.size() < data.length) {
+                    int length = Os.read(mPeer, chunk, 0, chunk.length);
+                    received.write(chunk, 0, length);
+                    Thread.sleep(1);
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        reader.start();
+
+        assertThat(mSocket.write(srcs)).isEqualTo(data.length);
+
+        reader.join();
+        assertThat(received.toByteArray()).isEqualTo(data);
+    }
+
+    @Test
+    public void l2cap_write_splitsAtMaxTransmitPacketSize() throws Exception {
+        connect(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        assertThat(mSocket.getMaxTransmitPacketSize()).isEqualTo(MAX_PACKET_SIZE);
+        byte[] data = createData(40);
+
+        assertThat(mSocket.write(ByteBuffer.wrap(data))).isEqualTo(40);
+
+        assertThat(readPeerPackets(40)).containsExactly(
+                ByteBuffer.wrap(data, 0, 16),
+                ByteBuffer.wrap(data, 16, 16),
+                ByteBuffer.wrap(data, 32, 8)).inOrder();
+    }
+
+    @Test
+    public void l2cap_gatheringWrite_packsBuffersIntoFullPackets() throws Exception {
+        connect(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        byte[] data = createData(65);
+        ByteBuffer direct = ByteBuffer.allocateDirect(32);
+        direct.put(data, 33, 32).flip();
+        ByteBuffer[] srcs = new ByteBuffer[] {
+                ByteBuffer.wrap(data, 0, 5),
+                ByteBuffer.wrap(data, 5, 5),
+                ByteBuffer.wrap(data, 10, 20),
+                ByteBuffer.wrap(data, 30, 3),
+                direct,
+        };
+
+        assertThat(mSocket.write(srcs)).isEqualTo(65);
+
+        // Every packet is full, but the last one.
+        assertThat(readPeerPackets(65)).containsExactly(
+                ByteBuffer.wrap(data, 0, 16),
+                ByteBuffer.wrap(data, 16, 16),
+                ByteBuffer.wrap(data, 32, 16),
+                ByteBuffer.wrap(data, 48, 16),
+                ByteBuffer.wrap(data, 64, 1)).inOrder();
+    }
+
+    @Test
+    public void l2cap_read_returnsOnePacketAtMost() throws Exception {
+        connect(BluetoothSocket.TYPE_L2CAP, OsConstants.SOCK_SEQPACKET);
+        byte[] data = createData(16);
+        Os.write(mPeer, data, 0, 10);
+        Os.write(mPeer, data, 10, 6);
+
+        // A whole packet fits, it is read in place.
+        ByteBuffer direct = ByteBuffer.allocateDirect(2 * MAX_PACKET_SIZE);
+        assertThat(mSocket.read(direct)).isEqualTo(10);
+        // The rest of the packet is kept for the next read.
+        ByteBuffer heap = ByteBuffer.allocate(4);
+        assertThat(mSocket.read(heap)).isEqualTo(4);
+        assertThat(mSocket.read(direct)).isEqualTo(2);
+
+        assertThat(toArray(direct))
+                .isEqualTo(concat(Arrays.copyOf(data, 10), Arrays.copyOfRange(data, 14, 16)));
+        assertThat(heap.array()).isEqualTo(Arrays.copyOfRange(data, 10, 14));
+    }
+
+    /**
+     * Connects {@link #mSocket} of {@code type} to {@link #mPeer} through a socket pair.
+     *
+     * BluetoothSocket is loaded by the boot class loader, so its package private members are not
+     * accessible from the test without reflection.
+     */
+    private void connect(int type, int socketType) throws Exception {
+        FileDescriptor fd = new FileDescriptor();
+        mPeer = new FileDescriptor();
+        Os.socketpair(OsConstants.AF_UNIX, socketType, 0, fd, mPeer);
+
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(ADDRESS);
+        Constructor<BluetoothSocket> constructor = BluetoothSocket.class.getDeclaredConstructor(
+                int.class, int.class, boolean.class, boolean.class, BluetoothDevice.class,
+                int.class, ParcelUuid.class);
+        constructor.setAccessible(true);
+        mSocket = constructor.newInstance(type, -1, false, false, device, 1, null);
+
+        Constructor<LocalSocket> localSocketConstructor =
+                LocalSocket.class.getDeclaredConstructor(FileDescriptor.class);
+        localSocketConstructor.setAccessible(true);
+        LocalSocket localSocket = localSocketConstructor.newInstance(fd);
+        setField("mSocket", localSocket);
+        setField("mSocketIS", localSocket.getInputStream());
+        setField("mSocketOS", localSocket.getOutputStream());
+        setField("mMaxTxPacketSize", MAX_PACKET_SIZE);
+        setField("mMaxRxPacketSize", MAX_PACKET_SIZE);
+        setField("mSocketState", getSocketState("CONNECTED"));
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = BluetoothSocket.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(mSocket, value);
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static Object getSocketState(String name) throws Exception {
+        Class type = BluetoothSocket.class.getDeclaredField("mSocketState").getType();
+        return Enum.valueOf(type, name);
+    }
+
+    private FileDescriptor getSocketFileDescriptor() throws Exception {
+        Field field = BluetoothSocket.class.getDeclaredField("mSocket");
+        field.setAccessible(true);
+        return ((LocalSocket) field.get(mSocket)).getFileDescriptor();
+    }
+
+    private byte[] readPeer(int length) throws Exception {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            offset += Os.read(mPeer, data, offset, length - offset);
+        }
+        return data;
+    }
+
+    // Reads the packets sent to the peer, up to length bytes in total. Buffers are compared by
+    // content, unlike arrays.
+    private List<ByteBuffer> readPeerPackets(int length) throws Exception {
+        List<ByteBuffer> packets = new ArrayList<>();
+        byte[] packet = new byte[2 * MAX_PACKET_SIZE];
+        while (length > 0) {
+            int size = Os.read(mPeer, packet, 0, packet.length);
+            packets.add(ByteBuffer.wrap(Arrays.copyOf(packet, size)));
+            length -= size;
+        }
+        return packets;
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] data = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        return data;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.flip();
+        byte[] data = new byte[copy.remaining()];
+        copy.get(data);
+        return data;
+    }
+}
@@ -61,4 +61,28 @@ public class ScanSettingsTest extends TestCase {
         }
 
     }
+
+    @SmallTest
+    public void testResultCoalescingWindow() {
+        ScanSettings.Builder builder = new ScanSettings.Builder();
+        assertEquals(0, builder.build().getResultCoalescingWindowMillis());
+        builder.setResultCoalescingWindowMillis(100);
+        assertEquals(100, builder.build().getResultCoalescingWindowMillis());
+        builder.setResultCoalescingWindowMillis(ScanSettings.MAX_RESULT_COALESCING_WINDOW_MILLIS);
+
+        try {
+            builder.setResultCoalescingWindowMillis(-1);
+            fail("should have thrown IllegalArgumentException!");
+        } catch (IllegalArgumentException e) {
+            // nothing to do
+        }
+
+        try {
+            builder.setResultCoalescingWindowMillis(
+                    ScanSettings.MAX_RESULT_COALESCING_WINDOW_MILLIS + 1);
+            fail("should have thrown IllegalArgumentException!");
+        } catch (IllegalArgumentException e) {
+            // nothing to do
+        }
+    }
 }